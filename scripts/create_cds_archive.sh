@@ -0,0 +1,6 @@
+#!/bin/bash
+#Class data sharing archive for faster starts (Java 13+). It only works with the Java version that created it, run again after Java updates.
+JAR_NAME=$(ls | grep "^sepia-reverse-proxy-.*jar" | tail -n 1)
+echo "Creating CDS archive for SEPIA Reverse-Proxy ($JAR_NAME)"
+rm -f sepia-reverse-proxy.jsa
+java -XX:ArchiveClassesAtExit=sepia-reverse-proxy.jsa -jar $JAR_NAME cds-training
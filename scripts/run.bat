@@ -1,3 +1,5 @@
 @echo off
 FOR /F "delims=|" %%I IN ('DIR "sepia-reverse-proxy-*.jar" /B /O:D') DO SET JAR_NAME=%%I
-java -jar -Xms25m -Xmx25m %JAR_NAME% tiny -ssl=true
\ No newline at end of file
+SET CDS=
+IF EXIST sepia-reverse-proxy.jsa SET CDS=-XX:SharedArchiveFile=sepia-reverse-proxy.jsa
+java -jar -Xms25m -Xmx25m %CDS% %JAR_NAME% tiny -ssl=true
\ No newline at end of file
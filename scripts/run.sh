@@ -1,4 +1,9 @@
 #!/bin/bash
 JAR_NAME=$(ls | grep "^sepia-reverse-proxy-.*jar" | tail -n 1)
 echo "Running SEPIA Reverse-Proxy ($JAR_NAME)"
-java -jar -Xms25m -Xmx25m $JAR_NAME tiny -ssl=true &> log.out&
+#use class data sharing archive if available (see create_cds_archive.sh)
+CDS=""
+if [ -f "sepia-reverse-proxy.jsa" ]; then
+	CDS="-XX:SharedArchiveFile=sepia-reverse-proxy.jsa"
+fi
+java -jar -Xms25m -Xmx25m $CDS $JAR_NAME tiny -ssl=true &> log.out&
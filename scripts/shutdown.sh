@@ -1,3 +1,13 @@
 #!/bin/bash
 echo "Shutting down SEPIA Reverse-Proxy"
+# SIGTERM starts a graceful shutdown: requests in progress can finish (see 'drain_timeout' in settings)
 pkill -f 'java -jar .*sepia-reverse-proxy.*'
+for i in $(seq 1 60); do
+	if ! pgrep -f 'java -jar .*sepia-reverse-proxy.*' > /dev/null; then
+		echo "Done"
+		exit 0
+	fi
+	sleep 1
+done
+echo "Proxy is still running after 60s, use 'pkill -9 -f sepia-reverse-proxy' to kill it."
+exit 1
@@ -0,0 +1,86 @@
+package net.b07z.sepia.proxies.bench;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.undertow.util.HeaderMap;
+import io.undertow.util.Headers;
+import net.b07z.sepia.proxies.security.AccessPolicy;
+import net.b07z.sepia.proxies.security.IpAddress;
+import net.b07z.sepia.proxies.security.TrustedProxies;
+
+/**
+ * Per-request access check of the path handler: client address, trusted proxy headers and allow/deny networks.
+ * 
+ * @author Florian Quirin
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccessCheckBenchmark {
+	
+	InetAddress publicV4;
+	InetAddress localV6;
+	AccessPolicy localOnly;
+	AccessPolicy withLists;
+	TrustedProxies trusted;
+	HeaderMap forwarded;
+	HeaderMap direct;
+	
+	@Setup
+	public void setup() throws Exception {
+		publicV4 = InetAddress.getByName("203.0.113.50");
+		localV6 = InetAddress.getByName("fd00::1234");
+		localOnly = AccessPolicy.LOCAL_ONLY;
+		withLists = AccessPolicy.create(false, "203.0.113.0/24, 2001:db8::/32", "192.168.1.66, 10.10.0.0/16");
+		trusted = TrustedProxies.parse("127.0.0.1, 172.17.0.0/16");
+		forwarded = new HeaderMap();
+		forwarded.put(Headers.X_FORWARDED_FOR, "198.51.100.7, 203.0.113.50, 172.17.0.3");
+		direct = new HeaderMap();
+	}
+	
+	@Benchmark
+	public boolean localOnlyV4(){
+		IpAddress client = IpAddress.get();
+		client.set(publicV4);
+		return localOnly.isAllowed(client);
+	}
+	
+	@Benchmark
+	public boolean allowDenyV6(){
+		IpAddress client = IpAddress.get();
+		client.set(localV6);
+		return withLists.isAllowed(client);
+	}
+	
+	@Benchmark
+	public boolean trustedProxyHeader(){
+		IpAddress client = IpAddress.get();
+		client.parse("172.17.0.2");
+		trusted.resolve(forwarded, client, client);
+		return withLists.isAllowed(client);
+	}
+	
+	@Benchmark
+	public boolean untrustedNoHeader(){
+		IpAddress client = IpAddress.get();
+		client.set(publicV4);
+		trusted.resolve(direct, client, client);
+		return withLists.isAllowed(client);
+	}
+}
@@ -0,0 +1,76 @@
+package net.b07z.sepia.proxies.bench;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.undertow.util.HeaderMap;
+import io.undertow.util.Headers;
+import net.b07z.sepia.proxies.headers.HeaderRules;
+import net.b07z.sepia.proxies.headers.LocationRewriter;
+
+/**
+ * Per-request header rules and 'Location' check of a route. Run with '-prof gc' to see allocations per operation
+ * (rules that remove or find nothing to rewrite should not allocate).
+ *
+ * @author Florian Quirin
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderRulesBenchmark {
+
+	HeaderRules requestRules;
+	HeaderRules removeOnly;
+	LocationRewriter locations;
+	HeaderMap headers;
+
+	@Setup
+	public void setup(){
+		requestRules = HeaderRules.parse("X-Service: stt | -Cookie | ~Accept-Language: de-DE => de");
+		removeOnly = HeaderRules.parse("-Server | -X-Powered-By | ~Set-Cookie: Path=/stt => Path=/sepia/stt");
+		locations = new LocationRewriter("/sepia/stt", Arrays.asList(URI.create("http://localhost:20741/stt")));
+		headers = new HeaderMap();
+		headers.put(Headers.HOST, "proxy.example.com");
+		headers.put(Headers.ACCEPT, "application/json");
+		headers.put(Headers.ACCEPT_LANGUAGE, "en-US");
+		headers.put(Headers.USER_AGENT, "SEPIA-Client");
+	}
+
+	@Benchmark
+	public HeaderMap requestRules(){
+		requestRules.apply(headers);
+		return headers;
+	}
+
+	@Benchmark
+	public HeaderMap removeOnly(){
+		removeOnly.apply(headers);
+		return headers;
+	}
+
+	@Benchmark
+	public String externalLocation(){
+		return locations.rewrite("https://accounts.example.org/login?next=1", "proxy.example.com");
+	}
+
+	@Benchmark
+	public String backendLocation(){
+		return locations.rewrite("http://localhost:20741/stt/done?id=42", "proxy.example.com");
+	}
+}
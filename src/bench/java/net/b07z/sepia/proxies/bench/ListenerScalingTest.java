@@ -0,0 +1,190 @@
+package net.b07z.sepia.proxies.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.undertow.Undertow;
+import io.undertow.util.Headers;
+import net.b07z.sepia.proxies.TinyReverseProxy;
+import net.b07z.sepia.proxies.metrics.LatencyHistogram;
+import net.b07z.sepia.proxies.server.ReusePortListener;
+
+/**
+ * Listener scaling test: runs {@link TinyReverseProxy} with 1, 2, 4 ... listeners on one port (SO_REUSEPORT) and the
+ * same total number of threads, and reports requests per second and latency for new connections per request
+ * ('close', measures the accept path) and keep-alive connections ('keep-alive').<br>
+ * Clients are blocking sockets in the same JVM, so the numbers are only comparable with each other.<br>
+ * Arguments: -duration=10 (seconds per run), -warmup=3, -concurrency=64, -listeners=1,2,4,{cores}
+ *
+ * @author Florian Quirin
+ *
+ */
+public class ListenerScalingTest {
+
+	private static final int PROXY_PORT = 9306;
+	private static final int BACKEND_PORT = 9307;
+
+	private static final byte[] REQUEST_CLOSE = "GET /bench/data HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] REQUEST_KEEP_ALIVE = "GET /bench/data HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+
+	public static void main(String[] args) throws Exception {
+		int duration = 10;
+		int warmup = 3;
+		int concurrency = 64;
+		int cores = Runtime.getRuntime().availableProcessors();
+		TreeSet<Integer> listeners = new TreeSet<>(List.of(1, 2, 4, cores));
+		for (String arg : args){
+			if (arg.startsWith("-duration=")){
+				duration = Integer.parseInt(arg.substring(10));
+			}else if (arg.startsWith("-warmup=")){
+				warmup = Integer.parseInt(arg.substring(8));
+			}else if (arg.startsWith("-concurrency=")){
+				concurrency = Integer.parseInt(arg.substring(13));
+			}else if (arg.startsWith("-listeners=")){
+				listeners.clear();
+				for (String n : arg.substring(11).split(",")){
+					listeners.add(Integer.parseInt(n.trim()));
+				}
+			}
+		}
+		if (!ReusePortListener.isSupported()){
+			System.out.println("SO_REUSEPORT is not supported on this platform, only 1 listener possible.");
+			listeners = new TreeSet<>(List.of(1));
+		}
+
+		Undertow backend = Undertow.builder().addHttpListener(BACKEND_PORT, "localhost")
+				.setHandler((exchange) -> {
+					exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain");
+					exchange.getResponseSender().send("SEPIA-" + "x".repeat(250));
+				}).build();
+		backend.start();
+
+		System.out.println("Listener scaling test - concurrency: " + concurrency + ", duration: " + duration + "s (+" + warmup + "s warm-up), "
+				+ "cores: " + cores);
+		System.out.println(String.format("%-10s %-10s %12s %10s %10s %10s %8s", "listeners", "mode", "req/s", "p50 ms", "p99 ms", "max ms", "errors"));
+		try{
+			for (int n : listeners){
+				TinyReverseProxy proxy = new TinyReverseProxy("localhost", PROXY_PORT);
+				proxy.setMetricsPath(null);
+				proxy.setHealthChecks(0, 0);
+				proxy.setListeners(n);
+				proxy.addPrefixPath("/bench", "http://localhost:" + BACKEND_PORT, true);
+				proxy.start();
+				try{
+					for (boolean keepAlive : new boolean[]{ false, true }){
+						run(keepAlive, concurrency, warmup, new LatencyHistogram(), new AtomicLong());
+						LatencyHistogram histogram = new LatencyHistogram();
+						AtomicLong errors = new AtomicLong();
+						long t0 = System.nanoTime();
+						run(keepAlive, concurrency, duration, histogram, errors);
+						long nanos = System.nanoTime() - t0;
+						long[] counts = histogram.getCounts();
+						long total = 0;
+						for (long c : counts){
+							total += c;
+						}
+						System.out.println(String.format("%-10d %-10s %12.0f %10.3f %10.3f %10.3f %8d", proxy.getListeners(), keepAlive? "keep-alive" : "close",
+								total / (nanos / 1e9),
+								LatencyHistogram.valueAtPercentile(counts, 50) / 1000.0,
+								LatencyHistogram.valueAtPercentile(counts, 99) / 1000.0,
+								LatencyHistogram.valueAtPercentile(counts, 100) / 1000.0,
+								errors.get()));
+					}
+				}finally{
+					proxy.stop();
+				}
+			}
+		}finally{
+			backend.stop();
+		}
+	}
+
+	private static void run(boolean keepAlive, int concurrency, int seconds, LatencyHistogram histogram, AtomicLong errors) throws Exception {
+		long end = System.nanoTime() + seconds * 1000000000L;
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < concurrency; i++){
+			Thread t = new Thread(() -> {
+				if (keepAlive){
+					loopKeepAlive(end, histogram, errors);
+				}else{
+					loopClose(end, histogram, errors);
+				}
+			});
+			t.start();
+			threads.add(t);
+		}
+		for (Thread t : threads){
+			t.join();
+		}
+	}
+
+	private static void loopClose(long end, LatencyHistogram histogram, AtomicLong errors){
+		byte[] buf = new byte[4096];
+		long now;
+		while ((now = System.nanoTime()) < end){
+			try (Socket s = new Socket("localhost", PROXY_PORT)){
+				s.setSoLinger(true, 0);		//no TIME_WAIT, many short connections would run out of ports
+				s.getOutputStream().write(REQUEST_CLOSE);
+				InputStream in = s.getInputStream();
+				while (in.read(buf) >= 0){
+					//read to EOF
+				}
+				histogram.record((System.nanoTime() - now) / 1000);
+			}catch (IOException e){
+				errors.incrementAndGet();
+			}
+		}
+	}
+
+	private static void loopKeepAlive(long end, LatencyHistogram histogram, AtomicLong errors){
+		byte[] buf = new byte[4096];
+		try (Socket s = new Socket("localhost", PROXY_PORT)){
+			s.setTcpNoDelay(true);
+			OutputStream out = s.getOutputStream();
+			InputStream in = s.getInputStream();
+			long now;
+			while ((now = System.nanoTime()) < end){
+				out.write(REQUEST_KEEP_ALIVE);
+				readResponse(in, buf);
+				histogram.record((System.nanoTime() - now) / 1000);
+			}
+		}catch (IOException e){
+			errors.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Read one response with 'Content-Length'.
+	 */
+	private static void readResponse(InputStream in, byte[] buf) throws IOException {
+		int n = 0;
+		int headerEnd = -1;
+		while (headerEnd < 0){
+			int r = in.read(buf, n, buf.length - n);
+			if (r < 0) throw new IOException("connection closed");
+			n += r;
+			for (int i = 3; i < n; i++){
+				if (buf[i - 3] == '\r' && buf[i - 2] == '\n' && buf[i - 1] == '\r' && buf[i] == '\n'){
+					headerEnd = i + 1;
+					break;
+				}
+			}
+		}
+		String headers = new String(buf, 0, headerEnd, StandardCharsets.ISO_8859_1).toLowerCase();
+		int idx = headers.indexOf("content-length:");
+		int length = (idx < 0)? 0 : Integer.parseInt(headers.substring(idx + 15, headers.indexOf('\r', idx)).trim());
+		int remaining = length - (n - headerEnd);
+		while (remaining > 0){
+			int r = in.read(buf, 0, Math.min(buf.length, remaining));
+			if (r < 0) throw new IOException("connection closed");
+			remaining -= r;
+		}
+	}
+}
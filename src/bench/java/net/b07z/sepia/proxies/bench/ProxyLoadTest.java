@@ -0,0 +1,355 @@
+package net.b07z.sepia.proxies.bench;
+
+import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import io.undertow.Handlers;
+import io.undertow.Undertow;
+import io.undertow.UndertowOptions;
+import io.undertow.util.Headers;
+import io.undertow.util.SameThreadExecutor;
+import io.undertow.websockets.core.AbstractReceiveListener;
+import io.undertow.websockets.core.BufferedTextMessage;
+import io.undertow.websockets.core.WebSocketChannel;
+import io.undertow.websockets.core.WebSockets;
+import net.b07z.sepia.proxies.TinyReverseProxy;
+import net.b07z.sepia.proxies.balancing.Balancing;
+import net.b07z.sepia.proxies.metrics.LatencyHistogram;
+import net.b07z.sepia.proxies.routing.RouteOptions;
+import net.b07z.sepia.proxies.security.SSLContextBuilder;
+
+/**
+ * End-to-end load test: drives {@link TinyReverseProxy} against an in-process Undertow backend over loopback
+ * and reports requests per second and latency percentiles for HTTP/1.1, HTTP/2 (h2c and TLS), TLS and WebSocket.<br>
+ * Arguments: -duration=10 (seconds per scenario), -warmup=3, -concurrency=32, -scenarios=direct,http1,h2c,tls,h2,h2-up,ws,mix-rr,mix-lr,mix-ewma
+ * ('direct' calls the backend without proxy as baseline, 'h2-up' sends HTTP/1.1 to the proxy and HTTP/2 to the backend,
+ * compare with 'http1' that uses the HTTP/1.1 connection pool). The 'conns' column counts connections seen by the backend.<br>
+ * The 'mix-*' scenarios balance over two fast backends and a degraded one (10ms per request and a 200ms stall every
+ * 50th request) with round-robin, least requests and peak-EWMA, compare their p99.
+ * 
+ * @author Florian Quirin
+ *
+ */
+public class ProxyLoadTest {
+	
+	private static final int BACKEND_PORT = 9301;
+	private static final int PROXY_PORT = 9300;
+	private static final int TLS_PROXY_PORT = 9302;
+	private static final int[] MIX_BACKEND_PORTS = {9303, 9304, 9305};		//the last one is degraded
+	private static final String KEYSTORE = "target/bench-keystore.p12";
+	private static final String KEYSTORE_PWD = "benchpass";
+	
+	private static final String BODY = "SEPIA-" + "x".repeat(250);
+	
+	//client ports of connections the backend has seen in the current scenario
+	private static final Set<Integer> BACKEND_CONNECTIONS = ConcurrentHashMap.newKeySet();
+	
+	public static void main(String[] args) throws Exception {
+		int duration = 10;
+		int warmup = 3;
+		int concurrency = 32;
+		String scenarios = "direct,http1,h2c,tls,h2,h2-up,ws,mix-rr,mix-lr,mix-ewma";
+		for (String arg : args){
+			if (arg.startsWith("-duration=")){
+				duration = Integer.parseInt(arg.substring(10));
+			}else if (arg.startsWith("-warmup=")){
+				warmup = Integer.parseInt(arg.substring(8));
+			}else if (arg.startsWith("-concurrency=")){
+				concurrency = Integer.parseInt(arg.substring(13));
+			}else if (arg.startsWith("-scenarios=")){
+				scenarios = arg.substring(11);
+			}
+		}
+		
+		KeyStore ks = createKeyStore();
+		SSLContext serverSsl = SSLContextBuilder.create(ks, null, KEYSTORE_PWD);
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(ks);
+		SSLContext clientSsl = SSLContext.getInstance("TLS");
+		clientSsl.init(null, tmf.getTrustManagers(), null);
+		
+		Undertow backend = startBackend();
+		List<Undertow> mixBackends = new ArrayList<>();
+		String mixTargets = "";
+		for (int i = 0; i < MIX_BACKEND_PORTS.length; i++){
+			mixBackends.add(startMixBackend(MIX_BACKEND_PORTS[i], i == MIX_BACKEND_PORTS.length - 1));
+			mixTargets += (i > 0? ", " : "") + "http://localhost:" + MIX_BACKEND_PORTS[i];
+		}
+		TinyReverseProxy proxy = new TinyReverseProxy("localhost", PROXY_PORT);
+		proxy.addPrefixPath("/bench", "http://localhost:" + BACKEND_PORT, true);
+		proxy.addPrefixPath("/bench-h2", "http://localhost:" + BACKEND_PORT, new RouteOptions().setPublic(true).setHttp2(true));
+		proxy.addPrefixPath("/mix-rr", mixTargets, new RouteOptions().setPublic(true).setBalancing(Balancing.ROUND_ROBIN));
+		proxy.addPrefixPath("/mix-lr", mixTargets, new RouteOptions().setPublic(true).setBalancing(Balancing.LEAST_REQUESTS));
+		proxy.addPrefixPath("/mix-ewma", mixTargets, new RouteOptions().setPublic(true).setBalancing(Balancing.PEAK_EWMA));
+		proxy.start();
+		TinyReverseProxy tlsProxy = new TinyReverseProxy("localhost", TLS_PROXY_PORT, true, serverSsl);
+		tlsProxy.addPrefixPath("/bench", "http://localhost:" + BACKEND_PORT, true);
+		tlsProxy.start();
+		
+		System.out.println("Proxy load test - concurrency: " + concurrency + ", duration: " + duration + "s (+" + warmup + "s warm-up), "
+				+ "cores: " + Runtime.getRuntime().availableProcessors());
+		System.out.println(String.format("%-8s %12s %10s %10s %10s %10s %8s %8s", "scenario", "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "errors", "conns"));
+		try{
+			for (String scenario : scenarios.split(",")){
+				scenario = scenario.trim();
+				List<AutoCloseable> resources = new ArrayList<>();
+				if (scenario.equals("ws")){
+					HttpClient client = HttpClient.newBuilder().build();
+					List<WsUser> users = new ArrayList<>();
+					for (int i = 0; i < concurrency; i++){
+						WsUser user = new WsUser(client, URI.create("ws://localhost:" + PROXY_PORT + "/bench/ws"));
+						users.add(user);
+						resources.add(user);
+					}
+					runWebSocket(scenario, users, warmup, duration);
+				}else{
+					HttpClient.Version version = (scenario.equals("h2c") || scenario.equals("h2"))? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1;
+					boolean tls = scenario.equals("tls") || scenario.equals("h2");
+					HttpClient.Builder cb = HttpClient.newBuilder().version(version);
+					if (tls){
+						cb.sslContext(clientSsl);
+					}
+					HttpClient client = cb.build();
+					URI uri;
+					if (scenario.equals("direct")){
+						uri = URI.create("http://localhost:" + BACKEND_PORT + "/data");
+					}else if (scenario.equals("h2-up")){
+						uri = URI.create("http://localhost:" + PROXY_PORT + "/bench-h2/data");
+					}else if (scenario.startsWith("mix-")){
+						uri = URI.create("http://localhost:" + PROXY_PORT + "/" + scenario + "/data");
+					}else{
+						uri = URI.create((tls? ("https://localhost:" + TLS_PROXY_PORT) : ("http://localhost:" + PROXY_PORT)) + "/bench/data");
+					}
+					HttpRequest request = HttpRequest.newBuilder(uri).GET().build();
+					Supplier<CompletableFuture<?>> op = () -> client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).thenApply(res -> {
+						if (res.statusCode() != 200){
+							throw new IllegalStateException("Status: " + res.statusCode());
+						}
+						return res;
+					});
+					runScenario(scenario, concurrency, warmup, duration, op);
+				}
+				for (AutoCloseable r : resources){
+					r.close();
+				}
+			}
+		}finally{
+			proxy.stop();
+			tlsProxy.stop();
+			backend.stop();
+			for (Undertow b : mixBackends){
+				b.stop();
+			}
+		}
+		System.exit(0);
+	}
+	
+	/**
+	 * Warm-up, then measure a scenario and print results.
+	 */
+	private static void runScenario(String name, int concurrency, int warmup, int duration, Supplier<CompletableFuture<?>> op) throws Exception {
+		if (warmup > 0){
+			drive(concurrency, warmup, op, new LatencyHistogram(), new AtomicLong());
+		}
+		LatencyHistogram histogram = new LatencyHistogram();
+		AtomicLong errors = new AtomicLong();
+		BACKEND_CONNECTIONS.clear();
+		long start = System.nanoTime();
+		drive(concurrency, duration, op, histogram, errors);
+		report(name, histogram, errors.get(), System.nanoTime() - start, BACKEND_CONNECTIONS.size());
+	}
+	
+	/**
+	 * WebSocket: one loop per connection, since every connection waits for its echo before sending again.
+	 */
+	private static void runWebSocket(String name, List<WsUser> users, int warmup, int duration) throws Exception {
+		for (int phase = 0; phase < 2; phase++){
+			int seconds = (phase == 0)? warmup : duration;
+			if (seconds <= 0) continue;
+			LatencyHistogram histogram = new LatencyHistogram();
+			AtomicLong errors = new AtomicLong();
+			long start = System.nanoTime();
+			long end = start + TimeUnit.SECONDS.toNanos(seconds);
+			CountDownLatch done = new CountDownLatch(users.size());
+			for (WsUser u : users){
+				loop(() -> u.echo(BODY), end, histogram, errors, done);
+			}
+			done.await();
+			if (phase == 1){
+				report(name, histogram, errors.get(), System.nanoTime() - start, users.size());
+			}
+		}
+	}
+	
+	/**
+	 * Run 'concurrency' request loops for the given time.
+	 */
+	private static void drive(int concurrency, int seconds, Supplier<CompletableFuture<?>> op, LatencyHistogram histogram, AtomicLong errors) throws Exception {
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		CountDownLatch done = new CountDownLatch(concurrency);
+		for (int i = 0; i < concurrency; i++){
+			loop(op, end, histogram, errors, done);
+		}
+		done.await();
+	}
+	
+	private static void loop(Supplier<CompletableFuture<?>> op, long end, LatencyHistogram histogram, AtomicLong errors, CountDownLatch done){
+		long start = System.nanoTime();
+		op.get().whenComplete((res, err) -> {
+			long now = System.nanoTime();
+			if (err == null){
+				histogram.record((now - start) / 1000);
+			}else{
+				errors.incrementAndGet();
+			}
+			if (now < end){
+				loop(op, end, histogram, errors, done);
+			}else{
+				done.countDown();
+			}
+		});
+	}
+	
+	private static void report(String name, LatencyHistogram histogram, long errors, long nanos, int connections){
+		long[] counts = histogram.getCounts();
+		long total = 0;
+		for (long c : counts){
+			total += c;
+		}
+		double seconds = nanos / 1e9;
+		System.out.println(String.format("%-8s %12.0f %10.3f %10.3f %10.3f %10.3f %8d %8d", name, total / seconds,
+				LatencyHistogram.valueAtPercentile(counts, 50) / 1000.0,
+				LatencyHistogram.valueAtPercentile(counts, 99) / 1000.0,
+				LatencyHistogram.valueAtPercentile(counts, 99.9) / 1000.0,
+				LatencyHistogram.valueAtPercentile(counts, 100) / 1000.0,
+				errors, connections));
+	}
+	
+	/**
+	 * Backend with a small plain text resource and a WebSocket echo. Accepts HTTP/2 with prior knowledge.
+	 */
+	private static Undertow startBackend(){
+		Undertow server = Undertow.builder()
+				.setServerOption(UndertowOptions.ENABLE_HTTP2, true)
+				.addHttpListener(BACKEND_PORT, "localhost")
+				.setHandler(Handlers.path()
+					.addPrefixPath("/ws", Handlers.websocket((exchange, channel) -> {
+						channel.getReceiveSetter().set(new AbstractReceiveListener(){
+							@Override
+							protected void onFullTextMessage(WebSocketChannel ch, BufferedTextMessage message){
+								WebSockets.sendText(message.getData(), ch, null);
+							}
+						});
+						channel.resumeReceives();
+					}))
+					.addPrefixPath("/", (exchange) -> {
+						BACKEND_CONNECTIONS.add(exchange.getSourceAddress().getPort());
+						exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain");
+						exchange.getResponseSender().send(BODY);
+					})
+				).build();
+		server.start();
+		return server;
+	}
+	
+	/**
+	 * Backend of the 'mix-*' scenarios. A degraded one answers after 10ms and stalls for 200ms every 50th request,
+	 * without blocking its IO thread.
+	 */
+	private static Undertow startMixBackend(int port, boolean degraded){
+		AtomicLong requests = new AtomicLong();
+		Undertow server = Undertow.builder()
+				.addHttpListener(port, "localhost")
+				.setHandler((exchange) -> {
+					exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain");
+					if (!degraded){
+						exchange.getResponseSender().send(BODY);
+						return;
+					}
+					long delay = (requests.incrementAndGet() % 50 == 0)? 200 : 10;
+					exchange.dispatch(SameThreadExecutor.INSTANCE, () -> exchange.getIoThread().executeAfter(
+							() -> exchange.getResponseSender().send(BODY), delay, TimeUnit.MILLISECONDS));
+				}).build();
+		server.start();
+		return server;
+	}
+	
+	/**
+	 * Self-signed certificate for localhost, created once with the JDK keytool.
+	 */
+	private static KeyStore createKeyStore() throws Exception {
+		File file = new File(KEYSTORE);
+		if (!file.exists()){
+			file.getParentFile().mkdirs();
+			String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+			Process p = new ProcessBuilder(keytool, "-genkeypair", "-alias", "bench", "-keyalg", "EC", "-groupname", "secp256r1",
+					"-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "30",
+					"-storetype", "PKCS12", "-keystore", KEYSTORE, "-storepass", KEYSTORE_PWD, "-keypass", KEYSTORE_PWD)
+				.inheritIO().start();
+			if (p.waitFor() != 0){
+				throw new IllegalStateException("Could not create keystore with: " + keytool);
+			}
+		}
+		return SSLContextBuilder.loadKeyStore("PKCS12", KEYSTORE, KEYSTORE_PWD);
+	}
+	
+	/**
+	 * WebSocket connection that sends one text message at a time and waits for the echo.
+	 */
+	private static class WsUser implements WebSocket.Listener, AutoCloseable {
+		private final WebSocket ws;
+		private volatile CompletableFuture<Void> pending;
+		private final StringBuilder received = new StringBuilder();
+		
+		WsUser(HttpClient client, URI uri) throws Exception {
+			this.ws = client.newWebSocketBuilder().buildAsync(uri, this).get(5, TimeUnit.SECONDS);
+		}
+		
+		CompletableFuture<?> echo(String message){
+			CompletableFuture<Void> f = new CompletableFuture<>();
+			pending = f;
+			ws.sendText(message, true).exceptionally(e -> {
+				f.completeExceptionally(e);
+				return null;
+			});
+			return f;
+		}
+		
+		@Override
+		public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last){
+			received.append(data);
+			if (last){
+				received.setLength(0);
+				CompletableFuture<Void> f = pending;
+				if (f != null){
+					f.complete(null);
+				}
+			}
+			webSocket.request(1);
+			return null;
+		}
+		
+		@Override
+		public void close(){
+			ws.sendClose(WebSocket.NORMAL_CLOSURE, "done");
+		}
+	}
+}
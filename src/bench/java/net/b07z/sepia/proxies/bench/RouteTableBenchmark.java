@@ -0,0 +1,83 @@
+package net.b07z.sepia.proxies.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.undertow.server.HttpHandler;
+import net.b07z.sepia.proxies.routing.Route;
+import net.b07z.sepia.proxies.routing.RouteTable;
+
+/**
+ * Route lookup of {@link RouteTable} for a growing number of routes.
+ * 
+ * @author Florian Quirin
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteTableBenchmark {
+	
+	private static final int PATHS = 256;		//power of 2
+	
+	@Param({"10", "100", "1000"})
+	int routes;
+	
+	RouteTable table;
+	String[] prefixHits = new String[PATHS];
+	String[] exactHits = new String[PATHS];
+	String[] misses = new String[PATHS];
+	int i = 0;
+	
+	@Setup
+	public void setup(){
+		HttpHandler handler = (exchange) -> {};
+		List<Route> list = new ArrayList<>();
+		for (int r = 0; r < routes; r++){
+			if (r % 2 == 0){
+				list.add(new Route("/sepia/service" + r, false, handler, true));
+			}else{
+				list.add(new Route("/sepia/service" + r + "/ping", true, handler, false));
+			}
+		}
+		table = RouteTable.compile(list);
+		for (int p = 0; p < PATHS; p++){
+			int even = (p * 2) % routes;
+			int odd = Math.min(even + 1, routes - 1) | 1;
+			prefixHits[p] = "/sepia/service" + even + "/api/v1/users/" + p;
+			exactHits[p] = "/sepia/service" + odd + "/ping";
+			misses[p] = "/other/service" + p + "/api";
+		}
+	}
+	
+	@Benchmark
+	public Route prefixHit(){
+		return table.match(prefixHits[i++ & (PATHS - 1)]);
+	}
+	
+	@Benchmark
+	public Route exactHit(){
+		return table.match(exactHits[i++ & (PATHS - 1)]);
+	}
+	
+	@Benchmark
+	public Route miss(){
+		return table.match(misses[i++ & (PATHS - 1)]);
+	}
+}
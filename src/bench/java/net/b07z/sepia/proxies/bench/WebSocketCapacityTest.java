@@ -0,0 +1,308 @@
+package net.b07z.sepia.proxies.bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import net.b07z.sepia.proxies.TinyReverseProxy;
+import net.b07z.sepia.proxies.routing.RouteOptions;
+
+/**
+ * WebSocket capacity test: opens a large number of concurrent WebSocket connections through {@link TinyReverseProxy}
+ * (default 50000), checks a sample of the tunnels with echo frames and reports heap usage per connection.<br>
+ * Clients and backend are minimal NIO loops in the same JVM, so the heap numbers are an upper bound for the proxy.
+ * Connections are spread over several loopback addresses (127.0.0.x) because one address pair has only ~28k ephemeral ports.
+ * Every connection needs 4 file descriptors (client, proxy in/out, backend), raise the limit first (e.g. 'ulimit -n 262144').<br>
+ * Arguments: -connections=50000, -addresses=4, -batch=2000 (handshakes in flight), -sample=1000 (echo checks).
+ * Use -Dbench.jvm="-Xmx1g" to run with a bounded heap.
+ * 
+ * @author Florian Quirin
+ *
+ */
+public class WebSocketCapacityTest {
+	
+	private static final int PROXY_PORT = 9303;
+	private static final int BACKEND_PORT = 9304;
+	private static final String WS_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	
+	public static void main(String[] args) throws Exception {
+		int connections = 50000;
+		int addresses = 4;
+		int batch = 2000;
+		int sample = 1000;
+		for (String arg : args){
+			if (arg.startsWith("-connections=")){
+				connections = Integer.parseInt(arg.substring(13));
+			}else if (arg.startsWith("-addresses=")){
+				addresses = Integer.parseInt(arg.substring(11));
+			}else if (arg.startsWith("-batch=")){
+				batch = Integer.parseInt(arg.substring(7));
+			}else if (arg.startsWith("-sample=")){
+				sample = Integer.parseInt(arg.substring(8));
+			}
+		}
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.UnixOperatingSystemMXBean){
+			long maxFds = ((com.sun.management.UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount();
+			if (maxFds < connections * 4L + 1000){
+				System.out.println("WARNING: file descriptor limit " + maxFds + " is too low, need about " + (connections * 4L + 1000));
+			}
+		}
+		
+		EchoBackend backend = new EchoBackend(BACKEND_PORT);
+		backend.start();
+		StringBuilder targets = new StringBuilder();
+		for (int i = 1; i <= addresses; i++){
+			if (i > 1) targets.append(", ");
+			targets.append("http://127.0.0.").append(i).append(":").append(BACKEND_PORT);
+		}
+		TinyReverseProxy proxy = new TinyReverseProxy("0.0.0.0", PROXY_PORT);
+		proxy.setMetricsPath(null);
+		proxy.setHealthChecks(0, 0);
+		proxy.addPrefixPath("/ws", targets.toString(), new RouteOptions().setWebSocket(true).setIdleTimeout(-1));
+		proxy.start();
+		
+		System.out.println("WebSocket capacity test - connections: " + connections + ", addresses: " + addresses 
+				+ ", max. heap: " + (Runtime.getRuntime().maxMemory() >> 20) + "MB");
+		long heapBefore = usedHeap();
+		List<SocketChannel> clients = new ArrayList<>(connections);
+		long start = System.nanoTime();
+		int failed = 0;
+		try{
+			try (Selector selector = Selector.open()){
+				int next = 0;
+				int pending = 0;
+				while (next < connections || pending > 0){
+					while (next < connections && pending < batch){
+						SocketChannel ch = SocketChannel.open();
+						ch.configureBlocking(false);
+						ch.connect(new InetSocketAddress("127.0.0." + (1 + next % addresses), PROXY_PORT));
+						ch.register(selector, SelectionKey.OP_CONNECT, ByteBuffer.allocate(512));
+						next++;
+						pending++;
+					}
+					if (selector.select(5000) == 0){
+						System.out.println("Handshakes stalled with " + pending + " pending.");
+						failed += pending;
+						break;
+					}
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()){
+						SelectionKey key = it.next();
+						it.remove();
+						SocketChannel ch = (SocketChannel) key.channel();
+						try{
+							if (key.isConnectable() && ch.finishConnect()){
+								writeFully(ch, handshake(clients.size() + pending));
+								key.interestOps(SelectionKey.OP_READ);
+							}else if (key.isReadable()){
+								ByteBuffer buf = (ByteBuffer) key.attachment();
+								if (ch.read(buf) < 0) throw new IOException("closed");
+								String head = new String(buf.array(), 0, buf.position(), StandardCharsets.ISO_8859_1);
+								if (head.contains("\r\n\r\n")){
+									key.cancel();
+									pending--;
+									if (head.startsWith("HTTP/1.1 101")){
+										clients.add(ch);
+									}else{
+										failed++;
+										ch.close();
+									}
+								}
+							}
+						}catch (IOException e){
+							key.cancel();
+							ch.close();
+							pending--;
+							failed++;
+						}
+					}
+				}
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format("Open: %d, failed: %d, time: %.1fs (%.0f handshakes/s)", clients.size(), failed, seconds, clients.size() / seconds));
+			Thread.sleep(500);
+			long heapAfter = usedHeap();
+			System.out.println(String.format("Heap after GC: %dMB (+%dMB, about %d bytes per connection incl. client and backend)", 
+					heapAfter >> 20, (heapAfter - heapBefore) >> 20, clients.isEmpty()? 0 : (heapAfter - heapBefore) / clients.size()));
+			System.out.println("Backend connections: " + backend.getOpen());
+			
+			//echo on a sample of the tunnels (the backend returns the raw bytes)
+			Random random = new Random(42);
+			int ok = 0;
+			byte[] frame = maskedTextFrame("SEPIA");
+			for (int i = 0; i < Math.min(sample, clients.size()); i++){
+				SocketChannel ch = clients.get(random.nextInt(clients.size()));
+				ch.configureBlocking(true);
+				writeFully(ch, ByteBuffer.wrap(frame));
+				ByteBuffer in = ByteBuffer.allocate(frame.length);
+				while (in.hasRemaining() && ch.read(in) >= 0){}
+				if (!in.hasRemaining() && Arrays.equals(in.array(), frame)) ok++;
+			}
+			System.out.println("Echo checks: " + ok + "/" + Math.min(sample, clients.size()));
+		}finally{
+			for (SocketChannel ch : clients){
+				ch.close();
+			}
+			long end = System.currentTimeMillis() + 10000;
+			while (backend.getOpen() > 0 && System.currentTimeMillis() < end){
+				Thread.sleep(100);
+			}
+			System.out.println("Backend connections after close: " + backend.getOpen());
+			proxy.stop();
+			backend.stop();
+		}
+		System.exit(0);
+	}
+	
+	private static long usedHeap() throws InterruptedException {
+		for (int i = 0; i < 3; i++){
+			System.gc();
+			Thread.sleep(100);
+		}
+		Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+	
+	private static ByteBuffer handshake(int n){
+		String key = Base64.getEncoder().encodeToString(String.format("%016d", n).getBytes(StandardCharsets.US_ASCII));
+		return ByteBuffer.wrap(("GET /ws/chat HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+				+ "Sec-WebSocket-Key: " + key + "\r\nSec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+	}
+	
+	private static byte[] maskedTextFrame(String text){
+		byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+		byte[] mask = { 1, 2, 3, 4 };
+		byte[] frame = new byte[6 + payload.length];
+		frame[0] = (byte) 0x81;
+		frame[1] = (byte) (0x80 | payload.length);
+		System.arraycopy(mask, 0, frame, 2, 4);
+		for (int i = 0; i < payload.length; i++){
+			frame[6 + i] = (byte) (payload[i] ^ mask[i % 4]);
+		}
+		return frame;
+	}
+	
+	private static void writeFully(SocketChannel ch, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()){
+			if (ch.write(buf) == 0) Thread.yield();
+		}
+	}
+	
+	/**
+	 * Minimal WebSocket backend: answers the handshake and echoes raw bytes, one thread and no per-connection objects
+	 * besides the channel (and a small buffer during the handshake).
+	 */
+	private static class EchoBackend implements Runnable {
+		private final ServerSocketChannel server;
+		private final Selector selector;
+		private final Thread thread = new Thread(this, "bench-ws-backend");
+		private volatile int open = 0;
+		private volatile boolean running = true;
+		
+		EchoBackend(int port) throws IOException {
+			server = ServerSocketChannel.open();
+			server.bind(new InetSocketAddress("0.0.0.0", port), 4096);
+			server.configureBlocking(false);
+			selector = Selector.open();
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		}
+		
+		int getOpen(){
+			return open;
+		}
+		void start(){
+			thread.setDaemon(true);
+			thread.start();
+		}
+		void stop() throws Exception {
+			running = false;
+			selector.wakeup();
+			thread.join(5000);
+		}
+		
+		@Override
+		public void run(){
+			ByteBuffer io = ByteBuffer.allocateDirect(16 * 1024);
+			try{
+				while (running){
+					selector.select(1000);
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()){
+						SelectionKey key = it.next();
+						it.remove();
+						try{
+							if (key.isAcceptable()){
+								SocketChannel ch;
+								while ((ch = server.accept()) != null){
+									ch.configureBlocking(false);
+									ch.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(1024));
+									open++;
+								}
+							}else if (key.isReadable()){
+								SocketChannel ch = (SocketChannel) key.channel();
+								ByteBuffer handshake = (ByteBuffer) key.attachment();
+								if (handshake != null){
+									if (ch.read(handshake) < 0) throw new IOException("closed");
+									String head = new String(handshake.array(), 0, handshake.position(), StandardCharsets.ISO_8859_1);
+									if (head.contains("\r\n\r\n")){
+										writeFully(ch, accept(head));
+										key.attach(null);
+									}
+								}else{
+									io.clear();
+									int n = ch.read(io);
+									if (n < 0) throw new IOException("closed");
+									io.flip();
+									writeFully(ch, io);
+								}
+							}
+						}catch (IOException e){
+							key.cancel();
+							try{
+								key.channel().close();
+							}catch (IOException ignore){}
+							open--;
+						}
+					}
+				}
+				for (SelectionKey key : selector.keys()){
+					key.channel().close();
+				}
+				selector.close();
+			}catch (IOException e){
+				e.printStackTrace();
+			}
+		}
+		
+		private static ByteBuffer accept(String head) throws IOException {
+			String key = "";
+			for (String line : head.split("\r\n")){
+				if (line.toLowerCase().startsWith("sec-websocket-key:")){
+					key = line.substring(18).trim();
+				}
+			}
+			try{
+				byte[] sha1 = MessageDigest.getInstance("SHA-1").digest((key + WS_GUID).getBytes(StandardCharsets.US_ASCII));
+				return ByteBuffer.wrap(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+						+ "Sec-WebSocket-Accept: " + Base64.getEncoder().encodeToString(sha1) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+			}catch (Exception e){
+				throw new IOException(e);
+			}
+		}
+	}
+}
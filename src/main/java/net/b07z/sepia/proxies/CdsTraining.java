@@ -0,0 +1,98 @@
+package net.b07z.sepia.proxies;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import io.undertow.Undertow;
+import io.undertow.util.Headers;
+import net.b07z.sepia.proxies.metrics.StartupReport;
+import net.b07z.sepia.proxies.routing.RouteOptions;
+
+/**
+ * Training run for a class data sharing archive (AppCDS): starts the proxy with a local backend, sends a few requests
+ * through it and stops. Run with '-XX:ArchiveClassesAtExit=sepia-reverse-proxy.jsa' (Java 13+) to store the classes
+ * of a typical start in the archive, the next start with '-XX:SharedArchiveFile=sepia-reverse-proxy.jsa' maps them
+ * instead of loading and verifying them again (see profile 'cds' in pom.xml and 'create_cds_archive.sh').
+ *
+ * @author Florian Quirin
+ *
+ */
+public class CdsTraining {
+
+	/**
+	 * Run the training (blocks until done).
+	 * @throws Exception
+	 */
+	public static void run() throws Exception {
+		StartupReport report = new StartupReport(Start::info);
+		int backendPort = freePort();
+		int proxyPort = freePort();
+		Undertow backend = Undertow.builder().addHttpListener(backendPort, "localhost")
+				.setHandler((exchange) -> {
+					exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+					exchange.getResponseSender().send("{\"result\":\"success\"}");
+				}).build();
+		backend.start();
+
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", proxyPort);
+		reverseProxy.setStartupReport(report);
+		reverseProxy.addPrefixPath("/sepia/assist", "http://localhost:" + backendPort, new RouteOptions().setPublic(true).setCompress(true));
+		reverseProxy.addPrefixPath("/sepia/stt", "http://localhost:" + backendPort, new RouteOptions().setPublic(true).setMaxBodySize(1024 * 1024));
+		report.phase("setup");
+		reverseProxy.start();
+		report.phase("listener");
+		report.ready();
+		try{
+			//TLS classes (the keystore is not available at build time, so no handshake with the proxy)
+			SSLContext tls = SSLContext.getInstance("TLS");
+			tls.init(null, null, null);
+			SSLEngine engine = tls.createSSLEngine();
+			engine.setUseClientMode(true);
+			engine.beginHandshake();
+
+			String base = "http://localhost:" + proxyPort;
+			for (int i = 0; i < 10; i++){
+				request("GET", base + "/sepia/assist/info", null);
+				request("POST", base + "/sepia/stt/upload", "audio data");
+			}
+			request("GET", base + "/", null);
+			request("GET", base + "/metrics", null);
+			request("GET", base + "/unknown", null);
+		}finally{
+			reverseProxy.stop();
+			backend.stop();
+		}
+		Start.info("CDS training done.");
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)){
+			return socket.getLocalPort();
+		}
+	}
+
+	private static void request(String method, String url, String body) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		con.setRequestMethod(method);
+		con.setRequestProperty("Accept-Encoding", "gzip");
+		if (body != null){
+			con.setDoOutput(true);
+			try (OutputStream out = con.getOutputStream()){
+				out.write(body.getBytes("UTF-8"));
+			}
+		}
+		InputStream in = (con.getResponseCode() < 400)? con.getInputStream() : con.getErrorStream();
+		if (in != null){
+			try (InputStream is = in){
+				is.readAllBytes();
+			}
+		}
+	}
+}
@@ -1,15 +1,26 @@
 package net.b07z.sepia.proxies;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.security.KeyStore;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import javax.net.ssl.SSLContext;
 
+import net.b07z.sepia.proxies.balancing.Balancing;
+import net.b07z.sepia.proxies.headers.HeaderRules;
+import net.b07z.sepia.proxies.limits.Priority;
+import net.b07z.sepia.proxies.metrics.StartupReport;
+import net.b07z.sepia.proxies.routing.PathMapping;
+import net.b07z.sepia.proxies.routing.RouteOptions;
+import net.b07z.sepia.proxies.security.KeyStoreWatcher;
 import net.b07z.sepia.proxies.security.SSLContextBuilder;
 
 /**
@@ -34,12 +45,88 @@ public class Start {
 	private static boolean sslSupportHttp = false;
 	private static String sslKeystore = "";
 	private static String sslKeystorePwd = "";
+	private static String sslKeystoreType = "auto";
+	private static String sslKey = "";
+	private static String sslProtocols = "";
+	private static String sslCipherSuites = "";
+	private static int sslSessionCacheSize = 20480;
+	private static int sslSessionTimeout = 86400;
+	private static boolean sslSessionTickets = true;
+	private static boolean sslOcspStapling = false;
+	private static int healthCheckInterval = 5000;
+	private static int healthCheckTimeout = 2000;
+	private static int ejectAfterFailures = 3;
+	private static int ejectTime = 10000;
+	private static int circuitBreakerErrorRate = 50;
+	private static int circuitBreakerSlowTime = 0;
+	private static int circuitBreakerMinRequests = 20;
+	private static int circuitBreakerWindow = 10000;
+	private static int circuitBreakerOpenTime = 5000;
+	private static int circuitBreakerProbes = 3;
+	private static String trustedProxies = "";
+	private static int settingsReloadInterval = 2000;
+	private static String metricsPath = "/metrics";
+	private static String adminPath = "";
+	private static int drainDelay = 0;
+	private static int drainTimeout = 30000;
+	private static String drainPath = "";
+	private static boolean virtualThreads = false;
+	private static String accessLogFile = "";
+	private static long accessLogMaxBytes = 10 * 1024 * 1024;
+	private static int accessLogMaxFiles = 5;
+	private static int accessLogBuffer = 8192;
+	private static int accessLogFlushInterval = 200;
+	
+	//Performance tuning (0: auto)
+	private static int ioThreads = 0;
+	private static int workerThreads = 0;
+	private static int listeners = 1;
+	private static int bufferSize = 0;
+	private static Boolean directBuffers = null;
+	private static int maxRequestTime = 30000;
+	private static int backendMaxConnections = 3;
+	private static int backendSoftMaxConnections = 2;
+	private static int backendConnectionTtl = 60000;
+	private static int backendMaxQueueSize = 32;
+	private static long cacheMaxBytes = 4 * 1024 * 1024;
+	private static long cacheMaxEntryBytes = 256 * 1024;
+	private static long cacheDefaultTtl = 0;
+	private static int compressionLevel = 6;
+	private static long compressionMinSize = 1024;
+	private static String compressionTypes = "";
+	private static int compressionPoolSize = 0;
+	private static int concurrencyTotal = 0;
+	private static int concurrencyQueueTimeout = 50;
+	private static int retryAfter = 1;
+	private static int webSocketIdleTimeout = 600000;
+	private static int webSocketHandshakes = 16;
+	private static int webSocketHandshakeQueue = 1024;
+	private static int rateLimitClients = 16384;
+	private static int rateLimitEvictInterval = 60000;
+	private static double retryBudgetRatio = 0.2;
+	private static int retryBudgetMin = 10;
+	private static int hedgeMinDelay = 20;
 	
 	private static String SETTINGS_FILE = "settings/proxy.properties";
 	
 	//Command-line parameters have priority
 	private static boolean ignoreSettingsHost = false;
 	private static boolean ignoreSettingsPort = false;
+	private static Properties cliSettings = new Properties();
+	
+	//Command-line flags that overwrite settings of the same name, e.g. -ioThreads=8 -> io_threads=8
+	private static final String[][] CLI_SETTINGS = {
+		{"-ioThreads=", "io_threads"},
+		{"-workerThreads=", "worker_threads"},
+		{"-listeners=", "listeners"},
+		{"-bufferSize=", "buffer_size"},
+		{"-directBuffers=", "direct_buffers"},
+		{"-maxRequestTime=", "max_request_time"},
+		{"-backendMaxConnections=", "backend_max_connections"},
+		{"-backendSoftMaxConnections=", "backend_soft_max_connections"},
+		{"-backendConnectionTtl=", "backend_connection_ttl"},
+		{"-backendMaxQueueSize=", "backend_max_queue_size"}
+	};
 	
 	public static void info(String msg){
 		System.out.println(msg);
@@ -56,6 +143,7 @@ public class Start {
 	 */
 	public static void main(String[] args) throws Exception {
 
+		StartupReport startupReport = new StartupReport(Start::info);
 		String proxy = "";
 		
 		//Check if arguments are given
@@ -93,72 +181,169 @@ public class Start {
 						System.exit(1);
 					}
 					//TODO: add a way to define custom prefix-path combinations (best: load from config and give config-file here as value)
+				
+				//Tuning
+				}else{
+					for (String[] cs : CLI_SETTINGS){
+						if (arg.startsWith(cs[0])){
+							cliSettings.setProperty(cs[1], arg.substring(cs[0].length()).trim());
+						}
+					}
 				}
 			}
 			
 			//Read settings
-			List<ProxyAction> actions = null;
-			KeyStore ks = null;
+			List<PathMapping> paths = null;
+			KeyStoreWatcher keyStore = null;
 			SSLContext sslContext = null;
 			try{
 				info("Loading settings from '" + SETTINGS_FILE + "' ...");
-				actions = loadSettings(SETTINGS_FILE);
+				paths = loadSettings(SETTINGS_FILE);
 			}catch(Exception e){
 				error("Could not read '" + SETTINGS_FILE + "' file! Error: " + e.getMessage());
 				System.exit(1);
 			}
-			//Check SSL settings and keystore
+			startupReport.phase("settings");
+			//Check SSL settings and load keystore in parallel to the proxy setup (JSSE init is slow on small devices)
+			CompletableFuture<KeyStoreWatcher> keyStoreLoader = null;
+			CompletableFuture<SSLContext> sslContextLoader = null;
 			if (ssl && (sslKeystore.isEmpty() || sslKeystorePwd.isEmpty())){
 				error("Missing SSL keystore and/or keystore password!");
 				System.exit(1);
 			}else if (ssl){
-				try{
-					ks = SSLContextBuilder.loadKeyStore("JKS", sslKeystore, sslKeystorePwd);	//TODO: use JKS, PKCS12 or default?
-				}catch (Exception e){
-					error("Could not load keystore located at: " + sslKeystore + " - check path and password!");
-					error("Error msg.: " + e.getMessage());
-					System.exit(1);
-				}
-				try{
-					sslContext = SSLContextBuilder.create(ks, null, sslKeystorePwd);
-				}catch (Exception e){
-					error("Could not create SSLContext from keystore!");
-					error("Error msg.: " + e.getMessage());
-					System.exit(1);
-				}
+				SSLContextBuilder.setGlobalOptions(sslSessionTickets, sslOcspStapling);		//before any SSLContext is created
+				long keyStoreStart = System.nanoTime();
+				keyStoreLoader = CompletableFuture.supplyAsync(() -> {
+					try{
+						return new KeyStoreWatcher(sslKeystoreType, sslKeystore, sslKey, sslKeystorePwd);
+					}catch (Exception e){
+						throw new CompletionException(e);
+					}
+				});
+				sslContextLoader = keyStoreLoader.thenApply((ks) -> {
+					try{
+						SSLContext context = SSLContextBuilder.create(ks.getKeyManager(), sslSessionCacheSize, sslSessionTimeout);
+						startupReport.parallelPhase("keystore", (System.nanoTime() - keyStoreStart) / 1000000);
+						return context;
+					}catch (Exception e){
+						throw new CompletionException(e);
+					}
+				});
 			}
 			
 			//Create tiny reverse proxy
-			TinyReverseProxy reverseProxy = new TinyReverseProxy(host, port, ssl, sslContext);
+			TinyReverseProxy reverseProxy = new TinyReverseProxy(host, port);
+			reverseProxy.setStartupReport(startupReport);
 			reverseProxy.setSslHttpSupport(sslSupportHttp, (port + 1)); 		//HTTP support is done via listener on PORT+1
+			reverseProxy.setTlsParameters(splitList(sslProtocols), splitList(sslCipherSuites));
+			reverseProxy.setHealthChecks(healthCheckInterval, healthCheckTimeout);
+			reverseProxy.setPassiveEjection(ejectAfterFailures, ejectTime);
+			reverseProxy.setCircuitBreakers(circuitBreakerErrorRate, circuitBreakerSlowTime, circuitBreakerMinRequests, 
+					circuitBreakerWindow, circuitBreakerOpenTime, circuitBreakerProbes);
+			reverseProxy.setTrustedProxies(trustedProxies);
+			reverseProxy.setMetricsPath(metricsPath);
+			reverseProxy.setAdminPath(adminPath);
+			reverseProxy.setDrain(drainDelay, drainTimeout, drainPath);
+			reverseProxy.setOffloadHandlers(virtualThreads);
+			reverseProxy.setAccessLog(accessLogFile, accessLogMaxBytes, accessLogMaxFiles, accessLogBuffer, accessLogFlushInterval);
+			reverseProxy.setThreads(ioThreads, workerThreads);
+			reverseProxy.setListeners(listeners);
+			reverseProxy.setBuffers(bufferSize, directBuffers);
+			reverseProxy.setMaxRequestTime(maxRequestTime);
+			reverseProxy.setBackendConnections(backendMaxConnections, backendSoftMaxConnections, backendConnectionTtl, backendMaxQueueSize);
+			reverseProxy.setResponseCache(cacheMaxBytes, cacheMaxEntryBytes, cacheDefaultTtl);
+			reverseProxy.setCompression(compressionLevel, compressionMinSize, compressionTypes, compressionPoolSize);
+			reverseProxy.setConcurrencyLimits(concurrencyTotal, concurrencyQueueTimeout, retryAfter);
+			reverseProxy.setWebSockets(webSocketIdleTimeout, webSocketHandshakes, webSocketHandshakeQueue);
+			reverseProxy.setRateLimits(rateLimitClients, rateLimitEvictInterval);
+			reverseProxy.setRetries(retryBudgetRatio, retryBudgetMin, hedgeMinDelay);
 
-			//Add actions
-			for (ProxyAction pa : actions){
-				if (pa.actionType.equals("redirect")){
-					reverseProxy.addPrefixPath(pa.redirectPath, pa.redirectTarget, pa.targetIsPublic);
-				}
-			}
+			//Add paths
+			reverseProxy.addPaths(paths);
 			/*	
 			reverseProxy.addPrefixPath("/sepia/assist", "http://localhost:20721", true);
 			*/
+			startupReport.phase("setup");
+			
+			//Wait for keystore
+			if (ssl){
+				try{
+					keyStore = keyStoreLoader.join();
+				}catch (CompletionException e){
+					error("Could not load keystore located at: " + sslKeystore + " - check path, type and password!");
+					error("Error msg.: " + e.getCause().getMessage());
+					System.exit(1);
+				}
+				try{
+					sslContext = sslContextLoader.join();
+				}catch (CompletionException e){
+					error("Could not create SSLContext from keystore!");
+					error("Error msg.: " + e.getCause().getMessage());
+					System.exit(1);
+				}
+				reverseProxy.setSsl(true, sslContext);
+				startupReport.phase("keystore_wait");
+			}
 			
 			//Start proxy
 			reverseProxy.start();
+			startupReport.phase("listener");
+			
+			//Graceful shutdown on SIGTERM (e.g. 'shutdown.sh', systemd or docker stop)
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				if (reverseProxy.state == 1){
+					info("Shutting down, waiting for requests in progress (max. " + (drainDelay + drainTimeout) + "ms) ...");
+					info(reverseProxy.drain()? "All requests finished." : "Stopped with requests in progress.");
+				}
+			}, "proxy-shutdown"));
+			
+			//Watch settings for changes of paths
+			if (settingsReloadInterval > 0){
+				startSettingsWatcher(reverseProxy, SETTINGS_FILE, keyStore, settingsReloadInterval);
+			}
 			
 			//Note
 			info("\nSEPIA '" + proxy + "' reverse proxy started as: " + host + ":" + port);
 			info("Using SSL: " + ssl);
+			info("IO threads: " + reverseProxy.getIoThreads() + " - worker threads: " + reverseProxy.getWorkerThreads());
+			if (listeners > 1){
+				info("Listeners: " + reverseProxy.getListeners() + ((reverseProxy.getListeners() > 1)? " (SO_REUSEPORT)" : " (SO_REUSEPORT not supported)"));
+			}
+			if (virtualThreads){
+				info("Non-proxy handlers run on: " + (reverseProxy.isUsingVirtualThreads()? "virtual threads" : "worker threads (virtual threads require Java 21)"));
+			}
 			if (ssl){
-				info("SSL keystore: " + sslKeystore);
+				info("SSL keystore: " + sslKeystore + ((settingsReloadInterval > 0)? " (reloaded on changes)" : ""));
 				if (sslSupportHttp){
 					info("NOTE: All calls to simple HTTP are available at port: " + (port + 1));
 				}else{
 					info("NOTE: All calls to simple HTTP are deactivated when SSL is active!");
 				}
 			}
+			if (!metricsPath.isEmpty()){
+				info("Metrics (local only): " + metricsPath);
+			}
+			if (!adminPath.isEmpty()){
+				info("Admin API (this host only): " + adminPath);
+			}
+			if (!drainPath.isEmpty()){
+				info("Graceful shutdown (this host only, POST): " + drainPath);
+			}
+			if (!accessLogFile.isEmpty()){
+				info("Access log: " + accessLogFile);
+			}
+			if (settingsReloadInterval > 0){
+				info("Reloading redirects and trusted proxies on changes of '" + SETTINGS_FILE + "' (checked every " + settingsReloadInterval + "ms)");
+			}
+			startupReport.ready();
 			
 			return;
 		
+		//Training run for the class data sharing archive
+		}else if (args[0].equals("cds-training")){
+			CdsTraining.run();
+			return;
+		
 		//Help
 		}else{
 			help();
@@ -174,56 +359,79 @@ public class Start {
 		info("[proxy-name] [arguments]");
 		info("\nProxies:");
 		info("tiny - args: -defaultPaths=true, -port=20726, -host=localhost, -ssl=true");
+		info("cds-training - runs the proxy with a local backend once, use with -XX:ArchiveClassesAtExit=... to create a CDS archive");
+		info("tuning - args: -ioThreads=0, -workerThreads=0, -listeners=1, -bufferSize=0, -directBuffers=auto, -maxRequestTime=30000,");
+		info("         -backendMaxConnections=3, -backendSoftMaxConnections=2, -backendConnectionTtl=60000, -backendMaxQueueSize=32");
+		info("         (0 or 'auto' = size automatically, command-line values overwrite the settings file)");
 		info("\nConfiguration is done via 'settings/proxy.properties' file.");
 		info("");
 	}
 	
 	/**
-	 * Class holding proxy actions loaded from settings.
+	 * Check the settings file periodically and apply changed redirects and trusted proxies to the running proxy.
+	 * The SSL keystore is reloaded too when its files change, other settings (host, port, threads, etc.) still require a restart.
+	 * @param reverseProxy - running proxy
+	 * @param configFile - path and file
+	 * @param keyStore - keystore of the SSL listener or null
+	 * @param intervalMs - check interval
 	 */
-	private static class ProxyAction {
-		String redirectPath;
-		String redirectTarget;
-		boolean targetIsPublic = false;
-		String actionType = "";
-		
-		public ProxyAction(){}
-		
-		public ProxyAction setRedirect(String path, String target, boolean isPublic){
-			this.redirectPath = path;
-			this.redirectTarget = target;
-			this.targetIsPublic = isPublic;
-			this.actionType = "redirect";
-			return this;
-		}
+	private static void startSettingsWatcher(TinyReverseProxy reverseProxy, String configFile, KeyStoreWatcher keyStore, int intervalMs){
+		File file = new File(configFile);
+		Thread watcher = new Thread(() -> {
+			long lastModified = file.lastModified();
+			while (true){
+				try{
+					Thread.sleep(intervalMs);
+				}catch (InterruptedException e){
+					return;
+				}
+				if (keyStore != null && keyStore.reloadIfChanged()){
+					info("Reloaded SSL keystore - new connections use the new certificate");
+				}
+				long modified = file.lastModified();
+				if (modified == lastModified || modified == 0){
+					continue;
+				}
+				lastModified = modified;
+				try{
+					List<PathMapping> paths = loadSettings(configFile);
+					reverseProxy.setTrustedProxies(trustedProxies);
+					reverseProxy.replacePaths(paths);
+					info("Reloaded '" + configFile + "' - active redirects: " + paths.size());
+				}catch (Exception e){
+					//keep the current state
+					error("Could not reload '" + configFile + "', keeping previous settings! Error: " + e.getMessage());
+				}
+			}
+		}, "proxy-settings-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
 	}
 	
 	/**
-	 * Load settings from properties file and return actions list.
+	 * Load settings from properties file and return list of redirects.
 	 * @param configFile - path and file
 	 * @throws IOException 
 	 */
-	private static List<ProxyAction> loadSettings(String configFile) throws IOException {
+	private static synchronized List<PathMapping> loadSettings(String configFile) throws IOException {
 		BufferedInputStream stream=null;
 		Properties config = new Properties();
 		stream = new BufferedInputStream(new FileInputStream(configFile));
 		config.load(stream);
 		stream.close();
-		List<ProxyAction> actions = new ArrayList<>();
+		config.putAll(cliSettings);		//command-line has priority
+		List<PathMapping> paths = new ArrayList<>();
+		Set<String> redirectNames = new TreeSet<>();
 		for (Object key : config.keySet()){
 			String entry = (String) key;
 			//has to be format: action_type_name, e.g. redirect_path_1
-			//has to have types: path, target, public
+			//has to have types: path, target, public - optional: exact, health, allow, deny, cache, compress, concurrency, priority, websocket, connections, idle, http2, maxbody, uploadtimeout, uploadidle, ratelimit, rateburst, retries, hedge, balancing, requestheaders, responseheaders, host, forwarded, location
 			if (entry.startsWith("redirect")){
 				String[] info = entry.split("_");
 				if (info.length != 3){
 					throw new RuntimeException("Settings file has invalid format in entry: " + entry);
 				}else{
-					String name = info[2];
-					String path = config.getProperty("redirect_path_" + name);
-					String target = config.getProperty("redirect_target_" + name);
-					boolean isPublic = Boolean.parseBoolean(config.getProperty("redirect_public_" + name));
-					actions.add(new ProxyAction().setRedirect(path, target, isPublic));
+					redirectNames.add(info[2]);
 				}
 			
 			}else if (entry.equals("host") && !ignoreSettingsHost){
@@ -237,9 +445,189 @@ public class Start {
 				sslKeystorePwd = config.getProperty(entry);
 			}else if (entry.equals("ssl_support_http")){
 				sslSupportHttp = Boolean.parseBoolean(config.getProperty(entry));
+			}else if (entry.equals("ssl_keystore_type")){
+				sslKeystoreType = config.getProperty(entry).trim();
+			}else if (entry.equals("ssl_key")){
+				sslKey = config.getProperty(entry).trim();
+			}else if (entry.equals("ssl_protocols")){
+				sslProtocols = config.getProperty(entry).trim();
+			}else if (entry.equals("ssl_cipher_suites")){
+				sslCipherSuites = config.getProperty(entry).trim();
+			}else if (entry.equals("ssl_session_cache_size")){
+				sslSessionCacheSize = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("ssl_session_timeout")){
+				sslSessionTimeout = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("ssl_session_tickets")){
+				sslSessionTickets = Boolean.parseBoolean(config.getProperty(entry).trim());
+			}else if (entry.equals("ssl_ocsp_stapling")){
+				sslOcspStapling = Boolean.parseBoolean(config.getProperty(entry).trim());
+			
+			}else if (entry.equals("trusted_proxies")){
+				trustedProxies = config.getProperty(entry);
+			
+			}else if (entry.equals("metrics_path")){
+				metricsPath = config.getProperty(entry).trim();
+			}else if (entry.equals("admin_path")){
+				adminPath = config.getProperty(entry).trim();
+			}else if (entry.equals("drain_delay")){
+				drainDelay = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("drain_timeout")){
+				drainTimeout = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("drain_path")){
+				drainPath = config.getProperty(entry).trim();
+			}else if (entry.equals("access_log")){
+				accessLogFile = config.getProperty(entry).trim();
+			}else if (entry.equals("access_log_max_bytes")){
+				accessLogMaxBytes = Long.parseLong(config.getProperty(entry).trim());
+			}else if (entry.equals("access_log_max_files")){
+				accessLogMaxFiles = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("access_log_buffer")){
+				accessLogBuffer = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("access_log_flush_interval")){
+				accessLogFlushInterval = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("virtual_threads")){
+				virtualThreads = Boolean.parseBoolean(config.getProperty(entry).trim());
+			}else if (entry.equals("settings_reload_interval")){
+				settingsReloadInterval = Integer.parseInt(config.getProperty(entry).trim());
+			
+			}else if (entry.equals("health_check_interval")){
+				healthCheckInterval = Integer.parseInt(config.getProperty(entry));
+			}else if (entry.equals("health_check_timeout")){
+				healthCheckTimeout = Integer.parseInt(config.getProperty(entry));
+			}else if (entry.equals("eject_after_failures")){
+				ejectAfterFailures = Integer.parseInt(config.getProperty(entry));
+			}else if (entry.equals("eject_time")){
+				ejectTime = Integer.parseInt(config.getProperty(entry));
+			}else if (entry.equals("circuit_breaker_error_rate")){
+				circuitBreakerErrorRate = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("circuit_breaker_slow_time")){
+				circuitBreakerSlowTime = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("circuit_breaker_min_requests")){
+				circuitBreakerMinRequests = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("circuit_breaker_window")){
+				circuitBreakerWindow = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("circuit_breaker_open_time")){
+				circuitBreakerOpenTime = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("circuit_breaker_probes")){
+				circuitBreakerProbes = Integer.parseInt(config.getProperty(entry).trim());
+			
+			}else if (entry.equals("io_threads")){
+				ioThreads = parseIntOrAuto(config.getProperty(entry));
+			}else if (entry.equals("worker_threads")){
+				workerThreads = parseIntOrAuto(config.getProperty(entry));
+			}else if (entry.equals("listeners")){
+				listeners = parseIntOrAuto(config.getProperty(entry));
+			}else if (entry.equals("buffer_size")){
+				bufferSize = parseIntOrAuto(config.getProperty(entry));
+			}else if (entry.equals("direct_buffers")){
+				String val = config.getProperty(entry).trim();
+				directBuffers = val.equals("auto")? null : Boolean.parseBoolean(val);
+			}else if (entry.equals("max_request_time")){
+				maxRequestTime = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("backend_max_connections")){
+				backendMaxConnections = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("backend_soft_max_connections")){
+				backendSoftMaxConnections = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("backend_connection_ttl")){
+				backendConnectionTtl = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("backend_max_queue_size")){
+				backendMaxQueueSize = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("cache_max_bytes")){
+				cacheMaxBytes = Long.parseLong(config.getProperty(entry).trim());
+			}else if (entry.equals("cache_max_entry_bytes")){
+				cacheMaxEntryBytes = Long.parseLong(config.getProperty(entry).trim());
+			}else if (entry.equals("cache_default_ttl")){
+				cacheDefaultTtl = Long.parseLong(config.getProperty(entry).trim());
+			}else if (entry.equals("compression_level")){
+				compressionLevel = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("compression_min_size")){
+				compressionMinSize = Long.parseLong(config.getProperty(entry).trim());
+			}else if (entry.equals("compression_types")){
+				compressionTypes = config.getProperty(entry).trim();
+			}else if (entry.equals("compression_pool_size")){
+				compressionPoolSize = parseIntOrAuto(config.getProperty(entry));
+			}else if (entry.equals("concurrency_total")){
+				concurrencyTotal = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("concurrency_queue_timeout")){
+				concurrencyQueueTimeout = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("retry_after")){
+				retryAfter = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("websocket_idle_timeout")){
+				webSocketIdleTimeout = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("websocket_handshakes")){
+				webSocketHandshakes = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("websocket_handshake_queue")){
+				webSocketHandshakeQueue = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("rate_limit_clients")){
+				rateLimitClients = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("rate_limit_evict_interval")){
+				rateLimitEvictInterval = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("retry_budget_ratio")){
+				retryBudgetRatio = Double.parseDouble(config.getProperty(entry).trim());
+			}else if (entry.equals("retry_budget_min")){
+				retryBudgetMin = Integer.parseInt(config.getProperty(entry).trim());
+			}else if (entry.equals("hedge_min_delay")){
+				hedgeMinDelay = Integer.parseInt(config.getProperty(entry).trim());
 			}
 		}
-		return actions;
+		//one path per redirect name
+		for (String name : redirectNames){
+			String path = config.getProperty("redirect_path_" + name);
+			String target = config.getProperty("redirect_target_" + name);
+			if (path == null || target == null){
+				throw new RuntimeException("Settings file is missing 'redirect_path_" + name + "' or 'redirect_target_" + name + "'!");
+			}
+			boolean isExact = Boolean.parseBoolean(config.getProperty("redirect_exact_" + name));
+			RouteOptions options = new RouteOptions()
+				.setPublic(Boolean.parseBoolean(config.getProperty("redirect_public_" + name)))
+				.setAllow(config.getProperty("redirect_allow_" + name))
+				.setDeny(config.getProperty("redirect_deny_" + name))
+				.setHealthPath(config.getProperty("redirect_health_" + name))
+				.setCache(Boolean.parseBoolean(config.getProperty("redirect_cache_" + name)))
+				.setCompress(Boolean.parseBoolean(config.getProperty("redirect_compress_" + name)))
+				.setConcurrencyLimit(Integer.parseInt(config.getProperty("redirect_concurrency_" + name, "0").trim()))
+				.setPriority(Priority.parse(config.getProperty("redirect_priority_" + name)))
+				.setWebSocket(Boolean.parseBoolean(config.getProperty("redirect_websocket_" + name)))
+				.setMaxConnections(Integer.parseInt(config.getProperty("redirect_connections_" + name, "0").trim()))
+				.setIdleTimeout(Integer.parseInt(config.getProperty("redirect_idle_" + name, "0").trim()))
+				.setHttp2(Boolean.parseBoolean(config.getProperty("redirect_http2_" + name)))
+				.setMaxBodySize(Long.parseLong(config.getProperty("redirect_maxbody_" + name, "0").trim()))
+				.setUploadTimeout(Integer.parseInt(config.getProperty("redirect_uploadtimeout_" + name, "0").trim()))
+				.setUploadIdleTimeout(Integer.parseInt(config.getProperty("redirect_uploadidle_" + name, "0").trim()))
+				.setRateLimit(Double.parseDouble(config.getProperty("redirect_ratelimit_" + name, "0").trim()))
+				.setRateBurst(Integer.parseInt(config.getProperty("redirect_rateburst_" + name, "0").trim()))
+				.setRetries(Integer.parseInt(config.getProperty("redirect_retries_" + name, "1").trim()))
+				.setHedging(Boolean.parseBoolean(config.getProperty("redirect_hedge_" + name)))
+				.setBalancing(Balancing.parse(config.getProperty("redirect_balancing_" + name)))
+				.setRequestHeaders(HeaderRules.parse(config.getProperty("redirect_requestheaders_" + name)))
+				.setResponseHeaders(HeaderRules.parse(config.getProperty("redirect_responseheaders_" + name)))
+				.setHostHeader(config.getProperty("redirect_host_" + name))
+				.setForwarded(Boolean.parseBoolean(config.getProperty("redirect_forwarded_" + name)))
+				.setRewriteLocation(Boolean.parseBoolean(config.getProperty("redirect_location_" + name, "true").trim()));
+			paths.add(new PathMapping(path, target, isExact, options));
+		}
+		return paths;
+	}
+	
+	/**
+	 * Split a comma separated list, empty value gives null.
+	 */
+	private static String[] splitList(String value){
+		if (value == null || value.trim().isEmpty()){
+			return null;
+		}
+		return value.trim().split("\\s*,\\s*");
+	}
+	
+	/**
+	 * Parse a number where "auto" (or empty) means 0.
+	 */
+	private static int parseIntOrAuto(String value){
+		value = value.trim();
+		if (value.isEmpty() || value.equals("auto")){
+			return 0;
+		}
+		return Integer.parseInt(value);
 	}
 
 }
@@ -1,18 +1,92 @@
 package net.b07z.sepia.proxies;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+
+import org.xnio.OptionMap;
+import org.xnio.Options;
+import org.xnio.Sequence;
+import org.xnio.Xnio;
+import org.xnio.XnioWorker;
+import org.xnio.management.XnioWorkerMXBean;
 
 import io.undertow.Undertow;
 import io.undertow.UndertowOptions;
 import io.undertow.Undertow.Builder;
-import io.undertow.server.handlers.proxy.LoadBalancingProxyClient;
+import io.undertow.connector.ByteBufferPool;
+import io.undertow.server.DefaultByteBufferPool;
+import io.undertow.server.ConnectorStatistics;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
 import io.undertow.server.handlers.proxy.ProxyHandler;
 import io.undertow.util.Headers;
+import io.undertow.util.Methods;
+import io.undertow.util.StatusCodes;
+import net.b07z.sepia.proxies.balancing.Backend;
+import net.b07z.sepia.proxies.balancing.BackendProxyClient;
+import net.b07z.sepia.proxies.balancing.Balancing;
+import net.b07z.sepia.proxies.balancing.CircuitBreaker;
+import net.b07z.sepia.proxies.balancing.ConnectionPoolStats;
+import net.b07z.sepia.proxies.balancing.HealthChecker;
+import net.b07z.sepia.proxies.balancing.RetryBudget;
+import net.b07z.sepia.proxies.cache.CacheHandler;
+import net.b07z.sepia.proxies.cache.ResponseCache;
+import net.b07z.sepia.proxies.compression.Compression;
+import net.b07z.sepia.proxies.compression.CompressionHandler;
+import net.b07z.sepia.proxies.handlers.DrainHandler;
+import net.b07z.sepia.proxies.handlers.OffloadHandler;
 import net.b07z.sepia.proxies.handlers.PathHandlerWithIpFilter;
+import net.b07z.sepia.proxies.handlers.VirtualThreads;
+import net.b07z.sepia.proxies.headers.HeaderRewriteHandler;
+import net.b07z.sepia.proxies.headers.LocationRewriter;
+import net.b07z.sepia.proxies.limits.AdaptiveLimiter;
+import net.b07z.sepia.proxies.limits.BodyStats;
+import net.b07z.sepia.proxies.limits.ConcurrencyLimitHandler;
+import net.b07z.sepia.proxies.limits.LimiterGroup;
+import net.b07z.sepia.proxies.limits.RateLimitHandler;
+import net.b07z.sepia.proxies.limits.RateLimiter;
+import net.b07z.sepia.proxies.limits.RateLimiterGroup;
+import net.b07z.sepia.proxies.limits.RequestBodyHandler;
+import net.b07z.sepia.proxies.logging.AccessLog;
+import net.b07z.sepia.proxies.metrics.JsonWriter;
+import net.b07z.sepia.proxies.metrics.PrometheusWriter;
+import net.b07z.sepia.proxies.metrics.ProxyMetrics;
+import net.b07z.sepia.proxies.metrics.RouteMetrics;
+import net.b07z.sepia.proxies.metrics.StartupReport;
+import net.b07z.sepia.proxies.routing.PathMapping;
+import net.b07z.sepia.proxies.routing.Route;
+import net.b07z.sepia.proxies.routing.RouteOptions;
+import net.b07z.sepia.proxies.routing.RouteTable;
+import net.b07z.sepia.proxies.security.AccessPolicy;
+import net.b07z.sepia.proxies.security.IpAddress;
+import net.b07z.sepia.proxies.security.SSLContextBuilder;
+import net.b07z.sepia.proxies.security.TrustedProxies;
+import net.b07z.sepia.proxies.server.ListenerChannels;
+import net.b07z.sepia.proxies.server.ReusePortListener;
+import net.b07z.sepia.proxies.websocket.ConnectionCounter;
+import net.b07z.sepia.proxies.websocket.WebSocketHandler;
 
 /**
  * Very basic, tiny, reverse proxy based on Undertow.
@@ -22,23 +96,98 @@ import net.b07z.sepia.proxies.handlers.PathHandlerWithIpFilter;
  */
 public class TinyReverseProxy {
 	
-	int IO_THREADS = 3;
-	int LB_CONNECTIONS_PER_THREAD = 3;
+	static final int CPU_CORES = Runtime.getRuntime().availableProcessors();
+	
+	int IO_THREADS = 0;				//0: auto - one per core (min. 2)
+	int WORKER_THREADS = 0;			//0: auto - 2 per IO thread (the proxy itself never blocks)
+	int LISTENERS = 1;				//listeners sharing the port (SO_REUSEPORT), each with its own worker - threads are split between them
+	int BUFFER_SIZE = 0;			//0: auto - Undertow chooses by max. heap size (512 bytes for small heaps)
+	Boolean DIRECT_BUFFERS = null;	//null: auto - same as buffer size
 	int MAX_REQ_TIME = 30000;
 	
+	int LB_CONNECTIONS_PER_THREAD = 3;			//hard limit of connections per backend and IO thread
+	int LB_SOFT_CONNECTIONS_PER_THREAD = 2;		//connections that are kept open when idle longer than TTL
+	int LB_CONNECTION_TTL = 60000;				//idle time in ms before connections above soft limit are closed (-1: never)
+	int LB_MAX_QUEUE_SIZE = 32;					//requests that can wait for a connection per backend and IO thread
+	
+	int HEALTH_CHECK_INTERVAL = 5000;		//0 disables active health checks and passive ejection
+	int HEALTH_CHECK_TIMEOUT = 2000;
+	int EJECT_AFTER_FAILURES = 3;
+	int EJECT_TIME = 10000;
+	
+	//circuit breaker per backend, null: disabled
+	CircuitBreaker.Settings circuitBreaker = new CircuitBreaker.Settings(50, 0, 20, 10000, 5000, 3);
+	
+	String METRICS_PATH = "/metrics";		//null: no metrics
+	String ACCESS_LOG_FILE = null;			//null: no access log
+	long ACCESS_LOG_MAX_BYTES = 10 * 1024 * 1024;
+	int ACCESS_LOG_MAX_FILES = 5;
+	int ACCESS_LOG_BUFFER = 8192;			//records that can wait for the writer, more are dropped
+	int ACCESS_LOG_FLUSH_INTERVAL = 200;
+	
+	boolean OFFLOAD_HANDLERS = false;		//run non-proxy handlers on virtual threads (Java 21+) or worker threads
+	
+	long CACHE_MAX_BYTES = 4 * 1024 * 1024;		//off-heap (direct memory) budget shared by all cached paths
+	long CACHE_MAX_ENTRY_BYTES = 256 * 1024;
+	long CACHE_DEFAULT_TTL = 0;					//0: cache only responses with 'Cache-Control: max-age' or 'Expires'
+	
+	int COMPRESSION_LEVEL = 6;
+	long COMPRESSION_MIN_SIZE = 1024;			//smaller responses are not worth the CPU time and header overhead
+	String COMPRESSION_TYPES = Compression.DEFAULT_TYPES;
+	int COMPRESSION_POOL_SIZE = 0;				//idle Deflaters kept for reuse (0: 4 per IO thread)
+	
+	int CONCURRENCY_QUEUE_TIMEOUT = 50;		//max. wait for a free slot of a limited path (0: reject right away)
+	int RETRY_AFTER = 1;					//seconds, sent with 503 of rejected requests
+	
+	int WEBSOCKET_IDLE_TIMEOUT = 600000;	//close WebSockets without traffic (routes can overwrite it, 0: never)
+	int WEBSOCKET_HANDSHAKES_PER_THREAD = 16;	//backend connections for handshakes in progress per backend and IO thread
+	int WEBSOCKET_HANDSHAKE_QUEUE = 1024;		//handshakes that can wait for one of them (e.g. all clients reconnect after a restart)
+	
+	int RATE_LIMIT_EVICT_INTERVAL = 60000;		//clear clients with full buckets from the tables of rate limited paths
+	
+	int HEDGE_MIN_DELAY = 20;				//hedged requests wait at least this long, even if the backends' p95 is lower
+	
+	int DRAIN_DELAY = 0;					//'/' reports 503 for this long before the listeners stop accepting (outer balancer reacts)
+	int DRAIN_TIMEOUT = 30000;				//max. wait for requests and WebSockets in progress before the server stops
+	String DRAIN_PATH = null;				//null: no admin endpoint to start a graceful shutdown
+	String ADMIN_PATH = null;				//null: no status and tuning API
+	
 	String host = "localhost";
 	int port = 20726;
 	int httpSupportPort = 0;
 	boolean ssl = false;
 	boolean sslSupportHttp = false;
 	SSLContext sslContext = null;
+	String[] SSL_PROTOCOLS = SSLContextBuilder.DEFAULT_PROTOCOLS;
+	String[] SSL_CIPHER_SUITES = SSLContextBuilder.DEFAULT_CIPHER_SUITES;
 	
 	Undertow reverseProxy;
+	List<ReusePortListener> sharedListeners = new ArrayList<>();
+	List<XnioWorker> listenerWorkers = new ArrayList<>();		//workers of shared listeners, the first listener uses the server's worker
+	HealthChecker healthChecker;
 	int state = 0; 		//0: pre-built, 1: started, 2: stopped
+	long startTime = 0;
 	
-	Map<String, LoadBalancingProxyClient> prefixMappings;
-	Map<String, Boolean> pathIsPublicMappings;
-	Map<String, LoadBalancingProxyClient> exactMappings;
+	PathHandlerWithIpFilter pathHandler;
+	DrainHandler drainHandler;
+	ProxyMetrics metrics;
+	ResponseCache responseCache;
+	Compression compression;
+	LimiterGroup limiterGroup = new LimiterGroup(0);
+	ExecutorService offloadExecutor;		//null: worker pool
+	Map<String, ConnectionCounter> webSocketCounters = new ConcurrentHashMap<>();
+	Map<String, BodyStats> bodyStats = new ConcurrentHashMap<>();
+	RateLimiterGroup rateLimiters = new RateLimiterGroup(16384);
+	RetryBudget retryBudget = new RetryBudget(0.2, 10);
+	AccessLog accessLog;
+	StartupReport startupReport;
+	
+	//paths can change while running (changed under lock of this, maps are never modified after publication but replaced)
+	volatile Map<String, PathMapping> prefixPaths;
+	volatile Map<String, BackendProxyClient> prefixMappings;
+	volatile Map<String, PathMapping> exactPaths;
+	volatile Map<String, BackendProxyClient> exactMappings;
+	TrustedProxies trustedProxies = TrustedProxies.NONE;
 	
 	/**
 	 * Create server running at port.
@@ -48,8 +197,9 @@ public class TinyReverseProxy {
 	public TinyReverseProxy(String host, int port){
 		this.host = host;
 		this.port = port;
+		prefixPaths = new HashMap<>();
 		prefixMappings = new HashMap<>();
-		pathIsPublicMappings = new HashMap<>();
+		exactPaths = new HashMap<>();
 		exactMappings = new HashMap<>();
 	}
 	/**
@@ -65,6 +215,19 @@ public class TinyReverseProxy {
 		this.sslContext = sslContext;
 	}
 	
+	/**
+	 * Set SSL after creation, e.g. when the keystore is loaded in parallel to adding the paths.
+	 * @param useSSL - use given SSL context?
+	 * @param sslContext - SSL context to use
+	 */
+	public void setSsl(boolean useSSL, SSLContext sslContext){
+		if (state != 0){
+			throw new RuntimeException("Not possible after start!");
+		}
+		this.ssl = useSSL;
+		this.sslContext = sslContext;
+	}
+	
 	/**
 	 * Expose endpoints over HTTP as well when using SSL? (default is false).
 	 * Http requires an extra port, usually (https-port + 1)
@@ -76,97 +239,1539 @@ public class TinyReverseProxy {
 		this.httpSupportPort = httpPort;
 	}
 	
+	/**
+	 * Configure thread pools. Use 0 to size automatically from available CPU cores.
+	 * @param ioThreads - non-blocking IO threads that do the actual forwarding (default: one per core, min. 2)
+	 * @param workerThreads - threads for blocking tasks (default: 2 per IO thread)
+	 */
+	public void setThreads(int ioThreads, int workerThreads){
+		this.IO_THREADS = ioThreads;
+		this.WORKER_THREADS = workerThreads;
+	}
+	
+	/**
+	 * Bind several listeners to the port with SO_REUSEPORT (Linux, BSD), each with its own worker (accept thread, IO and
+	 * worker threads) and buffer pool. The kernel spreads new connections between the listeners, so accepting scales with
+	 * cores and listeners share no state. Backend connections are pooled per IO thread, i.e. per listener as well.
+	 * IO and worker threads are split evenly between the listeners. Falls back to one listener if the platform doesn't 
+	 * support it. Default is 1.
+	 * @param listeners - number of listeners, e.g. number of cores (the HTTP support port always has one listener)
+	 */
+	public void setListeners(int listeners){
+		this.LISTENERS = Math.max(1, listeners);
+	}
+	/**
+	 * Number of listeners used when the server starts (1 if SO_REUSEPORT is not supported).
+	 */
+	public int getListeners(){
+		return (LISTENERS > 1 && ReusePortListener.isSupported())? LISTENERS : 1;
+	}
+	
+	/**
+	 * Configure buffers of the server.
+	 * @param bufferSize - size of a single buffer in bytes, 0 for Undertow default (depends on max. heap)
+	 * @param directBuffers - use direct (off-heap) buffers or null for Undertow default
+	 */
+	public void setBuffers(int bufferSize, Boolean directBuffers){
+		this.BUFFER_SIZE = bufferSize;
+		this.DIRECT_BUFFERS = directBuffers;
+	}
+	
+	/**
+	 * Max. time a request can take before it is canceled with 'Gateway Timeout' (default: 30000ms).
+	 * @param maxRequestTimeMs - time in ms, -1 for no limit
+	 */
+	public void setMaxRequestTime(int maxRequestTimeMs){
+		this.MAX_REQ_TIME = maxRequestTimeMs;
+	}
+	
+	/**
+	 * Configure the connection pool to each backend. All limits are per IO thread.
+	 * @param maxConnections - hard limit of open connections (default: 3)
+	 * @param softMaxConnections - connections that are kept when idle longer than TTL (default: 2)
+	 * @param ttlMs - idle time before connections above the soft limit are closed, -1 to keep them (default: 60000)
+	 * @param maxQueueSize - requests that can wait for a free connection before the backend counts as full (default: 32)
+	 */
+	public void setBackendConnections(int maxConnections, int softMaxConnections, int ttlMs, int maxQueueSize){
+		this.LB_CONNECTIONS_PER_THREAD = maxConnections;
+		this.LB_SOFT_CONNECTIONS_PER_THREAD = softMaxConnections;
+		this.LB_CONNECTION_TTL = ttlMs;
+		this.LB_MAX_QUEUE_SIZE = maxQueueSize;
+	}
+	
+	/**
+	 * Number of IO threads used when the server starts.
+	 */
+	public int getIoThreads(){
+		return (IO_THREADS > 0)? IO_THREADS : Math.max(2, CPU_CORES);
+	}
+	/**
+	 * Number of worker threads used when the server starts.
+	 */
+	public int getWorkerThreads(){
+		return (WORKER_THREADS > 0)? WORKER_THREADS : (getIoThreads() * 2);
+	}
+	private int getIoThreadsPerListener(){
+		return Math.max(1, getIoThreads() / getListeners());
+	}
+	private int getWorkerThreadsPerListener(){
+		return Math.max(1, getWorkerThreads() / getListeners());
+	}
+	
+	/**
+	 * Proxies (e.g. a load balancer in front) that are trusted to report the real client address via
+	 * 'X-Forwarded-For' or 'Forwarded' header. Default is none, which means the headers are ignored.
+	 * @param cidrList - comma separated list of networks, e.g. "127.0.0.1, 172.17.0.0/16"
+	 */
+	public synchronized void setTrustedProxies(String cidrList){
+		this.trustedProxies = TrustedProxies.parse(cidrList);
+		if (state == 1){
+			pathHandler.update(buildRouteTable(), trustedProxies);
+		}
+	}
+	
+	/**
+	 * Configure health checks of backends (default: every 5000ms with 2000ms timeout).
+	 * @param intervalMs - time between two probes, 0 disables active checks and passive ejection
+	 * @param timeoutMs - connect and read timeout of a probe
+	 */
+	public void setHealthChecks(int intervalMs, int timeoutMs){
+		this.HEALTH_CHECK_INTERVAL = intervalMs;
+		this.HEALTH_CHECK_TIMEOUT = timeoutMs;
+	}
+	
+	/**
+	 * Configure passive ejection of backends that fail connection attempts (default: 3 failures, 10000ms).
+	 * @param failures - consecutive failures before a backend is taken out of rotation, 0 to disable
+	 * @param ejectTimeMs - time until an ejected backend gets another chance
+	 */
+	public void setPassiveEjection(int failures, int ejectTimeMs){
+		this.EJECT_AFTER_FAILURES = failures;
+		this.EJECT_TIME = ejectTimeMs;
+	}
+	
+	/**
+	 * Configure circuit breakers of backends (default: 50% failed of min. 20 requests in 10000ms, no latency threshold,
+	 * open for 5000ms, 3 probes). A backend's breaker opens when the share of connection errors, 502/503/504 responses (including 
+	 * 504 after 'max. request time', other 5xx are application errors) and responses slower than 'slowMs' reaches the error rate. While it is open the backend gets 
+	 * no requests, if no backend of a path is left requests fail fast with 503. After the open time 'probes' requests are 
+	 * let through: if all succeed the breaker closes, else it opens again.
+	 * @param errorRatePercent - failed requests in % (1-100) that open a breaker, 0 disables circuit breakers
+	 * @param slowMs - responses slower than this count as failures (from backend connection to complete response, 0: never)
+	 * @param minRequests - min. requests in the window before a breaker can open
+	 * @param windowMs - length of the sliding window
+	 * @param openTimeMs - time requests fail fast before probes are sent
+	 * @param probes - requests sent to a half-open backend, all have to succeed to close the breaker
+	 */
+	public void setCircuitBreakers(int errorRatePercent, int slowMs, int minRequests, int windowMs, int openTimeMs, int probes){
+		this.circuitBreaker = (errorRatePercent > 0)? new CircuitBreaker.Settings(errorRatePercent, slowMs, minRequests, windowMs, openTimeMs, probes) : null;
+	}
+	
+	/**
+	 * Path of the metrics endpoint in Prometheus text format (default: "/metrics"). 
+	 * It is only available from local networks (and trusted proxies). Use null to disable metrics completely.
+	 * @param path - exact path of the endpoint or null
+	 */
+	public void setMetricsPath(String path){
+		this.METRICS_PATH = (path == null || path.trim().isEmpty())? null : path.trim();
+	}
+	
+	/**
+	 * Write an access log (JSON lines with route, backend, status, bytes, upstream and total time). Records are 
+	 * buffered and written by a background thread.
+	 * @param file - log file, e.g. "logs/access.log" or null/empty to disable (default)
+	 * @param maxBytes - rotate file when it gets bigger (0: never)
+	 * @param maxFiles - rotated files to keep
+	 * @param bufferSize - records that can wait for the writer, more are dropped (and counted in metrics)
+	 * @param flushIntervalMs - max. time before a record is written
+	 */
+	public void setAccessLog(String file, long maxBytes, int maxFiles, int bufferSize, int flushIntervalMs){
+		this.ACCESS_LOG_FILE = (file == null || file.trim().isEmpty())? null : file.trim();
+		this.ACCESS_LOG_MAX_BYTES = maxBytes;
+		this.ACCESS_LOG_MAX_FILES = maxFiles;
+		this.ACCESS_LOG_BUFFER = bufferSize;
+		this.ACCESS_LOG_FLUSH_INTERVAL = flushIntervalMs;
+	}
+	
+	/**
+	 * Run handlers that are not forwarding requests (banner, metrics, admin endpoints) off the IO threads so that
+	 * blocking work can't stall connections. Uses virtual threads if the JVM supports them (Java 21+), else the worker pool.
+	 * Default is false (run on IO threads).
+	 */
+	public void setOffloadHandlers(boolean offload){
+		this.OFFLOAD_HANDLERS = offload;
+	}
+	/**
+	 * True if offloaded handlers run on virtual threads (after start).
+	 */
+	public boolean isUsingVirtualThreads(){
+		return offloadExecutor != null;
+	}
+	
+	/**
+	 * Protocols and cipher suites of the SSL listener in order of preference (server order wins). 
+	 * Entries the JVM doesn't support are skipped.
+	 * @param protocols - e.g. "TLSv1.3", "TLSv1.2" (null: {@link SSLContextBuilder#DEFAULT_PROTOCOLS})
+	 * @param cipherSuites - null: {@link SSLContextBuilder#DEFAULT_CIPHER_SUITES}
+	 */
+	public void setTlsParameters(String[] protocols, String[] cipherSuites){
+		this.SSL_PROTOCOLS = (protocols != null && protocols.length > 0)? protocols : SSLContextBuilder.DEFAULT_PROTOCOLS;
+		this.SSL_CIPHER_SUITES = (cipherSuites != null && cipherSuites.length > 0)? cipherSuites : SSLContextBuilder.DEFAULT_CIPHER_SUITES;
+	}
+	
+	/**
+	 * Configure the response cache used by paths with {@link RouteOptions#setCache(boolean)}.
+	 * Memory is allocated off-heap (see -XX:MaxDirectMemorySize) when the first cached path is built.
+	 * @param maxBytes - budget shared by all cached paths (default: 4MB)
+	 * @param maxEntryBytes - larger responses are not cached (default: 256KB)
+	 * @param defaultTtlMs - time to keep responses without 'Cache-Control: max-age' or 'Expires', 0 to not cache them (default)
+	 */
+	public void setResponseCache(long maxBytes, long maxEntryBytes, long defaultTtlMs){
+		if (responseCache != null){
+			throw new RuntimeException("Not possible after the cache was created!");
+		}
+		this.CACHE_MAX_BYTES = maxBytes;
+		this.CACHE_MAX_ENTRY_BYTES = maxEntryBytes;
+		this.CACHE_DEFAULT_TTL = defaultTtlMs;
+	}
+	
+	/**
+	 * Configure compression of paths with {@link RouteOptions#setCompress(boolean)}.
+	 * @param level - 1 (fast) to 9 (small), default: 6
+	 * @param minSize - smaller responses are sent uncompressed (default: 1024 bytes)
+	 * @param types - comma separated content type prefixes or null for {@link Compression#DEFAULT_TYPES}
+	 * @param poolSize - idle Deflaters kept for reuse, 0 for 4 per IO thread (default)
+	 */
+	public void setCompression(int level, long minSize, String types, int poolSize){
+		if (compression != null){
+			throw new RuntimeException("Not possible after compression was created!");
+		}
+		this.COMPRESSION_LEVEL = level;
+		this.COMPRESSION_MIN_SIZE = minSize;
+		this.COMPRESSION_TYPES = (types == null || types.trim().isEmpty())? Compression.DEFAULT_TYPES : types;
+		this.COMPRESSION_POOL_SIZE = poolSize;
+	}
+	
+	/**
+	 * Configure concurrency limits of paths with {@link RouteOptions#setConcurrencyLimit(int)}.
+	 * @param totalLimit - max. requests in progress of all limited paths together, low priority paths are rejected 
+	 * at 50% of it, normal at 80% and high at 100% (0: no total limit, default)
+	 * @param queueTimeoutMs - max. time a request waits for a free slot, 0 to reject right away (default: 50ms)
+	 * @param retryAfterSec - 'Retry-After' of rejected requests (default: 1s)
+	 */
+	public void setConcurrencyLimits(int totalLimit, int queueTimeoutMs, int retryAfterSec){
+		this.limiterGroup.setTotalLimit(totalLimit);
+		this.CONCURRENCY_QUEUE_TIMEOUT = queueTimeoutMs;
+		this.RETRY_AFTER = retryAfterSec;
+	}
+	
+	/**
+	 * Configure WebSocket paths ({@link RouteOptions#setWebSocket(boolean)}). Upgraded connections leave the backend 
+	 * connection pool, so its limits only apply to handshakes in progress.
+	 * @param idleTimeoutMs - default for paths without own value: connections without any traffic (data, ping or pong) 
+	 * for this time are closed, 0 to keep idle connections open (default: 600000ms)
+	 * @param handshakesPerThread - backend connections for handshakes in progress per backend and IO thread (default: 16)
+	 * @param handshakeQueueSize - handshakes that can wait for a free connection per backend and IO thread (default: 1024)
+	 */
+	public void setWebSockets(int idleTimeoutMs, int handshakesPerThread, int handshakeQueueSize){
+		this.WEBSOCKET_IDLE_TIMEOUT = idleTimeoutMs;
+		this.WEBSOCKET_HANDSHAKES_PER_THREAD = handshakesPerThread;
+		this.WEBSOCKET_HANDSHAKE_QUEUE = handshakeQueueSize;
+	}
+	
+	/**
+	 * Configure rate limits of paths with {@link RouteOptions#setRateLimit(double)}.
+	 * @param maxClientsPerPath - clients tracked at the same time per path, memory is reserved up front (24 bytes each, default: 16384)
+	 * @param evictIntervalMs - time between two runs that clear idle clients (default: 60000ms)
+	 */
+	public void setRateLimits(int maxClientsPerPath, int evictIntervalMs){
+		this.rateLimiters.setMaxClients(maxClientsPerPath);
+		this.RATE_LIMIT_EVICT_INTERVAL = evictIntervalMs;
+	}
+	
+	/**
+	 * Configure the budget shared by retries and hedged requests of all paths (see {@link RouteOptions#setRetries(int)}).
+	 * @param ratio - retries per forwarded request, e.g. 0.2 for max. 20% extra requests to the backends (default: 0.2)
+	 * @param minPerSec - retries per second that are always possible, for paths with little traffic (default: 10)
+	 * @param hedgeMinDelayMs - min. time before a hedged request is sent (default: 20ms)
+	 */
+	public void setRetries(double ratio, int minPerSec, int hedgeMinDelayMs){
+		this.retryBudget = new RetryBudget(ratio, minPerSec);
+		this.HEDGE_MIN_DELAY = hedgeMinDelayMs;
+	}
+	
+	/**
+	 * Path of the admin API (default: null, no API). It is only available from this host (loopback).
+	 * GET returns the status as JSON: routes, backends with connection pool and circuit breaker, limits, uptime, threads 
+	 * and JVM memory/GC. POST with query parameters changes timeouts and limits at runtime, see {@link #tune(Map)}.
+	 * @param path - exact path of the API or null
+	 */
+	public void setAdminPath(String path){
+		this.ADMIN_PATH = (path == null || path.trim().isEmpty())? null : path.trim();
+	}
+	
+	/**
+	 * Configure graceful shutdown, see {@link #drain()}.
+	 * @param delayMs - time between drain start (readiness on '/' turns to 503) and the listeners closing, e.g. the health 
+	 * check interval of an outer load balancer (default: 0)
+	 * @param timeoutMs - max. wait for requests and WebSockets in progress (default: 30000ms)
+	 * @param adminPath - exact path that starts a graceful shutdown with a POST request, only available from this host (loopback) 
+	 * (default: null, no endpoint)
+	 */
+	public void setDrain(int delayMs, int timeoutMs, String adminPath){
+		this.DRAIN_DELAY = delayMs;
+		this.DRAIN_TIMEOUT = timeoutMs;
+		this.DRAIN_PATH = (adminPath == null || adminPath.trim().isEmpty())? null : adminPath.trim();
+	}
+	
+	/**
+	 * Report of the startup phases, gets the time of the first proxied request and is added to the metrics.
+	 * @param report - report started by the caller or null (default)
+	 */
+	public void setStartupReport(StartupReport report){
+		this.startupReport = report;
+	}
+	
 	/**
 	 * Start server. Add some proxy-paths first!
 	 */
-	public void start(){
+	public synchronized void start(){
+		int listeners = getListeners();
 		Builder proxyBuilder = Undertow.builder()
-				.setServerOption(UndertowOptions.ENABLE_HTTP2, true) 		//TODO: do we want to support this?
-                .setIoThreads(IO_THREADS);
+				.setServerOption(UndertowOptions.ENABLE_HTTP2, true) 		//clients: h2 via ALPN, h2c upgrade or prior knowledge - backends see HTTP/1.1 unless 'http2' is set per path
+                .setIoThreads(getIoThreadsPerListener())
+                .setWorkerThreads(getWorkerThreadsPerListener());
+		if (METRICS_PATH != null){
+			metrics = new ProxyMetrics();
+			proxyBuilder.setServerOption(UndertowOptions.RECORD_REQUEST_START_TIME, true)
+				.setServerOption(UndertowOptions.ENABLE_STATISTICS, true);
+		}
+		if (BUFFER_SIZE > 0){
+			proxyBuilder.setBufferSize(BUFFER_SIZE);
+		}
+		if (DIRECT_BUFFERS != null){
+			proxyBuilder.setDirectBuffers(DIRECT_BUFFERS);
+		}
 		
-		//Use SSL?
+		//Use SSL? - with shared listeners the port is bound after the server started
+		OptionMap tlsOptions = OptionMap.EMPTY;
 		if (ssl){
-			proxyBuilder.addHttpsListener(this.port, this.host, sslContext);
+			SSLParameters supported = sslContext.getSupportedSSLParameters();
+			tlsOptions = OptionMap.builder()
+				.set(Options.SSL_ENABLED_PROTOCOLS, Sequence.of(SSLContextBuilder.filterSupported(SSL_PROTOCOLS, supported.getProtocols())))
+				.set(Options.SSL_ENABLED_CIPHER_SUITES, Sequence.of(SSLContextBuilder.filterSupported(SSL_CIPHER_SUITES, supported.getCipherSuites())))
+				.set(UndertowOptions.SSL_USER_CIPHER_SUITES_ORDER, true)
+				.getMap();
+			proxyBuilder.setSocketOption(Options.SSL_ENABLED_PROTOCOLS, tlsOptions.get(Options.SSL_ENABLED_PROTOCOLS))
+				.setSocketOption(Options.SSL_ENABLED_CIPHER_SUITES, tlsOptions.get(Options.SSL_ENABLED_CIPHER_SUITES))
+				.setSocketOption(UndertowOptions.SSL_USER_CIPHER_SUITES_ORDER, true);
+			if (listeners == 1){
+				proxyBuilder.addHttpsListener(this.port, this.host, sslContext);
+			}
 			if (sslSupportHttp && httpSupportPort > 0){
 				proxyBuilder.addHttpListener(this.httpSupportPort, this.host);
 			}
-		}else{
+		}else if (listeners == 1){
 			proxyBuilder.addHttpListener(this.port, this.host);
 		}
 		
-		//PathHandler pathHandler = Handlers.path();
-		PathHandlerWithIpFilter pathHandler = new PathHandlerWithIpFilter(pathIsPublicMappings);
-		pathHandler.addExactPath("/", (exchange) -> {
+		if (OFFLOAD_HANDLERS){
+			offloadExecutor = VirtualThreads.newExecutor("proxy-vt-");
+		}
+		
+		//Routes - compiled into one table that resolves handler and access policy in a single lookup
+		pathHandler = new PathHandlerWithIpFilter(buildRouteTable(), trustedProxies, metrics);
+		drainHandler = new DrainHandler(pathHandler, RETRY_AFTER);
+		HttpHandler rootHandler = drainHandler;
+		
+		//Access log - added first, so it sees the results of all other completion listeners
+		if (ACCESS_LOG_FILE != null){
+			proxyBuilder.setServerOption(UndertowOptions.RECORD_REQUEST_START_TIME, true);
+			try{
+				accessLog = new AccessLog(new File(ACCESS_LOG_FILE), ACCESS_LOG_MAX_BYTES, ACCESS_LOG_MAX_FILES, ACCESS_LOG_BUFFER, 
+						ACCESS_LOG_FLUSH_INTERVAL, (path) -> {
+							Route route = pathHandler.getRoutes().match(path);
+							return (route != null)? route.getPath() : null;
+						});
+			}catch (IOException e){
+				throw new RuntimeException("Could not open access log: " + ACCESS_LOG_FILE, e);
+			}
+			final AccessLog log = accessLog;
+			final DrainHandler next = drainHandler;
+			rootHandler = (exchange) -> {
+				log.start(exchange);
+				next.handleRequest(exchange);
+			};
+		}
+		proxyBuilder.setHandler(rootHandler);
+		
+		//Backend connection pools
+		for (BackendProxyClient client : getProxyClients()){
+			configureClient(client);
+		}
+		
+		//Health checks
+		if (HEALTH_CHECK_INTERVAL > 0){
+			healthChecker = new HealthChecker(HEALTH_CHECK_INTERVAL, HEALTH_CHECK_TIMEOUT);
+			for (BackendProxyClient client : getProxyClients()){
+				healthChecker.register(client);
+			}
+			healthChecker.start();
+		}
+                
+		reverseProxy = proxyBuilder.build();
+        reverseProxy.start();
+        if (listeners > 1){
+        	startSharedListeners(listeners, rootHandler, tlsOptions);
+        }
+        startTime = System.currentTimeMillis();
+        state = 1;
+	}
+	
+	/**
+	 * Bind the port with one listener per worker (SO_REUSEPORT), the first one uses the worker of the server.
+	 * Worker, socket and server options are the same as in 'Undertow.start()'.
+	 */
+	private void startSharedListeners(int listeners, HttpHandler rootHandler, OptionMap tlsOptions){
+		OptionMap.Builder serverOptions = OptionMap.builder()
+				.set(UndertowOptions.NO_REQUEST_TIMEOUT, 60000)
+				.set(UndertowOptions.ENABLE_HTTP2, true);
+		if (metrics != null || accessLog != null){
+			serverOptions.set(UndertowOptions.RECORD_REQUEST_START_TIME, true);
+		}
+		if (metrics != null){
+			serverOptions.set(UndertowOptions.ENABLE_STATISTICS, true);
+		}
+		try{
+			for (int i = 0; i < listeners; i++){
+				XnioWorker worker = reverseProxy.getWorker();
+				if (i > 0){
+					worker = Xnio.getInstance(Undertow.class.getClassLoader()).createWorker(OptionMap.builder()
+							.set(Options.WORKER_IO_THREADS, getIoThreadsPerListener())
+							.set(Options.CONNECTION_HIGH_WATER, 1000000)
+							.set(Options.CONNECTION_LOW_WATER, 1000000)
+							.set(Options.WORKER_TASK_CORE_THREADS, getWorkerThreadsPerListener())
+							.set(Options.WORKER_TASK_MAX_THREADS, getWorkerThreadsPerListener())
+							.set(Options.TCP_NODELAY, true)
+							.set(Options.CORK, true)
+							.getMap());
+					listenerWorkers.add(worker);
+				}
+				OptionMap socketOptions = OptionMap.builder()
+						.set(Options.WORKER_IO_THREADS, worker.getIoThreadCount())
+						.set(Options.TCP_NODELAY, true)
+						.set(Options.REUSE_ADDRESSES, true)
+						.set(Options.BALANCING_TOKENS, 1)
+						.set(Options.BALANCING_CONNECTIONS, 2)
+						.set(Options.BACKLOG, 1000)
+						.addAll(tlsOptions)
+						.getMap();
+				sharedListeners.add(ReusePortListener.bind(worker, host, port, rootHandler, createBufferPool(), 
+						socketOptions, serverOptions.getMap(), ssl? sslContext : null));
+			}
+		}catch (IOException e){
+			stopSharedListeners();
+			reverseProxy.stop();
+			throw new RuntimeException("Could not bind " + listeners + " listeners to port " + port, e);
+		}
+	}
+	
+	/**
+	 * Buffer pool of a shared listener, same defaults as 'Undertow.Builder' (by max. heap size).
+	 */
+	private ByteBufferPool createBufferPool(){
+		long maxMemory = Runtime.getRuntime().maxMemory();
+		int size = (BUFFER_SIZE > 0)? BUFFER_SIZE : (maxMemory < 64 * 1024 * 1024)? 512 : (maxMemory < 128 * 1024 * 1024)? 1024 : (16 * 1024 - 20);
+		boolean direct = (DIRECT_BUFFERS != null)? DIRECT_BUFFERS : (maxMemory >= 64 * 1024 * 1024);
+		return new DefaultByteBufferPool(direct, size, -1, 4);
+	}
+	
+	private void stopSharedListeners(){
+		for (ReusePortListener l : sharedListeners){
+			l.close();
+		}
+		sharedListeners.clear();
+		for (XnioWorker worker : listenerWorkers){
+			worker.shutdown();
+			try{
+				worker.awaitTermination();
+			}catch (InterruptedException e){
+				worker.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+		}
+		listenerWorkers.clear();
+	}
+	
+	/**
+	 * Listeners of the server including shared listeners.
+	 */
+	private List<Undertow.ListenerInfo> getListenerInfo(){
+		List<Undertow.ListenerInfo> all = new ArrayList<>(reverseProxy.getListenerInfo());
+		for (ReusePortListener l : sharedListeners){
+			all.add(l.getInfo());
+		}
+		return all;
+	}
+	
+	/**
+	 * Compile current paths into a new route table.
+	 */
+	private RouteTable buildRouteTable(){
+		List<Route> routes = new ArrayList<>();
+		routes.add(new Route("/", true, offload((exchange) -> {
         	exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain");
-            exchange.getResponseSender().send("SEPIA reverse-proxy powered by Undertow");
-        });
+        	if (drainHandler != null && drainHandler.isDraining()){
+        		//readiness for load balancers in front of the proxy
+        		exchange.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+        		exchange.getResponseSender().send("SEPIA reverse-proxy is shutting down");
+        		return;
+        	}
+            exchange.getResponseSender().send("SEPIA reverse-proxy powered by Undertow" + circuitBreakerStatus(exchange));
+        }), true));
+		if (DRAIN_PATH != null){
+			routes.add(new Route(DRAIN_PATH, true, (exchange) -> {
+				if (!exchange.getRequestMethod().equals(Methods.POST)){
+					exchange.setStatusCode(StatusCodes.METHOD_NOT_ALLOWED);
+					exchange.getResponseHeaders().put(Headers.ALLOW, "POST");
+					exchange.endExchange();
+					return;
+				}
+				if (startDrain()){
+					new Thread(this::finishDrain, "proxy-drain").start();
+				}
+				exchange.setStatusCode(StatusCodes.ACCEPTED);
+				exchange.getResponseSender().send("draining");
+			}, AccessPolicy.LOOPBACK_ONLY));
+		}
+		if (ADMIN_PATH != null){
+			routes.add(new Route(ADMIN_PATH, true, offload(this::handleAdmin), AccessPolicy.LOOPBACK_ONLY));
+		}
+		if (metrics != null){
+			routes.add(new Route(METRICS_PATH, true, offload((exchange) -> {
+				exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, PrometheusWriter.CONTENT_TYPE);
+				exchange.getResponseSender().send(writeMetrics());
+			}), AccessPolicy.LOCAL_ONLY));
+		}
 		
 		//Exact-paths
+		Set<String> metricKeys = new TreeSet<>();
+		Set<String> limiterKeys = new TreeSet<>();
+		Set<String> webSocketKeys = new TreeSet<>();
+		Set<String> bodyKeys = new TreeSet<>();
+		Set<String> rateKeys = new TreeSet<>();
 		for (String path : exactMappings.keySet()){
 			// REST API path
-			pathHandler.addExactPath(path,	
-				ProxyHandler.builder()
-					.setProxyClient(prefixMappings.get(path))
-					.setMaxRequestTime(MAX_REQ_TIME)
-					.build()
-			);
+			routes.add(new Route(path, true, buildRouteHandler(exactPaths.get(path), exactMappings.get(path), limiterKeys, webSocketKeys, bodyKeys, rateKeys), 
+					exactPaths.get(path).getOptions().buildAccessPolicy(), routeMetrics(exactPaths.get(path), metricKeys)));
 		}
 		//Prefix-paths
 		for (String path : prefixMappings.keySet()){
 			// REST API path
-			pathHandler.addPrefixPath(path,	
-				ProxyHandler.builder()
-					.setProxyClient(prefixMappings.get(path))
-					.setMaxRequestTime(MAX_REQ_TIME)
-					.build()
-			);
-		}
-		proxyBuilder.setHandler(pathHandler);
-                
-		reverseProxy = proxyBuilder.build();
-        reverseProxy.start();
-        state = 1;
+			routes.add(new Route(path, false, buildRouteHandler(prefixPaths.get(path), prefixMappings.get(path), limiterKeys, webSocketKeys, bodyKeys, rateKeys), 
+					prefixPaths.get(path).getOptions().buildAccessPolicy(), routeMetrics(prefixPaths.get(path), metricKeys)));
+		}
+		if (metrics != null){
+			metrics.retainRoutes(metricKeys);
+		}
+		limiterGroup.retain(limiterKeys);
+		webSocketCounters.keySet().retainAll(webSocketKeys);
+		bodyStats.keySet().retainAll(bodyKeys);
+		rateLimiters.retain(rateKeys);
+		return RouteTable.compile(routes);
+	}
+	
+	private RouteMetrics routeMetrics(PathMapping pm, Set<String> usedKeys){
+		if (metrics == null){
+			return null;
+		}
+		usedKeys.add(pm.toString());
+		return metrics.route(pm.toString());
+	}
+	
+	/**
+	 * Lines for the status page with backends whose circuit breaker is not closed - only for local clients, 
+	 * backend addresses are not public. Empty if all are closed.
+	 */
+	private String circuitBreakerStatus(HttpServerExchange exchange){
+		if (circuitBreaker == null){
+			return "";
+		}
+		IpAddress client = IpAddress.get();
+		client.set(exchange.getSourceAddress().getAddress());
+		if (!AccessPolicy.LOCAL_ONLY.isAllowed(client)){
+			return "";
+		}
+		StringBuilder sb = new StringBuilder();
+		long now = System.currentTimeMillis();
+		//no lock: runs on the IO thread for every readiness check, the maps are replaced as a whole
+		List<Map.Entry<String, BackendProxyClient>> clients = new ArrayList<>(exactMappings.entrySet());
+		clients.addAll(prefixMappings.entrySet());
+		for (Map.Entry<String, BackendProxyClient> e : clients){
+			for (Backend b : e.getValue().getBackends()){
+				CircuitBreaker cb = b.getCircuitBreaker();
+				if (cb == null || cb.getState() == CircuitBreaker.State.CLOSED) continue;
+				sb.append("\n").append(e.getKey()).append(" -> ").append(b.getUri()).append(": circuit breaker ").append(cb.getState());
+				if (cb.getRemainingOpenTime(now) > 0){
+					sb.append(" (probes in ").append(cb.getRemainingOpenTime(now)).append("ms)");
+				}
+			}
+		}
+		return (sb.length() > 0)? ("\n" + sb) : "";
+	}
+	
+	/**
+	 * Current metrics in Prometheus text format.
+	 */
+	synchronized String writeMetrics(){
+		PrometheusWriter w = new PrometheusWriter();
+		w.header("proxy_connections_active", "gauge", "Open client connections.");
+		long bytesIn = 0, bytesOut = 0;
+		List<Undertow.ListenerInfo> listenerInfo = getListenerInfo();
+		int shared = listenerInfo.size() - sharedListeners.size();
+		for (int i = 0; i < listenerInfo.size(); i++){
+			Undertow.ListenerInfo li = listenerInfo.get(i);
+			ConnectorStatistics cs = li.getConnectorStatistics();
+			if (cs != null){
+				String listener = li.getProtcol() + "/" + li.getAddress() + ((i >= shared)? ("#" + (i - shared)) : "");
+				w.sample("proxy_connections_active", PrometheusWriter.labels("listener", listener), cs.getActiveConnections());
+				bytesIn += cs.getBytesReceived();
+				bytesOut += cs.getBytesSent();
+			}
+		}
+		w.header("proxy_received_bytes_total", "counter", "Bytes received from clients (all listeners).");
+		w.sample("proxy_received_bytes_total", null, bytesIn);
+		w.header("proxy_sent_bytes_total", "counter", "Bytes sent to clients (all listeners).");
+		w.sample("proxy_sent_bytes_total", null, bytesOut);
+		w.header("proxy_unmatched_requests_total", "counter", "Requests without matching route (404).");
+		w.sample("proxy_unmatched_requests_total", null, metrics.getUnmatched());
+		if (accessLog != null){
+			w.header("proxy_access_log_written_total", "counter", "Access log records written.");
+			w.sample("proxy_access_log_written_total", null, accessLog.getWritten());
+			w.header("proxy_access_log_dropped_total", "counter", "Access log records dropped because the writer was behind.");
+			w.sample("proxy_access_log_dropped_total", null, accessLog.getDropped());
+		}
+		if (responseCache != null){
+			w.header("proxy_cache_hits_total", "counter", "Requests served from the response cache.");
+			w.sample("proxy_cache_hits_total", null, responseCache.getHits());
+			w.header("proxy_cache_misses_total", "counter", "Cacheable requests forwarded to a backend.");
+			w.sample("proxy_cache_misses_total", null, responseCache.getMisses());
+			w.header("proxy_cache_evictions_total", "counter", "Entries evicted to free memory.");
+			w.sample("proxy_cache_evictions_total", null, responseCache.getEvictions());
+			w.header("proxy_cache_entries", "gauge", "Cached responses.");
+			w.sample("proxy_cache_entries", null, responseCache.getEntries());
+			w.header("proxy_cache_bytes", "gauge", "Off-heap bytes used by cached responses.");
+			w.sample("proxy_cache_bytes", null, responseCache.getUsedBytes());
+		}
+		if (startupReport != null){
+			w.header("proxy_startup_seconds", "gauge", "Duration of the startup phases ('jvm': JVM start to main, 'ready' and 'first_request': main to ready and first proxied request).");
+			for (Map.Entry<String, Long> e : startupReport.getPhases().entrySet()){
+				w.sample("proxy_startup_seconds", PrometheusWriter.labels("phase", e.getKey()), e.getValue() / 1000.0);
+			}
+		}
+		w.header("proxy_retries_total", "counter", "Requests sent again to another backend after an error or 502/503.");
+		w.sample("proxy_retries_total", null, retryBudget.getRetries());
+		w.header("proxy_hedged_requests_total", "counter", "Second requests sent to another backend because the first one was slow.");
+		w.sample("proxy_hedged_requests_total", null, retryBudget.getHedges());
+		w.header("proxy_retry_budget_exhausted_total", "counter", "Retries and hedged requests not sent because the retry budget was used up.");
+		w.sample("proxy_retry_budget_exhausted_total", null, retryBudget.getExhausted());
+		
+		//Routes
+		List<PathMapping> paths = new ArrayList<>(exactPaths.values());
+		paths.addAll(prefixPaths.values());
+		List<String> labels = new ArrayList<>();
+		List<RouteMetrics> routeMetrics = new ArrayList<>();
+		for (PathMapping pm : paths){
+			labels.add(PrometheusWriter.labels("route", pm.getPath(), "type", pm.isExact()? "exact" : "prefix"));
+			routeMetrics.add(metrics.route(pm.toString()));
+		}
+		w.header("proxy_requests_total", "counter", "Requests per route.");
+		for (int i = 0; i < paths.size(); i++){
+			w.sample("proxy_requests_total", labels.get(i), routeMetrics.get(i).getRequests());
+		}
+		w.header("proxy_requests_active", "gauge", "Requests in progress per route.");
+		for (int i = 0; i < paths.size(); i++){
+			w.sample("proxy_requests_active", labels.get(i), routeMetrics.get(i).getActive());
+		}
+		w.header("proxy_responses_total", "counter", "Responses per route and status class.");
+		for (int i = 0; i < paths.size(); i++){
+			for (int sc = 1; sc <= 5; sc++){
+				w.sample("proxy_responses_total", labels.get(i) + ",code=\"" + sc + "xx\"", routeMetrics.get(i).getStatusCount(sc));
+			}
+		}
+		w.header("proxy_request_bytes_total", "counter", "Request body bytes per route (by Content-Length).");
+		for (int i = 0; i < paths.size(); i++){
+			w.sample("proxy_request_bytes_total", labels.get(i), routeMetrics.get(i).getBytesIn());
+		}
+		w.header("proxy_response_bytes_total", "counter", "Response body bytes per route.");
+		for (int i = 0; i < paths.size(); i++){
+			w.sample("proxy_response_bytes_total", labels.get(i), routeMetrics.get(i).getBytesOut());
+		}
+		List<Integer> limited = new ArrayList<>();
+		List<AdaptiveLimiter> limiters = new ArrayList<>();
+		for (int i = 0; i < paths.size(); i++){
+			RouteOptions o = paths.get(i).getOptions();
+			if (o.getConcurrencyLimit() > 0){
+				limited.add(i);
+				limiters.add(limiterGroup.limiter(paths.get(i).toString(), o.getConcurrencyLimit(), o.getPriority()));
+			}
+		}
+		if (!limited.isEmpty()){
+			w.header("proxy_concurrency_limit", "gauge", "Current adaptive concurrency limit per route.");
+			for (int i = 0; i < limited.size(); i++){
+				w.sample("proxy_concurrency_limit", labels.get(limited.get(i)), limiters.get(i).getLimit());
+			}
+			w.header("proxy_concurrency_inflight", "gauge", "Requests holding a slot of the concurrency limit per route.");
+			for (int i = 0; i < limited.size(); i++){
+				w.sample("proxy_concurrency_inflight", labels.get(limited.get(i)), limiters.get(i).getInflight());
+			}
+			w.header("proxy_concurrency_rejected_total", "counter", "Requests rejected with 503 per route.");
+			for (int i = 0; i < limited.size(); i++){
+				w.sample("proxy_concurrency_rejected_total", labels.get(limited.get(i)), limiters.get(i).getRejected());
+			}
+		}
+		List<Integer> webSocketRoutes = new ArrayList<>();
+		List<ConnectionCounter> counters = new ArrayList<>();
+		for (int i = 0; i < paths.size(); i++){
+			ConnectionCounter c = paths.get(i).getOptions().isWebSocket()? webSocketCounters.get(paths.get(i).toString()) : null;
+			if (c != null){
+				webSocketRoutes.add(i);
+				counters.add(c);
+			}
+		}
+		if (!webSocketRoutes.isEmpty()){
+			w.header("proxy_websocket_connections", "gauge", "Open WebSocket connections (including handshakes) per route.");
+			for (int i = 0; i < webSocketRoutes.size(); i++){
+				w.sample("proxy_websocket_connections", labels.get(webSocketRoutes.get(i)), counters.get(i).getOpen());
+			}
+			w.header("proxy_websocket_upgrades_total", "counter", "Successful WebSocket handshakes per route.");
+			for (int i = 0; i < webSocketRoutes.size(); i++){
+				w.sample("proxy_websocket_upgrades_total", labels.get(webSocketRoutes.get(i)), counters.get(i).getUpgrades());
+			}
+			w.header("proxy_websocket_rejected_total", "counter", "WebSocket handshakes rejected at the connection limit per route.");
+			for (int i = 0; i < webSocketRoutes.size(); i++){
+				w.sample("proxy_websocket_rejected_total", labels.get(webSocketRoutes.get(i)), counters.get(i).getRejected());
+			}
+		}
+		List<Integer> bodyRoutes = new ArrayList<>();
+		List<BodyStats> bodies = new ArrayList<>();
+		for (int i = 0; i < paths.size(); i++){
+			BodyStats b = paths.get(i).getOptions().hasBodyLimits()? bodyStats.get(paths.get(i).toString()) : null;
+			if (b != null){
+				bodyRoutes.add(i);
+				bodies.add(b);
+			}
+		}
+		if (!bodyRoutes.isEmpty()){
+			w.header("proxy_uploads_active", "gauge", "Request bodies in progress per route (routes with body limits).");
+			for (int i = 0; i < bodyRoutes.size(); i++){
+				w.sample("proxy_uploads_active", labels.get(bodyRoutes.get(i)), bodies.get(i).getActive());
+			}
+			w.header("proxy_upload_bytes_in_flight", "gauge", "Bytes received so far by request bodies in progress per route.");
+			for (int i = 0; i < bodyRoutes.size(); i++){
+				w.sample("proxy_upload_bytes_in_flight", labels.get(bodyRoutes.get(i)), bodies.get(i).getBytesInFlight());
+			}
+			w.header("proxy_upload_bytes_total", "counter", "Request body bytes received per route.");
+			for (int i = 0; i < bodyRoutes.size(); i++){
+				w.sample("proxy_upload_bytes_total", labels.get(bodyRoutes.get(i)), bodies.get(i).getBytes());
+			}
+			w.header("proxy_upload_rejected_total", "counter", "Request bodies rejected per route and reason (413 size, 408 timeout).");
+			for (int i = 0; i < bodyRoutes.size(); i++){
+				String route = labels.get(bodyRoutes.get(i));
+				w.sample("proxy_upload_rejected_total", route + ",reason=\"size\"", bodies.get(i).getTooLarge());
+				w.sample("proxy_upload_rejected_total", route + ",reason=\"timeout\"", bodies.get(i).getTimedOut());
+			}
+		}
+		List<Integer> rateRoutes = new ArrayList<>();
+		List<RateLimiter> rateLimited = new ArrayList<>();
+		for (int i = 0; i < paths.size(); i++){
+			RateLimiter r = (paths.get(i).getOptions().getRateLimit() > 0)? rateLimiters.get(paths.get(i).toString()) : null;
+			if (r != null){
+				rateRoutes.add(i);
+				rateLimited.add(r);
+			}
+		}
+		if (!rateRoutes.isEmpty()){
+			w.header("proxy_rate_limited_total", "counter", "Requests rejected with 429 per route.");
+			for (int i = 0; i < rateRoutes.size(); i++){
+				w.sample("proxy_rate_limited_total", labels.get(rateRoutes.get(i)), rateLimited.get(i).getRejected());
+			}
+			w.header("proxy_rate_limit_clients", "gauge", "Clients with a non-full token bucket per route (updated by the periodic eviction).");
+			for (int i = 0; i < rateRoutes.size(); i++){
+				w.sample("proxy_rate_limit_clients", labels.get(rateRoutes.get(i)), rateLimited.get(i).getClients());
+			}
+			w.header("proxy_rate_limit_replaced_total", "counter", "Active clients that lost their bucket because the table was full per route.");
+			for (int i = 0; i < rateRoutes.size(); i++){
+				w.sample("proxy_rate_limit_replaced_total", labels.get(rateRoutes.get(i)), rateLimited.get(i).getReplaced());
+			}
+		}
+		w.header("proxy_request_duration_seconds", "histogram", "Time from request start to completed response per route.");
+		for (int i = 0; i < paths.size(); i++){
+			w.histogram("proxy_request_duration_seconds", labels.get(i), routeMetrics.get(i).getLatency());
+		}
+		
+		//Backends
+		List<String> backendLabels = new ArrayList<>();
+		List<Backend> backends = new ArrayList<>();
+		for (PathMapping pm : paths){
+			BackendProxyClient client = (pm.isExact()? exactMappings : prefixMappings).get(pm.getPath());
+			if (client == null) continue;
+			for (Backend b : client.getBackends()){
+				backendLabels.add(PrometheusWriter.labels("route", pm.getPath(), "type", pm.isExact()? "exact" : "prefix", "backend", b.getUri().toString()));
+				backends.add(b);
+			}
+		}
+		w.header("proxy_backend_up", "gauge", "1 if the backend is in rotation (healthy and not ejected).");
+		for (int i = 0; i < backends.size(); i++){
+			w.sample("proxy_backend_up", backendLabels.get(i), backends.get(i).isAvailable()? 1 : 0);
+		}
+		if (circuitBreaker != null){
+			w.header("proxy_backend_circuit_state", "gauge", "Circuit breaker per backend: 0 closed, 1 half-open, 2 open.");
+			for (int i = 0; i < backends.size(); i++){
+				CircuitBreaker cb = backends.get(i).getCircuitBreaker();
+				if (cb != null){
+					CircuitBreaker.State state = cb.getState();
+					w.sample("proxy_backend_circuit_state", backendLabels.get(i), (state == CircuitBreaker.State.OPEN)? 2 : (state == CircuitBreaker.State.HALF_OPEN)? 1 : 0);
+				}
+			}
+			w.header("proxy_backend_circuit_opened_total", "counter", "Times the circuit breaker of the backend opened.");
+			for (int i = 0; i < backends.size(); i++){
+				CircuitBreaker cb = backends.get(i).getCircuitBreaker();
+				if (cb != null){
+					w.sample("proxy_backend_circuit_opened_total", backendLabels.get(i), cb.getOpenedCount());
+				}
+			}
+			w.header("proxy_backend_circuit_rejected_total", "counter", "Requests that failed fast because the circuit breaker of the backend was open.");
+			for (int i = 0; i < backends.size(); i++){
+				CircuitBreaker cb = backends.get(i).getCircuitBreaker();
+				if (cb != null){
+					w.sample("proxy_backend_circuit_rejected_total", backendLabels.get(i), cb.getRejected());
+				}
+			}
+		}
+		w.header("proxy_backend_websocket_connections", "gauge", "Open WebSocket connections per backend.");
+		for (int i = 0; i < backends.size(); i++){
+			w.sample("proxy_backend_websocket_connections", backendLabels.get(i), backends.get(i).getConnections());
+		}
+		w.header("proxy_backend_requests_active", "gauge", "Requests in progress per backend.");
+		for (int i = 0; i < backends.size(); i++){
+			w.sample("proxy_backend_requests_active", backendLabels.get(i), backends.get(i).getRequests());
+		}
+		w.header("proxy_backend_latency_ewma_seconds", "gauge", "Peak-EWMA of the response time per backend.");
+		for (int i = 0; i < backends.size(); i++){
+			w.sample("proxy_backend_latency_ewma_seconds", backendLabels.get(i), backends.get(i).getLatencyEwma() / 1e6);
+		}
+		w.header("proxy_backend_connect_failures_total", "counter", "Failed connection attempts per backend.");
+		for (int i = 0; i < backends.size(); i++){
+			w.sample("proxy_backend_connect_failures_total", backendLabels.get(i), backends.get(i).getMetrics().getConnectFailures());
+		}
+		w.header("proxy_backend_connect_seconds", "histogram", "Time to get a (new or pooled) connection to the backend.");
+		for (int i = 0; i < backends.size(); i++){
+			w.histogram("proxy_backend_connect_seconds", backendLabels.get(i), backends.get(i).getMetrics().getConnectLatency());
+		}
+		w.header("proxy_backend_response_seconds", "histogram", "Time from backend connection to completed response.");
+		for (int i = 0; i < backends.size(); i++){
+			w.histogram("proxy_backend_response_seconds", backendLabels.get(i), backends.get(i).getMetrics().getResponseLatency());
+		}
+		return w.toString();
+	}
+	
+	/**
+	 * Current state: "created", "running", "draining" or "stopped".
+	 */
+	public String getState(){
+		if (state == 0){
+			return "created";
+		}else if (state == 2){
+			return "stopped";
+		}
+		return (drainHandler != null && drainHandler.isDraining())? "draining" : "running";
+	}
+	
+	/**
+	 * Admin API: GET for the status, POST to change settings (query parameters, see {@link #tune(Map)}) and get the new status.
+	 */
+	private void handleAdmin(HttpServerExchange exchange){
+		if (exchange.isInIoThread()){
+			//connection pools are read by tasks on the IO threads
+			exchange.dispatch(this::handleAdmin);
+			return;
+		}
+		boolean isPost = exchange.getRequestMethod().equals(Methods.POST);
+		if (!isPost && !exchange.getRequestMethod().equals(Methods.GET)){
+			exchange.setStatusCode(StatusCodes.METHOD_NOT_ALLOWED);
+			exchange.getResponseHeaders().put(Headers.ALLOW, "GET, POST");
+			exchange.endExchange();
+			return;
+		}
+		if (isPost){
+			Map<String, String> settings = new LinkedHashMap<>();
+			for (Map.Entry<String, Deque<String>> e : exchange.getQueryParameters().entrySet()){
+				settings.put(e.getKey(), e.getValue().getFirst());
+			}
+			try{
+				tune(settings);
+			}catch (IllegalArgumentException e){
+				exchange.setStatusCode(StatusCodes.BAD_REQUEST);
+				exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain");
+				exchange.getResponseSender().send(e.getMessage());
+				return;
+			}
+		}
+		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, JsonWriter.CONTENT_TYPE);
+		exchange.getResponseSender().send(writeStatus());
+	}
+	
+	/**
+	 * Change timeouts and concurrency limits while running (e.g. via admin API). A new route table is active at once, 
+	 * requests in progress finish with the previous settings. Changes are not saved: global values last until a restart, 
+	 * path values until the paths are replaced, i.e. any reload of a changed settings file ({@link #replacePaths(Collection)})
+	 * restores the path options of the file.<br>
+	 * Global: max_request_time, concurrency_total, concurrency_queue_timeout, retry_after, websocket_idle_timeout.<br>
+	 * Per path (selected with 'route' and 'exact=true' for exact paths): concurrency, uploadtimeout, uploadidle, idle - 
+	 * same meaning as 'redirect_*_N' in the settings file.
+	 * @param settings - names and new values, e.g. "max_request_time" - "10000" or "route" - "/sepia/stt", "concurrency" - "20"
+	 * @throws IllegalArgumentException for unknown names or paths and invalid values (nothing is changed then)
+	 */
+	public synchronized void tune(Map<String, String> settings){
+		Map<String, Integer> values = new LinkedHashMap<>();
+		PathMapping route = null;
+		for (Map.Entry<String, String> e : settings.entrySet()){
+			String name = e.getKey();
+			if (name.equals("route") || name.equals("exact")){
+				continue;
+			}
+			int value;
+			try{
+				value = Integer.parseInt(e.getValue().trim());
+			}catch (NumberFormatException ex){
+				throw new IllegalArgumentException("Invalid value of '" + name + "': " + e.getValue());
+			}
+			switch (name){
+				case "max_request_time":
+				case "concurrency_total":
+				case "concurrency_queue_timeout":
+				case "websocket_idle_timeout":
+				case "concurrency":
+				case "uploadtimeout":
+				case "uploadidle":
+					if (value < 0) throw new IllegalArgumentException("'" + name + "' can't be negative: " + value);
+					break;
+				case "retry_after":
+					if (value < 1) throw new IllegalArgumentException("'retry_after' has to be at least 1: " + value);
+					break;
+				case "idle":
+					if (value < -1) throw new IllegalArgumentException("'idle' has to be -1 (never), 0 (default) or more: " + value);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown setting: " + name);
+			}
+			values.put(name, value);
+		}
+		boolean routeSettings = values.containsKey("concurrency") || values.containsKey("uploadtimeout") 
+				|| values.containsKey("uploadidle") || values.containsKey("idle");
+		if (settings.containsKey("route") || routeSettings){
+			String path = settings.get("route");
+			route = (path == null || path.trim().isEmpty())? null : ("true".equals(settings.get("exact"))? exactPaths : prefixPaths).get(Route.normalize(path));
+			if (route == null){
+				throw new IllegalArgumentException("Unknown route: " + path);
+			}
+		}
+		RouteOptions options = (route != null)? route.getOptions().copy() : null;
+		for (Map.Entry<String, Integer> e : values.entrySet()){
+			int value = e.getValue();
+			switch (e.getKey()){
+				case "max_request_time": MAX_REQ_TIME = value; break;
+				case "concurrency_total": limiterGroup.setTotalLimit(value); break;
+				case "concurrency_queue_timeout": CONCURRENCY_QUEUE_TIMEOUT = value; break;
+				case "retry_after": RETRY_AFTER = value; break;
+				case "websocket_idle_timeout": WEBSOCKET_IDLE_TIMEOUT = value; break;
+				case "concurrency": options.setConcurrencyLimit(value); break;
+				case "uploadtimeout": options.setUploadTimeout(value); break;
+				case "uploadidle": options.setUploadIdleTimeout(value); break;
+				default: options.setIdleTimeout(value);
+			}
+		}
+		if (route != null){
+			//swap in a new mapping, the options of the live one are not modified
+			Map<String, PathMapping> newPaths = new HashMap<>(route.isExact()? exactPaths : prefixPaths);
+			newPaths.put(route.getPath(), new PathMapping(route.getPath(), route.getTarget(), route.isExact(), options));
+			if (route.isExact()){
+				exactPaths = newPaths;
+			}else{
+				prefixPaths = newPaths;
+			}
+		}
+		if (state == 1 && !values.isEmpty()){
+			pathHandler.update(buildRouteTable(), trustedProxies);
+		}
+	}
+	
+	/**
+	 * Status as JSON for the admin API. Connection pools are read on the IO threads, so don't call it on one.
+	 */
+	String writeStatus(){
+		List<PathMapping> paths;
+		Map<String, BackendProxyClient> exactClients, prefixClients;
+		synchronized (this){
+			paths = new ArrayList<>(exactPaths.values());
+			paths.addAll(prefixPaths.values());
+			exactClients = exactMappings;
+			prefixClients = prefixMappings;
+		}
+		long now = System.currentTimeMillis();
+		JsonWriter w = new JsonWriter().beginObject(null);
+		w.value("state", getState());
+		w.value("uptime_ms", (startTime > 0)? (now - startTime) : 0);
+		
+		w.beginObject("settings")
+			.value("max_request_time", MAX_REQ_TIME)
+			.value("concurrency_total", limiterGroup.getTotalLimit())
+			.value("concurrency_queue_timeout", CONCURRENCY_QUEUE_TIMEOUT)
+			.value("retry_after", RETRY_AFTER)
+			.value("websocket_idle_timeout", WEBSOCKET_IDLE_TIMEOUT)
+			.endObject();
+		
+		w.beginArray("listeners");
+		if (reverseProxy != null && state == 1){
+			for (Undertow.ListenerInfo li : getListenerInfo()){
+				ConnectorStatistics cs = li.getConnectorStatistics();
+				w.beginObject(null)
+					.value("protocol", li.getProtcol())
+					.value("address", li.getAddress().toString())
+					.value("connections", (cs != null)? cs.getActiveConnections() : -1)
+					.endObject();
+			}
+		}
+		w.endArray();
+		w.beginArray("workers");
+		if (reverseProxy != null && state == 1){
+			List<XnioWorker> workers = new ArrayList<>();
+			workers.add(reverseProxy.getWorker());
+			workers.addAll(listenerWorkers);
+			for (XnioWorker worker : workers){
+				XnioWorkerMXBean mx = worker.getMXBean();
+				w.beginObject(null)
+					.value("io_threads", mx.getIoThreadCount())
+					.value("worker_threads", mx.getWorkerPoolSize())
+					.value("worker_threads_busy", mx.getBusyWorkerThreadCount())
+					.value("worker_queue", mx.getWorkerQueueSize())
+					.endObject();
+			}
+		}
+		w.endArray();
+		
+		Map<Backend, ConnectionPoolStats> poolStats = Collections.emptyMap();
+		if (state == 1){
+			List<BackendProxyClient> clients = new ArrayList<>(exactClients.values());
+			clients.addAll(prefixClients.values());
+			poolStats = ConnectionPoolStats.read(clients);
+		}
+		w.beginArray("routes");
+		for (PathMapping pm : paths){
+			RouteOptions o = pm.getOptions();
+			BackendProxyClient client = (pm.isExact()? exactClients : prefixClients).get(pm.getPath());
+			w.beginObject(null)
+				.value("path", pm.getPath())
+				.value("type", pm.isExact()? "exact" : "prefix")
+				.value("target", pm.getTarget())
+				.value("public", o.isPublic());
+			if (metrics != null){
+				RouteMetrics rm = metrics.route(pm.toString());
+				w.value("requests", rm.getRequests()).value("requests_active", rm.getActive());
+			}
+			w.beginObject("options")
+				.value("concurrency", o.getConcurrencyLimit())
+				.value("uploadtimeout", o.getUploadTimeout())
+				.value("uploadidle", o.getUploadIdleTimeout())
+				.value("websocket", o.isWebSocket())
+				.value("idle", o.getIdleTimeout())
+				.value("balancing", o.getBalancing().name().toLowerCase())
+				.value("http2", o.isHttp2())
+				.endObject();
+			if (o.getConcurrencyLimit() > 0){
+				AdaptiveLimiter limiter = limiterGroup.limiter(pm.toString(), o.getConcurrencyLimit(), o.getPriority());
+				w.beginObject("concurrency")
+					.value("limit", limiter.getLimit())
+					.value("inflight", limiter.getInflight())
+					.value("queued", limiter.getQueued())
+					.value("rejected", limiter.getRejected())
+					.endObject();
+			}
+			w.beginArray("backends");
+			if (client != null){
+				for (Backend b : client.getBackends()){
+					CircuitBreaker cb = b.getCircuitBreaker();
+					w.beginObject(null)
+						.value("uri", b.getUri().toString())
+						.value("weight", b.getWeight())
+						.value("available", b.isAvailable())
+						.value("healthy", b.isHealthy())
+						.value("ejected", b.isEjected())
+						.value("circuit_breaker", (cb != null)? cb.getState().name().toLowerCase() : null)
+						.value("requests_active", b.getRequests())
+						.value("websockets", b.getConnections())
+						.value("latency_ewma_ms", b.getLatencyEwma() / 1000)
+						.value("connect_failures", b.getMetrics().getConnectFailures());
+					ConnectionPoolStats pool = poolStats.get(b);
+					if (pool != null){
+						w.value("connections_open", pool.getOpen())
+							.value("connections_idle", pool.getIdle())
+							.value("connections_waiting", pool.getWaiting());
+					}
+					if (client.isHttp2()){
+						w.value("http2_connections", client.getMultiplexedConnections(b))
+							.value("http2_streams", client.getMultiplexedStreams(b));
+					}
+					w.endObject();
+				}
+			}
+			w.endArray();
+			w.endObject();
+		}
+		w.endArray();
+		
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+		w.beginObject("jvm")
+			.value("uptime_ms", ManagementFactory.getRuntimeMXBean().getUptime())
+			.value("java_version", System.getProperty("java.version"))
+			.value("processors", Runtime.getRuntime().availableProcessors())
+			.value("threads", ManagementFactory.getThreadMXBean().getThreadCount())
+			.value("heap_used", heap.getUsed())
+			.value("heap_committed", heap.getCommitted())
+			.value("heap_max", heap.getMax())
+			.value("non_heap_used", nonHeap.getUsed());
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)){
+			if (pool.getName().equals("direct")){
+				w.value("direct_used", pool.getMemoryUsed()).value("direct_buffers", pool.getCount());
+			}
+		}
+		if (responseCache != null){
+			w.value("cache_bytes", responseCache.getUsedBytes());
+		}
+		w.beginArray("gc");
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+			w.beginObject(null)
+				.value("name", gc.getName())
+				.value("count", gc.getCollectionCount())
+				.value("time_ms", gc.getCollectionTime())
+				.endObject();
+		}
+		w.endArray();
+		w.endObject();
+		return w.endObject().toString();
+	}
+	
+	/**
+	 * Wrap a handler that is not forwarding (and might block) so it runs off the IO thread if configured.
+	 */
+	HttpHandler offload(HttpHandler handler){
+		return OFFLOAD_HANDLERS? new OffloadHandler(offloadExecutor, handler) : handler;
+	}
+	
+	/**
+	 * Build the handler of a path: proxy plus optional request body limits, concurrency limit, compression and cache.<br>
+	 * The cache is the outer handler so it stores compressed responses and serves them without compressing again.
+	 * WebSocket handshakes skip all of them and go to the proxy directly. The rate limit comes first and applies to all requests.
+	 * Retries happen inside the proxy handler, so limits and cache see one request.
+	 */
+	private HttpHandler buildRouteHandler(PathMapping pm, BackendProxyClient client, Set<String> limiterKeys, Set<String> webSocketKeys, 
+			Set<String> bodyKeys, Set<String> rateKeys){
+		RouteOptions options = pm.getOptions();
+		client.setRetries(options.getRetries(), retryBudget).setHedging(options.isHedging(), HEDGE_MIN_DELAY)
+			.setRewriteHost(options.isBackendHost());
+		HttpHandler proxy = buildProxyHandler(pm, client);
+		HttpHandler handler = proxy;
+		if (options.hasBodyLimits()){
+			bodyKeys.add(pm.toString());
+			handler = new RequestBodyHandler(bodyStats.computeIfAbsent(pm.toString(), (k) -> new BodyStats()), 
+					options.getMaxBodySize(), options.getUploadTimeout(), options.getUploadIdleTimeout(), handler);
+		}
+		if (options.getConcurrencyLimit() > 0){
+			AdaptiveLimiter limiter = limiterGroup.limiter(pm.toString(), options.getConcurrencyLimit(), options.getPriority());
+			limiterKeys.add(pm.toString());
+			handler = new ConcurrencyLimitHandler(limiter, handler, CONCURRENCY_QUEUE_TIMEOUT, RETRY_AFTER);
+		}
+		if (options.isCompress()){
+			if (compression == null){
+				compression = new Compression(COMPRESSION_LEVEL, COMPRESSION_MIN_SIZE, COMPRESSION_TYPES, 
+						(COMPRESSION_POOL_SIZE > 0)? COMPRESSION_POOL_SIZE : (getIoThreads() * 4));
+			}
+			handler = new CompressionHandler(compression, handler);
+		}
+		if (options.isCache()){
+			if (responseCache == null){
+				//allocated on first use, the off-heap budget is reserved completely
+				responseCache = new ResponseCache(CACHE_MAX_BYTES, CACHE_MAX_ENTRY_BYTES, CACHE_DEFAULT_TTL);
+			}
+			handler = new CacheHandler(responseCache, pm.toString(), handler, options.isCompress()? compression : null);
+		}
+		if (options.isWebSocket()){
+			webSocketKeys.add(pm.toString());
+			int idleTimeout = (options.getIdleTimeout() != 0)? options.getIdleTimeout() : WEBSOCKET_IDLE_TIMEOUT;
+			handler = new WebSocketHandler(webSocketCounters.computeIfAbsent(pm.toString(), (k) -> new ConnectionCounter()), 
+					options.getMaxConnections(), Math.max(0, idleTimeout), RETRY_AFTER, proxy, handler);
+		}
+		if (options.getRateLimit() > 0){
+			rateKeys.add(pm.toString());
+			handler = new RateLimitHandler(rateLimiters.limiter(pm.toString(), options.getRateLimit(), options.getRateBurst()), handler);
+			rateLimiters.start(RATE_LIMIT_EVICT_INTERVAL);
+		}
+		return handler;
+	}
+	
+	/**
+	 * Drop cached responses of a path that was removed or changed (cached headers include the response rules).
+	 */
+	private void invalidateCache(PathMapping old, PathMapping now){
+		if (responseCache != null && old != null && old.getOptions().isCache()
+				&& (now == null || !now.getOptions().isCache() || !now.hasSameBackends(old) 
+						|| now.getOptions().isCompress() != old.getOptions().isCompress()
+						|| !now.getOptions().getResponseHeaders().equals(old.getOptions().getResponseHeaders())
+						|| now.getOptions().isRewriteLocation() != old.getOptions().isRewriteLocation())){
+			responseCache.invalidateRoute(old.toString());
+		}
+	}
+	
+	/**
+	 * Build the handler that forwards requests to the backends of a client. It asks the client for a new connection 
+	 * after connection errors, the client decides if a retry is allowed. Header rules, 'Host', 'Forwarded' and 'Location'
+	 * rewrite of the path are compiled into a handler in front of it.
+	 */
+	private HttpHandler buildProxyHandler(PathMapping pm, BackendProxyClient client){
+		RouteOptions options = pm.getOptions();
+		HttpHandler proxy = ProxyHandler.builder()
+			.setProxyClient(client)
+			.setMaxRequestTime(MAX_REQ_TIME)
+			.setMaxConnectionRetries(client.getRetries())
+			.setRewriteHostHeader(client.isRewriteHost())
+			.build();
+		String fixedHost = (options.getHostHeader() != null && !options.isBackendHost())? options.getHostHeader() : null;
+		if (!options.getRequestHeaders().isEmpty() || !options.getResponseHeaders().isEmpty() || fixedHost != null 
+				|| options.isForwarded() || options.isRewriteLocation()){
+			List<URI> targets = new ArrayList<>();
+			for (Backend b : client.getBackends()){
+				targets.add(b.getUri());
+			}
+			proxy = new HeaderRewriteHandler(options.getRequestHeaders(), options.getResponseHeaders(), fixedHost, options.isForwarded(), 
+					options.isRewriteLocation()? new LocationRewriter(pm.getPath(), targets) : null, proxy);
+		}
+		final StartupReport report = startupReport;
+		if (report == null || report.hasFirstRequest()){
+			return proxy;
+		}
+		//time to the first proxied request, a flag check after that
+		final HttpHandler next = proxy;
+		return (exchange) -> {
+			if (!report.hasFirstRequest()){
+				exchange.addExchangeCompleteListener((ex, nextListener) -> {
+					report.firstRequest();
+					nextListener.proceed();
+				});
+			}
+			next.handleRequest(exchange);
+		};
+	}
+	
+	/**
+	 * Apply connection pool settings - passive ejection needs the health checker to bring backends back.
+	 * Clients of WebSocket paths get the handshake limits, their upgraded connections are never reused.
+	 */
+	private void configureClient(BackendProxyClient client){
+		if (client.getBalancing() == Balancing.LEAST_CONNECTIONS){
+			client.setConnectionsPerThread(WEBSOCKET_HANDSHAKES_PER_THREAD)
+				.setSoftMaxConnectionsPerThread(Math.min(LB_SOFT_CONNECTIONS_PER_THREAD, WEBSOCKET_HANDSHAKES_PER_THREAD))
+				.setTtl(LB_CONNECTION_TTL)
+				.setMaxQueueSize(WEBSOCKET_HANDSHAKE_QUEUE);
+		}else{
+			client.setConnectionsPerThread(LB_CONNECTIONS_PER_THREAD)
+				.setSoftMaxConnectionsPerThread(LB_SOFT_CONNECTIONS_PER_THREAD)
+				.setTtl(LB_CONNECTION_TTL)
+				.setMaxQueueSize(LB_MAX_QUEUE_SIZE);
+		}
+		client.setPassiveEjection((HEALTH_CHECK_INTERVAL > 0)? EJECT_AFTER_FAILURES : 0, EJECT_TIME);
+		client.setCircuitBreaker(circuitBreaker);
+	}
+	
+	/**
+	 * All proxy clients of exact and prefix paths.
+	 */
+	private List<BackendProxyClient> getProxyClients(){
+		List<BackendProxyClient> clients = new ArrayList<>(prefixMappings.values());
+		clients.addAll(exactMappings.values());
+		return clients;
+	}
+	
+	/**
+	 * Graceful shutdown: '/' reports 503 right away (readiness), after the drain delay the listeners stop accepting
+	 * connections, WebSockets get a close frame ('1001 Going Away') and requests in progress can finish. Responses get
+	 * 'Connection: close' in the meantime. Then (or after the drain timeout) the server stops.<br>
+	 * Blocks until the server stopped.
+	 * @return true if all requests and WebSockets finished in time, false if they were cut or the server was not running
+	 */
+	public boolean drain(){
+		return startDrain() && finishDrain();
+	}
+	
+	/**
+	 * Switch to drain mode.
+	 * @return false if the server is not running or already draining
+	 */
+	private synchronized boolean startDrain(){
+		if (state != 1 || drainHandler.isDraining()){
+			return false;
+		}
+		drainHandler.drain();
+		return true;
+	}
+	
+	/**
+	 * Wait for the drain delay, requests and WebSockets, then stop.
+	 */
+	private boolean finishDrain(){
+		try{
+			if (DRAIN_DELAY > 0){
+				Thread.sleep(DRAIN_DELAY);
+			}
+			stopAccepting();
+			for (ConnectionCounter c : webSocketCounters.values()){
+				c.goAway();
+			}
+			long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+			while (!isIdle() && System.currentTimeMillis() < deadline){
+				Thread.sleep(50);
+			}
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		boolean done = isIdle();
+		stop();
+		return done;
+	}
+	
+	private boolean isIdle(){
+		if (drainHandler.getActive() > 0){
+			return false;
+		}
+		for (ConnectionCounter c : webSocketCounters.values()){
+			if (c.getOpen() > 0) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Stop accepting new connections and keep the open ones. Undertow's 'ListenerInfo.suspend()' closes all 
+	 * connections, so the accepting channel is suspended directly. If that fails (warning is logged) new connections 
+	 * are served with 'Connection: close' until the server stops.
+	 */
+	private void stopAccepting(){
+		for (Undertow.ListenerInfo li : getListenerInfo()){
+			ListenerChannels.suspendAccepts(li);
+		}
 	}
 	
 	/**
 	 * Stop server.
 	 */
-	public void stop(){
+	public synchronized void stop(){
+		if (healthChecker != null){
+			healthChecker.stop();
+		}
+		rateLimiters.stop();
+		stopSharedListeners();
 		reverseProxy.stop();
+		if (offloadExecutor != null){
+			offloadExecutor.shutdown();
+		}
+		if (accessLog != null){
+			accessLog.close();
+		}
 		state = 2;
 	}
 
 	/**
 	 * Add a reverse proxy path and target.
 	 * @param path - path of server to forward, e.g. "/sepia"
-	 * @param target - target server, e.g. "http://localhost:20721"
+	 * @param target - target server, e.g. "http://localhost:20721" or a comma separated list of weighted servers, 
+	 * e.g. "http://localhost:20721;weight=2, http://localhost:20731"
 	 * @param isPublic - will be available only from local IP addresses or every? Note: this only works if there is no other redirect in front!!!
 	 * @throws Exception
 	 */
 	public void addPrefixPath(String path, String target, boolean isPublic) throws Exception{
-		if (state != 0){
-			throw new RuntimeException("Not possible while reverse-proxy is running!");
-		}else{
-			LoadBalancingProxyClient loadBalancer = new LoadBalancingProxyClient()
-	                .addHost(new URI(target))
-	                .setConnectionsPerThread(LB_CONNECTIONS_PER_THREAD);
-			prefixMappings.put(path, loadBalancer);
-			pathIsPublicMappings.put(path, isPublic);
-		}
+		addPrefixPath(path, target, isPublic, null);
+	}
+	/**
+	 * Add a reverse proxy path and target(s) with active health checks.
+	 * @param path - path of server to forward, e.g. "/sepia"
+	 * @param target - target server, e.g. "http://localhost:20721" or a comma separated list of weighted servers, 
+	 * e.g. "http://localhost:20721;weight=2, http://localhost:20731"
+	 * @param isPublic - will be available only from local IP addresses or every? Note: this only works if there is no other redirect in front!!!
+	 * @param healthPath - path for HTTP health checks, e.g. "/ping" (relative to server root) or null to check TCP connection only
+	 * @throws Exception
+	 */
+	public void addPrefixPath(String path, String target, boolean isPublic, String healthPath) throws Exception{
+		addPrefixPath(path, target, new RouteOptions().setPublic(isPublic).setHealthPath(healthPath));
+	}
+	/**
+	 * Add a reverse proxy path and target(s) with options. If the proxy is running the new route is active immediately.
+	 * @param path - path of server to forward, e.g. "/sepia"
+	 * @param target - target server, e.g. "http://localhost:20721" or a comma separated list of weighted servers, 
+	 * e.g. "http://localhost:20721;weight=2, http://localhost:20731"
+	 * @param options - access restrictions, health checks etc.
+	 * @throws Exception
+	 */
+	public void addPrefixPath(String path, String target, RouteOptions options) throws Exception{
+		addPaths(Arrays.asList(new PathMapping(path, target, false, options)));
 	}
 	
 	/**
-	 * Remove previously set path.
+	 * Remove previously set path. If the proxy is running requests in progress are finished first.
 	 * @param path - path of server to forward, e.g. "/sepia"
 	 */
-	public void removePrefixPath(String path){
-		if (state != 0){
-			throw new RuntimeException("Not possible while reverse-proxy is running!");
-		}else{
-			prefixMappings.remove(path);
-			pathIsPublicMappings.remove(path);
+	public synchronized void removePrefixPath(String path){
+		path = Route.normalize(path);
+		Map<String, PathMapping> newPaths = new HashMap<>(prefixPaths);
+		Map<String, BackendProxyClient> newMappings = new HashMap<>(prefixMappings);
+		invalidateCache(newPaths.remove(path), null);
+		BackendProxyClient client = newMappings.remove(path);
+		prefixPaths = newPaths;
+		prefixMappings = newMappings;
+		if (state == 1){
+			pathHandler.update(buildRouteTable(), trustedProxies);
+			retire(client);
+		}
+	}
+	
+	/**
+	 * Add a reverse proxy path that only matches exactly (no sub-paths) and its target(s).
+	 * @param path - path of server to forward, e.g. "/sepia/ping"
+	 * @param target - target server, e.g. "http://localhost:20721/ping" or a comma separated list of weighted servers
+	 * @param isPublic - will be available only from local IP addresses or every? Note: this only works if there is no other redirect in front!!!
+	 * @param healthPath - path for HTTP health checks or null to check TCP connection only
+	 * @throws Exception
+	 */
+	public void addExactPath(String path, String target, boolean isPublic, String healthPath) throws Exception{
+		addExactPath(path, target, new RouteOptions().setPublic(isPublic).setHealthPath(healthPath));
+	}
+	/**
+	 * Add a reverse proxy path that only matches exactly (no sub-paths) and its target(s) with options.
+	 * If the proxy is running the new route is active immediately.
+	 * @param path - path of server to forward, e.g. "/sepia/ping"
+	 * @param target - target server, e.g. "http://localhost:20721/ping" or a comma separated list of weighted servers
+	 * @param options - access restrictions, health checks etc.
+	 * @throws Exception
+	 */
+	public void addExactPath(String path, String target, RouteOptions options) throws Exception{
+		addPaths(Arrays.asList(new PathMapping(path, target, true, options)));
+	}
+	
+	/**
+	 * Remove previously set exact path. If the proxy is running requests in progress are finished first.
+	 * @param path - path of server to forward, e.g. "/sepia/ping"
+	 */
+	public synchronized void removeExactPath(String path){
+		path = Route.normalize(path);
+		Map<String, PathMapping> newPaths = new HashMap<>(exactPaths);
+		Map<String, BackendProxyClient> newMappings = new HashMap<>(exactMappings);
+		invalidateCache(newPaths.remove(path), null);
+		BackendProxyClient client = newMappings.remove(path);
+		exactPaths = newPaths;
+		exactMappings = newMappings;
+		if (state == 1){
+			pathHandler.update(buildRouteTable(), trustedProxies);
+			retire(client);
 		}
 	}
 	
-	//TODO: add and test exact path mappings
+	/**
+	 * Add or replace paths. If the proxy is running all changes become active at once.
+	 * @param mappings - new paths
+	 * @throws Exception
+	 */
+	public void addPaths(Collection<PathMapping> mappings) throws Exception{
+		updatePaths(mappings, false);
+	}
+	
+	/**
+	 * Replace all paths, e.g. after settings were reloaded. If the proxy is running all changes become active at once
+	 * with a new route table. Requests in progress finish with the previous routes and backends of unchanged paths
+	 * keep their connections and health state.
+	 * @param mappings - complete list of paths
+	 * @throws Exception
+	 */
+	public void replacePaths(Collection<PathMapping> mappings) throws Exception{
+		updatePaths(mappings, true);
+	}
+	
+	private synchronized void updatePaths(Collection<PathMapping> mappings, boolean replaceAll) throws Exception{
+		//validate and build everything first so a broken path leaves the current state untouched
+		Map<String, PathMapping> newPrefixPaths = replaceAll? new HashMap<>() : new HashMap<>(prefixPaths);
+		Map<String, PathMapping> newExactPaths = replaceAll? new HashMap<>() : new HashMap<>(exactPaths);
+		Map<String, BackendProxyClient> newPrefixMappings = replaceAll? new HashMap<>() : new HashMap<>(prefixMappings);
+		Map<String, BackendProxyClient> newExactMappings = replaceAll? new HashMap<>() : new HashMap<>(exactMappings);
+		List<BackendProxyClient> created = new ArrayList<>();
+		try{
+			for (PathMapping pm : mappings){
+				pm.getOptions().buildAccessPolicy();		//fail early on invalid networks
+				Map<String, PathMapping> paths = pm.isExact()? exactPaths : prefixPaths;
+				Map<String, BackendProxyClient> clients = pm.isExact()? exactMappings : prefixMappings;
+				BackendProxyClient client;
+				if (pm.hasSameBackends(paths.get(pm.getPath()))){
+					client = clients.get(pm.getPath());
+				}else{
+					client = new BackendProxyClient(Backend.parseList(pm.getTarget()), pm.getOptions().getHealthPath(), 
+							pm.getOptions().getBalancing(), pm.getOptions().isHttp2());
+					created.add(client);
+				}
+				(pm.isExact()? newExactPaths : newPrefixPaths).put(pm.getPath(), pm);
+				(pm.isExact()? newExactMappings : newPrefixMappings).put(pm.getPath(), client);
+			}
+		}catch (Exception e){
+			//clients of earlier paths were never used, close them before keeping the current state
+			for (BackendProxyClient client : created){
+				client.close();
+			}
+			throw e;
+		}
+		List<BackendProxyClient> previous = getProxyClients();
+		for (PathMapping old : prefixPaths.values()){
+			invalidateCache(old, newPrefixPaths.get(old.getPath()));
+		}
+		for (PathMapping old : exactPaths.values()){
+			invalidateCache(old, newExactPaths.get(old.getPath()));
+		}
+		prefixPaths = newPrefixPaths;
+		exactPaths = newExactPaths;
+		prefixMappings = newPrefixMappings;
+		exactMappings = newExactMappings;
+		
+		if (state == 1){
+			for (BackendProxyClient client : created){
+				configureClient(client);
+				if (healthChecker != null){
+					healthChecker.register(client);
+				}
+			}
+			pathHandler.update(buildRouteTable(), trustedProxies);
+			previous.removeAll(getProxyClients());
+			for (BackendProxyClient client : previous){
+				retire(client);
+			}
+		}
+	}
+	
+	/**
+	 * Close a client that is no longer used. Requests that already resolved the old route get time to finish.
+	 */
+	private void retire(BackendProxyClient client){
+		if (client == null){
+			return;
+		}
+		if (healthChecker != null){
+			healthChecker.unregister(client);
+		}
+		long delay = (MAX_REQ_TIME > 0)? MAX_REQ_TIME : 30000;
+		reverseProxy.getWorker().getIoThread().executeAfter(client::close, delay, TimeUnit.MILLISECONDS);
+	}
 }
@@ -0,0 +1,246 @@
+package net.b07z.sepia.proxies.balancing;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.b07z.sepia.proxies.metrics.BackendMetrics;
+
+/**
+ * A single backend (target server) of a proxy path with its weight and health state.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class Backend {
+
+	public static final int DEFAULT_WEIGHT = 1;
+	public static final int MAX_WEIGHT = 100;
+	
+	private static final double EWMA_DECAY_NANOS = 10e9;		//peak-EWMA forgets a latency peak with a time constant of 10s
+	private static final double EWMA_PENALTY = 1e9;				//cost of a backend with requests in progress but no response time yet
+
+	private final URI uri;
+	private final int weight;
+
+	//active health check state (set by HealthChecker)
+	private volatile boolean healthy = true;
+	private int failedProbes = 0;
+
+	//passive ejection state (set by BackendProxyClient)
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private volatile long ejectedUntil = 0;
+	
+	//open upgraded connections (WebSockets) including handshakes in progress (set by BackendProxyClient)
+	private final AtomicInteger connections = new AtomicInteger();
+	
+	//requests in progress and peak-EWMA of the response time in µs as double bits (set by BackendProxyClient)
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicLong ewma = new AtomicLong(Double.doubleToRawLongBits(0.0));
+	private volatile long ewmaStamp = System.nanoTime();
+	
+	//circuit breaker or null if disabled (set by BackendProxyClient)
+	private volatile CircuitBreaker breaker;
+	
+	private final BackendMetrics metrics = new BackendMetrics();
+
+	/**
+	 * Create backend with target URI and weight.
+	 * @param uri - target server, e.g. "http://localhost:20721"
+	 * @param weight - relative share of requests (1-100)
+	 */
+	public Backend(URI uri, int weight){
+		if (weight < 1 || weight > MAX_WEIGHT){
+			throw new IllegalArgumentException("Backend weight has to be between 1 and " + MAX_WEIGHT + ", was: " + weight);
+		}
+		this.uri = uri;
+		this.weight = weight;
+	}
+
+	/**
+	 * Parse a list of backends, e.g. "http://localhost:20741/stt, http://localhost:20742/stt;weight=2".
+	 * Entries are separated by comma, the optional weight is appended with ";weight=N" (default 1).
+	 * @param targets - comma separated list of target servers
+	 * @return list of backends in given order
+	 * @throws URISyntaxException
+	 */
+	public static List<Backend> parseList(String targets) throws URISyntaxException {
+		if (targets == null || targets.trim().isEmpty()){
+			throw new IllegalArgumentException("Missing target server(s)!");
+		}
+		List<Backend> backends = new ArrayList<>();
+		for (String entry : targets.split(",")){
+			entry = entry.trim();
+			if (entry.isEmpty()) continue;
+			int weight = DEFAULT_WEIGHT;
+			int wi = entry.indexOf(";weight=");
+			if (wi > 0){
+				weight = Integer.parseInt(entry.substring(wi + ";weight=".length()).trim());
+				entry = entry.substring(0, wi).trim();
+			}
+			backends.add(new Backend(new URI(entry), weight));
+		}
+		return backends;
+	}
+
+	public URI getUri(){
+		return uri;
+	}
+	public int getWeight(){
+		return weight;
+	}
+	public BackendMetrics getMetrics(){
+		return metrics;
+	}
+	/**
+	 * Circuit breaker of this backend or null if breakers are disabled.
+	 */
+	public CircuitBreaker getCircuitBreaker(){
+		return breaker;
+	}
+	void setCircuitBreaker(CircuitBreaker breaker){
+		this.breaker = breaker;
+	}
+	/**
+	 * Open upgraded connections (e.g. WebSockets) to this backend, including handshakes in progress.
+	 */
+	public int getConnections(){
+		return connections.get();
+	}
+	/**
+	 * Requests in progress on this backend (connection to complete response).
+	 */
+	public int getRequests(){
+		return requests.get();
+	}
+	/**
+	 * Peak-EWMA of the response time in µs: follows increases immediately and decays towards newer (and without 
+	 * requests towards 0) with a time constant of 10s. 0 before the first response.
+	 */
+	public double getLatencyEwma(){
+		double value = Double.longBitsToDouble(ewma.get());
+		long elapsed = System.nanoTime() - ewmaStamp;
+		return (elapsed > 0)? value * Math.exp(-elapsed / EWMA_DECAY_NANOS) : value;
+	}
+	/**
+	 * Load for peak-EWMA balancing: response time times requests in progress (+1 for the new one) relative to weight.
+	 */
+	public double getLatencyCost(){
+		double latency = getLatencyEwma();
+		int n = requests.get();
+		if (latency == 0 && n > 0){
+			return (EWMA_PENALTY + n) / weight;
+		}
+		return latency * (n + 1) / weight;
+	}
+
+	/**
+	 * Result of the last active health checks (true if checks are disabled).
+	 */
+	public boolean isHealthy(){
+		return healthy;
+	}
+	/**
+	 * True if the backend was taken out of rotation after too many failed connection attempts.
+	 */
+	public boolean isEjected(){
+		return ejectedUntil != 0;
+	}
+	/**
+	 * Backend should currently receive traffic.
+	 */
+	public boolean isAvailable(){
+		return healthy && ejectedUntil == 0;
+	}
+
+	/**
+	 * Record result of an active probe.
+	 * @param success - probe succeeded
+	 * @param fallThreshold - number of consecutive failed probes before a backend is considered unhealthy
+	 * @return true if health state changed
+	 */
+	boolean recordProbe(boolean success, int fallThreshold){
+		if (success){
+			failedProbes = 0;
+			if (!healthy){
+				healthy = true;
+				return true;
+			}
+		}else if (++failedProbes >= fallThreshold && healthy){
+			healthy = false;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Record a successful connection. Avoids the write if there is nothing to reset.
+	 */
+	void recordSuccess(){
+		if (consecutiveFailures.get() != 0){
+			consecutiveFailures.set(0);
+		}
+	}
+	/**
+	 * Record a failed connection.
+	 * @return number of consecutive failures
+	 */
+	int recordFailure(){
+		return consecutiveFailures.incrementAndGet();
+	}
+
+	void connectionOpened(){
+		connections.incrementAndGet();
+	}
+	void connectionClosed(){
+		connections.decrementAndGet();
+	}
+	
+	void requestStarted(){
+		requests.incrementAndGet();
+	}
+	/**
+	 * Request is complete.
+	 * @param micros - response time or -1 if it should not count (e.g. cancelled)
+	 */
+	void requestFinished(long micros){
+		requests.decrementAndGet();
+		if (micros < 0){
+			return;
+		}
+		long now = System.nanoTime();
+		long bits;
+		double next;
+		do{
+			bits = ewma.get();
+			double value = Double.longBitsToDouble(bits);
+			if (micros > value){
+				next = micros;		//peak: take it immediately
+			}else{
+				double w = Math.exp(-Math.max(0, now - ewmaStamp) / EWMA_DECAY_NANOS);
+				next = value * w + micros * (1 - w);
+			}
+		}while (!ewma.compareAndSet(bits, Double.doubleToRawLongBits(next)));
+		ewmaStamp = now;
+	}
+
+	void eject(long until){
+		ejectedUntil = until;
+	}
+	boolean isEjectionOver(long now){
+		long until = ejectedUntil;
+		return until != 0 && now >= until;
+	}
+	void clearEjection(){
+		consecutiveFailures.set(0);
+		ejectedUntil = 0;
+	}
+
+	@Override
+	public String toString(){
+		return uri + ";weight=" + weight;
+	}
+}
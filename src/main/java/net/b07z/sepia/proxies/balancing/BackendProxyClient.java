@@ -0,0 +1,781 @@
+package net.b07z.sepia.proxies.balancing;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xnio.OptionMap;
+import org.xnio.Xnio;
+import org.xnio.ssl.XnioSsl;
+
+import io.undertow.client.UndertowClient;
+import io.undertow.predicate.IdempotentPredicate;
+import io.undertow.protocols.ssl.UndertowXnioSsl;
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.proxy.LoadBalancingProxyClient;
+import io.undertow.server.handlers.proxy.LoadBalancingProxyClient.HostSelector;
+import io.undertow.server.handlers.proxy.ProxyCallback;
+import io.undertow.server.handlers.proxy.ProxyConnection;
+import io.undertow.util.AttachmentKey;
+import io.undertow.util.Headers;
+import io.undertow.util.Methods;
+import io.undertow.util.StatusCodes;
+import net.b07z.sepia.proxies.metrics.LatencyHistogram;
+import net.b07z.sepia.proxies.websocket.Upgrades;
+
+/**
+ * Load balancing proxy client for a list of weighted backends.<br>
+ * Backends that fail active health checks or too many connection attempts in a row (passive ejection)
+ * are taken out of rotation until they recover. The last available backend is never removed ("fail open").<br>
+ * WebSocket connections are counted per backend until they close, clients for WebSocket routes select by
+ * least connections instead of weighted round-robin. Other routes can select by least requests in progress or
+ * by peak-EWMA response time (see {@link Balancing}), both use per backend counters updated when a request
+ * gets its connection and when it is complete.<br>
+ * With HTTP/2 enabled requests are multiplexed over one connection per backend and IO thread instead of using the
+ * HTTP/1.1 connection pool. 'https' backends are verified with the default trust store of the JVM.<br>
+ * Idempotent requests without body can be retried on another backend after connection errors and 502/503 responses, 
+ * and hedged (sent to a second backend if the first one is slower than the p95 response time). Retries of all 
+ * clients are limited by a shared {@link RetryBudget}.<br>
+ * With circuit breakers enabled each backend has a {@link CircuitBreaker}: backends with an open breaker are skipped,
+ * if no backend of the route lets the request through it fails fast with 503 and 'Retry-After'.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class BackendProxyClient extends LoadBalancingProxyClient {
+
+	private static final Logger logger = LoggerFactory.getLogger(BackendProxyClient.class);
+
+	private static final AttachmentKey<TrackingCallback> SELECTING = AttachmentKey.create(TrackingCallback.class);
+	private static final AttachmentKey<TrackingCallback> UPSTREAM = AttachmentKey.create(TrackingCallback.class);
+	private static final AttachmentKey<Tries> TRIES = AttachmentKey.create(Tries.class);
+
+	private static final long HEDGE_UPDATE_NANOS = 1_000_000_000L;		//recompute the hedge delay at most once per second
+	private static final long HEDGE_MIN_SAMPLES = 20;
+
+	private final Map<URI, Backend> backends;
+	private final List<Backend> inRotation = new ArrayList<>();
+	private final String healthPath;
+	private final Balancing balancing;
+	private final XnioSsl ssl;
+	private final Map<URI, MultiplexedConnections> multiplexed;
+	private final BreakerSelector breakerSelector;
+
+	private int ejectAfterFailures = 3;
+	private long ejectTime = 10000;
+	private boolean closed = false;
+	private volatile Backend[] rotation;
+
+	private volatile int retries = 1;
+	private volatile RetryBudget retryBudget;
+	private volatile boolean hedging = false;
+	private volatile boolean rewriteHost = false;
+	private volatile long hedgeMinDelayNanos = 0;
+	private volatile long hedgeDelayNanos = 0;		//0: not enough samples yet
+	private volatile long hedgeUpdate = System.nanoTime();
+	private final AtomicBoolean hedgeUpdating = new AtomicBoolean();
+	private long[] hedgeCounts = new long[LatencyHistogram.BUCKETS];
+
+	/**
+	 * Create client for given backends.
+	 * @param backends - list of backends, usually from {@link Backend#parseList(String)}
+	 * @param healthPath - path for active HTTP health checks (resolved against backend URI) or null for simple TCP connect check
+	 */
+	public BackendProxyClient(List<Backend> backends, String healthPath){
+		this(indexByUri(backends), healthPath, Balancing.ROUND_ROBIN, false);
+	}
+	/**
+	 * Create client for given backends.
+	 * @param backends - list of backends, usually from {@link Backend#parseList(String)}
+	 * @param healthPath - path for active HTTP health checks (resolved against backend URI) or null for simple TCP connect check
+	 * @param leastConnections - select the backend with the fewest open WebSocket connections (relative to weight) 
+	 * instead of weighted round-robin
+	 */
+	public BackendProxyClient(List<Backend> backends, String healthPath, boolean leastConnections){
+		this(indexByUri(backends), healthPath, leastConnections? Balancing.LEAST_CONNECTIONS : Balancing.ROUND_ROBIN, false);
+	}
+	/**
+	 * Create client for given backends.
+	 * @param backends - list of backends, usually from {@link Backend#parseList(String)}
+	 * @param healthPath - path for active HTTP health checks (resolved against backend URI) or null for simple TCP connect check
+	 * @param leastConnections - select the backend with the fewest open WebSocket connections (relative to weight) 
+	 * instead of weighted round-robin
+	 * @param http2 - multiplex requests over HTTP/2 connections (h2c with prior knowledge or ALPN for 'https' backends)
+	 */
+	public BackendProxyClient(List<Backend> backends, String healthPath, boolean leastConnections, boolean http2){
+		this(indexByUri(backends), healthPath, leastConnections? Balancing.LEAST_CONNECTIONS : Balancing.ROUND_ROBIN, http2);
+	}
+	/**
+	 * Create client for given backends.
+	 * @param backends - list of backends, usually from {@link Backend#parseList(String)}
+	 * @param healthPath - path for active HTTP health checks (resolved against backend URI) or null for simple TCP connect check
+	 * @param balancing - how to select the backend of a request, null for weighted round-robin
+	 * @param http2 - multiplex requests over HTTP/2 connections (h2c with prior knowledge or ALPN for 'https' backends)
+	 */
+	public BackendProxyClient(List<Backend> backends, String healthPath, Balancing balancing, boolean http2){
+		this(indexByUri(backends), healthPath, (balancing != null)? balancing : Balancing.ROUND_ROBIN, http2);
+	}
+	private BackendProxyClient(Map<URI, Backend> backends, String healthPath, Balancing balancing, boolean http2){
+		this(backends, healthPath, balancing, http2, new BreakerSelector(balancing.createSelector(backends), backends));
+	}
+	private BackendProxyClient(Map<URI, Backend> backends, String healthPath, Balancing balancing, boolean http2, BreakerSelector selector){
+		super(UndertowClient.getInstance(), null, selector);
+		this.breakerSelector = selector;
+		this.balancing = balancing;
+		this.backends = backends;
+		this.healthPath = (healthPath == null || healthPath.trim().isEmpty())? null : healthPath.trim();
+		this.ssl = needsSsl(backends.keySet())? createSsl() : null;
+		this.multiplexed = http2? new LinkedHashMap<>() : null;
+		for (Backend b : backends.values()){
+			if (http2){
+				multiplexed.put(b.getUri(), new MultiplexedConnections(b.getUri(), ssl, this::getPooledConnection));
+			}
+			addHost(b.getUri(), ssl);
+			inRotation.add(b);
+		}
+		this.rotation = inRotation.toArray(new Backend[0]);
+	}
+	private static Map<URI, Backend> indexByUri(List<Backend> backends){
+		if (backends == null || backends.isEmpty()){
+			throw new IllegalArgumentException("Missing target server(s)!");
+		}
+		Map<URI, Backend> map = new LinkedHashMap<>();
+		for (Backend b : backends){
+			if (map.put(b.getUri(), b) != null){
+				throw new IllegalArgumentException("Duplicate target server: " + b.getUri());
+			}
+		}
+		return map;
+	}
+	private static boolean needsSsl(Collection<URI> uris){
+		for (URI uri : uris){
+			if ("https".equalsIgnoreCase(uri.getScheme())){
+				return true;
+			}
+		}
+		return false;
+	}
+	private static XnioSsl createSsl(){
+		try{
+			return new UndertowXnioSsl(Xnio.getInstance(), OptionMap.EMPTY, SSLContext.getDefault());
+		}catch (Exception e){
+			throw new RuntimeException("Could not create SSL context for backend connections: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Configure passive ejection.
+	 * @param failures - consecutive failed connection attempts before a backend is ejected (0 to disable)
+	 * @param timeMs - time in ms before an ejected backend gets another chance
+	 */
+	public BackendProxyClient setPassiveEjection(int failures, long timeMs){
+		this.ejectAfterFailures = failures;
+		this.ejectTime = timeMs;
+		return this;
+	}
+
+	/**
+	 * Configure retries. Connection errors are retried for all requests that didn't start sending a body, 502/503 responses
+	 * for idempotent requests without body (bodies are streamed, not buffered, so they can't be sent twice).
+	 * @param retries - max. retries per request, each one on a backend that was not tried yet (0 to disable)
+	 * @param budget - budget shared by all clients or null for no limit
+	 */
+	public BackendProxyClient setRetries(int retries, RetryBudget budget){
+		this.retries = Math.max(0, retries);
+		this.retryBudget = budget;
+		return this;
+	}
+	/**
+	 * Configure hedged requests: GET, HEAD and OPTIONS requests without response after the p95 response time of the
+	 * backends (measured over the last second or more) are sent to a second backend, the first response is used.
+	 * @param enabled - true to send hedged requests (only with 2 or more backends)
+	 * @param minDelayMs - lower bound of the delay
+	 */
+	public BackendProxyClient setHedging(boolean enabled, int minDelayMs){
+		this.hedging = enabled;
+		this.hedgeMinDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, minDelayMs));
+		return this;
+	}
+	/**
+	 * Configure circuit breakers. Backends keep their breaker (and its state) as long as the settings are the same.
+	 * @param settings - settings shared by the breakers of all backends or null to disable them
+	 */
+	public BackendProxyClient setCircuitBreaker(CircuitBreaker.Settings settings){
+		for (Backend b : backends.values()){
+			CircuitBreaker cb = b.getCircuitBreaker();
+			if (settings == null){
+				b.setCircuitBreaker(null);
+			}else if (cb == null || cb.getSettings() != settings){
+				b.setCircuitBreaker(new CircuitBreaker(settings));
+			}
+		}
+		breakerSelector.enabled = (settings != null);
+		return this;
+	}
+	public boolean hasCircuitBreakers(){
+		return breakerSelector.enabled;
+	}
+	/**
+	 * Send host and port of the backend as 'Host' header (also for retries on another backend).
+	 */
+	public BackendProxyClient setRewriteHost(boolean rewriteHost){
+		this.rewriteHost = rewriteHost;
+		return this;
+	}
+	public boolean isRewriteHost(){
+		return rewriteHost;
+	}
+	public int getRetries(){
+		return retries;
+	}
+	public boolean isHedging(){
+		return hedging;
+	}
+
+	public Collection<Backend> getBackends(){
+		return backends.values();
+	}
+	public String getHealthPath(){
+		return healthPath;
+	}
+	/**
+	 * How the backend of a request is selected.
+	 */
+	public Balancing getBalancing(){
+		return balancing;
+	}
+	/**
+	 * True if requests are multiplexed over HTTP/2 connections (else pooled HTTP/1.1 connections).
+	 */
+	public boolean isHttp2(){
+		return multiplexed != null;
+	}
+
+	/**
+	 * Backend with this URI or null.
+	 */
+	Backend getBackend(URI uri){
+		return backends.get(uri);
+	}
+	/**
+	 * Open HTTP/2 connections of a backend (one per IO thread at most), 0 without HTTP/2.
+	 */
+	public int getMultiplexedConnections(Backend b){
+		MultiplexedConnections connections = (multiplexed != null)? multiplexed.get(b.getUri()) : null;
+		return (connections != null)? connections.getOpenConnections() : 0;
+	}
+	/**
+	 * Requests in progress on the HTTP/2 connections of a backend, 0 without HTTP/2.
+	 */
+	public int getMultiplexedStreams(Backend b){
+		MultiplexedConnections connections = (multiplexed != null)? multiplexed.get(b.getUri()) : null;
+		return (connections != null)? connections.getStreams() : 0;
+	}
+
+	@Override
+	protected Host selectHost(HttpServerExchange exchange){
+		Host host = super.selectHost(exchange);
+		Tries tries = exchange.getAttachment(TRIES);
+		if (host != null && tries != null && tries.backends.contains(backends.get(host.getUri()))){
+			//the pool skips hosts it connected to before, HTTP/2 connections don't use it: look for a backend that wasn't tried
+			Host first = host;
+			do{
+				host = super.selectHost(exchange);
+			}while (host != null && host != first && tries.backends.contains(backends.get(host.getUri())));
+			if (host == first){
+				host = null;
+			}
+		}
+		if (host != null){
+			Backend b = backends.get(host.getUri());
+			TrackingCallback t = exchange.getAttachment(SELECTING);
+			if (breakerSelector.enabled && !acquireBreaker(b, t)){
+				return null;
+			}
+			if (t != null){
+				t.backend = b;
+			}
+			if (tries != null){
+				tries.backends.add(b);
+			}
+		}
+		return host;
+	}
+
+	/**
+	 * Ask the circuit breaker of the selected backend for permission, the tracking callback remembers probes and denials.
+	 */
+	private boolean acquireBreaker(Backend b, TrackingCallback t){
+		CircuitBreaker cb = b.getCircuitBreaker();
+		if (cb == null){
+			return true;
+		}
+		if (t != null && t.probe != null){
+			//same attempt selects again (e.g. backend without HTTP/2 support)
+			t.probe.releaseProbe();
+			t.probe = null;
+		}
+		int permit = cb.tryAcquire(System.currentTimeMillis());
+		if (t != null){
+			t.probe = (permit == CircuitBreaker.PROBE)? cb : null;
+			t.breakerDenied = (permit == CircuitBreaker.DENIED)? cb : null;
+		}
+		return permit != CircuitBreaker.DENIED;
+	}
+	
+	/**
+	 * Status that means the backend (or the way to it) failed: 502, 503 and 504 (including timeouts of the proxy).
+	 * Other 5xx answers are errors of the application, not of the backend, and don't count for circuit breakers.
+	 */
+	static boolean isBackendFailure(int status){
+		return status == StatusCodes.BAD_GATEWAY || status == StatusCodes.SERVICE_UNAVAILABLE || status == StatusCodes.GATEWAY_TIME_OUT;
+	}
+	
+	/**
+	 * Record the result of a request in the circuit breaker of the backend and log state changes.
+	 */
+	private static void recordBreaker(Backend b, boolean failed, long micros, CircuitBreaker probe){
+		CircuitBreaker cb = b.getCircuitBreaker();
+		if (cb != probe && probe != null){
+			probe.releaseProbe();		//breaker was replaced meanwhile
+		}
+		if (cb == null){
+			return;
+		}
+		long now = System.currentTimeMillis();
+		CircuitBreaker.State state = cb.record(now, failed, micros, cb == probe);
+		if (state == CircuitBreaker.State.OPEN){
+			if (cb == probe){
+				logger.warn("Circuit breaker of backend " + b.getUri() + " opened again after a failed probe, requests fail fast for " 
+						+ cb.getSettings().getOpenTimeMs() + "ms.");
+			}else{
+				logger.warn("Circuit breaker of backend " + b.getUri() + " opened at " + cb.getErrorRate(now) + "% failed requests, requests fail fast for " 
+						+ cb.getSettings().getOpenTimeMs() + "ms.");
+			}
+		}else if (state == CircuitBreaker.State.CLOSED){
+			logger.warn("Circuit breaker of backend " + b.getUri() + " closed after successful probes.");
+		}
+	}
+	
+	/**
+	 * Host selector of the balancing method that skips backends with open circuit breaker (or no free probe slot) 
+	 * as long as there is another one.
+	 */
+	private static final class BreakerSelector implements HostSelector {
+		private final HostSelector selector;
+		private final Map<URI, Backend> backends;
+		volatile boolean enabled = false;
+		
+		BreakerSelector(HostSelector selector, Map<URI, Backend> backends){
+			this.selector = selector;
+			this.backends = backends;
+		}
+
+		@Override
+		public int selectHost(Host[] availableHosts){
+			int selected = selector.selectHost(availableHosts);
+			if (!enabled){
+				return selected;
+			}
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < availableHosts.length; i++){
+				int next = (selected + i) % availableHosts.length;
+				CircuitBreaker cb = backends.get(availableHosts[next].getUri()).getCircuitBreaker();
+				if (cb == null || cb.isCallPermitted(now)){
+					return next;
+				}
+			}
+			return selected;
+		}
+	}
+
+	@Override
+	public void getConnection(ProxyTarget target, HttpServerExchange exchange, ProxyCallback<ProxyConnection> callback, long timeout, TimeUnit timeUnit){
+		Upgrades.removeH2cUpgrade(exchange);
+		Tries tries = exchange.getAttachment(TRIES);
+		if (tries == null){
+			exchange.putAttachment(TRIES, new Tries());
+			RetryBudget budget = retryBudget;
+			if (budget != null){
+				budget.deposit();
+			}
+		}else if (!tryRetry(exchange)){
+			//retry of the proxy handler after a connection or I/O error
+			callback.couldNotResolveBackend(exchange);
+			return;
+		}
+		connect(target, exchange, new TrackingCallback(callback, null), timeout, timeUnit);
+	}
+	
+	/**
+	 * Get a connection to another backend for a retry or hedged request.
+	 */
+	void connectAttempt(HttpServerExchange exchange, RetryingConnection owner){
+		connect(findTarget(exchange), exchange, new TrackingCallback(null, owner), -1, TimeUnit.MILLISECONDS);
+	}
+	
+	private void connect(ProxyTarget target, HttpServerExchange exchange, TrackingCallback tracking, long timeout, TimeUnit timeUnit){
+		exchange.putAttachment(SELECTING, tracking);
+		try{
+			if (multiplexed != null && !Upgrades.isWebSocket(exchange)){
+				Host host = selectHost(exchange);
+				if (host == null){
+					tracking.couldNotResolveBackend(exchange);
+					return;
+				}
+				MultiplexedConnections connections = multiplexed.get(host.getUri());
+				if (connections.isSupported()){
+					connections.connect(exchange, tracking);
+					return;
+				}
+			}
+			getPooledConnection(target, exchange, tracking, timeout, timeUnit);
+		}finally{
+			exchange.removeAttachment(SELECTING);
+		}
+	}
+	
+	/**
+	 * Attempts of one request.
+	 */
+	private static final class Tries {
+		final List<Backend> backends = new ArrayList<>(2);
+		boolean hedged = false;
+	}
+	
+	/**
+	 * True if a request can be sent again: retries left, a backend that was not tried yet and budget.
+	 */
+	boolean tryRetry(HttpServerExchange exchange){
+		Tries tries = exchange.getAttachment(TRIES);
+		int extra = tries.backends.size() - (tries.hedged? 2 : 1);
+		if (extra >= retries || !hasUntried(tries)){
+			return false;
+		}
+		RetryBudget budget = retryBudget;
+		return budget == null || budget.tryWithdraw(false);
+	}
+	
+	/**
+	 * True if a request can be hedged (once per request).
+	 */
+	boolean tryHedge(HttpServerExchange exchange){
+		Tries tries = exchange.getAttachment(TRIES);
+		if (tries.hedged || !hasUntried(tries)){
+			return false;
+		}
+		RetryBudget budget = retryBudget;
+		if (budget == null || budget.tryWithdraw(true)){
+			tries.hedged = true;
+			return true;
+		}
+		return false;
+	}
+	
+	private boolean hasUntried(Tries tries){
+		for (Backend b : rotation){
+			if (!tries.backends.contains(b)){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Can the request be sent more than once, i.e. is it idempotent and the body (if any) not read yet?
+	 */
+	private boolean isRepeatable(HttpServerExchange exchange){
+		return exchange.isRequestComplete() && !Upgrades.isWebSocket(exchange) && IdempotentPredicate.INSTANCE.resolve(exchange);
+	}
+	private static boolean isSafe(HttpServerExchange exchange){
+		return exchange.getRequestMethod().equals(Methods.GET) || exchange.getRequestMethod().equals(Methods.HEAD) 
+				|| exchange.getRequestMethod().equals(Methods.OPTIONS);
+	}
+	
+	/**
+	 * Delay before a request is hedged: p95 of the response time of all backends since the last update 
+	 * (min. {@link #HEDGE_MIN_SAMPLES} responses) or 0 while there is no estimate.
+	 */
+	long getHedgeDelayNanos(){
+		long now = System.nanoTime();
+		if (now - hedgeUpdate >= 0 && hedgeUpdating.compareAndSet(false, true)){
+			try{
+				long[] counts = new long[LatencyHistogram.BUCKETS];
+				for (Backend b : backends.values()){
+					long[] c = b.getMetrics().getResponseLatency().getCounts();
+					for (int i = 0; i < counts.length; i++){
+						counts[i] += c[i];
+					}
+				}
+				long[] recent = new long[counts.length];
+				long total = 0;
+				for (int i = 0; i < counts.length; i++){
+					recent[i] = counts[i] - hedgeCounts[i];
+					total += recent[i];
+				}
+				if (total >= HEDGE_MIN_SAMPLES){
+					long p95 = TimeUnit.MICROSECONDS.toNanos(LatencyHistogram.valueAtPercentile(recent, 95));
+					hedgeDelayNanos = Math.max(hedgeMinDelayNanos, p95);
+					hedgeCounts = counts;
+				}
+				hedgeUpdate = now + HEDGE_UPDATE_NANOS;
+			}finally{
+				hedgeUpdating.set(false);
+			}
+		}
+		return hedgeDelayNanos;
+	}
+	
+	/**
+	 * Connection from the HTTP/1.1 pool, for backends that don't support HTTP/2.
+	 */
+	private void getPooledConnection(HttpServerExchange exchange, ProxyCallback<ProxyConnection> callback){
+		TrackingCallback tracking = (TrackingCallback) callback;
+		exchange.putAttachment(SELECTING, tracking);
+		try{
+			getPooledConnection(findTarget(exchange), exchange, tracking, -1, TimeUnit.MILLISECONDS);
+		}finally{
+			exchange.removeAttachment(SELECTING);
+		}
+	}
+	private void getPooledConnection(ProxyTarget target, HttpServerExchange exchange, TrackingCallback tracking, long timeout, TimeUnit timeUnit){
+		//same attempt, the pool selects a backend again
+		Tries tries = exchange.getAttachment(TRIES);
+		if (tries != null && tracking.backend != null){
+			tries.backends.remove(tracking.backend);
+		}
+		super.getConnection(target, exchange, tracking, timeout, timeUnit);
+	}
+
+	/**
+	 * Tracks connection results and latency of the selected backend. Connections of repeatable requests are wrapped 
+	 * for retries and hedging.
+	 */
+	class TrackingCallback implements ProxyCallback<ProxyConnection>, ExchangeCompletionListener {
+		private final ProxyCallback<ProxyConnection> callback;
+		private final RetryingConnection owner;		//set for connections of retries and hedged requests
+		private final long started = System.nanoTime();
+		private long connected;
+		private long finished;
+		private Backend backend;		//set by selectHost
+		private CircuitBreaker probe;	//set if the request is a probe of a half-open circuit breaker
+		private CircuitBreaker breakerDenied;	//breaker that denied the last selection
+		private boolean upgrade;
+		private boolean discarded;
+		private boolean failedAttempt;
+
+		TrackingCallback(ProxyCallback<ProxyConnection> callback, RetryingConnection owner){
+			this.callback = callback;
+			this.owner = owner;
+		}
+
+		@Override
+		public void completed(HttpServerExchange exchange, ProxyConnection result){
+			if (backend != null){
+				connected = System.nanoTime();
+				backend.recordSuccess();
+				backend.getMetrics().recordConnect((connected - started) / 1000);
+				backend.requestStarted();
+				if (Upgrades.isWebSocket(exchange)){
+					upgrade = true;
+					backend.connectionOpened();
+				}
+				if (owner == null){
+					exchange.putAttachment(UPSTREAM, this);
+				}
+				exchange.addExchangeCompleteListener(this);
+			}
+			if (owner != null){
+				owner.connected(result, this);
+			}else if ((retries > 0 || hedging) && rotation.length > 1 && isRepeatable(exchange)){
+				callback.completed(exchange, new ProxyConnection(
+						new RetryingConnection(BackendProxyClient.this, exchange, result, this, hedging && isSafe(exchange)), 
+						result.getTargetPath()));
+			}else{
+				callback.completed(exchange, result);
+			}
+		}
+		@Override
+		public void failed(HttpServerExchange exchange){
+			Backend b = backend;
+			if (b != null){
+				b.getMetrics().recordConnectFailure();
+				recordBreaker(b, true, -1, probe);
+				if (ejectAfterFailures > 0 && backends.size() > 1 && b.recordFailure() >= ejectAfterFailures && !b.isEjected()){
+					b.eject(System.currentTimeMillis() + ejectTime);
+					logger.warn("Ejecting backend " + b.getUri() + " for " + ejectTime + "ms after " + ejectAfterFailures + " failed connection attempts.");
+					updateRotation(b);
+				}
+			}
+			if (owner != null){
+				owner.connectFailed();
+			}else{
+				callback.failed(exchange);
+			}
+		}
+		@Override
+		public void queuedRequestFailed(HttpServerExchange exchange){
+			if (backend != null){
+				recordBreaker(backend, true, -1, probe);		//all connections busy for too long
+			}
+			if (owner != null){
+				owner.connectFailed();
+			}else{
+				callback.queuedRequestFailed(exchange);
+			}
+		}
+		@Override
+		public void couldNotResolveBackend(HttpServerExchange exchange){
+			if (probe != null){
+				probe.releaseProbe();
+				probe = null;
+			}
+			if (owner != null){
+				owner.connectFailed();
+			}else{
+				if (breakerDenied != null && !exchange.isResponseStarted()){
+					long seconds = (breakerDenied.getRemainingOpenTime(System.currentTimeMillis()) + 999) / 1000;
+					exchange.getResponseHeaders().put(Headers.RETRY_AFTER, Math.max(1, seconds));
+				}
+				callback.couldNotResolveBackend(exchange);
+			}
+		}
+		
+		/**
+		 * This connection answered a retried or hedged request.
+		 */
+		void select(HttpServerExchange exchange){
+			exchange.putAttachment(UPSTREAM, this);
+		}
+		/**
+		 * This connection was cancelled or lost against another one, don't count it as response.
+		 */
+		void discard(){
+			discarded = true;
+		}
+		/**
+		 * This connection failed or answered with 502/503 and was replaced by another one (counts for the circuit breaker).
+		 */
+		void markFailed(){
+			failedAttempt = true;
+		}
+		
+		@Override
+		public void exchangeEvent(HttpServerExchange exchange, NextListener nextListener){
+			try{
+				finished = System.nanoTime();
+				if (!discarded){
+					backend.getMetrics().recordResponse((finished - connected) / 1000);
+				}
+				backend.requestFinished(discarded? -1 : (finished - connected) / 1000);
+				if (failedAttempt){
+					recordBreaker(backend, true, -1, probe);
+				}else if (!discarded){
+					recordBreaker(backend, isBackendFailure(exchange.getStatusCode()), (finished - connected) / 1000, probe);
+				}else if (probe != null){
+					probe.releaseProbe();
+				}
+				if (upgrade){
+					if (exchange.getAttachment(UPSTREAM) == this){
+						Upgrades.releaseOnClose(exchange, backend::connectionClosed);
+					}else{
+						backend.connectionClosed();		//replaced by a retry with another connection
+					}
+				}
+			}finally{
+				nextListener.proceed();
+			}
+		}
+	}
+
+	/**
+	 * Backend that served the request or null if it was not forwarded (e.g. no connection, cache hit).
+	 */
+	public static Backend getUpstreamBackend(HttpServerExchange exchange){
+		TrackingCallback t = exchange.getAttachment(UPSTREAM);
+		return (t != null)? t.backend : null;
+	}
+	/**
+	 * Time from connection request to complete response of the backend that served the request (so far if not complete)
+	 * or -1 if it was not forwarded.
+	 */
+	public static long getUpstreamNanos(HttpServerExchange exchange){
+		TrackingCallback t = exchange.getAttachment(UPSTREAM);
+		if (t == null){
+			return -1;
+		}
+		return ((t.finished > 0)? t.finished : System.nanoTime()) - t.started;
+	}
+
+	/**
+	 * Restore backends whose ejection time is over. Called periodically by {@link HealthChecker}.
+	 * @param now - current time in ms
+	 */
+	void restoreEjected(long now){
+		for (Backend b : backends.values()){
+			if (b.isEjectionOver(now)){
+				b.clearEjection();
+				logger.warn("Backend " + b.getUri() + " is back in rotation after ejection.");
+				updateRotation(b);
+			}
+		}
+	}
+
+	/**
+	 * Take all backends out of rotation, e.g. after the path was removed. Idle connections are closed right away,
+	 * connections in use are closed when they are returned (HTTP/2: when their last stream is complete).
+	 */
+	public synchronized void close(){
+		closed = true;
+		for (Backend b : inRotation){
+			removeHost(b.getUri());
+		}
+		inRotation.clear();
+		rotation = new Backend[0];
+		if (multiplexed != null){
+			for (MultiplexedConnections connections : multiplexed.values()){
+				connections.close();
+			}
+		}
+	}
+	
+	/**
+	 * Add or remove backend from load balancer according to its current state.
+	 * @param b - backend that changed state
+	 */
+	synchronized void updateRotation(Backend b){
+		if (closed){
+			return;
+		}
+		boolean active = inRotation.contains(b);
+		if (b.isAvailable() && !active){
+			addHost(b.getUri(), ssl);
+			inRotation.add(b);
+			//drop unavailable backends that were only kept to fail open
+			for (Backend other : backends.values()){
+				if (other != b && !other.isAvailable() && inRotation.contains(other)){
+					removeHost(other.getUri());
+					inRotation.remove(other);
+				}
+			}
+		}else if (!b.isAvailable() && active){
+			if (inRotation.size() > 1){
+				removeHost(b.getUri());
+				inRotation.remove(b);
+			}else{
+				logger.error("All backends of " + backends.keySet() + " are unavailable, keeping " + b.getUri() + " in rotation.");
+			}
+		}
+		rotation = inRotation.toArray(new Backend[0]);
+	}
+}
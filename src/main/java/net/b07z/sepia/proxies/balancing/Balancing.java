@@ -0,0 +1,59 @@
+package net.b07z.sepia.proxies.balancing;
+
+import java.net.URI;
+import java.util.Map;
+
+import io.undertow.server.handlers.proxy.LoadBalancingProxyClient.HostSelector;
+
+/**
+ * Strategy to select the backend of a request.
+ *
+ * @author Florian Quirin
+ *
+ */
+public enum Balancing {
+	/**
+	 * Smooth weighted round-robin, the default for requests.
+	 */
+	ROUND_ROBIN,
+	/**
+	 * Fewest open WebSocket connections relative to weight, always used by WebSocket paths.
+	 */
+	LEAST_CONNECTIONS,
+	/**
+	 * Fewest requests in progress relative to weight. Slow backends collect requests in progress and get fewer new ones.
+	 */
+	LEAST_REQUESTS,
+	/**
+	 * Peak-EWMA of the response time times requests in progress (relative to weight), compared for two random backends
+	 * ("power of two choices"). Reacts to latency spikes right away and forgets them within seconds.
+	 */
+	PEAK_EWMA;
+	
+	/**
+	 * Create the host selector of this strategy.
+	 * @param backends - backends by URI
+	 */
+	HostSelector createSelector(Map<URI, Backend> backends){
+		switch (this){
+			case LEAST_CONNECTIONS:
+				return new LeastLoadHostSelector(backends, Backend::getConnections);
+			case LEAST_REQUESTS:
+				return new LeastLoadHostSelector(backends, Backend::getRequests);
+			case PEAK_EWMA:
+				return new PeakEwmaHostSelector(backends);
+			default:
+				return new WeightedHostSelector(backends);
+		}
+	}
+	
+	/**
+	 * Parse "round_robin", "least_requests", "peak_ewma" or "least_connections" (case insensitive), null or empty gives null.
+	 */
+	public static Balancing parse(String value){
+		if (value == null || value.trim().isEmpty()){
+			return null;
+		}
+		return Balancing.valueOf(value.trim().toUpperCase());
+	}
+}
@@ -0,0 +1,285 @@
+package net.b07z.sepia.proxies.balancing;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Circuit breaker of a backend, driven by the share of failed requests (connection errors, 502/503/504 responses and responses
+ * slower than a threshold) in a sliding time window.<br>
+ * CLOSED: all requests pass, the breaker opens if the failure rate reaches the threshold (with min. number of requests).<br>
+ * OPEN: requests fail fast (the proxy answers 503 if no other backend of the route is available) until the open time is over.<br>
+ * HALF_OPEN: a limited number of probe requests pass, if all of them succeed the breaker closes, one failure opens it again.<br>
+ * The window is a ring of 10 buckets, recording a result is one or two atomic increments. The failure rate is only computed
+ * when a failure is recorded.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class CircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * Result of {@link CircuitBreaker#tryAcquire(long)}.
+	 */
+	public static final int DENIED = 0;
+	public static final int PERMITTED = 1;
+	public static final int PROBE = 2;
+
+	private static final int BUCKETS = 10;
+
+	private final Settings settings;
+	private final long bucketMs;
+	private final Bucket[] buckets = new Bucket[BUCKETS];
+
+	private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+	private volatile long openUntil = 0;
+	private final AtomicInteger probesInFlight = new AtomicInteger();
+	private final AtomicInteger probeSuccesses = new AtomicInteger();
+	private final AtomicInteger opened = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Thresholds and times, shared by the breakers of all backends.
+	 */
+	public static final class Settings {
+		final int errorRatePercent;
+		final long slowMicros;
+		final int minRequests;
+		final long windowMs;
+		final long openTimeMs;
+		final int probes;
+
+		/**
+		 * Create settings.
+		 * @param errorRatePercent - failed requests in the window (in %) that open the breaker (1-100)
+		 * @param slowMs - responses slower than this count as failure (0: only errors count)
+		 * @param minRequests - min. requests in the window before the breaker can open
+		 * @param windowMs - length of the sliding window
+		 * @param openTimeMs - time requests fail fast before probes are sent
+		 * @param probes - requests let through in half-open state, all have to succeed to close the breaker
+		 */
+		public Settings(int errorRatePercent, int slowMs, int minRequests, int windowMs, int openTimeMs, int probes){
+			if (errorRatePercent < 1 || errorRatePercent > 100){
+				throw new IllegalArgumentException("Circuit breaker error rate has to be between 1 and 100%, was: " + errorRatePercent);
+			}
+			if (windowMs < BUCKETS || openTimeMs < 1 || probes < 1){
+				throw new IllegalArgumentException("Circuit breaker needs window >= " + BUCKETS + "ms, open time > 0 and probes > 0");
+			}
+			this.errorRatePercent = errorRatePercent;
+			this.slowMicros = Math.max(0, slowMs) * 1000L;
+			this.minRequests = Math.max(1, minRequests);
+			this.windowMs = windowMs;
+			this.openTimeMs = openTimeMs;
+			this.probes = probes;
+		}
+
+		public long getOpenTimeMs(){
+			return openTimeMs;
+		}
+
+		@Override
+		public String toString(){
+			return "error rate: " + errorRatePercent + "%, slow: " + (slowMicros / 1000) + "ms, min. requests: " + minRequests
+					+ ", window: " + windowMs + "ms, open: " + openTimeMs + "ms, probes: " + probes;
+		}
+	}
+
+	/**
+	 * Counts of one time slice of the window.
+	 */
+	private static final class Bucket {
+		volatile long slice = -1;
+		final AtomicInteger requests = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+	}
+
+	/**
+	 * Create breaker (closed).
+	 * @param settings - thresholds and times
+	 */
+	public CircuitBreaker(Settings settings){
+		this.settings = settings;
+		this.bucketMs = settings.windowMs / BUCKETS;
+		for (int i = 0; i < BUCKETS; i++){
+			buckets[i] = new Bucket();
+		}
+	}
+
+	public State getState(){
+		return state.get();
+	}
+	public Settings getSettings(){
+		return settings;
+	}
+	/**
+	 * Time in ms until an open breaker lets probes through (0 if it is not open).
+	 */
+	public long getRemainingOpenTime(long now){
+		return (state.get() == State.OPEN)? Math.max(0, openUntil - now) : 0;
+	}
+	/**
+	 * Number of times the breaker opened (including re-opening after failed probes).
+	 */
+	public int getOpenedCount(){
+		return opened.get();
+	}
+	/**
+	 * Requests denied while the breaker was open or all probe slots were taken.
+	 */
+	public long getRejected(){
+		return rejected.get();
+	}
+	/**
+	 * Failed requests of the current window in % (0 without requests).
+	 */
+	public int getErrorRate(long now){
+		long[] counts = count(now);
+		return (counts[0] == 0)? 0 : (int) (counts[1] * 100 / counts[0]);
+	}
+
+	/**
+	 * True if a request would currently be let through, without taking a probe slot. Used to prefer other backends.
+	 */
+	public boolean isCallPermitted(long now){
+		switch (state.get()){
+			case CLOSED:
+				return true;
+			case OPEN:
+				return now >= openUntil;
+			default:
+				return probesInFlight.get() < settings.probes;
+		}
+	}
+
+	/**
+	 * Ask for permission to send a request. An open breaker whose time is over turns half-open.
+	 * @param now - current time in ms
+	 * @return {@link #DENIED}, {@link #PERMITTED} or {@link #PROBE} (the result of a probe has to be reported with
+	 * 'probe' set, a probe without result has to be released with {@link #releaseProbe()})
+	 */
+	public int tryAcquire(long now){
+		State s = state.get();
+		if (s == State.CLOSED){
+			return PERMITTED;
+		}
+		if (s == State.OPEN && (now < openUntil || !state.compareAndSet(State.OPEN, State.HALF_OPEN)) && state.get() != State.HALF_OPEN){
+			rejected.incrementAndGet();
+			return DENIED;
+		}
+		return acquireProbe();
+	}
+	private int acquireProbe(){
+		int n;
+		do{
+			n = probesInFlight.get();
+			if (n >= settings.probes){
+				rejected.incrementAndGet();
+				return DENIED;
+			}
+		}while (!probesInFlight.compareAndSet(n, n + 1));
+		return PROBE;
+	}
+	/**
+	 * A probe ended without result (e.g. cancelled or replaced by another request).
+	 */
+	public void releaseProbe(){
+		probesInFlight.updateAndGet(n -> Math.max(0, n - 1));
+	}
+
+	/**
+	 * Record the result of a request.
+	 * @param now - current time in ms
+	 * @param failed - connection error or 502/503/504 response
+	 * @param micros - response time or -1 if unknown (connection errors)
+	 * @param probe - the request was let through as probe ({@link #PROBE})
+	 * @return new state if the result changed it, else null
+	 */
+	public State record(long now, boolean failed, long micros, boolean probe){
+		boolean failure = failed || (settings.slowMicros > 0 && micros > settings.slowMicros);
+		Bucket b = bucket(now);
+		b.requests.incrementAndGet();
+		if (failure){
+			b.failures.incrementAndGet();
+		}
+		if (probe){
+			releaseProbe();
+			if (state.get() != State.HALF_OPEN){
+				return null;
+			}
+			if (failure){
+				return open(now, State.HALF_OPEN)? State.OPEN : null;
+			}else if (probeSuccesses.incrementAndGet() >= settings.probes && state.compareAndSet(State.HALF_OPEN, State.CLOSED)){
+				reset();
+				return State.CLOSED;
+			}
+			return null;
+		}
+		if (failure && state.get() == State.CLOSED){
+			long[] counts = count(now);
+			if (counts[0] >= settings.minRequests && counts[1] * 100 >= counts[0] * settings.errorRatePercent){
+				return open(now, State.CLOSED)? State.OPEN : null;
+			}
+		}
+		return null;
+	}
+
+	private boolean open(long now, State from){
+		openUntil = now + settings.openTimeMs;
+		probeSuccesses.set(0);
+		probesInFlight.set(0);		//probes still in flight can't close it anymore
+		if (state.compareAndSet(from, State.OPEN)){
+			opened.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Closed after successful probes: start with an empty window so old failures don't open it again right away.
+	 */
+	private void reset(){
+		for (Bucket b : buckets){
+			b.slice = -1;
+		}
+	}
+
+	private Bucket bucket(long now){
+		long slice = now / bucketMs;
+		Bucket b = buckets[(int) (slice % BUCKETS)];
+		if (b.slice != slice){
+			synchronized (b){
+				if (b.slice != slice){
+					b.requests.set(0);
+					b.failures.set(0);
+					b.slice = slice;
+				}
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * Requests and failures of the window.
+	 */
+	private long[] count(long now){
+		long slice = now / bucketMs;
+		long requests = 0, failures = 0;
+		for (Bucket b : buckets){
+			long s = b.slice;
+			if (s > slice - BUCKETS && s <= slice){
+				requests += b.requests.get();
+				failures += b.failures.get();
+			}
+		}
+		return new long[]{ requests, failures };
+	}
+
+	@Override
+	public String toString(){
+		return state.get().name();
+	}
+}
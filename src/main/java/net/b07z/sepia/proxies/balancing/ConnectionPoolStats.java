@@ -0,0 +1,148 @@
+package net.b07z.sepia.proxies.balancing;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xnio.XnioIoThread;
+
+import io.undertow.server.handlers.proxy.LoadBalancingProxyClient;
+
+/**
+ * Snapshot of the HTTP/1.1 connection pool of a backend over all IO threads: open and idle connections and requests
+ * waiting for a connection.<br>
+ * Undertow keeps these counts per IO thread without getters, so they are read by reflection in one task per IO thread
+ * (the thread that owns them) for all backends at once. The fields are looked up once, if that fails (other Undertow
+ * version) there are no stats. This is for diagnostics (admin API) only, never call it on an IO thread.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class ConnectionPoolStats {
+
+	private static final Logger logger = LoggerFactory.getLogger(ConnectionPoolStats.class);
+
+	private static final long READ_TIMEOUT_MS = 1000;		//for all backends together
+
+	private static Field hostsField;
+	private static Field poolField;
+	private static Field threadDataField;
+	private static Field connectionsField;
+	private static Field availableField;
+	private static Field awaitingField;
+	private static volatile boolean supported;
+	static {
+		try{
+			hostsField = accessible(LoadBalancingProxyClient.class.getDeclaredField("hosts"));
+			poolField = accessible(LoadBalancingProxyClient.Host.class.getDeclaredField("connectionPool"));
+			threadDataField = accessible(poolField.getType().getDeclaredField("hostThreadData"));
+			Class<?> threadData = Class.forName(poolField.getType().getName() + "$HostThreadData");
+			connectionsField = accessible(threadData.getDeclaredField("connections"));
+			availableField = accessible(threadData.getDeclaredField("availableConnections"));
+			awaitingField = accessible(threadData.getDeclaredField("awaitingConnections"));
+			supported = true;
+		}catch (Exception e){
+			logger.warn("Connection pool stats are not available with this Undertow version: " + e);
+			supported = false;
+		}
+	}
+	private static Field accessible(Field f){
+		f.setAccessible(true);
+		return f;
+	}
+
+	private final int open;
+	private final int idle;
+	private final int waiting;
+
+	private ConnectionPoolStats(int open, int idle, int waiting){
+		this.open = open;
+		this.idle = idle;
+		this.waiting = waiting;
+	}
+
+	public int getOpen(){
+		return open;
+	}
+	public int getIdle(){
+		return idle;
+	}
+	/**
+	 * Requests in the queue of the pool, waiting for a free connection.
+	 */
+	public int getWaiting(){
+		return waiting;
+	}
+
+	/**
+	 * Read the pools of all backends in rotation.
+	 * @param clients - proxy clients
+	 * @return snapshot per backend (backends that are not in rotation are missing), empty if the pools can't be read
+	 * or the IO threads didn't answer in time
+	 */
+	public static Map<Backend, ConnectionPoolStats> read(Collection<BackendProxyClient> clients){
+		if (!supported){
+			return Collections.emptyMap();
+		}
+		try{
+			//pool data of each backend grouped by the IO thread that owns it
+			List<Backend> backends = new ArrayList<>();
+			Map<XnioIoThread, List<Object[]>> byThread = new HashMap<>();
+			for (BackendProxyClient client : clients){
+				for (LoadBalancingProxyClient.Host host : (LoadBalancingProxyClient.Host[]) hostsField.get(client)){
+					Backend b = client.getBackend(host.getUri());
+					if (b == null) continue;
+					int index = backends.size();
+					backends.add(b);
+					for (Map.Entry<?, ?> e : ((Map<?, ?>) threadDataField.get(poolField.get(host))).entrySet()){
+						byThread.computeIfAbsent((XnioIoThread) e.getKey(), t -> new ArrayList<>()).add(new Object[]{ index, e.getValue() });
+					}
+				}
+			}
+			AtomicIntegerArray counts = new AtomicIntegerArray(backends.size() * 3);
+			CountDownLatch latch = new CountDownLatch(byThread.size());
+			for (Map.Entry<XnioIoThread, List<Object[]>> e : byThread.entrySet()){
+				List<Object[]> pools = e.getValue();
+				e.getKey().execute(() -> {
+					try{
+						for (Object[] pool : pools){
+							int i = (Integer) pool[0] * 3;
+							counts.addAndGet(i, connectionsField.getInt(pool[1]));
+							counts.addAndGet(i + 1, ((Collection<?>) availableField.get(pool[1])).size());
+							counts.addAndGet(i + 2, ((Collection<?>) awaitingField.get(pool[1])).size());
+						}
+					}catch (IllegalAccessException ex){
+						//made accessible before
+					}finally{
+						latch.countDown();
+					}
+				});
+			}
+			if (!latch.await(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS)){
+				return Collections.emptyMap();
+			}
+			Map<Backend, ConnectionPoolStats> stats = new IdentityHashMap<>();
+			for (int i = 0; i < backends.size(); i++){
+				stats.put(backends.get(i), new ConnectionPoolStats(counts.get(i * 3), counts.get(i * 3 + 1), counts.get(i * 3 + 2)));
+			}
+			return stats;
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			return Collections.emptyMap();
+		}catch (Exception e){
+			supported = false;
+			logger.warn("Could not read connection pools, stats are disabled: " + e);
+			return Collections.emptyMap();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package net.b07z.sepia.proxies.balancing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background task that probes all backends of registered clients and restores passively ejected backends.<br>
+ * Probes run on a single daemon thread so they never touch the IO threads of the proxy.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class HealthChecker {
+
+	private static final Logger logger = LoggerFactory.getLogger(HealthChecker.class);
+
+	private static final int FAIL_THRESHOLD = 2;		//consecutive failed probes before a backend is marked unhealthy
+
+	private final long intervalMs;
+	private final int timeoutMs;
+	private final List<BackendProxyClient> clients = new CopyOnWriteArrayList<>();
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Create health checker.
+	 * @param intervalMs - time between two probes of the same backend
+	 * @param timeoutMs - connect and read timeout of a probe
+	 */
+	public HealthChecker(long intervalMs, int timeoutMs){
+		this.intervalMs = intervalMs;
+		this.timeoutMs = timeoutMs;
+	}
+
+	public void register(BackendProxyClient client){
+		clients.add(client);
+	}
+	public void unregister(BackendProxyClient client){
+		clients.remove(client);
+	}
+
+	/**
+	 * Start periodic checks.
+	 */
+	public synchronized void start(){
+		if (scheduler != null) return;
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "proxy-health-checker");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.scheduleWithFixedDelay(this::checkAll, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop periodic checks.
+	 */
+	public synchronized void stop(){
+		if (scheduler != null){
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Probe all backends once.
+	 */
+	void checkAll(){
+		try{
+			for (BackendProxyClient client : clients){
+				client.restoreEjected(System.currentTimeMillis());
+				for (Backend b : client.getBackends()){
+					boolean ok = probe(b, client.getHealthPath());
+					if (b.recordProbe(ok, FAIL_THRESHOLD)){
+						if (ok){
+							logger.warn("Backend " + b.getUri() + " is healthy again.");
+						}else{
+							logger.error("Backend " + b.getUri() + " failed " + FAIL_THRESHOLD + " health checks.");
+						}
+						client.updateRotation(b);
+					}
+				}
+			}
+		}catch (Exception e){
+			//never let an exception cancel the scheduled task
+			logger.error("Health check failed with error: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Probe a backend via HTTP GET (status below 500 counts as healthy) or TCP connect if there is no health path.
+	 */
+	private boolean probe(Backend b, String healthPath){
+		URI uri = b.getUri();
+		if (healthPath == null){
+			int port = uri.getPort();
+			if (port < 0){
+				port = "https".equalsIgnoreCase(uri.getScheme())? 443 : 80;
+			}
+			try (Socket socket = new Socket()){
+				socket.connect(new InetSocketAddress(uri.getHost(), port), timeoutMs);
+				return true;
+			}catch (IOException e){
+				return false;
+			}
+		}else{
+			HttpURLConnection con = null;
+			try{
+				con = (HttpURLConnection) uri.resolve(healthPath).toURL().openConnection();
+				con.setRequestMethod("GET");
+				con.setConnectTimeout(timeoutMs);
+				con.setReadTimeout(timeoutMs);
+				int code = con.getResponseCode();
+				InputStream is = (code < 400)? con.getInputStream() : con.getErrorStream();
+				if (is != null) is.close();
+				return code < 500;
+			}catch (IOException e){
+				return false;
+			}finally{
+				if (con != null) con.disconnect();
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package net.b07z.sepia.proxies.balancing;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+import io.undertow.server.handlers.proxy.LoadBalancingProxyClient.Host;
+import io.undertow.server.handlers.proxy.LoadBalancingProxyClient.HostSelector;
+
+/**
+ * Host selector that picks the backend with the lowest load relative to its weight. Ties are broken round-robin
+ * so an idle group of backends still gets an even spread.<br>
+ * With open connections as load it is used for long-lived connections (WebSockets): round-robin alone balances
+ * requests, but a backend that was restarted would get far fewer of the long-lived connections than the others
+ * until all clients reconnect. With requests in progress as load a slow backend gets fewer new requests.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class LeastLoadHostSelector implements HostSelector {
+
+	private final Map<URI, Backend> backends;
+	private final ToIntFunction<Backend> load;
+	private final AtomicInteger counter = new AtomicInteger();
+	private volatile Lookup lookup = new Lookup(null, new Backend[0]);
+
+	/**
+	 * Immutable pair of host array and matching backends.
+	 */
+	private static class Lookup {
+		final Host[] hosts;
+		final Backend[] backends;
+
+		Lookup(Host[] hosts, Backend[] backends){
+			this.hosts = hosts;
+			this.backends = backends;
+		}
+	}
+
+	/**
+	 * Create selector.
+	 * @param backends - backends by URI, used to look up weight and load of each host
+	 * @param load - current load of a backend, e.g. {@link Backend#getConnections()} or {@link Backend#getRequests()}
+	 */
+	public LeastLoadHostSelector(Map<URI, Backend> backends, ToIntFunction<Backend> load){
+		this.backends = backends;
+		this.load = load;
+	}
+
+	@Override
+	public int selectHost(Host[] availableHosts){
+		Lookup l = lookup;
+		if (l.hosts != availableHosts){
+			Backend[] b = new Backend[availableHosts.length];
+			for (int i = 0; i < b.length; i++){
+				b[i] = backends.get(availableHosts[i].getUri());
+			}
+			l = new Lookup(availableHosts, b);
+			lookup = l;
+		}
+		int n = availableHosts.length;
+		int start = (counter.getAndIncrement() & Integer.MAX_VALUE) % n;
+		int best = start;
+		long bestLoad = load(l.backends[start]);
+		long bestWeight = weight(l.backends[start]);
+		for (int k = 1; k < n; k++){
+			int i = (start + k) % n;
+			long c = load(l.backends[i]);
+			long w = weight(l.backends[i]);
+			//c/w < bestLoad/bestWeight
+			if (c * bestWeight < bestLoad * w){
+				best = i;
+				bestLoad = c;
+				bestWeight = w;
+			}
+		}
+		return best;
+	}
+
+	private long load(Backend b){
+		return (b != null)? load.applyAsInt(b) : 0;
+	}
+	private static long weight(Backend b){
+		return (b != null)? b.getWeight() : Backend.DEFAULT_WEIGHT;
+	}
+}
@@ -0,0 +1,363 @@
+package net.b07z.sepia.proxies.balancing;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xnio.ChannelListener;
+import org.xnio.IoUtils;
+import org.xnio.Option;
+import org.xnio.OptionMap;
+import org.xnio.StreamConnection;
+import org.xnio.XnioIoThread;
+import org.xnio.XnioWorker;
+import org.xnio.ssl.XnioSsl;
+
+import io.undertow.UndertowOptions;
+import io.undertow.client.ClientCallback;
+import io.undertow.client.ClientConnection;
+import io.undertow.client.ClientExchange;
+import io.undertow.client.ClientRequest;
+import io.undertow.client.ClientStatistics;
+import io.undertow.client.UndertowClient;
+import io.undertow.connector.ByteBufferPool;
+import io.undertow.protocols.http2.Http2Channel;
+import io.undertow.protocols.http2.Http2StreamSinkChannel;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.proxy.ProxyCallback;
+import io.undertow.server.handlers.proxy.ProxyConnection;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+import net.b07z.sepia.proxies.websocket.Upgrades;
+
+/**
+ * HTTP/2 connections to one backend: all requests of an IO thread share a single connection as concurrent streams,
+ * so the number of upstream connections is (IO threads x backends) no matter how many requests are in flight.<br>
+ * 'http' targets use h2c with prior knowledge (the backend has to accept HTTP/2 without upgrade), 'https' targets
+ * negotiate 'h2' via ALPN. If an 'https' backend only offers HTTP/1.1 its requests go to the regular connection pool.
+ *
+ * @author Florian Quirin
+ *
+ */
+final class MultiplexedConnections {
+
+	private static final Logger logger = LoggerFactory.getLogger(MultiplexedConnections.class);
+
+	private static final OptionMap OPTIONS = OptionMap.builder()
+			.set(UndertowOptions.ENABLE_HTTP2, true)
+			.set(UndertowOptions.HTTP2_SETTINGS_ENABLE_PUSH, false)
+			.getMap();
+
+	private static final HttpString PROXY_CONNECTION = new HttpString("Proxy-Connection");
+
+	private final URI uri;
+	private final URI connectUri;
+	private final String targetPath;
+	private final XnioSsl ssl;
+	private final BiConsumer<HttpServerExchange, ProxyCallback<ProxyConnection>> fallback;
+	private final ConcurrentMap<XnioIoThread, ThreadData> threads = new ConcurrentHashMap<>();
+
+	private volatile boolean supported = true;
+	private volatile boolean closed = false;
+
+	/**
+	 * Create (lazy) connections for a backend.
+	 * @param uri - backend URI ('http' or 'https')
+	 * @param ssl - SSL for 'https' backends
+	 * @param fallback - gets the requests if the backend turns out to support HTTP/1.1 only
+	 */
+	MultiplexedConnections(URI uri, XnioSsl ssl, BiConsumer<HttpServerExchange, ProxyCallback<ProxyConnection>> fallback){
+		this.uri = uri;
+		this.ssl = ssl;
+		this.fallback = fallback;
+		this.targetPath = (uri.getPath() == null || uri.getPath().isEmpty())? "/" : uri.getPath();
+		if ("http".equalsIgnoreCase(uri.getScheme())){
+			this.connectUri = URI.create("h2c-prior" + uri.toString().substring(uri.getScheme().length()));
+		}else if ("https".equalsIgnoreCase(uri.getScheme())){
+			this.connectUri = uri;
+		}else{
+			throw new IllegalArgumentException("HTTP/2 requires an 'http' or 'https' backend, was: " + uri);
+		}
+	}
+
+	/**
+	 * False if the backend did not negotiate HTTP/2, requests should use the regular connection pool.
+	 */
+	boolean isSupported(){
+		return supported;
+	}
+
+	/**
+	 * Get a stream on the connection of the current IO thread, connect first if there is none.
+	 * Has to be called on the IO thread of the exchange.
+	 */
+	void connect(HttpServerExchange exchange, ProxyCallback<ProxyConnection> callback){
+		ThreadData data = threads.computeIfAbsent(exchange.getIoThread(), ThreadData::new);
+		ClientConnection connection = data.connection;
+		if (connection != null && connection.isOpen()){
+			data.open(connection, exchange, callback);
+		}else{
+			data.waiting.add(new Waiter(exchange, callback));
+			if (data.waiting.size() == 1){
+				data.connect(exchange.getConnection().getByteBufferPool());
+			}
+		}
+	}
+
+	/**
+	 * IO threads with an open connection to the backend (read from another thread, for diagnostics only).
+	 */
+	int getOpenConnections(){
+		int n = 0;
+		for (ThreadData data : threads.values()){
+			ClientConnection connection = data.connection;
+			if (connection != null && connection.isOpen()){
+				n++;
+			}
+		}
+		return n;
+	}
+	/**
+	 * Streams (requests) in progress on all connections.
+	 */
+	int getStreams(){
+		int n = 0;
+		for (ThreadData data : threads.values()){
+			n += data.streams.get();
+		}
+		return n;
+	}
+
+	/**
+	 * Close all connections as soon as their streams are complete.
+	 */
+	void close(){
+		closed = true;
+		for (ThreadData data : threads.values()){
+			data.thread.execute(data::closeIfIdle);
+		}
+	}
+
+	private static final class Waiter {
+		final HttpServerExchange exchange;
+		final ProxyCallback<ProxyConnection> callback;
+
+		Waiter(HttpServerExchange exchange, ProxyCallback<ProxyConnection> callback){
+			this.exchange = exchange;
+			this.callback = callback;
+		}
+	}
+
+	/**
+	 * Connection of one IO thread - only used on that thread, except the stream count.
+	 */
+	private final class ThreadData {
+		final XnioIoThread thread;
+		final ArrayDeque<Waiter> waiting = new ArrayDeque<>();
+		final AtomicInteger streams = new AtomicInteger();
+		ClientConnection connection;
+
+		ThreadData(XnioIoThread thread){
+			this.thread = thread;
+		}
+
+		void connect(ByteBufferPool bufferPool){
+			UndertowClient.getInstance().connect(new ClientCallback<ClientConnection>(){
+				@Override
+				public void completed(ClientConnection result){
+					if (!result.isMultiplexingSupported()){
+						if (supported){
+							supported = false;
+							logger.warn("Backend " + uri + " did not negotiate HTTP/2, using HTTP/1.1 connection pool.");
+						}
+						IoUtils.safeClose(result);
+						for (Waiter w = waiting.poll(); w != null; w = waiting.poll()){
+							fallback.accept(w.exchange, w.callback);
+						}
+						return;
+					}
+					connection = result;
+					result.addCloseListener((c) -> {
+						if (connection == c){
+							connection = null;
+						}
+					});
+					for (Waiter w = waiting.poll(); w != null; w = waiting.poll()){
+						if (!w.exchange.isResponseStarted()){
+							open(result, w.exchange, w.callback);
+						}
+					}
+				}
+				@Override
+				public void failed(IOException e){
+					logger.debug("HTTP/2 connection to " + uri + " failed: " + e.getMessage());
+					for (Waiter w = waiting.poll(); w != null; w = waiting.poll()){
+						if (!w.exchange.isResponseStarted()){
+							w.callback.failed(w.exchange);
+						}
+					}
+				}
+			}, null, connectUri, thread, ssl, bufferPool, OPTIONS);
+		}
+
+		void open(ClientConnection connection, HttpServerExchange exchange, ProxyCallback<ProxyConnection> callback){
+			streams.incrementAndGet();
+			exchange.addExchangeCompleteListener((ex, nextListener) -> {
+				if (streams.decrementAndGet() == 0 && closed){
+					thread.execute(this::closeIfIdle);
+				}
+				nextListener.proceed();
+			});
+			callback.completed(exchange, new ProxyConnection(new Stream(connection), targetPath));
+		}
+
+		void closeIfIdle(){
+			if (streams.get() == 0 && connection != null){
+				IoUtils.safeClose(connection);
+				connection = null;
+			}
+		}
+	}
+
+	/**
+	 * View of the shared connection for one request. Closing it (e.g. after a timeout or transfer error) only
+	 * resets the stream of this request, other requests on the connection continue.
+	 */
+	private static final class Stream implements ClientConnection {
+		private final ClientConnection connection;
+		private ClientExchange exchange;
+
+		Stream(ClientConnection connection){
+			this.connection = connection;
+		}
+
+		@Override
+		public void sendRequest(ClientRequest request, ClientCallback<ClientExchange> clientCallback){
+			//connection-specific headers are not allowed in HTTP/2 (RFC 9113 8.2.2), WebSockets never get here
+			HeaderMap headers = request.getRequestHeaders();
+			headers.remove(Headers.UPGRADE);
+			headers.remove(Upgrades.HTTP2_SETTINGS);
+			headers.remove(PROXY_CONNECTION);
+			String te = headers.getFirst(Headers.TE);
+			if (te != null && !"trailers".equalsIgnoreCase(te.trim())){
+				headers.remove(Headers.TE);
+			}
+			connection.sendRequest(request, new ClientCallback<ClientExchange>(){
+				@Override
+				public void completed(ClientExchange result){
+					exchange = result;
+					clientCallback.completed(result);
+				}
+				@Override
+				public void failed(IOException e){
+					clientCallback.failed(e);
+				}
+			});
+		}
+
+		@Override
+		public void close() throws IOException {
+			ClientExchange ex = exchange;
+			if (ex != null && ex.getRequestChannel() instanceof Http2StreamSinkChannel){
+				Http2StreamSinkChannel stream = (Http2StreamSinkChannel) ex.getRequestChannel();
+				if (stream.getChannel().isOpen()){
+					stream.getChannel().sendRstStream(stream.getStreamId(), Http2Channel.ERROR_CANCEL);
+				}
+			}
+		}
+
+		@Override
+		public StreamConnection performUpgrade() throws IOException {
+			throw new IOException("Upgrade not supported on a shared HTTP/2 connection");
+		}
+		@Override
+		public ByteBufferPool getBufferPool(){
+			return connection.getBufferPool();
+		}
+		@Override
+		public SocketAddress getPeerAddress(){
+			return connection.getPeerAddress();
+		}
+		@Override
+		public <A extends SocketAddress> A getPeerAddress(Class<A> type){
+			return connection.getPeerAddress(type);
+		}
+		@Override
+		public ChannelListener.Setter<? extends ClientConnection> getCloseSetter(){
+			return connection.getCloseSetter();
+		}
+		@Override
+		public SocketAddress getLocalAddress(){
+			return connection.getLocalAddress();
+		}
+		@Override
+		public <A extends SocketAddress> A getLocalAddress(Class<A> type){
+			return connection.getLocalAddress(type);
+		}
+		@Override
+		public XnioWorker getWorker(){
+			return connection.getWorker();
+		}
+		@Override
+		public XnioIoThread getIoThread(){
+			return connection.getIoThread();
+		}
+		@Override
+		public boolean isOpen(){
+			return connection.isOpen();
+		}
+		@Override
+		public boolean supportsOption(Option<?> option){
+			return connection.supportsOption(option);
+		}
+		@Override
+		public <T> T getOption(Option<T> option) throws IOException {
+			return connection.getOption(option);
+		}
+		@Override
+		public <T> T setOption(Option<T> option, T value) throws IllegalArgumentException, IOException {
+			return connection.setOption(option, value);
+		}
+		@Override
+		public boolean isUpgraded(){
+			return false;
+		}
+		@Override
+		public boolean isPushSupported(){
+			return false;		//push is disabled in the connection settings
+		}
+		@Override
+		public boolean isMultiplexingSupported(){
+			return true;
+		}
+		@Override
+		public ClientStatistics getStatistics(){
+			return connection.getStatistics();
+		}
+		@Override
+		public boolean isUpgradeSupported(){
+			return false;
+		}
+		@Override
+		public void addCloseListener(ChannelListener<ClientConnection> listener){
+			connection.addCloseListener(listener);
+		}
+		@Override
+		public boolean isPingSupported(){
+			return connection.isPingSupported();
+		}
+		@Override
+		public void sendPing(PingListener listener, long timeout, TimeUnit timeUnit){
+			connection.sendPing(listener, timeout, timeUnit);
+		}
+	}
+}
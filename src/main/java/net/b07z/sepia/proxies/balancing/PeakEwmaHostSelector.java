@@ -0,0 +1,72 @@
+package net.b07z.sepia.proxies.balancing;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import io.undertow.server.handlers.proxy.LoadBalancingProxyClient.Host;
+import io.undertow.server.handlers.proxy.LoadBalancingProxyClient.HostSelector;
+
+/**
+ * Host selector that compares the peak-EWMA cost ({@link Backend#getLatencyCost()}) of two randomly chosen backends
+ * and picks the cheaper one ("power of two choices").<br>
+ * Comparing two instead of all backends keeps the selection O(1) and avoids that all IO threads send their requests
+ * to the same backend that looked best a moment ago.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class PeakEwmaHostSelector implements HostSelector {
+
+	private final Map<URI, Backend> backends;
+	private volatile Lookup lookup = new Lookup(null, new Backend[0]);
+
+	/**
+	 * Immutable pair of host array and matching backends.
+	 */
+	private static class Lookup {
+		final Host[] hosts;
+		final Backend[] backends;
+
+		Lookup(Host[] hosts, Backend[] backends){
+			this.hosts = hosts;
+			this.backends = backends;
+		}
+	}
+
+	/**
+	 * Create selector.
+	 * @param backends - backends by URI, used to look up weight, latency and requests in progress of each host
+	 */
+	public PeakEwmaHostSelector(Map<URI, Backend> backends){
+		this.backends = backends;
+	}
+
+	@Override
+	public int selectHost(Host[] availableHosts){
+		Lookup l = lookup;
+		if (l.hosts != availableHosts){
+			Backend[] b = new Backend[availableHosts.length];
+			for (int i = 0; i < b.length; i++){
+				b[i] = backends.get(availableHosts[i].getUri());
+			}
+			l = new Lookup(availableHosts, b);
+			lookup = l;
+		}
+		int n = availableHosts.length;
+		if (n == 1){
+			return 0;
+		}
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int a = random.nextInt(n);
+		int b = random.nextInt(n - 1);
+		if (b >= a){
+			b++;		//two different backends
+		}
+		return (cost(l.backends[b]) < cost(l.backends[a]))? b : a;
+	}
+
+	private static double cost(Backend b){
+		return (b != null)? b.getLatencyCost() : 0;
+	}
+}
@@ -0,0 +1,99 @@
+package net.b07z.sepia.proxies.balancing;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Budget for retries and hedged requests of all routes, so they can't multiply the load when backends are down.<br>
+ * Every forwarded request deposits a fraction of a token, every retry takes a whole one. A small reserve refills
+ * with time so there are retries for routes with little traffic. Unused credit is capped at 10 seconds of the reserve.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class RetryBudget {
+
+	private static final long TOKEN = 1000;		//balance is kept in 1/1000 tokens
+
+	private final long deposit;
+	private final long reservePerSec;
+	private final long cap;
+	private final AtomicLong balance;
+	private final AtomicLong lastRefill = new AtomicLong(System.nanoTime());
+
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder hedges = new LongAdder();
+	private final LongAdder exhausted = new LongAdder();
+
+	/**
+	 * Create budget.
+	 * @param ratio - retries per forwarded request, e.g. 0.2 for max. 20% extra requests
+	 * @param minPerSec - retries per second that are always possible
+	 */
+	public RetryBudget(double ratio, int minPerSec){
+		this.deposit = Math.max(0, Math.round(ratio * TOKEN));
+		this.reservePerSec = Math.max(0, minPerSec) * TOKEN;
+		this.cap = Math.max(TOKEN, reservePerSec * 10);
+		this.balance = new AtomicLong(cap);
+	}
+
+	/**
+	 * Record a forwarded request.
+	 */
+	public void deposit(){
+		if (deposit > 0 && balance.get() < cap){
+			balance.addAndGet(deposit);
+		}
+	}
+
+	/**
+	 * Take a token for a retry or hedged request.
+	 * @param hedge - true for a hedged request (for statistics)
+	 * @return false if the budget is exhausted
+	 */
+	public boolean tryWithdraw(boolean hedge){
+		refill();
+		for (;;){
+			long b = balance.get();
+			if (b < TOKEN){
+				exhausted.increment();
+				return false;
+			}
+			if (balance.compareAndSet(b, Math.min(b, cap) - TOKEN)){
+				(hedge? hedges : retries).increment();
+				return true;
+			}
+		}
+	}
+
+	private void refill(){
+		if (reservePerSec == 0){
+			return;
+		}
+		long now = System.nanoTime();
+		long last = lastRefill.get();
+		long add = Math.min(now - last, 10_000_000_000L) * reservePerSec / 1_000_000_000L;		//more than 10s is capped anyway
+		if (add > 0 && lastRefill.compareAndSet(last, now)){
+			balance.accumulateAndGet(add, (b, a) -> Math.max(b, Math.min(cap, b + a)));
+		}
+	}
+
+	/**
+	 * Retries after failed connections, I/O errors or 502/503 responses.
+	 */
+	public long getRetries(){
+		return retries.sum();
+	}
+	/**
+	 * Hedged requests, i.e. second requests sent while the first one was still waiting for a response.
+	 */
+	public long getHedges(){
+		return hedges.sum();
+	}
+	/**
+	 * Retries and hedged requests that were not sent because the budget was exhausted.
+	 */
+	public long getExhausted(){
+		return exhausted.sum();
+	}
+}
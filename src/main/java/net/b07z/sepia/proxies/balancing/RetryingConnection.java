@@ -0,0 +1,480 @@
+package net.b07z.sepia.proxies.balancing;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.xnio.ChannelListener;
+import org.xnio.ChannelListeners;
+import org.xnio.IoUtils;
+import org.xnio.Option;
+import org.xnio.StreamConnection;
+import org.xnio.XnioExecutor;
+import org.xnio.XnioIoThread;
+import org.xnio.XnioWorker;
+import org.xnio.channels.StreamSinkChannel;
+import org.xnio.channels.StreamSourceChannel;
+
+import io.undertow.client.ClientCallback;
+import io.undertow.client.ClientConnection;
+import io.undertow.client.ClientExchange;
+import io.undertow.client.ClientRequest;
+import io.undertow.client.ClientResponse;
+import io.undertow.client.ClientStatistics;
+import io.undertow.client.ContinueNotification;
+import io.undertow.client.PushCallback;
+import io.undertow.connector.ByteBufferPool;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.proxy.ProxyConnection;
+import io.undertow.util.AbstractAttachable;
+import io.undertow.util.AttachmentKey;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+import io.undertow.util.StatusCodes;
+
+/**
+ * Backend connection for one idempotent request without body that can be sent more than once: if the backend
+ * answers with 502/503 or the connection fails, the request goes to another backend of the route before anything
+ * reaches the client. With hedging a second request is sent when the first one takes longer than the usual (p95)
+ * response time, the first response wins and the other request is cancelled.<br>
+ * The proxy handler sees a single connection and exchange. All callbacks and timers run on the IO thread of the exchange.
+ *
+ * @author Florian Quirin
+ *
+ */
+final class RetryingConnection extends AbstractAttachable implements ClientConnection, ClientExchange {
+
+	private final BackendProxyClient client;
+	private final HttpServerExchange exchange;
+	private final boolean hedging;
+	private final List<Attempt> attempts = new ArrayList<>(2);
+
+	private ClientRequest request;
+	private ClientCallback<ClientExchange> sendCallback;
+	private ClientCallback<ClientExchange> responseListener;
+	private ContinueNotification continueHandler;
+	private Attempt sent;			//attempt whose request channel was handed to the proxy handler
+	private Attempt winner;
+	private XnioExecutor.Key hedgeTimer;
+	private IOException lastError;
+	private boolean closed = false;
+
+	/**
+	 * Wrap the first connection of a request.
+	 * @param client - client of the route that provides connections to other backends
+	 * @param exchange - request to forward
+	 * @param first - connection to the first backend
+	 * @param tracking - upstream tracking of the first connection
+	 * @param hedging - send a second request if the first one is slow
+	 */
+	RetryingConnection(BackendProxyClient client, HttpServerExchange exchange, ProxyConnection first,
+			BackendProxyClient.TrackingCallback tracking, boolean hedging){
+		this.client = client;
+		this.exchange = exchange;
+		this.hedging = hedging;
+		attempts.add(new Attempt(first, tracking));
+	}
+
+	@Override
+	public void sendRequest(ClientRequest request, ClientCallback<ClientExchange> clientCallback){
+		this.request = request;
+		this.sendCallback = clientCallback;
+		attempts.get(0).send();
+		if (hedging){
+			long delay = client.getHedgeDelayNanos();
+			if (delay > 0){
+				hedgeTimer = exchange.getIoThread().executeAfter(this::hedge, delay, TimeUnit.NANOSECONDS);
+			}
+		}
+	}
+
+	private void hedge(){
+		hedgeTimer = null;
+		if (winner == null && !closed && active() == 1 && client.tryHedge(exchange)){
+			nextAttempt();
+		}
+	}
+
+	/**
+	 * Get a connection to another backend and send the request again.
+	 */
+	private void nextAttempt(){
+		client.connectAttempt(exchange, this);
+	}
+
+	/**
+	 * Connection for the next attempt is ready (called by the client).
+	 */
+	void connected(ProxyConnection connection, BackendProxyClient.TrackingCallback tracking){
+		Attempt a = new Attempt(connection, tracking);
+		attempts.add(a);
+		if (winner != null || closed){
+			a.discarded = true;		//nothing sent, the connection goes back to the pool with the exchange
+			tracking.discard();
+		}else{
+			a.send();
+		}
+	}
+
+	/**
+	 * No connection for the next attempt (called by the client).
+	 */
+	void connectFailed(){
+		if (lastError == null){
+			lastError = new IOException("No backend available for retry of " + exchange.getRequestURI());
+		}
+		giveUpIfDone();
+	}
+
+	private int active(){
+		int n = 0;
+		for (Attempt a : attempts){
+			if (!a.discarded) n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Report the failure to the proxy handler if no attempt is left.
+	 */
+	private void giveUpIfDone(){
+		if (winner != null || closed || active() > 0){
+			return;
+		}
+		cancelHedge();
+		IOException e = (lastError != null)? lastError : new IOException("Request to backend failed");
+		if (sent == null){
+			sendCallback.failed(e);
+		}else if (responseListener != null){
+			responseListener.failed(e);
+		}
+	}
+
+	private void win(Attempt a){
+		winner = a;
+		cancelHedge();
+		for (Attempt other : attempts){
+			if (other != a){
+				other.discard();
+			}
+		}
+		a.tracking.select(exchange);
+		if (responseListener != null){
+			responseListener.completed(this);
+		}
+	}
+
+	private void cancelHedge(){
+		if (hedgeTimer != null){
+			hedgeTimer.remove();
+			hedgeTimer = null;
+		}
+	}
+
+	/**
+	 * One request to one backend.
+	 */
+	private final class Attempt implements ClientCallback<ClientExchange> {
+		final ProxyConnection connection;
+		final BackendProxyClient.TrackingCallback tracking;
+		ClientExchange clientExchange;
+		boolean discarded = false;
+
+		Attempt(ProxyConnection connection, BackendProxyClient.TrackingCallback tracking){
+			this.connection = connection;
+			this.tracking = tracking;
+		}
+
+		void send(){
+			connection.getConnection().sendRequest(copyRequest(connection), new ClientCallback<ClientExchange>(){
+				@Override
+				public void completed(ClientExchange result){
+					clientExchange = result;
+					if (discarded){
+						IoUtils.safeClose(connection.getConnection());
+						return;
+					}
+					result.setResponseListener(Attempt.this);
+					if (sent == null){
+						//the proxy handler finishes the request on this channel and registers its listeners
+						sent = Attempt.this;
+						if (continueHandler != null){
+							result.setContinueHandler(continueHandler);
+						}
+						sendCallback.completed(RetryingConnection.this);
+					}else{
+						finishRequest(result.getRequestChannel());
+					}
+				}
+				@Override
+				public void failed(IOException e){
+					Attempt.this.failed(e);
+				}
+			});
+		}
+
+		@Override
+		public void completed(ClientExchange result){
+			if (discarded){
+				return;
+			}
+			int status = result.getResponse().getResponseCode();
+			if (status == StatusCodes.BAD_GATEWAY || status == StatusCodes.SERVICE_UNAVAILABLE){
+				tracking.markFailed();
+				if (active() > 1){
+					discard();		//the other attempt is still running
+					return;
+				}else if (client.tryRetry(exchange)){
+					discard();
+					nextAttempt();
+					return;
+				}
+			}
+			win(this);
+		}
+
+		@Override
+		public void failed(IOException e){
+			if (discarded){
+				return;
+			}
+			lastError = e;
+			tracking.markFailed();
+			discard();
+			if (winner == null && !closed && active() == 0 && client.tryRetry(exchange)){
+				nextAttempt();
+			}else{
+				giveUpIfDone();
+			}
+		}
+
+		void discard(){
+			if (!discarded){
+				discarded = true;
+				tracking.discard();
+				IoUtils.safeClose(connection.getConnection());		//resets the stream on shared HTTP/2 connections
+			}
+		}
+	}
+
+	/**
+	 * Copy of the request for the target path of a backend (backends of a route can have different paths).
+	 */
+	private ClientRequest copyRequest(ProxyConnection connection){
+		if (sent == null && attempts.size() == 1){
+			return request;
+		}
+		ClientRequest copy = new ClientRequest().setMethod(request.getMethod()).setPath(targetUri(connection.getTargetPath()));
+		for (HeaderValues values : request.getRequestHeaders()){
+			copy.getRequestHeaders().putAll(values.getHeaderName(), values);
+		}
+		if (client.isRewriteHost()){
+			//same as the proxy handler does it for the first backend
+			InetSocketAddress target = connection.getConnection().getPeerAddress(InetSocketAddress.class);
+			copy.getRequestHeaders().put(Headers.HOST, target.getHostString() + ":" + target.getPort());
+		}
+		return copy;
+	}
+
+	/**
+	 * Request URI for a backend path, built the same way as the proxy handler does it.
+	 */
+	private String targetUri(String targetPath){
+		String uri = exchange.getRequestURI();
+		if (exchange.isHostIncludedInRequestURI()){
+			int i = uri.indexOf("//");
+			if (i != -1){
+				i = uri.indexOf("/", i + 2);
+				if (i != -1){
+					uri = uri.substring(i);
+				}
+			}
+		}
+		if (!exchange.getResolvedPath().isEmpty() && uri.startsWith(exchange.getResolvedPath())){
+			uri = uri.substring(exchange.getResolvedPath().length());
+		}
+		StringBuilder sb = new StringBuilder();
+		if (!targetPath.isEmpty() && (!targetPath.equals("/") || uri.isEmpty())){
+			sb.append(targetPath);
+		}
+		sb.append(uri);
+		String qs = exchange.getQueryString();
+		if (qs != null && !qs.isEmpty()){
+			sb.append('?').append(qs);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * End a request without body on an attempt the proxy handler doesn't know about.
+	 */
+	private static void finishRequest(StreamSinkChannel channel){
+		try{
+			channel.shutdownWrites();
+			if (!channel.flush()){
+				channel.getWriteSetter().set(ChannelListeners.flushingChannelListener((c) -> {
+					c.suspendWrites();
+					c.getWriteSetter().set(null);
+				}, ChannelListeners.closingChannelExceptionHandler()));
+				channel.resumeWrites();
+			}
+		}catch (IOException e){
+			IoUtils.safeClose(channel);
+		}
+	}
+
+	private Attempt current(){
+		return (winner != null)? winner : (sent != null)? sent : attempts.get(0);
+	}
+	private ClientConnection currentConnection(){
+		return current().connection.getConnection();
+	}
+
+	//ClientExchange - the proxy handler sees the request channel of the first sent attempt and the response of the winner
+
+	@Override
+	public void setResponseListener(ClientCallback<ClientExchange> responseListener){
+		this.responseListener = responseListener;
+		if (winner != null){
+			responseListener.completed(this);
+		}
+	}
+	@Override
+	public void setContinueHandler(ContinueNotification continueHandler){
+		this.continueHandler = continueHandler;
+		if (sent != null && sent.clientExchange != null){
+			sent.clientExchange.setContinueHandler(continueHandler);
+		}
+	}
+	@Override
+	public void setPushHandler(PushCallback pushCallback){
+		//push is not forwarded (see isPushSupported)
+	}
+	@Override
+	public StreamSinkChannel getRequestChannel(){
+		return sent.clientExchange.getRequestChannel();
+	}
+	@Override
+	public StreamSourceChannel getResponseChannel(){
+		return winner.clientExchange.getResponseChannel();
+	}
+	@Override
+	public ClientRequest getRequest(){
+		return request;
+	}
+	@Override
+	public ClientResponse getResponse(){
+		return (winner != null)? winner.clientExchange.getResponse() : null;
+	}
+	@Override
+	public ClientResponse getContinueResponse(){
+		ClientExchange ex = current().clientExchange;
+		return (ex != null)? ex.getContinueResponse() : null;
+	}
+	@Override
+	public ClientConnection getConnection(){
+		return this;
+	}
+	@Override
+	public <T> T getAttachment(AttachmentKey<T> key){
+		T value = super.getAttachment(key);
+		if (value == null && winner != null){
+			value = winner.clientExchange.getAttachment(key);		//e.g. response trailers
+		}
+		return value;
+	}
+
+	//ClientConnection - closing it (timeout, transfer error) closes all attempts
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		cancelHedge();
+		for (Attempt a : attempts){
+			if (a == winner){
+				IoUtils.safeClose(a.connection.getConnection());
+			}else{
+				a.discard();
+			}
+		}
+	}
+	@Override
+	public StreamConnection performUpgrade() throws IOException {
+		throw new IOException("Upgrade not supported for retried requests");
+	}
+	@Override
+	public ByteBufferPool getBufferPool(){
+		return currentConnection().getBufferPool();
+	}
+	@Override
+	public SocketAddress getPeerAddress(){
+		return currentConnection().getPeerAddress();
+	}
+	@Override
+	public <A extends SocketAddress> A getPeerAddress(Class<A> type){
+		return currentConnection().getPeerAddress(type);
+	}
+	@Override
+	public ChannelListener.Setter<? extends ClientConnection> getCloseSetter(){
+		return currentConnection().getCloseSetter();
+	}
+	@Override
+	public SocketAddress getLocalAddress(){
+		return currentConnection().getLocalAddress();
+	}
+	@Override
+	public <A extends SocketAddress> A getLocalAddress(Class<A> type){
+		return currentConnection().getLocalAddress(type);
+	}
+	@Override
+	public XnioWorker getWorker(){
+		return currentConnection().getWorker();
+	}
+	@Override
+	public XnioIoThread getIoThread(){
+		return currentConnection().getIoThread();
+	}
+	@Override
+	public boolean isOpen(){
+		return !closed && currentConnection().isOpen();
+	}
+	@Override
+	public boolean supportsOption(Option<?> option){
+		return currentConnection().supportsOption(option);
+	}
+	@Override
+	public <T> T getOption(Option<T> option) throws IOException {
+		return currentConnection().getOption(option);
+	}
+	@Override
+	public <T> T setOption(Option<T> option, T value) throws IllegalArgumentException, IOException {
+		return currentConnection().setOption(option, value);
+	}
+	@Override
+	public boolean isUpgraded(){
+		return false;
+	}
+	@Override
+	public boolean isPushSupported(){
+		return false;
+	}
+	@Override
+	public boolean isMultiplexingSupported(){
+		return currentConnection().isMultiplexingSupported();
+	}
+	@Override
+	public ClientStatistics getStatistics(){
+		return currentConnection().getStatistics();
+	}
+	@Override
+	public boolean isUpgradeSupported(){
+		return false;
+	}
+	@Override
+	public void addCloseListener(ChannelListener<ClientConnection> listener){
+		currentConnection().addCloseListener(listener);
+	}
+}
@@ -0,0 +1,81 @@
+package net.b07z.sepia.proxies.balancing;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.undertow.server.handlers.proxy.LoadBalancingProxyClient.Host;
+import io.undertow.server.handlers.proxy.LoadBalancingProxyClient.HostSelector;
+
+/**
+ * Smooth weighted round-robin host selector.<br>
+ * The schedule is computed once whenever the host array of the load balancer changes (add, remove, ejection)
+ * so a selection is just one atomic increment and an array lookup.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class WeightedHostSelector implements HostSelector {
+
+	private final Map<URI, Backend> backends;
+	private final AtomicInteger counter = new AtomicInteger();
+	private volatile Schedule schedule = new Schedule(null, new int[0]);
+
+	/**
+	 * Immutable pair of host array and precomputed order.
+	 */
+	private static class Schedule {
+		final Host[] hosts;
+		final int[] order;
+
+		Schedule(Host[] hosts, int[] order){
+			this.hosts = hosts;
+			this.order = order;
+		}
+	}
+
+	/**
+	 * Create selector.
+	 * @param backends - backends by URI, used to look up the weight of each host
+	 */
+	public WeightedHostSelector(Map<URI, Backend> backends){
+		this.backends = backends;
+	}
+
+	@Override
+	public int selectHost(Host[] availableHosts){
+		Schedule s = schedule;
+		if (s.hosts != availableHosts){
+			s = new Schedule(availableHosts, buildOrder(availableHosts));
+			schedule = s;
+		}
+		return s.order[(counter.getAndIncrement() & Integer.MAX_VALUE) % s.order.length];
+	}
+
+	/**
+	 * Build smooth weighted round-robin order, e.g. weights 5,1,1 give "a a b a c a a" instead of "a a a a a b c".
+	 */
+	private int[] buildOrder(Host[] hosts){
+		int[] weights = new int[hosts.length];
+		int total = 0;
+		for (int i = 0; i < hosts.length; i++){
+			Backend b = backends.get(hosts[i].getUri());
+			weights[i] = (b != null)? b.getWeight() : Backend.DEFAULT_WEIGHT;
+			total += weights[i];
+		}
+		int[] order = new int[total];
+		int[] current = new int[hosts.length];
+		for (int n = 0; n < total; n++){
+			int best = 0;
+			for (int i = 0; i < hosts.length; i++){
+				current[i] += weights[i];
+				if (current[i] > current[best]){
+					best = i;
+				}
+			}
+			current[best] -= total;
+			order[n] = best;
+		}
+		return order;
+	}
+}
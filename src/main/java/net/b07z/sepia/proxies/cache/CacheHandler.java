@@ -0,0 +1,412 @@
+package net.b07z.sepia.proxies.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xnio.IoUtils;
+import org.xnio.channels.StreamSourceChannel;
+import org.xnio.conduits.AbstractStreamSinkConduit;
+import org.xnio.conduits.ConduitWritableByteChannel;
+import org.xnio.conduits.StreamSinkConduit;
+
+import io.undertow.io.IoCallback;
+import io.undertow.io.Sender;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.AttachmentKey;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+import io.undertow.util.Methods;
+import io.undertow.util.SameThreadExecutor;
+import io.undertow.util.StatusCodes;
+import net.b07z.sepia.proxies.compression.Compression;
+
+/**
+ * Serves GET requests of a route from the {@link ResponseCache} and stores cacheable responses of the next handler
+ * (usually a ProxyHandler) while they are sent to the client.<br>
+ * Requests with 'Authorization' header bypass the cache, 'Cache-Control: no-cache' (or max-age=0) skips the lookup but
+ * updates the cache. Unsafe requests (POST, PUT, DELETE, ...) remove the cached entry of their URL.<br>
+ * If the route compresses responses, each encoding ({@link Compression#variant(HeaderMap)}) gets its own entry,
+ * so compressed bodies are stored once and reused.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class CacheHandler implements HttpHandler {
+
+	private static final AttachmentKey<Boolean> COLLAPSED = AttachmentKey.create(Boolean.class);
+
+	//not stored, they describe the connection and not the resource
+	private static final HttpString[] SKIP_HEADERS = {
+		Headers.CONNECTION, Headers.KEEP_ALIVE, Headers.TRANSFER_ENCODING, Headers.CONTENT_LENGTH, Headers.UPGRADE,
+		Headers.TE, Headers.TRAILER, Headers.PROXY_AUTHENTICATE, Headers.SET_COOKIE, Headers.AGE
+	};
+
+	private final ResponseCache cache;
+	private final String routeKey;
+	private final HttpHandler next;
+	private final Compression compression;
+
+	/**
+	 * Create cache handler for a route.
+	 * @param cache - shared cache
+	 * @param routeKey - unique key of the route, used as prefix of all cache keys
+	 * @param next - handler that fetches responses
+	 */
+	public CacheHandler(ResponseCache cache, String routeKey, HttpHandler next){
+		this(cache, routeKey, next, null);
+	}
+	/**
+	 * Create cache handler for a route that compresses responses.
+	 * @param cache - shared cache
+	 * @param routeKey - unique key of the route, used as prefix of all cache keys
+	 * @param next - handler that fetches (and compresses) responses
+	 * @param compression - compression of the route or null
+	 */
+	public CacheHandler(ResponseCache cache, String routeKey, HttpHandler next, Compression compression){
+		this.cache = cache;
+		this.routeKey = routeKey;
+		this.next = next;
+		this.compression = compression;
+	}
+
+	@Override
+	public void handleRequest(HttpServerExchange exchange) throws Exception {
+		HttpString method = exchange.getRequestMethod();
+		if (!method.equals(Methods.GET)){
+			if (!method.equals(Methods.HEAD) && !method.equals(Methods.OPTIONS) && !method.equals(Methods.TRACE)){
+				if (compression == null){
+					cache.invalidate(key(exchange, null));
+				}else{
+					for (String variant : Compression.VARIANTS){
+						cache.invalidate(key(exchange, variant));
+					}
+				}
+			}
+			next.handleRequest(exchange);
+			return;
+		}
+		HeaderMap requestHeaders = exchange.getRequestHeaders();
+		if (requestHeaders.contains(Headers.AUTHORIZATION)){
+			next.handleRequest(exchange);
+			return;
+		}
+		String key = key(exchange, (compression != null)? compression.variant(requestHeaders) : null);
+		boolean revalidate = isNoCacheRequest(requestHeaders);
+		if (!revalidate){
+			CachedResponse entry = cache.acquire(key, requestHeaders, System.currentTimeMillis());
+			if (entry != null){
+				cache.recordHit();
+				serve(exchange, entry);
+				return;
+			}
+		}
+		if (cache.startFetch(key)){
+			fetch(exchange, key, true);
+		}else if (!revalidate && exchange.getAttachment(COLLAPSED) == null){
+			//same resource is on its way, continue when it is there
+			exchange.putAttachment(COLLAPSED, Boolean.TRUE);
+			exchange.dispatch(SameThreadExecutor.INSTANCE, () -> {
+				if (!cache.awaitFetch(key, exchange)){
+					exchange.dispatch(exchange.getIoThread(), this);
+				}
+			});
+		}else{
+			fetch(exchange, key, false);
+		}
+	}
+
+	private String key(HttpServerExchange exchange, String variant){
+		String query = exchange.getQueryString();
+		String key = (query == null || query.isEmpty())? (routeKey + " " + exchange.getRequestURI()) : (routeKey + " " + exchange.getRequestURI() + "?" + query);
+		return (variant == null)? key : (key + " " + variant);
+	}
+
+	private static boolean isNoCacheRequest(HeaderMap requestHeaders){
+		HeaderValues cc = requestHeaders.get(Headers.CACHE_CONTROL);
+		for (int i = 0; cc != null && i < cc.size(); i++){
+			String v = cc.get(i).toLowerCase();
+			if (v.contains("no-cache") || v.contains("no-store") || v.contains("max-age=0")){
+				return true;
+			}
+		}
+		String pragma = requestHeaders.getFirst(Headers.PRAGMA);
+		return pragma != null && pragma.toLowerCase().contains("no-cache");
+	}
+
+	/**
+	 * Forward request and capture the response if it can be cached.
+	 * @param leader - true if this request has to release requests waiting for the same key
+	 */
+	private void fetch(HttpServerExchange exchange, String key, boolean leader) throws Exception {
+		cache.recordMiss();
+		Capture capture = new Capture(key);
+		exchange.addResponseWrapper((factory, ex) -> {
+			StreamSinkConduit conduit = factory.create();
+			return capture.start(ex)? new CapturingConduit(conduit, capture) : conduit;
+		});
+		exchange.addExchangeCompleteListener((ex, nextListener) -> {
+			try{
+				capture.finish();
+				if (leader){
+					List<HttpServerExchange> waiting = cache.finishFetch(key);
+					if (waiting != null){
+						for (HttpServerExchange w : waiting){
+							w.dispatch(w.getIoThread(), this);
+						}
+					}
+				}
+			}finally{
+				nextListener.proceed();
+			}
+		});
+		next.handleRequest(exchange);
+	}
+
+	/**
+	 * Send a cached response.
+	 */
+	private void serve(HttpServerExchange exchange, CachedResponse entry){
+		HeaderMap headers = exchange.getResponseHeaders();
+		long age = Math.max(0, (System.currentTimeMillis() - entry.storedAt) / 1000);
+		if (entry.etag != null && matchesEtag(exchange.getRequestHeaders().getFirst(Headers.IF_NONE_MATCH), entry.etag)){
+			for (int i = 0; i < entry.headerNames.length; i++){
+				HttpString name = entry.headerNames[i];
+				if (name.equals(Headers.ETAG) || name.equals(Headers.CACHE_CONTROL) || name.equals(Headers.EXPIRES) || name.equals(Headers.VARY)){
+					headers.add(name, entry.headerValues[i]);
+				}
+			}
+			headers.put(Headers.AGE, age);
+			exchange.setStatusCode(StatusCodes.NOT_MODIFIED);
+			cache.release(entry);
+			exchange.endExchange();
+			return;
+		}
+		exchange.setStatusCode(entry.status);
+		for (int i = 0; i < entry.headerNames.length; i++){
+			headers.add(entry.headerNames[i], entry.headerValues[i]);
+		}
+		headers.put(Headers.AGE, age);
+		headers.put(Headers.CONTENT_LENGTH, entry.length);
+		Sender sender = exchange.getResponseSender();
+		sender.send(entry.body(cache.getStore()), new IoCallback(){
+			@Override
+			public void onComplete(HttpServerExchange exchange, Sender sender){
+				cache.release(entry);
+				IoCallback.END_EXCHANGE.onComplete(exchange, sender);
+			}
+			@Override
+			public void onException(HttpServerExchange exchange, Sender sender, IOException exception){
+				cache.release(entry);
+				IoCallback.END_EXCHANGE.onException(exchange, sender, exception);
+			}
+		});
+	}
+
+	private static boolean matchesEtag(String ifNoneMatch, String etag){
+		if (ifNoneMatch == null){
+			return false;
+		}
+		for (String tag : ifNoneMatch.split(",")){
+			tag = tag.trim();
+			if (tag.equals("*") || tag.equals(etag) || (tag.startsWith("W/") && tag.substring(2).equals(etag))){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * State of a response that is written to the cache while it passes through.
+	 */
+	private final class Capture {
+		final String key;
+		CachedResponse entry;
+		long expectedLength = -1;
+		boolean finished = false;
+		boolean aborted = false;
+
+		Capture(String key){
+			this.key = key;
+		}
+
+		/**
+		 * Check if the response can be cached and prepare the entry.
+		 * @return false if it should not be captured
+		 */
+		boolean start(HttpServerExchange exchange){
+			if (exchange.getStatusCode() != StatusCodes.OK){
+				return false;
+			}
+			HeaderMap response = exchange.getResponseHeaders();
+			long now = System.currentTimeMillis();
+			long ttl = cache.getTtl(response, now);
+			if (ttl <= 0){
+				return false;
+			}
+			expectedLength = exchange.getResponseContentLength();
+			if (expectedLength > cache.getMaxEntryBytes()){
+				return false;
+			}
+			List<HttpString> names = new ArrayList<>();
+			List<String> values = new ArrayList<>();
+			for (HeaderValues hv : response){
+				if (isSkipped(hv.getHeaderName())) continue;
+				for (String v : hv){
+					names.add(hv.getHeaderName());
+					values.add(v);
+				}
+			}
+			List<HttpString> varyNames = new ArrayList<>();
+			List<String> varyValues = new ArrayList<>();
+			HeaderValues vary = response.get(Headers.VARY);
+			for (int i = 0; vary != null && i < vary.size(); i++){
+				for (String name : vary.get(i).split(",")){
+					name = name.trim();
+					if (name.isEmpty()) continue;
+					if (compression != null && name.equalsIgnoreCase(Headers.ACCEPT_ENCODING_STRING)) continue;	//part of the key
+					HttpString hs = HttpString.tryFromString(name);
+					varyNames.add(hs);
+					varyValues.add(CachedResponse.joinValues(exchange.getRequestHeaders().get(hs)));
+				}
+			}
+			entry = new CachedResponse(exchange.getStatusCode(), names.toArray(new HttpString[0]), values.toArray(new String[0]),
+					varyNames.toArray(new HttpString[0]), varyValues.toArray(new String[0]),
+					response.getFirst(Headers.ETAG), now, now + ttl);
+			return true;
+		}
+
+		private boolean isSkipped(HttpString name){
+			for (HttpString s : SKIP_HEADERS){
+				if (s.equals(name)) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Copy written bytes into pages.
+		 */
+		void copy(ByteBuffer src, int from, int count){
+			if (aborted || count <= 0){
+				return;
+			}
+			if (entry.length + count > cache.getMaxEntryBytes()){
+				aborted = true;
+				return;
+			}
+			int pageSize = ResponseCache.PAGE_SIZE;
+			int oldPosition = src.position();
+			int oldLimit = src.limit();
+			while (count > 0){
+				int offset = (int) (entry.length % pageSize);
+				if (offset == 0 && !cache.allocatePage(entry)){
+					aborted = true;
+					break;
+				}
+				ByteBuffer page = cache.getStore().page(entry.pages[entry.pageCount - 1]);
+				int chunk = Math.min(count, pageSize - offset);
+				src.limit(from + chunk).position(from);
+				page.position(offset);
+				page.put(src);
+				from += chunk;
+				count -= chunk;
+				entry.length += chunk;
+			}
+			src.limit(oldLimit).position(oldPosition);
+		}
+
+		/**
+		 * Store complete responses, free everything else.
+		 */
+		void finish(){
+			if (entry == null){
+				return;
+			}
+			if (finished && !aborted && (expectedLength < 0 || expectedLength == entry.length)){
+				cache.put(key, entry);
+			}else{
+				cache.discard(entry);
+			}
+		}
+	}
+
+	/**
+	 * Response conduit that copies everything it writes into a {@link Capture}.
+	 */
+	private static final class CapturingConduit extends AbstractStreamSinkConduit<StreamSinkConduit> {
+		private final Capture capture;
+		private int[] positions = new int[8];
+
+		CapturingConduit(StreamSinkConduit next, Capture capture){
+			super(next);
+			this.capture = capture;
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			int from = src.position();
+			int n = next.write(src);
+			capture.copy(src, from, n);
+			return n;
+		}
+		@Override
+		public int writeFinal(ByteBuffer src) throws IOException {
+			int from = src.position();
+			int n = next.writeFinal(src);
+			capture.copy(src, from, n);
+			return n;
+		}
+		@Override
+		public long write(ByteBuffer[] srcs, int offs, int len) throws IOException {
+			savePositions(srcs, offs, len);
+			long n = next.write(srcs, offs, len);
+			copyAll(srcs, offs, len, n);
+			return n;
+		}
+		@Override
+		public long writeFinal(ByteBuffer[] srcs, int offs, int len) throws IOException {
+			savePositions(srcs, offs, len);
+			long n = next.writeFinal(srcs, offs, len);
+			copyAll(srcs, offs, len, n);
+			return n;
+		}
+		private void savePositions(ByteBuffer[] srcs, int offs, int len){
+			if (positions.length < len){
+				positions = new int[len];
+			}
+			for (int i = 0; i < len; i++){
+				positions[i] = srcs[offs + i].position();
+			}
+		}
+		private void copyAll(ByteBuffer[] srcs, int offs, int len, long written){
+			for (int i = 0; i < len && written > 0; i++){
+				int count = (int) Math.min(written, srcs[offs + i].position() - positions[i]);
+				capture.copy(srcs[offs + i], positions[i], count);
+				written -= count;
+			}
+		}
+		@Override
+		public long transferFrom(FileChannel src, long position, long count) throws IOException {
+			return src.transferTo(position, count, new ConduitWritableByteChannel(this));
+		}
+		@Override
+		public long transferFrom(StreamSourceChannel source, long count, ByteBuffer throughBuffer) throws IOException {
+			return IoUtils.transfer(source, count, throughBuffer, new ConduitWritableByteChannel(this));
+		}
+		@Override
+		public void terminateWrites() throws IOException {
+			capture.finished = true;
+			next.terminateWrites();
+		}
+		@Override
+		public void truncateWrites() throws IOException {
+			capture.aborted = true;
+			next.truncateWrites();
+		}
+	}
+}
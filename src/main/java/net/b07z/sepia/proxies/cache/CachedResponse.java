@@ -0,0 +1,91 @@
+package net.b07z.sepia.proxies.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import io.undertow.util.HeaderMap;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.HttpString;
+
+/**
+ * A cached response: status, headers and the body in off-heap pages of the {@link PageStore}.<br>
+ * The body is written once while the response passes through, after that the entry is immutable.
+ * Pages are reference counted so an entry that is evicted while being sent is only freed afterwards.
+ *
+ * @author Florian Quirin
+ *
+ */
+final class CachedResponse {
+
+	final int status;
+	final HttpString[] headerNames;
+	final String[] headerValues;
+	final HttpString[] varyNames;
+	final String[] varyValues;
+	final String etag;
+	final long storedAt;
+	final long expiresAt;
+
+	int[] pages = new int[4];
+	int pageCount = 0;
+	long length = 0;
+
+	//guarded by ResponseCache
+	int refs = 0;
+	boolean evicted = false;
+
+	CachedResponse(int status, HttpString[] headerNames, String[] headerValues, HttpString[] varyNames, String[] varyValues,
+			String etag, long storedAt, long expiresAt){
+		this.status = status;
+		this.headerNames = headerNames;
+		this.headerValues = headerValues;
+		this.varyNames = varyNames;
+		this.varyValues = varyValues;
+		this.etag = etag;
+		this.storedAt = storedAt;
+		this.expiresAt = expiresAt;
+	}
+
+	void addPage(int index){
+		if (pageCount == pages.length){
+			pages = Arrays.copyOf(pages, pageCount * 2);
+		}
+		pages[pageCount++] = index;
+	}
+
+	/**
+	 * True if the request has the same values for all headers named in 'Vary'.
+	 */
+	boolean matchesVary(HeaderMap requestHeaders){
+		for (int i = 0; i < varyNames.length; i++){
+			String value = joinValues(requestHeaders.get(varyNames[i]));
+			if (!value.equals(varyValues[i])){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static String joinValues(HeaderValues values){
+		if (values == null || values.isEmpty()){
+			return "";
+		}
+		return (values.size() == 1)? values.getFirst() : String.join(",", values);
+	}
+
+	/**
+	 * Read-only views of the body pages, ready to send.
+	 */
+	ByteBuffer[] body(PageStore store){
+		ByteBuffer[] body = new ByteBuffer[pageCount];
+		long left = length;
+		for (int i = 0; i < pageCount; i++){
+			ByteBuffer b = store.page(pages[i]).asReadOnlyBuffer();
+			b.clear();
+			b.limit((int) Math.min(left, b.capacity()));
+			left -= b.limit();
+			body[i] = b;
+		}
+		return body;
+	}
+}
@@ -0,0 +1,74 @@
+package net.b07z.sepia.proxies.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed budget of off-heap memory split into pages of equal size. Pages are handed out by index
+ * and returned to a free list, so cached bodies never touch the (small) Java heap.<br>
+ * Not thread-safe, access is guarded by {@link ResponseCache}.
+ *
+ * @author Florian Quirin
+ *
+ */
+final class PageStore {
+
+	private final int pageSize;
+	private final ByteBuffer[] pages;
+	private final int[] free;
+	private int freeCount;
+
+	/**
+	 * Allocate the off-heap slab.
+	 * @param maxBytes - total budget (rounded down to full pages, max. 1GB)
+	 * @param pageSize - size of one page
+	 */
+	PageStore(long maxBytes, int pageSize){
+		if (maxBytes > (1 << 30)){
+			throw new IllegalArgumentException("Cache size must not exceed 1GB, was: " + maxBytes);
+		}
+		int count = (int) (maxBytes / pageSize);
+		if (count < 1){
+			throw new IllegalArgumentException("Cache size must be at least " + pageSize + " bytes, was: " + maxBytes);
+		}
+		this.pageSize = pageSize;
+		this.pages = new ByteBuffer[count];
+		this.free = new int[count];
+		ByteBuffer slab = ByteBuffer.allocateDirect(count * pageSize);
+		for (int i = 0; i < count; i++){
+			slab.limit((i + 1) * pageSize).position(i * pageSize);
+			pages[i] = slab.slice();
+			free[i] = count - 1 - i;
+		}
+		freeCount = count;
+	}
+
+	/**
+	 * Take a free page.
+	 * @return page index or -1 if all pages are in use
+	 */
+	int allocate(){
+		return (freeCount > 0)? free[--freeCount] : -1;
+	}
+
+	/**
+	 * Return pages to the free list.
+	 */
+	void release(int[] indices, int count){
+		for (int i = 0; i < count; i++){
+			free[freeCount++] = indices[i];
+		}
+	}
+
+	ByteBuffer page(int index){
+		return pages[index];
+	}
+	int getPageSize(){
+		return pageSize;
+	}
+	int getPages(){
+		return pages.length;
+	}
+	int getFreePages(){
+		return freeCount;
+	}
+}
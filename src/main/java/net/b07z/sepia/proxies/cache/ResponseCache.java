@@ -0,0 +1,277 @@
+package net.b07z.sepia.proxies.cache;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.DateUtils;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+
+/**
+ * Shared response cache of all cached routes. Bodies are kept off-heap in a fixed budget of pages,
+ * when the budget is used up the least recently used entries are evicted.<br>
+ * Concurrent misses of the same key are collapsed: the first request fetches the response, the others
+ * wait for it and are served from the cache afterwards.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class ResponseCache {
+
+	public static final int PAGE_SIZE = 4096;
+
+	private final PageStore store;
+	private final long maxEntryBytes;
+	private final long defaultTtl;
+
+	private final LinkedHashMap<String, CachedResponse> entries = new LinkedHashMap<>(64, 0.75f, true);	//LRU order
+	private final Map<String, List<HttpServerExchange>> inflight = new HashMap<>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private long evictions = 0;
+
+	/**
+	 * Create cache and allocate its off-heap memory.
+	 * @param maxBytes - budget for all cached bodies (direct memory, see -XX:MaxDirectMemorySize)
+	 * @param maxEntryBytes - larger responses are not cached
+	 * @param defaultTtlMs - time to keep responses without 'Cache-Control: max-age' or 'Expires' (0: don't cache them)
+	 */
+	public ResponseCache(long maxBytes, long maxEntryBytes, long defaultTtlMs){
+		this.store = new PageStore(maxBytes, PAGE_SIZE);
+		this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+		this.defaultTtl = defaultTtlMs;
+	}
+
+	/**
+	 * Get a fresh entry and keep its pages until {@link #release(CachedResponse)} is called.
+	 * @return entry or null
+	 */
+	synchronized CachedResponse acquire(String key, HeaderMap requestHeaders, long now){
+		CachedResponse e = entries.get(key);
+		if (e == null){
+			return null;
+		}
+		if (e.expiresAt <= now){
+			entries.remove(key);
+			evict(e);
+			return null;
+		}
+		if (!e.matchesVary(requestHeaders)){
+			return null;
+		}
+		e.refs++;
+		return e;
+	}
+
+	synchronized void release(CachedResponse e){
+		if (--e.refs == 0 && e.evicted){
+			free(e);
+		}
+	}
+
+	/**
+	 * Register a fetch of a key.
+	 * @return true if no other request fetches this key right now (caller has to call {@link #finishFetch(String)})
+	 */
+	synchronized boolean startFetch(String key){
+		if (inflight.containsKey(key)){
+			return false;
+		}
+		inflight.put(key, new ArrayList<>(2));
+		return true;
+	}
+
+	/**
+	 * Wait for a running fetch.
+	 * @return true if the exchange was added to the waiting requests, false if the fetch is already done
+	 */
+	synchronized boolean awaitFetch(String key, HttpServerExchange exchange){
+		List<HttpServerExchange> waiting = inflight.get(key);
+		if (waiting == null){
+			return false;
+		}
+		waiting.add(exchange);
+		return true;
+	}
+
+	/**
+	 * Fetch is done.
+	 * @return requests that waited for it
+	 */
+	synchronized List<HttpServerExchange> finishFetch(String key){
+		return inflight.remove(key);
+	}
+
+	/**
+	 * Add a new page to an entry that is being captured. Evicts old entries if required.
+	 * @return false if there is no space left
+	 */
+	synchronized boolean allocatePage(CachedResponse target){
+		int page = store.allocate();
+		while (page < 0 && evictEldest()){
+			page = store.allocate();
+		}
+		if (page < 0){
+			return false;
+		}
+		target.addPage(page);
+		return true;
+	}
+
+	synchronized void put(String key, CachedResponse e){
+		CachedResponse old = entries.put(key, e);
+		if (old != null){
+			evict(old);
+		}
+	}
+
+	/**
+	 * Free pages of an entry that was not completed.
+	 */
+	synchronized void discard(CachedResponse e){
+		free(e);
+	}
+
+	/**
+	 * Remove entry of a key, e.g. after an unsafe request (POST, PUT, DELETE) to the same URL.
+	 */
+	public synchronized void invalidate(String key){
+		CachedResponse e = entries.remove(key);
+		if (e != null){
+			evict(e);
+		}
+	}
+
+	/**
+	 * Remove all entries of a route.
+	 * @param routeKey - key prefix used by the route's {@link CacheHandler}
+	 */
+	public synchronized void invalidateRoute(String routeKey){
+		String prefix = routeKey + " ";
+		Iterator<Map.Entry<String, CachedResponse>> it = entries.entrySet().iterator();
+		while (it.hasNext()){
+			Map.Entry<String, CachedResponse> me = it.next();
+			if (me.getKey().startsWith(prefix)){
+				it.remove();
+				evict(me.getValue());
+			}
+		}
+	}
+
+	private boolean evictEldest(){
+		Iterator<CachedResponse> it = entries.values().iterator();
+		if (!it.hasNext()){
+			return false;
+		}
+		CachedResponse e = it.next();
+		it.remove();
+		evict(e);
+		evictions++;
+		return true;
+	}
+
+	private void evict(CachedResponse e){
+		e.evicted = true;
+		if (e.refs == 0){
+			free(e);
+		}
+	}
+
+	private void free(CachedResponse e){
+		store.release(e.pages, e.pageCount);
+		e.pageCount = 0;
+	}
+
+	/**
+	 * Time to live of a response from its headers or -1 if it must not be stored.
+	 * Honours 'Cache-Control' (no-store, no-cache, private, s-maxage, max-age), 'Expires' and 'Set-Cookie'.
+	 */
+	long getTtl(HeaderMap responseHeaders, long now){
+		if (responseHeaders.contains(Headers.SET_COOKIE)){
+			return -1;
+		}
+		String vary = responseHeaders.getFirst(Headers.VARY);
+		if (vary != null && vary.trim().equals("*")){
+			return -1;
+		}
+		long maxAge = -1;
+		long sMaxAge = -1;
+		HeaderValues cacheControl = responseHeaders.get(Headers.CACHE_CONTROL);
+		for (int i = 0; cacheControl != null && i < cacheControl.size(); i++){
+			for (String directive : cacheControl.get(i).split(",")){
+				String d = directive.trim().toLowerCase();
+				if (d.equals("no-store") || d.equals("no-cache") || d.equals("private")){
+					return -1;
+				}else if (d.startsWith("s-maxage=")){
+					sMaxAge = parseSeconds(d.substring(9));
+				}else if (d.startsWith("max-age=")){
+					maxAge = parseSeconds(d.substring(8));
+				}
+			}
+		}
+		if (sMaxAge >= 0){
+			return sMaxAge * 1000;
+		}else if (maxAge >= 0){
+			return maxAge * 1000;
+		}
+		String expires = responseHeaders.getFirst(Headers.EXPIRES);
+		if (expires != null){
+			Date date = DateUtils.parseDate(expires);
+			return (date != null)? Math.max(0, date.getTime() - now) : 0;
+		}
+		return (defaultTtl > 0)? defaultTtl : -1;
+	}
+
+	private static long parseSeconds(String value){
+		try{
+			return Long.parseLong(value.replace("\"", "").trim());
+		}catch (NumberFormatException e){
+			return 0;
+		}
+	}
+
+	long getMaxEntryBytes(){
+		return maxEntryBytes;
+	}
+	PageStore getStore(){
+		return store;
+	}
+
+	void recordHit(){
+		hits.increment();
+	}
+	void recordMiss(){
+		misses.increment();
+	}
+
+	public long getHits(){
+		return hits.sum();
+	}
+	public long getMisses(){
+		return misses.sum();
+	}
+	public synchronized long getEvictions(){
+		return evictions;
+	}
+	public synchronized int getEntries(){
+		return entries.size();
+	}
+	/**
+	 * Off-heap bytes in use (full pages).
+	 */
+	public synchronized long getUsedBytes(){
+		return (long) (store.getPages() - store.getFreePages()) * store.getPageSize();
+	}
+	public long getMaxBytes(){
+		return (long) store.getPages() * store.getPageSize();
+	}
+}
@@ -0,0 +1,144 @@
+package net.b07z.sepia.proxies.compression;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+import io.undertow.conduits.DeflatingStreamSinkConduit;
+import io.undertow.predicate.Predicate;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.encoding.AllowedContentEncodings;
+import io.undertow.server.handlers.encoding.ContentEncodingRepository;
+import io.undertow.server.handlers.encoding.DeflateEncodingProvider;
+import io.undertow.server.handlers.encoding.GzipEncodingProvider;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+import io.undertow.util.ObjectPool;
+import io.undertow.util.QValueParser;
+import io.undertow.util.StatusCodes;
+
+/**
+ * Response compression settings shared by all routes: gzip and deflate with one pool of Deflater instances,
+ * enabled by content type and size of the response.<br>
+ * Responses that are already encoded by the backend (e.g. precompressed 'br' or 'gzip' files) are passed on unchanged.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class Compression {
+	
+	public static final String DEFAULT_TYPES = "text/, application/json, application/javascript, application/xml, image/svg+xml";
+	
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+	public static final String IDENTITY = "identity";
+	/**
+	 * All variants a response can have, see {@link #variant(HeaderMap)}.
+	 */
+	public static final String[] VARIANTS = { GZIP, DEFLATE, IDENTITY };
+	
+	private final ContentEncodingRepository repository;
+	private final String[] types;
+	private final long minSize;
+	
+	/**
+	 * Create compression settings.
+	 * @param level - Deflater level 1-9 (fast - small), 6 is a good trade-off
+	 * @param minSize - smaller responses are sent uncompressed (responses without Content-Length are always compressed)
+	 * @param types - comma separated list of content type prefixes, e.g. "text/, application/json"
+	 * @param poolSize - max. number of idle Deflaters kept for reuse
+	 */
+	public Compression(int level, long minSize, String types, int poolSize){
+		this.minSize = minSize;
+		this.types = parseTypes((types == null || types.trim().isEmpty())? DEFAULT_TYPES : types);
+		if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION){
+			throw new IllegalArgumentException("Compression level must be 1-9, got: " + level);
+		}
+		ObjectPool<Deflater> deflaters = DeflatingStreamSinkConduit.simpleDeflaterPool(Math.max(1, poolSize), level);
+		Predicate compressible = this::isCompressible;
+		this.repository = new ContentEncodingRepository()
+				.addEncodingHandler(GZIP, new GzipEncodingProvider(deflaters), 100, compressible)
+				.addEncodingHandler(DEFLATE, new DeflateEncodingProvider(deflaters), 10, compressible);
+	}
+	
+	private static String[] parseTypes(String types){
+		List<String> list = new ArrayList<>();
+		for (String t : types.split(",")){
+			t = t.trim().toLowerCase(Locale.ROOT);
+			if (!t.isEmpty()){
+				list.add(t);
+			}
+		}
+		return list.toArray(new String[0]);
+	}
+	
+	/**
+	 * Encodings the client accepts (in order of preference) or null if there is nothing to do.
+	 */
+	AllowedContentEncodings getEncodings(HttpServerExchange exchange){
+		AllowedContentEncodings encodings = repository.getContentEncodings(exchange);
+		return (encodings == null || encodings.isNoEncodingsAllowed())? null : encodings;
+	}
+	
+	/**
+	 * True if the response has a compressible content type and size, checked when the response starts.
+	 */
+	boolean isCompressible(HttpServerExchange exchange){
+		int status = exchange.getStatusCode();
+		if (status == StatusCodes.PARTIAL_CONTENT || status == StatusCodes.NO_CONTENT || status == StatusCodes.NOT_MODIFIED){
+			return false;
+		}
+		HeaderMap headers = exchange.getResponseHeaders();
+		if (!hasCompressibleType(headers)){
+			return false;
+		}
+		String cacheControl = headers.getFirst(Headers.CACHE_CONTROL);
+		if (cacheControl != null && cacheControl.toLowerCase(Locale.ROOT).contains("no-transform")){
+			return false;
+		}
+		long length = exchange.getResponseContentLength();
+		return length < 0 || length >= minSize;
+	}
+	
+	boolean hasCompressibleType(HeaderMap responseHeaders){
+		String type = responseHeaders.getFirst(Headers.CONTENT_TYPE);
+		if (type == null){
+			return false;
+		}
+		for (String t : types){
+			if (type.regionMatches(true, 0, t, 0, t.length())){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Encoding a response to this request would get if it is compressible: {@link #GZIP}, {@link #DEFLATE} or {@link #IDENTITY}.
+	 * Used to keep one cache entry per variant.
+	 */
+	public String variant(HeaderMap requestHeaders){
+		HeaderValues accept = requestHeaders.get(Headers.ACCEPT_ENCODING);
+		if (accept == null || accept.isEmpty()){
+			return IDENTITY;
+		}
+		//groups are sorted by q-value, within a group the server priority decides (gzip first)
+		for (List<QValueParser.QValueResult> group : QValueParser.parse(accept)){
+			boolean gzip = false, deflate = false;
+			for (QValueParser.QValueResult r : group){
+				if (r.isQValueZero()) continue;
+				String v = r.getValue();
+				if (v.equals(GZIP) || v.equals("*")){
+					gzip = true;
+				}else if (v.equals(DEFLATE)){
+					deflate = true;
+				}
+			}
+			if (gzip) return GZIP;
+			if (deflate) return DEFLATE;
+		}
+		return IDENTITY;
+	}
+}
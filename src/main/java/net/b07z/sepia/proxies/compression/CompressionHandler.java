@@ -0,0 +1,64 @@
+package net.b07z.sepia.proxies.compression;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.encoding.AllowedContentEncodings;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+
+import org.xnio.conduits.StreamSinkConduit;
+
+/**
+ * Compresses responses of the next handler according to 'Accept-Encoding' and the {@link Compression} settings.
+ * Compressible responses get 'Vary: Accept-Encoding' so caches keep the variants apart.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class CompressionHandler implements HttpHandler {
+	
+	private final Compression compression;
+	private final HttpHandler next;
+	
+	public CompressionHandler(Compression compression, HttpHandler next){
+		this.compression = compression;
+		this.next = next;
+	}
+
+	@Override
+	public void handleRequest(HttpServerExchange exchange) throws Exception {
+		if (exchange.isResponseChannelAvailable()){
+			AllowedContentEncodings encodings = compression.getEncodings(exchange);
+			exchange.addResponseWrapper((factory, ex) -> {
+				HeaderMap headers = ex.getResponseHeaders();
+				if (compression.hasCompressibleType(headers)){
+					addVary(headers);
+				}
+				if (encodings == null){
+					return factory.create();
+				}
+				boolean encoded = headers.contains(Headers.CONTENT_ENCODING);
+				StreamSinkConduit conduit = encodings.wrap(factory, ex);
+				if (!encoded && Compression.IDENTITY.equals(headers.getFirst(Headers.CONTENT_ENCODING))){
+					//explicitly accepted identity is labeled by Undertow, not needed
+					headers.remove(Headers.CONTENT_ENCODING);
+				}
+				return conduit;
+			});
+		}
+		next.handleRequest(exchange);
+	}
+	
+	private static void addVary(HeaderMap headers){
+		HeaderValues vary = headers.get(Headers.VARY);
+		for (int i = 0; vary != null && i < vary.size(); i++){
+			String v = vary.get(i);
+			if (v.equals("*")) return;
+			for (String name : v.split(",")){
+				if (name.trim().equalsIgnoreCase(Headers.ACCEPT_ENCODING_STRING)) return;
+			}
+		}
+		headers.add(Headers.VARY, Headers.ACCEPT_ENCODING_STRING);
+	}
+}
@@ -0,0 +1,76 @@
+package net.b07z.sepia.proxies.handlers;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.StatusCodes;
+import net.b07z.sepia.proxies.websocket.Upgrades;
+
+/**
+ * Counts requests in progress and switches the server to drain mode for a graceful shutdown: requests are still
+ * served, but HTTP/1.1 responses get 'Connection: close' so clients don't reuse the connection, and new WebSocket
+ * handshakes are rejected with '503 Service Unavailable'. Upgraded connections are not counted, their exchange
+ * completes with the handshake.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class DrainHandler implements HttpHandler {
+
+	private final HttpHandler next;
+	private final String retryAfter;
+	private final LongAdder active = new LongAdder();
+	private final ExchangeCompletionListener done = (exchange, nextListener) -> {
+		active.decrement();
+		nextListener.proceed();
+	};
+	private volatile boolean draining = false;
+
+	/**
+	 * Wrap handler.
+	 * @param next - handler of all requests
+	 * @param retryAfterSec - value of 'Retry-After' header of rejected handshakes
+	 */
+	public DrainHandler(HttpHandler next, int retryAfterSec){
+		this.next = next;
+		this.retryAfter = String.valueOf(retryAfterSec);
+	}
+
+	@Override
+	public void handleRequest(HttpServerExchange exchange) throws Exception {
+		if (draining){
+			if (Upgrades.isWebSocket(exchange)){
+				exchange.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+				exchange.getResponseHeaders().put(Headers.RETRY_AFTER, retryAfter);
+				exchange.setPersistent(false);
+				exchange.endExchange();
+				return;
+			}
+			exchange.setPersistent(false);
+		}
+		active.increment();
+		exchange.addExchangeCompleteListener(done);
+		next.handleRequest(exchange);
+	}
+
+	/**
+	 * Enter drain mode (there is no way back, the server is about to stop).
+	 */
+	public void drain(){
+		draining = true;
+	}
+
+	public boolean isDraining(){
+		return draining;
+	}
+
+	/**
+	 * Requests in progress.
+	 */
+	public long getActive(){
+		return active.sum();
+	}
+}
@@ -0,0 +1,41 @@
+package net.b07z.sepia.proxies.handlers;
+
+import java.util.concurrent.Executor;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+
+/**
+ * Moves a handler that may block (file or network IO, locks, etc.) off the IO thread, either to the given executor 
+ * (e.g. virtual threads, see {@link VirtualThreads}) or to the worker pool of the server if executor is null.<br>
+ * Proxy handlers don't need this, they forward without blocking.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class OffloadHandler implements HttpHandler {
+	
+	private final Executor executor;
+	private final HttpHandler next;
+	
+	/**
+	 * Wrap handler.
+	 * @param executor - executor to run the handler or null for the worker pool of the server
+	 * @param next - handler that may block
+	 */
+	public OffloadHandler(Executor executor, HttpHandler next){
+		this.executor = executor;
+		this.next = next;
+	}
+
+	@Override
+	public void handleRequest(HttpServerExchange exchange) throws Exception {
+		if (!exchange.isInIoThread()){
+			next.handleRequest(exchange);
+		}else if (executor != null){
+			exchange.dispatch(executor, next);
+		}else{
+			exchange.dispatch(next);
+		}
+	}
+}
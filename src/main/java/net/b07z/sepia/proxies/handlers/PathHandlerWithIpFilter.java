@@ -1,63 +1,149 @@
 package net.b07z.sepia.proxies.handlers;
 
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
-import io.undertow.server.handlers.PathHandler;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
 import io.undertow.util.StatusCodes;
+import net.b07z.sepia.proxies.metrics.ProxyMetrics;
+import net.b07z.sepia.proxies.metrics.RouteMetrics;
+import net.b07z.sepia.proxies.routing.Route;
+import net.b07z.sepia.proxies.routing.RouteTable;
+import net.b07z.sepia.proxies.security.IpAddress;
+import net.b07z.sepia.proxies.security.TrustedProxies;
+
+/**
+ * Path handler that resolves target handler and access policy of a request in one lookup of a {@link RouteTable}.<br>
+ * The client address is checked against the precompiled allow/deny networks of the route. If the connection comes from
+ * a trusted proxy the client address is taken from 'X-Forwarded-For'/'Forwarded' and set as source address of the exchange,
+ * the protocol from 'X-Forwarded-Proto'. Forwarding headers of other clients are removed, so backends can't be fooled
+ * by them (the proxy handler sets 'X-Forwarded-*' again).<br>
+ * Routes and trusted proxies can be replaced while running (see {@link #update(RouteTable, TrustedProxies)}), a request
+ * always sees one consistent snapshot.
+ */
+public class PathHandlerWithIpFilter implements HttpHandler {
 
-public class PathHandlerWithIpFilter extends PathHandler {
-	
 	private static final Logger logger = LoggerFactory.getLogger(PathHandlerWithIpFilter.class);
 	
-	private final boolean DEFAULT_ALLOW = true;
+	private static final HttpString[] FORWARDING_HEADERS = { Headers.FORWARDED, Headers.X_FORWARDED_FOR, Headers.X_FORWARDED_HOST, 
+			Headers.X_FORWARDED_PROTO, Headers.X_FORWARDED_PORT, Headers.X_FORWARDED_SERVER, new HttpString("X-Forwarded-Prefix"), 
+			new HttpString("X-Real-IP") };
+
 	private boolean debugCalls = true;
+
+	private volatile Snapshot snapshot;
+	private final ProxyMetrics metrics;
 	
-	private Map<String, Boolean> pathPublicAllowed;
+	/**
+	 * Immutable state that is swapped as a whole.
+	 */
+	private static final class Snapshot {
+		final RouteTable routes;
+		final TrustedProxies trustedProxies;
+		
+		Snapshot(RouteTable routes, TrustedProxies trustedProxies){
+			this.routes = routes;
+			this.trustedProxies = trustedProxies;
+		}
+	}
+
+	/**
+	 * Create a new path handler with a table of routes that are (or are not) allowed publicly.<br>
+	 * NOTE: The check for local IP addresses only works if there is no other proxy in front or if that proxy is trusted !!!
+	 * @param routes - compiled routes with access policies
+	 * @param trustedProxies - proxies that can report the client address via headers
+	 */
+	public PathHandlerWithIpFilter(RouteTable routes, TrustedProxies trustedProxies){
+		this(routes, trustedProxies, null);
+	}
+	/**
+	 * Create a new path handler with a table of routes and metrics.
+	 * @param routes - compiled routes with access policies and metrics
+	 * @param trustedProxies - proxies that can report the client address via headers
+	 * @param metrics - counts requests without route or null
+	 */
+	public PathHandlerWithIpFilter(RouteTable routes, TrustedProxies trustedProxies, ProxyMetrics metrics){
+		this.snapshot = new Snapshot(routes, trustedProxies);
+		this.metrics = metrics;
+	}
 	
 	/**
-	 * Create a new path handler with a map of paths that are (or are not) allowed publicly.<br>
-	 * NOTE: The check for local IP addresses only works if there is no other proxy in front !!!
-	 * @param pathPublicAllowed
+	 * Replace routes and trusted proxies. Requests in progress finish with the previous state.
+	 * @param routes - new compiled routes
+	 * @param trustedProxies - new trusted proxies
 	 */
-	public PathHandlerWithIpFilter(Map<String, Boolean> pathPublicAllowed){
-		this.pathPublicAllowed = pathPublicAllowed;
+	public void update(RouteTable routes, TrustedProxies trustedProxies){
+		this.snapshot = new Snapshot(routes, trustedProxies);
 	}
 	
+	/**
+	 * Currently active routes.
+	 */
+	public RouteTable getRoutes(){
+		return snapshot.routes;
+	}
+
     @Override
     public void handleRequest(HttpServerExchange exchange) throws Exception {
-    	InetSocketAddress peer = exchange.getSourceAddress();
+    	Snapshot current = snapshot;
     	String path = exchange.getRelativePath();
-    	boolean isAllowed = isAllowed(peer.getAddress(), path);
-    	if (debugCalls){
-    		logger.debug("Peer: " + peer.getAddress().toString() + " - path: " + path + " - isAllowed: " + isAllowed);
+    	Route route = current.routes.match(path);
+    	if (route == null){
+    		if (metrics != null){
+    			metrics.recordUnmatched();
+    		}
+    		exchange.setStatusCode(StatusCodes.NOT_FOUND);
+            exchange.endExchange();
+            return;
     	}
-    	
+    	RouteMetrics routeMetrics = route.getMetrics();
+    	if (routeMetrics != null){
+    		routeMetrics.start(exchange);
+    	}
+    	InetSocketAddress peer = exchange.getSourceAddress();
+    	IpAddress client = IpAddress.get();
+    	client.set(peer.getAddress());
+    	HeaderMap headers = exchange.getRequestHeaders();
+    	if (current.trustedProxies.resolve(headers, client, client)){
+    		//backends and later handlers should see the real client
+    		exchange.setSourceAddress(new InetSocketAddress(client.toInetAddress(), 0));
+    		String proto = headers.getFirst(Headers.X_FORWARDED_PROTO);
+    		if ("https".equalsIgnoreCase(proto)){
+    			exchange.setRequestScheme("https");
+    		}else if ("http".equalsIgnoreCase(proto)){
+    			exchange.setRequestScheme("http");
+    		}
+    	}else if (!current.trustedProxies.isTrusted(client)){
+    		for (HttpString h : FORWARDING_HEADERS){
+    			headers.remove(h);
+    		}
+    	}
+    	boolean isAllowed = route.getPolicy().isAllowed(client);
+    	if (debugCalls && logger.isDebugEnabled()){
+    		logger.debug("Peer: " + peer.getAddress().toString() + " - client: " + client + " - path: " + path + " - isAllowed: " + isAllowed);
+    	}
+
     	if (!isAllowed){
             exchange.setStatusCode(StatusCodes.FORBIDDEN);
             exchange.endExchange();
             return;
         }
-    	super.handleRequest(exchange);
-    }
-    
-    //Check if the path is restricted and if so check if address is local address 
-    private boolean isAllowed(InetAddress address, String path) {
-    	boolean isPublic = pathPublicAllowed.getOrDefault(path, DEFAULT_ALLOW);
-    	if (!isPublic){
-    		return  (address.isSiteLocalAddress() || 
-    	             address.isAnyLocalAddress()  || 
-    	             address.isLinkLocalAddress() || 
-    	             address.isLoopbackAddress()  || 
-    	             address.isMulticastAddress()); 		//TODO: is that secure enough?
+
+    	//same as PathHandler: pass on the remaining path
+    	int matched = route.getMatchLength();
+    	exchange.setRelativePath(path.substring(matched));
+    	if (exchange.getResolvedPath().isEmpty()){
+    		exchange.setResolvedPath(path.substring(0, matched));
     	}else{
-    		return true;
+    		exchange.setResolvedPath(exchange.getResolvedPath() + path.substring(0, matched));
     	}
+    	route.getHandler().handleRequest(exchange);
     }
 
 }
@@ -0,0 +1,31 @@
+package net.b07z.sepia.proxies.handlers;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Access to virtual threads (Java 21+). This is the fallback for older Java versions, the multi-release jar
+ * contains a second version of this class (src/main/java21) that is used when the JVM supports virtual threads.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class VirtualThreads {
+	
+	private VirtualThreads(){}
+	
+	/**
+	 * True if this JVM can run tasks on virtual threads.
+	 */
+	public static boolean isSupported(){
+		return false;
+	}
+	
+	/**
+	 * Executor that starts a new virtual thread per task.
+	 * @param namePrefix - prefix of thread names, e.g. "proxy-vt-"
+	 * @return executor or null if virtual threads are not supported
+	 */
+	public static ExecutorService newExecutor(String namePrefix){
+		return null;
+	}
+}
@@ -0,0 +1,124 @@
+package net.b07z.sepia.proxies.headers;
+
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+
+import org.xnio.conduits.StreamSinkConduit;
+
+import io.undertow.server.ConduitWrapper;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.ConduitFactory;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.Headers;
+
+/**
+ * Header handling of a route in front of the proxy handler: request rules, 'Host' header, RFC 7239 'Forwarded' header
+ * and, when the response starts, response rules and 'Location' rewrite of redirects (30x).<br>
+ * Request headers are changed on the exchange, the proxy handler copies them and adds 'X-Forwarded-*' afterwards.
+ * The handler itself is the response wrapper, so a request only allocates the header values it creates.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class HeaderRewriteHandler implements HttpHandler, ConduitWrapper<StreamSinkConduit> {
+
+	private static final ThreadLocal<StringBuilder> FORWARDED = ThreadLocal.withInitial(() -> new StringBuilder(96));
+
+	private final HeaderRules requestRules;
+	private final HeaderRules responseRules;
+	private final String host;				//fixed 'Host' header or null
+	private final boolean forwarded;
+	private final LocationRewriter locations;	//null: no rewrite
+	private final HttpHandler next;
+
+	/**
+	 * Create handler.
+	 * @param requestRules - rules for headers sent to the backend
+	 * @param responseRules - rules for headers sent to the client
+	 * @param host - fixed 'Host' header for the backend (original goes to 'X-Forwarded-Host') or null to keep it
+	 * @param forwarded - add a 'Forwarded' header (RFC 7239) with client address, host and protocol
+	 * @param locations - rewrite of redirect locations or null
+	 * @param next - proxy handler
+	 */
+	public HeaderRewriteHandler(HeaderRules requestRules, HeaderRules responseRules, String host, boolean forwarded,
+			LocationRewriter locations, HttpHandler next){
+		this.requestRules = requestRules;
+		this.responseRules = responseRules;
+		this.host = host;
+		this.forwarded = forwarded;
+		this.locations = locations;
+		this.next = next;
+	}
+
+	@Override
+	public void handleRequest(HttpServerExchange exchange) throws Exception {
+		HeaderMap headers = exchange.getRequestHeaders();
+		if (forwarded){
+			headers.add(Headers.FORWARDED, forwardedElement(exchange));
+		}
+		if (host != null){
+			String original = headers.getFirst(Headers.HOST);
+			if (original != null && !headers.contains(Headers.X_FORWARDED_HOST)){
+				headers.put(Headers.X_FORWARDED_HOST, original);
+			}
+			headers.put(Headers.HOST, host);
+		}
+		requestRules.apply(headers);
+		if (locations != null || !responseRules.isEmpty()){
+			exchange.addResponseWrapper(this);
+		}
+		next.handleRequest(exchange);
+	}
+
+	/**
+	 * Element of this hop, e.g.: for=192.0.2.43;host=example.com;proto=https or for="[2001:db8::1]";host="example.com:8443";proto=http
+	 * - 'for' and 'proto' describe the connection to the proxy (a trusted proxy in front has its own element already).
+	 */
+	private static String forwardedElement(HttpServerExchange exchange){
+		StringBuilder sb = FORWARDED.get();
+		sb.setLength(0);
+		InetSocketAddress client = exchange.getConnection().getPeerAddress(InetSocketAddress.class);
+		sb.append("for=");
+		if (client == null || client.getAddress() == null){
+			sb.append("unknown");
+		}else if (client.getAddress() instanceof Inet6Address){
+			sb.append("\"[").append(client.getAddress().getHostAddress()).append("]\"");
+		}else{
+			sb.append(client.getAddress().getHostAddress());
+		}
+		String host = exchange.getRequestHeaders().getFirst(Headers.HOST);
+		if (host != null && !host.isEmpty()){
+			boolean quote = host.indexOf(':') >= 0 || host.indexOf('[') >= 0;
+			sb.append(";host=");
+			if (quote){
+				sb.append('"').append(host).append('"');
+			}else{
+				sb.append(host);
+			}
+		}
+		sb.append(";proto=").append((exchange.getConnection().getSslSessionInfo() != null)? "https" : "http");
+		return sb.toString();
+	}
+
+	/**
+	 * Response starts: headers of the backend are on the exchange.
+	 */
+	@Override
+	public StreamSinkConduit wrap(ConduitFactory<StreamSinkConduit> factory, HttpServerExchange exchange){
+		HeaderMap headers = exchange.getResponseHeaders();
+		if (locations != null && exchange.getStatusCode() >= 300 && exchange.getStatusCode() < 400){
+			String location = headers.getFirst(Headers.LOCATION);
+			if (location != null){
+				//host the client used
+				String host = exchange.getRequestHeaders().getFirst((this.host != null)? Headers.X_FORWARDED_HOST : Headers.HOST);
+				String rewritten = locations.rewrite(location, host);
+				if (rewritten != location){
+					headers.put(Headers.LOCATION, rewritten);
+				}
+			}
+		}
+		responseRules.apply(headers);
+		return factory.create();
+	}
+}
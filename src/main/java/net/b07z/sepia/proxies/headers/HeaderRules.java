@@ -0,0 +1,160 @@
+package net.b07z.sepia.proxies.headers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.undertow.util.HeaderMap;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.HttpString;
+
+/**
+ * Header rules of a route, compiled once and applied in a single pass over the rules. Header names are
+ * preallocated {@link HttpString}s, so applying rules only allocates the values that a rewrite actually changes.<br>
+ * Rules are separated by '|' and applied in order:
+ * <ul>
+ * <li>'Name: value' - set header (replaces all values)</li>
+ * <li>'+Name: value' - add value</li>
+ * <li>'-Name' - remove header</li>
+ * <li>'~Name: search => replacement' - replace text in all values, e.g. '~Set-Cookie: Path=/ => Path=/sepia/stt/'</li>
+ * </ul>
+ * Example: "X-Service: stt | -Cookie | +Via: 1.1 sepia-proxy"
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class HeaderRules {
+
+	public static final HeaderRules NONE = new HeaderRules(new byte[0], new HttpString[0], new String[0], new String[0], "");
+
+	private static final byte SET = 0;
+	private static final byte ADD = 1;
+	private static final byte REMOVE = 2;
+	private static final byte REWRITE = 3;
+
+	private final byte[] ops;
+	private final HttpString[] names;
+	private final String[] values;			//value to set or add, text to search for rewrites
+	private final String[] replacements;	//rewrites only
+	private final String source;
+
+	private HeaderRules(byte[] ops, HttpString[] names, String[] values, String[] replacements, String source){
+		this.ops = ops;
+		this.names = names;
+		this.values = values;
+		this.replacements = replacements;
+		this.source = source;
+	}
+
+	/**
+	 * Compile rules, e.g. "X-Service: stt | -Cookie | +Via: 1.1 sepia-proxy | ~Set-Cookie: Path=/ => Path=/stt/".
+	 * @param rules - rules separated by '|' (null or empty for none)
+	 * @return compiled rules or {@link #NONE}
+	 * @throws IllegalArgumentException on invalid rules
+	 */
+	public static HeaderRules parse(String rules){
+		if (rules == null || rules.trim().isEmpty()){
+			return NONE;
+		}
+		List<String> entries = new ArrayList<>();
+		for (String e : rules.split("\\|")){
+			if (!e.trim().isEmpty()){
+				entries.add(e.trim());
+			}
+		}
+		int n = entries.size();
+		byte[] ops = new byte[n];
+		HttpString[] names = new HttpString[n];
+		String[] values = new String[n];
+		String[] replacements = new String[n];
+		for (int i = 0; i < n; i++){
+			String e = entries.get(i);
+			char first = e.charAt(0);
+			byte op = (first == '+')? ADD : (first == '-')? REMOVE : (first == '~')? REWRITE : SET;
+			if (op != SET){
+				e = e.substring(1).trim();
+			}
+			int colon = e.indexOf(':');
+			String name = ((op == REMOVE || colon < 0)? e : e.substring(0, colon)).trim();
+			if (name.isEmpty() || !isToken(name)){
+				throw new IllegalArgumentException("Invalid header name in rule: " + entries.get(i));
+			}
+			if (op != REMOVE){
+				if (colon < 0){
+					throw new IllegalArgumentException("Header rule needs 'Name: value': " + entries.get(i));
+				}
+				String value = e.substring(colon + 1).trim();
+				if (op == REWRITE){
+					int arrow = value.indexOf("=>");
+					if (arrow < 0 || value.substring(0, arrow).trim().isEmpty()){
+						throw new IllegalArgumentException("Rewrite rule needs 'Name: search => replacement': " + entries.get(i));
+					}
+					replacements[i] = value.substring(arrow + 2).trim();
+					value = value.substring(0, arrow).trim();
+				}
+				if (value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0){
+					throw new IllegalArgumentException("Line break in header rule: " + entries.get(i));
+				}
+				values[i] = value;
+			}
+			ops[i] = op;
+			names[i] = HttpString.tryFromString(name);
+		}
+		return new HeaderRules(ops, names, values, replacements, rules.trim());
+	}
+
+	private static boolean isToken(String name){
+		for (int i = 0; i < name.length(); i++){
+			char c = name.charAt(i);
+			if (c <= ' ' || c >= 127 || "\"(),/:;<=>?@[\\]{}".indexOf(c) >= 0){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean isEmpty(){
+		return ops.length == 0;
+	}
+
+	/**
+	 * Apply all rules to the headers.
+	 */
+	public void apply(HeaderMap headers){
+		for (int i = 0; i < ops.length; i++){
+			switch (ops[i]){
+				case SET:
+					headers.put(names[i], values[i]);
+					break;
+				case ADD:
+					headers.add(names[i], values[i]);
+					break;
+				case REMOVE:
+					headers.remove(names[i]);
+					break;
+				default:
+					HeaderValues hv = headers.get(names[i]);
+					if (hv != null){
+						for (int j = 0; j < hv.size(); j++){
+							String v = hv.get(j);
+							if (v.indexOf(values[i]) >= 0){
+								hv.set(j, v.replace(values[i], replacements[i]));
+							}
+						}
+					}
+			}
+		}
+	}
+
+	@Override
+	public boolean equals(Object other){
+		return other instanceof HeaderRules && ((HeaderRules) other).source.equals(source);
+	}
+	@Override
+	public int hashCode(){
+		return source.hashCode();
+	}
+	@Override
+	public String toString(){
+		return source;
+	}
+}
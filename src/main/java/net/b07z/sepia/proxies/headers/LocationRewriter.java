@@ -0,0 +1,130 @@
+package net.b07z.sepia.proxies.headers;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Maps 'Location' headers of backend redirects back to the proxy path, e.g. for the route '/sepia/stt' with target
+ * 'http://localhost:20741/stt' the backend redirect 'http://localhost:20741/stt/done' becomes '/sepia/stt/done'.<br>
+ * Handled are absolute URLs of a backend (become relative to the proxy), absolute URLs with the Host the client used
+ * (keep scheme and host) and absolute paths. Locations outside of the target path or of other hosts stay unchanged,
+ * as well as paths that start with the route path already.
+ * Prefixes are prepared once, a rewrite only allocates the new value.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class LocationRewriter {
+
+	private final String routePath;			//without trailing slash
+	private final String[] origins;			//scheme://host:port of backends, lower case
+	private final String[] targetPaths;		//path of the backend, "" for root - same index as origins
+	private final String[] paths;			//distinct target paths, longest first
+
+	/**
+	 * Prepare the rewrite of a route.
+	 * @param routePath - path of the proxy route, e.g. "/sepia/stt"
+	 * @param targets - backend URIs of the route, e.g. "http://localhost:20741/stt"
+	 */
+	public LocationRewriter(String routePath, Collection<URI> targets){
+		this.routePath = trimSlash(routePath);
+		List<String> origins = new ArrayList<>();
+		List<String> targetPaths = new ArrayList<>();
+		List<String> paths = new ArrayList<>();
+		for (URI u : targets){
+			String path = trimSlash((u.getRawPath() == null)? "" : u.getRawPath());
+			String scheme = u.getScheme().toLowerCase();
+			String host = u.getHost().toLowerCase();
+			if (host.indexOf(':') >= 0 && !host.startsWith("[")){
+				host = "[" + host + "]";
+			}
+			int defaultPort = scheme.equals("https")? 443 : 80;
+			int port = (u.getPort() > 0)? u.getPort() : defaultPort;
+			origins.add(scheme + "://" + host + ":" + port);
+			targetPaths.add(path);
+			if (port == defaultPort){
+				origins.add(scheme + "://" + host);
+				targetPaths.add(path);
+			}
+			if (!paths.contains(path)){
+				paths.add(path);
+			}
+		}
+		paths.sort((a, b) -> b.length() - a.length());
+		this.origins = origins.toArray(new String[0]);
+		this.targetPaths = targetPaths.toArray(new String[0]);
+		this.paths = paths.toArray(new String[0]);
+	}
+
+	private static String trimSlash(String path){
+		return path.endsWith("/")? path.substring(0, path.length() - 1) : path;
+	}
+
+	/**
+	 * Rewrite a location.
+	 * @param location - value of the 'Location' header
+	 * @param host - 'Host' header of the client request (can be null)
+	 * @return new location or the same instance if it doesn't point to the backend
+	 */
+	public String rewrite(String location, String host){
+		//backend URL
+		for (int i = 0; i < origins.length; i++){
+			String o = origins[i];
+			if (location.regionMatches(true, 0, o, 0, o.length()) && isPathStart(location, o.length())){
+				String path = mapPath(location, o.length(), targetPaths[i]);
+				return (path != null)? path : location;
+			}
+		}
+		int start = -1;
+		if (location.startsWith("/") && !location.startsWith("//")){
+			start = 0;
+		}else if (host != null && !host.isEmpty()){
+			int schemeEnd = location.startsWith("https://")? 8 : location.startsWith("http://")? 7 : -1;
+			if (schemeEnd > 0 && location.regionMatches(true, schemeEnd, host, 0, host.length())
+					&& isPathStart(location, schemeEnd + host.length())){
+				start = schemeEnd + host.length();
+			}
+		}
+		if (start < 0){
+			return location;
+		}
+		for (String p : paths){
+			String path = mapPath(location, start, p);
+			if (path != null){
+				return (start == 0)? path : (location.substring(0, start) + path);
+			}
+		}
+		return location;
+	}
+
+	private static boolean isPathStart(String s, int i){
+		if (i >= s.length()){
+			return true;
+		}
+		char c = s.charAt(i);
+		return c == '/' || c == '?' || c == '#';
+	}
+
+	/**
+	 * Replace the target path at 'start' with the route path or return null if the location is outside of it.
+	 * Paths that start with the route path already (backend knows the proxy path) are not mapped again.
+	 */
+	private String mapPath(String location, int start, String targetPath){
+		if (!routePath.isEmpty() && location.startsWith(routePath, start) && isPathStart(location, start + routePath.length())){
+			return (start == 0)? location : location.substring(start);
+		}
+		if (!location.startsWith(targetPath, start) || !isPathStart(location, start + targetPath.length())){
+			return null;
+		}
+		int rest = start + targetPath.length();
+		if (rest >= location.length()){
+			return routePath.isEmpty()? "/" : routePath;
+		}
+		if (location.charAt(rest) != '/' && routePath.isEmpty()){
+			return "/" + location.substring(rest);
+		}
+		return routePath + location.substring(rest);
+	}
+}
@@ -0,0 +1,228 @@
+package net.b07z.sepia.proxies.limits;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+
+/**
+ * Concurrency limit of a route that adapts to the observed upstream latency (gradient algorithm):<br>
+ * Every window the average latency (short-term) is compared to a slowly moving average (long-term).
+ * While latency is stable and the limit is used, the limit grows by about sqrt(limit), when latency rises it shrinks
+ * proportionally and on upstream errors (502, 503, 504) it shrinks by 10%.<br>
+ * Requests above the limit can wait in a small queue (sqrt(limit) entries) for a short time, otherwise they are rejected.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class AdaptiveLimiter {
+
+	private static final int MIN_LIMIT = 2;
+	private static final double TOLERANCE = 1.5;		//latency increase that is still accepted
+	private static final double SMOOTHING = 0.2;
+	private static final long MIN_WINDOW = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final int MIN_WINDOW_SAMPLES = 5;
+	
+	private final LimiterGroup group;
+	private final int initialLimit;
+	private final int maxLimit;
+	private final Priority priority;
+	
+	private volatile int limit;
+	private final AtomicInteger inflight = new AtomicInteger();
+	private final AtomicInteger maxInflight = new AtomicInteger();
+	private final LongAdder rejected = new LongAdder();
+	
+	//guarded by this
+	private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+	private double exactLimit;
+	private double longRtt = 0;
+	private long windowStart = System.nanoTime();
+	private long windowSum = 0;
+	private int windowCount = 0;
+	private boolean windowDropped = false;
+	
+	/**
+	 * Request that waits for a free slot. Claimed exactly once, either by a released slot or by its timeout.
+	 */
+	private static final class Waiter extends AtomicBoolean {
+		private static final long serialVersionUID = 1L;
+		final HttpServerExchange exchange;
+		final HttpHandler onAdmit;
+		
+		Waiter(HttpServerExchange exchange, HttpHandler onAdmit){
+			this.exchange = exchange;
+			this.onAdmit = onAdmit;
+		}
+		boolean claim(){
+			return compareAndSet(false, true);
+		}
+	}
+	
+	AdaptiveLimiter(LimiterGroup group, int initialLimit, Priority priority){
+		this.group = group;
+		this.initialLimit = initialLimit;
+		this.maxLimit = Math.max(initialLimit * 10, 100);
+		this.priority = priority;
+		this.limit = Math.max(MIN_LIMIT, initialLimit);
+		this.exactLimit = this.limit;
+	}
+	
+	/**
+	 * Take a slot if the route and the group are below their limits.
+	 * @return true if the request can start, it then has to call {@link #release(long, boolean)} when done
+	 */
+	public boolean tryAcquire(){
+		if (!group.admits(priority)){
+			return false;
+		}
+		while (true){
+			int n = inflight.get();
+			if (n >= limit){
+				return false;
+			}
+			if (inflight.compareAndSet(n, n + 1)){
+				group.inflight.incrementAndGet();
+				if (n + 1 > maxInflight.get()){
+					maxInflight.accumulateAndGet(n + 1, Math::max);
+				}
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Free a slot and use the request as sample for the limit.
+	 * @param rttNanos - time from start to completed response
+	 * @param dropped - true if the upstream failed or was overloaded
+	 */
+	public void release(long rttNanos, boolean dropped){
+		inflight.decrementAndGet();
+		group.inflight.decrementAndGet();
+		sample(rttNanos, dropped);
+		drain();
+	}
+	
+	private void releaseUnused(){
+		inflight.decrementAndGet();
+		group.inflight.decrementAndGet();
+	}
+	
+	/**
+	 * Count a rejected request.
+	 */
+	public void recordRejected(){
+		rejected.increment();
+	}
+	
+	/**
+	 * True if a request can wait for a slot (not for low priority routes and only while the queue is short).
+	 */
+	public synchronized boolean canQueue(){
+		return priority != Priority.LOW && queue.size() < Math.max(1, (int) Math.sqrt(limit));
+	}
+	
+	/**
+	 * Wait for a free slot. Has to be called from a dispatch task of the exchange.
+	 * @param exchange - waiting request
+	 * @param onAdmit - handler to continue with when a slot is free (slot is already taken)
+	 * @param onTimeout - handler to continue with when no slot got free in time
+	 * @param timeoutMs - max. waiting time
+	 */
+	public void enqueue(HttpServerExchange exchange, HttpHandler onAdmit, HttpHandler onTimeout, long timeoutMs){
+		Waiter w = new Waiter(exchange, onAdmit);
+		synchronized (this){
+			queue.add(w);
+		}
+		exchange.getIoThread().executeAfter(() -> {
+			if (w.claim()){
+				synchronized (this){
+					queue.remove(w);
+				}
+				exchange.dispatch(exchange.getIoThread(), onTimeout);
+			}
+		}, timeoutMs, TimeUnit.MILLISECONDS);
+		drain();		//a slot might have been freed in the meantime
+	}
+	
+	/**
+	 * Hand free slots to waiting requests.
+	 */
+	private void drain(){
+		while (true){
+			Waiter w;
+			synchronized (this){
+				w = queue.peek();
+				if (w == null || !tryAcquire()){
+					return;
+				}
+				queue.poll();
+			}
+			if (w.claim()){
+				w.exchange.dispatch(w.exchange.getIoThread(), w.onAdmit);
+			}else{
+				releaseUnused();	//timed out in the meantime
+			}
+		}
+	}
+	
+	private synchronized void sample(long rttNanos, boolean dropped){
+		windowSum += rttNanos;
+		windowCount++;
+		windowDropped |= dropped;
+		long now = System.nanoTime();
+		if (now - windowStart < MIN_WINDOW || (windowCount < MIN_WINDOW_SAMPLES && now - windowStart < MIN_WINDOW * 10)){
+			return;
+		}
+		double shortRtt = (double) windowSum / windowCount;
+		int utilized = maxInflight.getAndSet(inflight.get());
+		double newLimit;
+		if (windowDropped){
+			newLimit = exactLimit * 0.9;
+		}else{
+			if (longRtt == 0){
+				longRtt = shortRtt;
+			}else{
+				longRtt = longRtt * 0.95 + shortRtt * 0.05;
+				if (longRtt > shortRtt * 2){
+					longRtt *= 0.95;		//recover faster after a latency spike
+				}
+			}
+			double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+			double queueSize = (utilized * 2 >= exactLimit)? Math.sqrt(exactLimit) : 0;		//grow only if the limit is used
+			newLimit = exactLimit * (1 - SMOOTHING) + (exactLimit * gradient + queueSize) * SMOOTHING;
+		}
+		exactLimit = Math.max(MIN_LIMIT, Math.min(maxLimit, newLimit));
+		limit = (int) exactLimit;
+		windowStart = now;
+		windowSum = 0;
+		windowCount = 0;
+		windowDropped = false;
+	}
+	
+	public int getLimit(){
+		return limit;
+	}
+	public int getInitialLimit(){
+		return initialLimit;
+	}
+	public int getInflight(){
+		return inflight.get();
+	}
+	public Priority getPriority(){
+		return priority;
+	}
+	public long getRejected(){
+		return rejected.sum();
+	}
+	/**
+	 * Requests waiting for a slot.
+	 */
+	public synchronized int getQueued(){
+		return queue.size();
+	}
+}
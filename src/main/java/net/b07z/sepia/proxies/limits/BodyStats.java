@@ -0,0 +1,49 @@
+package net.b07z.sepia.proxies.limits;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request body (upload) counters of one route, updated by {@link RequestBodyHandler}.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class BodyStats {
+
+	final LongAdder active = new LongAdder();
+	final LongAdder bytesInFlight = new LongAdder();
+	final LongAdder bytes = new LongAdder();
+	final LongAdder tooLarge = new LongAdder();
+	final LongAdder timedOut = new LongAdder();
+
+	/**
+	 * Uploads in progress (body not completely received yet).
+	 */
+	public long getActive(){
+		return active.sum();
+	}
+	/**
+	 * Bytes received so far by uploads in progress.
+	 */
+	public long getBytesInFlight(){
+		return bytesInFlight.sum();
+	}
+	/**
+	 * Body bytes received in total.
+	 */
+	public long getBytes(){
+		return bytes.sum();
+	}
+	/**
+	 * Requests rejected with 413 because the body was too large.
+	 */
+	public long getTooLarge(){
+		return tooLarge.sum();
+	}
+	/**
+	 * Uploads aborted with 408 because the client was too slow.
+	 */
+	public long getTimedOut(){
+		return timedOut.sum();
+	}
+}
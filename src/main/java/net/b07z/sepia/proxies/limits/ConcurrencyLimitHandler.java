@@ -0,0 +1,85 @@
+package net.b07z.sepia.proxies.limits;
+
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.SameThreadExecutor;
+import io.undertow.util.StatusCodes;
+
+/**
+ * Lets requests of a route pass while its {@link AdaptiveLimiter} has free slots. Others wait shortly in the
+ * limiter's queue or are rejected right away with '503 Service Unavailable' and 'Retry-After'.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class ConcurrencyLimitHandler implements HttpHandler {
+	
+	private final AdaptiveLimiter limiter;
+	private final HttpHandler next;
+	private final long queueTimeoutMs;
+	private final String retryAfter;
+	
+	private final HttpHandler admitted = this::admitted;
+	private final HttpHandler rejected = this::reject;
+	
+	/**
+	 * Create handler.
+	 * @param limiter - limiter of the route
+	 * @param next - handler of admitted requests
+	 * @param queueTimeoutMs - max. time a request waits for a free slot (0: never wait)
+	 * @param retryAfterSec - value of 'Retry-After' header of rejected requests
+	 */
+	public ConcurrencyLimitHandler(AdaptiveLimiter limiter, HttpHandler next, long queueTimeoutMs, int retryAfterSec){
+		this.limiter = limiter;
+		this.next = next;
+		this.queueTimeoutMs = queueTimeoutMs;
+		this.retryAfter = String.valueOf(retryAfterSec);
+	}
+
+	@Override
+	public void handleRequest(HttpServerExchange exchange) throws Exception {
+		if (limiter.tryAcquire()){
+			admitted(exchange);
+		}else if (queueTimeoutMs > 0 && limiter.canQueue()){
+			exchange.dispatch(SameThreadExecutor.INSTANCE, () -> limiter.enqueue(exchange, admitted, rejected, queueTimeoutMs));
+		}else{
+			reject(exchange);
+		}
+	}
+	
+	private void admitted(HttpServerExchange exchange) throws Exception {
+		exchange.addExchangeCompleteListener(new Permit(System.nanoTime()));
+		next.handleRequest(exchange);
+	}
+	
+	private void reject(HttpServerExchange exchange){
+		limiter.recordRejected();
+		exchange.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+		exchange.getResponseHeaders().put(Headers.RETRY_AFTER, retryAfter);
+		exchange.endExchange();
+	}
+	
+	/**
+	 * Slot of an admitted request, returned when the exchange is complete.
+	 */
+	private final class Permit implements ExchangeCompletionListener {
+		private final long start;
+		
+		Permit(long start){
+			this.start = start;
+		}
+
+		@Override
+		public void exchangeEvent(HttpServerExchange exchange, NextListener nextListener){
+			try{
+				int status = exchange.getStatusCode();
+				boolean dropped = status == StatusCodes.BAD_GATEWAY || status == StatusCodes.SERVICE_UNAVAILABLE || status == StatusCodes.GATEWAY_TIME_OUT;
+				limiter.release(System.nanoTime() - start, dropped);
+			}finally{
+				nextListener.proceed();
+			}
+		}
+	}
+}
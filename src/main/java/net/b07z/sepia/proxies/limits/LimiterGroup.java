@@ -0,0 +1,67 @@
+package net.b07z.sepia.proxies.limits;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limiters of all routes with an optional total limit. When requests of all routes together get close
+ * to the total limit, routes with lower {@link Priority} are rejected first.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class LimiterGroup {
+
+	private final ConcurrentHashMap<String, AdaptiveLimiter> limiters = new ConcurrentHashMap<>();
+	final AtomicInteger inflight = new AtomicInteger();
+	private volatile int totalLimit;
+	
+	/**
+	 * Create group.
+	 * @param totalLimit - max. requests in progress of all limited routes together, 0 for no total limit
+	 */
+	public LimiterGroup(int totalLimit){
+		this.totalLimit = totalLimit;
+	}
+	
+	public void setTotalLimit(int totalLimit){
+		this.totalLimit = totalLimit;
+	}
+	public int getTotalLimit(){
+		return totalLimit;
+	}
+	
+	/**
+	 * True if a request of given priority can start with respect to the total limit.
+	 */
+	boolean admits(Priority priority){
+		int total = totalLimit;
+		return total <= 0 || inflight.get() < total * priority.getShare();
+	}
+	
+	/**
+	 * Get or create the limiter of a route. An existing limiter is replaced if its settings changed.
+	 * @param key - route identifier
+	 * @param initialLimit - start value of the adaptive limit
+	 * @param priority - priority of the route
+	 */
+	public AdaptiveLimiter limiter(String key, int initialLimit, Priority priority){
+		return limiters.compute(key, (k, l) -> (l != null && l.getInitialLimit() == initialLimit && l.getPriority() == priority)? 
+				l : new AdaptiveLimiter(this, initialLimit, priority));
+	}
+	
+	/**
+	 * Drop limiters of routes that no longer exist.
+	 */
+	public void retain(Set<String> keys){
+		limiters.keySet().retainAll(keys);
+	}
+	
+	/**
+	 * Requests in progress of all limited routes.
+	 */
+	public int getInflight(){
+		return inflight.get();
+	}
+}
@@ -0,0 +1,37 @@
+package net.b07z.sepia.proxies.limits;
+
+/**
+ * Priority of a route when the proxy is close to its total concurrency limit.
+ * Lower priorities are shed first and don't wait in queues.
+ *
+ * @author Florian Quirin
+ *
+ */
+public enum Priority {
+	HIGH(1.0),
+	NORMAL(0.8),
+	LOW(0.5);
+	
+	private final double share;
+	
+	Priority(double share){
+		this.share = share;
+	}
+	
+	/**
+	 * Part of the total limit that requests of this priority can use.
+	 */
+	public double getShare(){
+		return share;
+	}
+	
+	/**
+	 * Parse "high", "normal" or "low" (case insensitive), null or empty is NORMAL.
+	 */
+	public static Priority parse(String value){
+		if (value == null || value.trim().isEmpty()){
+			return NORMAL;
+		}
+		return Priority.valueOf(value.trim().toUpperCase());
+	}
+}
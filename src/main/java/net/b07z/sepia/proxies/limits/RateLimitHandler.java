@@ -0,0 +1,46 @@
+package net.b07z.sepia.proxies.limits;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.StatusCodes;
+import net.b07z.sepia.proxies.security.IpAddress;
+
+/**
+ * Lets requests of a route pass while the client has tokens in its {@link RateLimiter} bucket, others are rejected
+ * with '429 Too Many Requests' and 'Retry-After' before anything else (backend connection, body, cache) is touched.<br>
+ * The client is the source address of the exchange, i.e. the address from 'X-Forwarded-For'/'Forwarded' if the
+ * request came through a trusted proxy.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class RateLimitHandler implements HttpHandler {
+
+	private final RateLimiter limiter;
+	private final HttpHandler next;
+
+	/**
+	 * Create handler.
+	 * @param limiter - limiter of the route
+	 * @param next - handler of allowed requests
+	 */
+	public RateLimitHandler(RateLimiter limiter, HttpHandler next){
+		this.limiter = limiter;
+		this.next = next;
+	}
+
+	@Override
+	public void handleRequest(HttpServerExchange exchange) throws Exception {
+		IpAddress client = IpAddress.get();
+		client.set(exchange.getSourceAddress().getAddress());
+		long waitNanos = limiter.acquire(client);
+		if (waitNanos == 0){
+			next.handleRequest(exchange);
+		}else{
+			exchange.setStatusCode(StatusCodes.TOO_MANY_REQUESTS);
+			exchange.getResponseHeaders().put(Headers.RETRY_AFTER, String.valueOf((waitNanos + 999_999_999L) / 1_000_000_000L));
+			exchange.endExchange();
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package net.b07z.sepia.proxies.limits;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.b07z.sepia.proxies.security.IpAddress;
+
+/**
+ * Token buckets of one route, one per client address. Each bucket is stored as a single timestamp (the time at which
+ * it will be full again, "GCRA"), so a check is one table lookup and a subtraction - no refill task per client.<br>
+ * The table has a fixed size: clients are hashed into sets of {@link #WAYS} slots, guarded by one of {@link #STRIPES}
+ * locks. A slot whose bucket is full again carries no state and is reused. If all slots of a set belong to active
+ * clients, the one closest to a full bucket is replaced (that client gets a fresh bucket). IPv6 clients are counted
+ * by their /64 network, since a single host usually controls the whole prefix.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class RateLimiter {
+
+	static final int WAYS = 8;
+	static final int STRIPES = 64;
+
+	private final double rate;
+	private final int burst;
+	private final long intervalNanos;
+	private final long burstNanos;
+
+	private final long seed = ThreadLocalRandom.current().nextLong();	//clients can't pick addresses that share a set
+	private final int setMask;
+	private final long[] keyHi;
+	private final long[] keyLo;
+	private final long[] full;		//time at which the bucket of a slot is full again (System.nanoTime)
+	private final Object[] locks = new Object[STRIPES];
+
+	private final LongAdder allowed = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder replaced = new LongAdder();
+	private volatile int clients = 0;
+
+	/**
+	 * Create limiter.
+	 * @param rate - requests per second per client
+	 * @param burst - requests a client can send at once after being idle (min. 1)
+	 * @param maxClients - slots of the table (rounded up to a power of 2, min. {@link #WAYS} x {@link #STRIPES})
+	 */
+	public RateLimiter(double rate, int burst, int maxClients){
+		if (rate <= 0){
+			throw new IllegalArgumentException("Rate has to be > 0, was: " + rate);
+		}
+		this.rate = rate;
+		this.burst = Math.max(1, burst);
+		this.intervalNanos = Math.max(1, (long) (1_000_000_000d / rate));
+		this.burstNanos = this.intervalNanos * this.burst;
+		int sets = Integer.highestOneBit(Math.max(STRIPES, (maxClients + WAYS - 1) / WAYS) - 1) << 1;
+		this.setMask = sets - 1;
+		this.keyHi = new long[sets * WAYS];
+		this.keyLo = new long[sets * WAYS];
+		this.full = new long[sets * WAYS];
+		long now = System.nanoTime();
+		for (int i = 0; i < full.length; i++){
+			full[i] = now;
+		}
+		for (int i = 0; i < STRIPES; i++){
+			locks[i] = new Object();
+		}
+	}
+
+	public double getRate(){
+		return rate;
+	}
+	public int getBurst(){
+		return burst;
+	}
+
+	/**
+	 * Take a token from the bucket of a client.
+	 * @return 0 if the request is allowed, else the time in ns until the next token is available
+	 */
+	public long acquire(IpAddress client){
+		long hi = client.getHigh();
+		long lo = client.isV4()? client.getLow() : 0;		//IPv6: /64 network
+		long now = System.nanoTime();
+		int set = index(hi, lo);
+		int base = set * WAYS;
+		long wait;
+		synchronized (locks[set & (STRIPES - 1)]){
+			int slot = -1, free = -1, oldest = -1;
+			for (int i = base; i < base + WAYS; i++){
+				if (full[i] - now <= 0){
+					if (free < 0) free = i;
+				}else if (keyHi[i] == hi && keyLo[i] == lo){
+					slot = i;
+					break;
+				}else if (oldest < 0 || full[i] - full[oldest] < 0){
+					oldest = i;
+				}
+			}
+			long tat;
+			if (slot >= 0){
+				tat = full[slot];
+			}else{
+				if (free >= 0){
+					slot = free;
+				}else{
+					slot = oldest;
+					replaced.increment();
+				}
+				keyHi[slot] = hi;
+				keyLo[slot] = lo;
+				tat = now;
+			}
+			long next = tat + intervalNanos;
+			wait = next - now - burstNanos;
+			if (wait <= 0){
+				full[slot] = next;
+			}
+		}
+		if (wait <= 0){
+			allowed.increment();
+			return 0;
+		}else{
+			rejected.increment();
+			return wait;
+		}
+	}
+
+	/**
+	 * Set of a client, hashed with a random seed (murmur3 finalizer).
+	 */
+	private int index(long hi, long lo){
+		long h = (hi * 0x9e3779b97f4a7c15L) ^ lo ^ seed;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) h & setMask;
+	}
+
+	/**
+	 * Clear slots of clients whose buckets are full again and count the remaining ones. Runs periodically,
+	 * one lock at a time so requests are never blocked for long.
+	 */
+	public void evictIdle(){
+		int active = 0;
+		int sets = setMask + 1;
+		for (int stripe = 0; stripe < STRIPES; stripe++){
+			synchronized (locks[stripe]){
+				long now = System.nanoTime();
+				for (int set = stripe; set < sets; set += STRIPES){
+					for (int i = set * WAYS; i < (set + 1) * WAYS; i++){
+						if (full[i] - now <= 0){
+							keyHi[i] = 0;
+							keyLo[i] = 0;
+						}else{
+							active++;
+						}
+					}
+				}
+			}
+		}
+		clients = active;
+	}
+
+	/**
+	 * Max. number of clients that are tracked at the same time.
+	 */
+	public int getCapacity(){
+		return full.length;
+	}
+	/**
+	 * Clients with a bucket that is not full, counted by the last {@link #evictIdle()}.
+	 */
+	public int getClients(){
+		return clients;
+	}
+	/**
+	 * Requests that got a token.
+	 */
+	public long getAllowed(){
+		return allowed.sum();
+	}
+	/**
+	 * Requests rejected with 429.
+	 */
+	public long getRejected(){
+		return rejected.sum();
+	}
+	/**
+	 * Active clients that lost their bucket because their set of slots was full.
+	 */
+	public long getReplaced(){
+		return replaced.sum();
+	}
+}
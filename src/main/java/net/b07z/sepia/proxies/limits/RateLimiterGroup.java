@@ -0,0 +1,93 @@
+package net.b07z.sepia.proxies.limits;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limiters of all routes plus a background task that periodically clears idle clients from their tables.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class RateLimiterGroup {
+
+	private final ConcurrentHashMap<String, RateLimiter> limiters = new ConcurrentHashMap<>();
+	private volatile int maxClients;
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Create group.
+	 * @param maxClients - clients tracked per route, see {@link RateLimiter#RateLimiter(double, int, int)}
+	 */
+	public RateLimiterGroup(int maxClients){
+		this.maxClients = maxClients;
+	}
+
+	/**
+	 * Set clients tracked per route. Applies to limiters created afterwards.
+	 */
+	public void setMaxClients(int maxClients){
+		this.maxClients = maxClients;
+	}
+
+	/**
+	 * Get or create the limiter of a route. An existing limiter (with its clients) is kept if its settings didn't change.
+	 * @param key - route identifier
+	 * @param rate - requests per second per client
+	 * @param burst - requests a client can send at once
+	 */
+	public RateLimiter limiter(String key, double rate, int burst){
+		return limiters.compute(key, (k, l) -> (l != null && l.getRate() == rate && l.getBurst() == Math.max(1, burst))?
+				l : new RateLimiter(rate, burst, maxClients));
+	}
+
+	/**
+	 * Limiter of a route or null.
+	 */
+	public RateLimiter get(String key){
+		return limiters.get(key);
+	}
+
+	/**
+	 * Drop limiters of routes that no longer exist.
+	 */
+	public void retain(Set<String> keys){
+		limiters.keySet().retainAll(keys);
+	}
+
+	/**
+	 * Start periodic eviction of idle clients.
+	 * @param intervalMs - time between two runs
+	 */
+	public synchronized void start(long intervalMs){
+		if (scheduler != null || intervalMs <= 0) return;
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "proxy-rate-limit-evictor");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.scheduleWithFixedDelay(this::evictIdle, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop periodic eviction.
+	 */
+	public synchronized void stop(){
+		if (scheduler != null){
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Clear idle clients of all routes once.
+	 */
+	public void evictIdle(){
+		for (RateLimiter l : limiters.values()){
+			l.evictIdle();
+		}
+	}
+}
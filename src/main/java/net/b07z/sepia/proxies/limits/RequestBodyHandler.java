@@ -0,0 +1,273 @@
+package net.b07z.sepia.proxies.limits;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.xnio.IoUtils;
+import org.xnio.XnioExecutor;
+import org.xnio.channels.ReadTimeoutException;
+import org.xnio.channels.StreamSinkChannel;
+import org.xnio.conduits.AbstractStreamSourceConduit;
+import org.xnio.conduits.ConduitReadableByteChannel;
+import org.xnio.conduits.StreamSourceConduit;
+
+import io.undertow.server.ConduitWrapper;
+import io.undertow.server.DefaultResponseListener;
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.RequestTooBigException;
+import io.undertow.util.ConduitFactory;
+import io.undertow.util.StatusCodes;
+
+/**
+ * Limits request bodies (uploads) of a route: max. size and max. total/idle time to receive them.<br>
+ * Bodies are never buffered, the proxy streams them through pooled buffers that are released whenever the transfer
+ * waits, and stops reading from the client while the backend doesn't accept more data (backpressure). So slow
+ * uploads cost no buffers, but without timeouts they can keep connections open forever.<br>
+ * Bodies with a larger 'Content-Length' are rejected with '413 Payload Too Large' right away, chunked bodies
+ * when they exceed the limit. Uploads that are too slow are aborted with '408 Request Timeout' (or the connection
+ * is closed if the response already started). Time the backend needs to accept data does not count as idle.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class RequestBodyHandler implements HttpHandler {
+
+	private final BodyStats stats;
+	private final long maxBytes;
+	private final long timeoutNanos;
+	private final long idleNanos;
+	private final HttpHandler next;
+
+	/**
+	 * Create handler.
+	 * @param stats - counters of the route
+	 * @param maxBytes - max. body size (0: no limit)
+	 * @param timeoutMs - max. time to receive the complete body after forwarding started (0: no limit)
+	 * @param idleTimeoutMs - max. time without any data from the client (0: no limit)
+	 * @param next - handler that forwards the request
+	 */
+	public RequestBodyHandler(BodyStats stats, long maxBytes, long timeoutMs, long idleTimeoutMs, HttpHandler next){
+		this.stats = stats;
+		this.maxBytes = maxBytes;
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+		this.next = next;
+	}
+
+	@Override
+	public void handleRequest(HttpServerExchange exchange) throws Exception {
+		if (exchange.isRequestComplete()){
+			//no body
+			next.handleRequest(exchange);
+			return;
+		}
+		if (maxBytes > 0 && exchange.getRequestContentLength() > maxBytes){
+			stats.tooLarge.increment();
+			exchange.setPersistent(false);
+			exchange.setStatusCode(StatusCodes.REQUEST_ENTITY_TOO_LARGE);
+			exchange.endExchange();
+			return;
+		}
+		Upload upload = new Upload(exchange);
+		exchange.addRequestWrapper(upload);
+		exchange.addExchangeCompleteListener(upload);
+		exchange.addDefaultResponseListener(upload);
+		stats.active.increment();
+		next.handleRequest(exchange);
+	}
+
+	/**
+	 * State of one upload. Reads, timer and completion run on the IO thread of the exchange.
+	 */
+	private final class Upload implements ConduitWrapper<StreamSourceConduit>, Runnable,
+			ExchangeCompletionListener, DefaultResponseListener {
+		private final HttpServerExchange exchange;
+		private BodyConduit conduit;
+		private XnioExecutor.Key timer;
+		private long started;
+		private long lastRead;
+		private long received = 0;
+		private int failure = 0;
+		private boolean reported = false;
+		private boolean done = false;
+
+		Upload(HttpServerExchange exchange){
+			this.exchange = exchange;
+		}
+
+		@Override
+		public StreamSourceConduit wrap(ConduitFactory<StreamSourceConduit> factory, HttpServerExchange exchange){
+			conduit = new BodyConduit(factory.create(), this);
+			started = lastRead = System.nanoTime();
+			long delay = nextCheck(started);
+			if (delay > 0){
+				timer = exchange.getIoThread().executeAfter(this, delay, TimeUnit.NANOSECONDS);
+			}
+			return conduit;
+		}
+
+		/**
+		 * Time until the next timeout check or 0 if there are no timeouts.
+		 */
+		private long nextCheck(long now){
+			long delay = Long.MAX_VALUE;
+			if (timeoutNanos > 0){
+				delay = started + timeoutNanos - now;
+			}
+			if (idleNanos > 0){
+				delay = Math.min(delay, lastRead + idleNanos - now);
+			}
+			return (delay == Long.MAX_VALUE)? 0 : Math.max(1, delay);
+		}
+
+		@Override
+		public void run(){
+			timer = null;
+			if (done){
+				return;
+			}
+			long now = System.nanoTime();
+			if (!conduit.isReadResumed()){
+				lastRead = now;		//waiting for the backend, not the client
+			}
+			if ((timeoutNanos > 0 && now - started >= timeoutNanos) || (idleNanos > 0 && now - lastRead >= idleNanos)){
+				stats.timedOut.increment();
+				fail(StatusCodes.REQUEST_TIME_OUT);
+				if (exchange.isResponseStarted()){
+					IoUtils.safeClose(exchange.getConnection());
+				}else{
+					conduit.wakeupReads();		//next read fails and aborts the transfer
+				}
+			}else{
+				timer = exchange.getIoThread().executeAfter(this, nextCheck(now), TimeUnit.NANOSECONDS);
+			}
+		}
+
+		void received(long res) throws IOException {
+			if (res > 0){
+				received += res;
+				stats.bytes.add(res);
+				stats.bytesInFlight.add(res);
+				if (idleNanos > 0){
+					lastRead = System.nanoTime();
+				}
+				if (maxBytes > 0 && received > maxBytes){
+					stats.tooLarge.increment();
+					fail(StatusCodes.REQUEST_ENTITY_TOO_LARGE);
+					checkFailed();
+				}
+			}else if (res == -1){
+				finish();
+			}
+		}
+
+		/**
+		 * Fail the first read after an abort, so the proxy stops the transfer. Later reads (Undertow draining the 
+		 * request before it sends the error response) see the end of the body, the connection is closed afterwards.
+		 * @return true if the body should end here
+		 */
+		boolean checkFailed() throws IOException {
+			if (failure == 0){
+				return false;
+			}else if (reported){
+				return true;
+			}
+			reported = true;
+			if (failure == StatusCodes.REQUEST_TIME_OUT){
+				throw new ReadTimeoutException("Request body was not received in time");
+			}else{
+				throw new RequestTooBigException("Request body is larger than " + maxBytes + " bytes");
+			}
+		}
+
+		boolean isFailed(){
+			return failure != 0;
+		}
+
+		private void fail(int status){
+			failure = status;
+			exchange.setPersistent(false);
+			finish();
+		}
+
+		private void finish(){
+			if (!done){
+				done = true;
+				if (timer != null){
+					timer.remove();
+					timer = null;
+				}
+				stats.active.decrement();
+				stats.bytesInFlight.add(-received);
+			}
+		}
+
+		@Override
+		public void exchangeEvent(HttpServerExchange exchange, NextListener nextListener){
+			try{
+				finish();
+			}finally{
+				nextListener.proceed();
+			}
+		}
+
+		@Override
+		public boolean handleDefaultResponse(HttpServerExchange exchange){
+			if (failure != 0){
+				//replaces the status of the aborted transfer (usually 500)
+				exchange.setStatusCode(failure);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Counts body bytes and fails reads after the upload was aborted.
+	 */
+	private static final class BodyConduit extends AbstractStreamSourceConduit<StreamSourceConduit> {
+		private final Upload upload;
+
+		BodyConduit(StreamSourceConduit next, Upload upload){
+			super(next);
+			this.upload = upload;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (upload.checkFailed()){
+				return -1;
+			}
+			int res = next.read(dst);
+			upload.received(res);
+			return res;
+		}
+		@Override
+		public long read(ByteBuffer[] dsts, int offs, int len) throws IOException {
+			if (upload.checkFailed()){
+				return -1;
+			}
+			long res = next.read(dsts, offs, len);
+			upload.received(res);
+			return res;
+		}
+		@Override
+		public void terminateReads() throws IOException {
+			if (upload.isFailed()){
+				return;		//keep the connection for the error response, it is closed afterwards
+			}
+			next.terminateReads();
+		}
+		@Override
+		public long transferTo(long position, long count, FileChannel target) throws IOException {
+			return target.transferFrom(new ConduitReadableByteChannel(this), position, count);
+		}
+		@Override
+		public long transferTo(long count, ByteBuffer throughBuffer, StreamSinkChannel target) throws IOException {
+			return IoUtils.transfer(new ConduitReadableByteChannel(this), count, throughBuffer, target);
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package net.b07z.sepia.proxies.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.HttpString;
+import net.b07z.sepia.proxies.balancing.Backend;
+import net.b07z.sepia.proxies.balancing.BackendProxyClient;
+
+/**
+ * Asynchronous access log. Completed requests are copied into a preallocated ring buffer (lock-free, no allocation
+ * on the IO thread) and a background thread writes them in batches as JSON lines to a {@link RotatingFile}.<br>
+ * If the writer can't keep up, new records are dropped (and counted) instead of slowing down requests.
+ * <br><br>
+ * Record example:<br>
+ * {"time":"2026-01-01T12:00:00.123Z","client":"192.168.0.10","method":"GET","path":"/sepia/assist/ping",
+ * "route":"/sepia/assist","backend":"http://localhost:20721","status":200,"bytes_in":0,"bytes":42,"upstream_ms":1.85,"total_ms":2.31}
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class AccessLog implements ExchangeCompletionListener {
+
+	private static final Logger logger = LoggerFactory.getLogger(AccessLog.class);
+
+	private static final int BATCH_CHARS = 32 * 1024;
+
+	/**
+	 * One record, reused when the ring buffer wraps around. The sequence is written last and publishes the record.
+	 */
+	private static final class Slot {
+		volatile long sequence = -1;
+		long time;
+		InetSocketAddress client;
+		HttpString method;
+		String path;
+		Backend backend;
+		int status;
+		long bytesIn;
+		long bytesOut;
+		long upstreamNanos;
+		long totalNanos;
+	}
+
+	private final Slot[] slots;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong();		//next sequence to claim
+	private volatile long tail = 0;							//next sequence to write
+	private final LongAdder dropped = new LongAdder();
+	private volatile long written = 0;
+
+	private final Function<String, String> routeOf;
+	private final RotatingFile file;
+	private final long flushIntervalNanos;
+	private final Thread writer;
+	private volatile boolean running = true;
+
+	private final StringBuilder sb = new StringBuilder(BATCH_CHARS + 1024);
+
+	/**
+	 * Open log file and start writer thread.
+	 * @param file - log file
+	 * @param maxBytes - rotate when file is bigger (0: never)
+	 * @param maxFiles - old files to keep
+	 * @param bufferSize - records the ring buffer can hold (rounded up to a power of 2)
+	 * @param flushIntervalMs - max. time a record waits before it is written
+	 * @param routeOf - route of a request path (resolved by the writer thread) or null
+	 * @throws IOException if the file can't be opened
+	 */
+	public AccessLog(File file, long maxBytes, int maxFiles, int bufferSize, long flushIntervalMs, Function<String, String> routeOf) throws IOException {
+		int size = 2;
+		while (size < bufferSize){
+			size <<= 1;
+		}
+		this.slots = new Slot[size];
+		for (int i = 0; i < size; i++){
+			slots[i] = new Slot();
+		}
+		this.mask = size - 1;
+		this.routeOf = routeOf;
+		this.file = new RotatingFile(file, maxBytes, maxFiles);
+		this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushIntervalMs));
+		this.writer = new Thread(this::writeLoop, "proxy-access-log");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Log this request when it is complete. The request start time has to be recorded by the server (UndertowOptions.RECORD_REQUEST_START_TIME).
+	 */
+	public void start(HttpServerExchange exchange){
+		exchange.addExchangeCompleteListener(this);
+	}
+
+	@Override
+	public void exchangeEvent(HttpServerExchange exchange, NextListener nextListener){
+		try{
+			append(exchange);
+		}finally{
+			nextListener.proceed();
+		}
+	}
+
+	private void append(HttpServerExchange exchange){
+		long seq;
+		do{
+			seq = head.get();
+			if (seq - tail >= slots.length){
+				dropped.increment();
+				return;
+			}
+		}while (!head.compareAndSet(seq, seq + 1));
+
+		Slot s = slots[(int) seq & mask];
+		long now = System.nanoTime();
+		long start = exchange.getRequestStartTime();
+		s.time = System.currentTimeMillis();
+		s.client = exchange.getSourceAddress();
+		s.method = exchange.getRequestMethod();
+		s.path = exchange.getRequestPath();
+		s.backend = BackendProxyClient.getUpstreamBackend(exchange);
+		s.status = exchange.getStatusCode();
+		s.bytesIn = exchange.getRequestContentLength();
+		s.bytesOut = exchange.getResponseBytesSent();
+		s.upstreamNanos = BackendProxyClient.getUpstreamNanos(exchange);
+		s.totalNanos = (start > 0)? (now - start) : -1;
+		s.sequence = seq;
+	}
+
+	private void writeLoop(){
+		while (true){
+			boolean stopping = !running;
+			int n = drain();
+			if (n == 0){
+				if (stopping){
+					break;
+				}
+				LockSupport.parkNanos(flushIntervalNanos);
+			}
+		}
+		try{
+			file.close();
+		}catch (IOException e){
+			logger.error("Could not close access log: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Write all published records.
+	 * @return number of records
+	 */
+	private int drain(){
+		int n = 0;
+		long t = tail;
+		Slot s = slots[(int) t & mask];
+		while (s.sequence == t){
+			format(s);
+			s.client = null;
+			s.method = null;
+			s.path = null;
+			s.backend = null;
+			t++;
+			n++;
+			if (sb.length() >= BATCH_CHARS){
+				tail = t;
+				flush();
+			}
+			s = slots[(int) t & mask];
+		}
+		tail = t;
+		if (sb.length() > 0){
+			flush();
+		}
+		written += n;
+		return n;
+	}
+
+	private void flush(){
+		try{
+			file.write(ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)));
+		}catch (IOException e){
+			logger.error("Could not write access log: " + e.getMessage());
+		}
+		sb.setLength(0);
+	}
+
+	private void format(Slot s){
+		sb.append("{\"time\":\"").append(Instant.ofEpochMilli(s.time)).append('"');
+		if (s.client != null){
+			sb.append(",\"client\":\"").append(s.client.getAddress().getHostAddress()).append('"');
+		}
+		sb.append(",\"method\":\"").append(s.method).append('"');
+		sb.append(",\"path\":");
+		appendString(s.path);
+		String route = (routeOf != null)? routeOf.apply(s.path) : null;
+		if (route != null){
+			sb.append(",\"route\":");
+			appendString(route);
+		}
+		if (s.backend != null){
+			sb.append(",\"backend\":\"").append(s.backend.getUri()).append('"');
+		}
+		sb.append(",\"status\":").append(s.status);
+		sb.append(",\"bytes_in\":").append(Math.max(0, s.bytesIn));
+		sb.append(",\"bytes\":").append(s.bytesOut);
+		if (s.upstreamNanos >= 0){
+			sb.append(",\"upstream_ms\":");
+			appendMillis(s.upstreamNanos);
+		}
+		if (s.totalNanos >= 0){
+			sb.append(",\"total_ms\":");
+			appendMillis(s.totalNanos);
+		}
+		sb.append("}\n");
+	}
+
+	private void appendMillis(long nanos){
+		long micros = nanos / 1000;
+		sb.append(micros / 1000).append('.');
+		long frac = (micros % 1000) / 10;
+		if (frac < 10) sb.append('0');
+		sb.append(frac);
+	}
+
+	private void appendString(String value){
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++){
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\'){
+				sb.append('\\').append(c);
+			}else if (c < 0x20){
+				sb.append(String.format("\\u%04x", (int) c));
+			}else{
+				sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+	/**
+	 * Records dropped because the buffer was full.
+	 */
+	public long getDropped(){
+		return dropped.sum();
+	}
+	/**
+	 * Records written to the file.
+	 */
+	public long getWritten(){
+		return written;
+	}
+
+	/**
+	 * Write remaining records and close the file.
+	 */
+	public void close(){
+		running = false;
+		LockSupport.unpark(writer);
+		try{
+			writer.join(5000);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+}
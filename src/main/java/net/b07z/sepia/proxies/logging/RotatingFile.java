@@ -0,0 +1,81 @@
+package net.b07z.sepia.proxies.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only file that is rotated by size: 'access.log' becomes 'access.log.1', 'access.log.1' becomes 'access.log.2'
+ * and so on, the oldest file is deleted. Not thread-safe, meant for a single writer thread.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class RotatingFile {
+
+	private final File file;
+	private final long maxBytes;
+	private final int maxFiles;
+
+	private FileChannel channel;
+	private long size;
+
+	/**
+	 * Open (append to) file.
+	 * @param file - path of the current file
+	 * @param maxBytes - rotate when the file gets bigger than this (0: never)
+	 * @param maxFiles - number of old files to keep
+	 */
+	public RotatingFile(File file, long maxBytes, int maxFiles) throws IOException {
+		this.file = file;
+		this.maxBytes = maxBytes;
+		this.maxFiles = maxFiles;
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null){
+			dir.mkdirs();
+		}
+		open();
+	}
+
+	private void open() throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		size = channel.size();
+	}
+
+	/**
+	 * Write the buffer (position to limit) completely, rotate first if it doesn't fit anymore.
+	 */
+	public void write(ByteBuffer buffer) throws IOException {
+		if (maxBytes > 0 && size > 0 && size + buffer.remaining() > maxBytes){
+			rotate();
+		}
+		while (buffer.hasRemaining()){
+			size += channel.write(buffer);
+		}
+	}
+
+	private void rotate() throws IOException {
+		channel.close();
+		if (maxFiles <= 0){
+			Files.deleteIfExists(file.toPath());
+		}else{
+			Files.deleteIfExists(new File(file.getPath() + "." + maxFiles).toPath());
+			for (int i = maxFiles - 1; i >= 1; i--){
+				File old = new File(file.getPath() + "." + i);
+				if (old.exists()){
+					Files.move(old.toPath(), new File(file.getPath() + "." + (i + 1)).toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			Files.move(file.toPath(), new File(file.getPath() + ".1").toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		open();
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,37 @@
+package net.b07z.sepia.proxies.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Upstream metrics of one backend: time to get a connection (new or pooled), time from connection to
+ * completed response and failed connection attempts.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class BackendMetrics {
+
+	private final LatencyHistogram connectLatency = new LatencyHistogram();
+	private final LatencyHistogram responseLatency = new LatencyHistogram();
+	private final LongAdder connectFailures = new LongAdder();
+
+	public void recordConnect(long micros){
+		connectLatency.record(micros);
+	}
+	public void recordResponse(long micros){
+		responseLatency.record(micros);
+	}
+	public void recordConnectFailure(){
+		connectFailures.increment();
+	}
+
+	public LatencyHistogram getConnectLatency(){
+		return connectLatency;
+	}
+	public LatencyHistogram getResponseLatency(){
+		return responseLatency;
+	}
+	public long getConnectFailures(){
+		return connectFailures.sum();
+	}
+}
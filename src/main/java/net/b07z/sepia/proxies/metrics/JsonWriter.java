@@ -0,0 +1,104 @@
+package net.b07z.sepia.proxies.metrics;
+
+/**
+ * Minimal streaming JSON writer for status responses. Members are written in call order, commas are added automatically.
+ * Use a null name for values inside arrays and for the root object.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class JsonWriter {
+
+	public static final String CONTENT_TYPE = "application/json; charset=utf-8";
+
+	private final StringBuilder sb = new StringBuilder(4096);
+	private boolean first = true;		//next member is the first of its object or array
+
+	public JsonWriter beginObject(String name){
+		member(name);
+		sb.append('{');
+		first = true;
+		return this;
+	}
+	public JsonWriter endObject(){
+		sb.append('}');
+		first = false;
+		return this;
+	}
+	public JsonWriter beginArray(String name){
+		member(name);
+		sb.append('[');
+		first = true;
+		return this;
+	}
+	public JsonWriter endArray(){
+		sb.append(']');
+		first = false;
+		return this;
+	}
+
+	public JsonWriter value(String name, String value){
+		member(name);
+		if (value == null){
+			sb.append("null");
+		}else{
+			appendString(value);
+		}
+		return this;
+	}
+	public JsonWriter value(String name, long value){
+		member(name);
+		sb.append(value);
+		return this;
+	}
+	/**
+	 * Write a number rounded to 3 decimals (NaN and infinity as null).
+	 */
+	public JsonWriter value(String name, double value){
+		member(name);
+		if (Double.isNaN(value) || Double.isInfinite(value)){
+			sb.append("null");
+		}else if (value == Math.rint(value)){
+			sb.append((long) value);
+		}else{
+			sb.append(Math.round(value * 1000) / 1000.0);
+		}
+		return this;
+	}
+	public JsonWriter value(String name, boolean value){
+		member(name);
+		sb.append(value);
+		return this;
+	}
+
+	private void member(String name){
+		if (!first){
+			sb.append(',');
+		}
+		first = false;
+		if (name != null){
+			appendString(name);
+			sb.append(':');
+		}
+	}
+
+	private void appendString(String value){
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++){
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\'){
+				sb.append('\\').append(c);
+			}else if (c < 0x20){
+				sb.append(String.format("\\u%04x", (int) c));
+			}else{
+				sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+	@Override
+	public String toString(){
+		return sb.toString();
+	}
+}
@@ -0,0 +1,123 @@
+package net.b07z.sepia.proxies.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets (HDR-style): values below 16 get one bucket each,
+ * every power of two above is split into 8 sub-buckets, so the relative error is at most 12.5%.<br>
+ * Counts are striped by thread to keep IO threads from fighting over the same cache lines.
+ * Recording is a bucket calculation plus two atomic adds and never allocates.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;		//8
+	private static final int LINEAR = SUB_BUCKETS * 2;			//16
+	private static final int MAX_EXPONENT = 35;					//values up to 2^36-1 (19h in microseconds)
+	public static final int BUCKETS = LINEAR + (MAX_EXPONENT - SUB_BITS) * SUB_BUCKETS;
+	public static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+	private static final int STRIPES = stripes();
+	private static final int PAD = 8;		//longs per cache line
+
+	private final int mask = STRIPES - 1;
+	private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+	private final AtomicLongArray sums = new AtomicLongArray(STRIPES * PAD);
+
+	private static int stripes(){
+		int cores = Math.min(Runtime.getRuntime().availableProcessors(), 16);
+		int s = 1;
+		while (s < cores){
+			s <<= 1;
+		}
+		return s;
+	}
+
+	/**
+	 * Bucket of a value.
+	 */
+	static int bucket(long value){
+		if (value < LINEAR){
+			return (value < 0)? 0 : (int) value;
+		}
+		if (value > MAX_VALUE){
+			value = MAX_VALUE;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR + (exponent - SUB_BITS - 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Largest value that falls into a bucket.
+	 */
+	public static long upperBound(int bucket){
+		if (bucket < LINEAR){
+			return bucket;
+		}
+		int exponent = (bucket - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+		int sub = (bucket - LINEAR) % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * Record a value, e.g. a latency in microseconds.
+	 */
+	public void record(long value){
+		int stripe = (int) Thread.currentThread().getId() & mask;
+		counts.incrementAndGet(stripe * BUCKETS + bucket(value));
+		sums.addAndGet(stripe * PAD, Math.max(0, value));
+	}
+
+	/**
+	 * Counts per bucket summed over all stripes (not an atomic snapshot, but every value is counted exactly once).
+	 */
+	public long[] getCounts(){
+		long[] result = new long[BUCKETS];
+		for (int s = 0; s < STRIPES; s++){
+			int offset = s * BUCKETS;
+			for (int b = 0; b < BUCKETS; b++){
+				result[b] += counts.get(offset + b);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Sum of all recorded values.
+	 */
+	public long getSum(){
+		long sum = 0;
+		for (int s = 0; s < STRIPES; s++){
+			sum += sums.get(s * PAD);
+		}
+		return sum;
+	}
+
+	/**
+	 * Approximate value at a percentile (upper bound of the bucket).
+	 * @param counts - result of {@link #getCounts()}
+	 * @param percentile - 0-100
+	 */
+	public static long valueAtPercentile(long[] counts, double percentile){
+		long total = 0;
+		for (long c : counts){
+			total += c;
+		}
+		if (total == 0){
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+		long seen = 0;
+		for (int b = 0; b < counts.length; b++){
+			seen += counts[b];
+			if (seen >= rank){
+				return upperBound(b);
+			}
+		}
+		return upperBound(counts.length - 1);
+	}
+}
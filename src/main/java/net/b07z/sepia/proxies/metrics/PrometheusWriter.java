@@ -0,0 +1,110 @@
+package net.b07z.sepia.proxies.metrics;
+
+/**
+ * Minimal writer for the Prometheus text exposition format (version 0.0.4).
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class PrometheusWriter {
+
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	//bucket limits of exported latency histograms in seconds
+	private static final double[] LATENCY_BOUNDS = {
+		0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30
+	};
+
+	private final StringBuilder sb = new StringBuilder(4096);
+
+	/**
+	 * Write HELP and TYPE line of a metric. Call once before the samples of the metric.
+	 * @param name - metric name, e.g. "proxy_requests_total"
+	 * @param type - "counter", "gauge" or "histogram"
+	 * @param help - description
+	 */
+	public PrometheusWriter header(String name, String type, String help){
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		return this;
+	}
+
+	/**
+	 * Write one sample.
+	 * @param name - metric name
+	 * @param labels - labels from {@link #labels(String...)} or null
+	 * @param value - current value
+	 */
+	public PrometheusWriter sample(String name, String labels, double value){
+		sb.append(name);
+		if (labels != null && !labels.isEmpty()){
+			sb.append('{').append(labels).append('}');
+		}
+		sb.append(' ');
+		if (value == Math.rint(value) && !Double.isInfinite(value)){
+			sb.append((long) value);
+		}else{
+			sb.append(value);
+		}
+		sb.append('\n');
+		return this;
+	}
+
+	/**
+	 * Write a histogram of microsecond values as buckets in seconds plus sum and count.
+	 * @param name - metric name without suffix, e.g. "proxy_request_duration_seconds"
+	 * @param labels - labels from {@link #labels(String...)} or null
+	 * @param histogram - recorded values in microseconds
+	 */
+	public PrometheusWriter histogram(String name, String labels, LatencyHistogram histogram){
+		long[] counts = histogram.getCounts();
+		String prefix = (labels == null || labels.isEmpty())? "" : (labels + ",");
+		long cumulative = 0;
+		int b = 0;
+		for (double bound : LATENCY_BOUNDS){
+			long limit = (long) (bound * 1000000);
+			while (b < counts.length && LatencyHistogram.upperBound(b) <= limit){
+				cumulative += counts[b++];
+			}
+			sample(name + "_bucket", prefix + "le=\"" + bound + "\"", cumulative);
+		}
+		while (b < counts.length){
+			cumulative += counts[b++];
+		}
+		sample(name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+		sample(name + "_sum", labels, histogram.getSum() / 1000000.0);
+		sample(name + "_count", labels, cumulative);
+		return this;
+	}
+
+	/**
+	 * Build a label string from name-value pairs, e.g. labels("route", "/sepia", "type", "prefix").
+	 */
+	public static String labels(String... pairs){
+		StringBuilder l = new StringBuilder();
+		for (int i = 0; i + 1 < pairs.length; i += 2){
+			if (l.length() > 0){
+				l.append(',');
+			}
+			l.append(pairs[i]).append("=\"");
+			String value = pairs[i + 1];
+			for (int k = 0; k < value.length(); k++){
+				char c = value.charAt(k);
+				if (c == '\\' || c == '"'){
+					l.append('\\').append(c);
+				}else if (c == '\n'){
+					l.append("\\n");
+				}else{
+					l.append(c);
+				}
+			}
+			l.append('"');
+		}
+		return l.toString();
+	}
+
+	@Override
+	public String toString(){
+		return sb.toString();
+	}
+}
@@ -0,0 +1,43 @@
+package net.b07z.sepia.proxies.metrics;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of route metrics. Metrics of a route survive reloads as long as the route exists.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class ProxyMetrics {
+
+	private final ConcurrentHashMap<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+	private final LongAdder unmatched = new LongAdder();
+
+	/**
+	 * Get or create metrics of a route.
+	 * @param key - route identifier, e.g. "prefix:/sepia"
+	 */
+	public RouteMetrics route(String key){
+		return routes.computeIfAbsent(key, k -> new RouteMetrics());
+	}
+
+	/**
+	 * Drop metrics of routes that no longer exist.
+	 * @param keys - route identifiers that are still in use
+	 */
+	public void retainRoutes(Set<String> keys){
+		routes.keySet().retainAll(keys);
+	}
+
+	/**
+	 * Count a request without matching route (404).
+	 */
+	public void recordUnmatched(){
+		unmatched.increment();
+	}
+	public long getUnmatched(){
+		return unmatched.sum();
+	}
+}
@@ -0,0 +1,77 @@
+package net.b07z.sepia.proxies.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpServerExchange;
+
+/**
+ * Request metrics of one route: requests, status classes, bytes, requests in progress and total latency.<br>
+ * The instance itself is the completion listener of its requests, so tracking a request does not allocate.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class RouteMetrics implements ExchangeCompletionListener {
+
+	final LongAdder requests = new LongAdder();
+	final LongAdder active = new LongAdder();
+	final LongAdder[] statusClasses = { new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder() };
+	final LongAdder bytesIn = new LongAdder();
+	final LongAdder bytesOut = new LongAdder();
+	final LatencyHistogram latency = new LatencyHistogram();
+
+	/**
+	 * Track a request of this route until it is complete.
+	 * Latency is measured from request start if the server records it (UndertowOptions.RECORD_REQUEST_START_TIME).
+	 */
+	public void start(HttpServerExchange exchange){
+		requests.increment();
+		active.increment();
+		long length = exchange.getRequestContentLength();
+		if (length > 0){
+			bytesIn.add(length);
+		}
+		exchange.addExchangeCompleteListener(this);
+	}
+
+	@Override
+	public void exchangeEvent(HttpServerExchange exchange, NextListener nextListener){
+		try{
+			active.decrement();
+			int statusClass = exchange.getStatusCode() / 100;
+			if (statusClass >= 1 && statusClass <= 5){
+				statusClasses[statusClass - 1].increment();
+			}
+			bytesOut.add(exchange.getResponseBytesSent());
+			long start = exchange.getRequestStartTime();
+			if (start > 0){
+				latency.record((System.nanoTime() - start) / 1000);
+			}
+		}finally{
+			nextListener.proceed();
+		}
+	}
+
+	public long getRequests(){
+		return requests.sum();
+	}
+	public long getActive(){
+		return active.sum();
+	}
+	/**
+	 * Responses with status class 1-5 (1xx-5xx).
+	 */
+	public long getStatusCount(int statusClass){
+		return statusClasses[statusClass - 1].sum();
+	}
+	public long getBytesIn(){
+		return bytesIn.sum();
+	}
+	public long getBytesOut(){
+		return bytesOut.sum();
+	}
+	public LatencyHistogram getLatency(){
+		return latency;
+	}
+}
@@ -0,0 +1,115 @@
+package net.b07z.sepia.proxies.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Duration of the startup phases (e.g. settings, keystore, listener) and time to the first proxied request.
+ * Phases of the main thread are measured from the end of the previous phase, phases that run in parallel (e.g. the
+ * keystore) are added with their own duration. The report is written to the log when the server is ready and
+ * available as metric ('proxy_startup_seconds').
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class StartupReport {
+
+	public static final String JVM = "jvm";						//JVM start to report creation (class loading, e.g. with or without CDS archive)
+	public static final String READY = "ready";					//report creation to {@link #ready()}
+	public static final String FIRST_REQUEST = "first_request";	//report creation to first completed proxied request
+
+	private final long start = System.nanoTime();
+	private final Consumer<String> log;
+	private final Map<String, Long> phases = new LinkedHashMap<>();		//ms, guarded by this
+	private final Set<String> parallel = new HashSet<>();
+	private long last = start;
+	private final AtomicBoolean firstRequest = new AtomicBoolean(false);
+
+	/**
+	 * Start the report, usually first thing in 'main'.
+	 * @param log - receives the report lines
+	 */
+	public StartupReport(Consumer<String> log){
+		this.log = log;
+	}
+
+	/**
+	 * End a phase of the main thread, it started when the previous one ended.
+	 */
+	public synchronized void phase(String name){
+		long now = System.nanoTime();
+		phases.put(name, (now - last) / 1000000);
+		last = now;
+	}
+	/**
+	 * Add a phase that ran in parallel to the main thread.
+	 * @param name - phase
+	 * @param ms - duration
+	 */
+	public synchronized void parallelPhase(String name, long ms){
+		phases.put(name, ms);
+		parallel.add(name);
+	}
+
+	/**
+	 * Server is ready to accept requests, writes the report.
+	 */
+	public void ready(){
+		String report;
+		//JVM uptime loads the management classes, so it is read when the server is ready already
+		long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+		synchronized (this){
+			long ready = (System.nanoTime() - start) / 1000000;
+			Map<String, Long> all = new LinkedHashMap<>();
+			all.put(JVM, Math.max(0, uptime - ready));
+			all.putAll(phases);
+			all.put(READY, ready);
+			phases.clear();
+			phases.putAll(all);
+			StringBuilder sb = new StringBuilder("Startup times:");
+			String sep = " ";
+			for (Map.Entry<String, Long> e : phases.entrySet()){
+				if (e.getKey().equals(READY)) continue;
+				sb.append(sep).append(e.getKey()).append(" ").append(e.getValue()).append("ms");
+				if (parallel.contains(e.getKey())){
+					sb.append(" (parallel)");
+				}
+				sep = ", ";
+			}
+			report = sb.append(" - ready after ").append(phases.get(READY)).append("ms").toString();
+		}
+		log.accept(report);
+	}
+
+	/**
+	 * A proxied request completed, only the first call counts.
+	 */
+	public void firstRequest(){
+		if (!firstRequest.compareAndSet(false, true)){
+			return;
+		}
+		long ms = (System.nanoTime() - start) / 1000000;
+		synchronized (this){
+			phases.put(FIRST_REQUEST, ms);
+		}
+		log.accept("First proxied request completed " + ms + "ms after start");
+	}
+	/**
+	 * True after the first proxied request completed.
+	 */
+	public boolean hasFirstRequest(){
+		return firstRequest.get();
+	}
+
+	/**
+	 * Copy of all phases so far (ms) in order of completion.
+	 */
+	public synchronized Map<String, Long> getPhases(){
+		return new LinkedHashMap<>(phases);
+	}
+}
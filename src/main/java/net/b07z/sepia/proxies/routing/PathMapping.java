@@ -0,0 +1,61 @@
+package net.b07z.sepia.proxies.routing;
+
+import java.util.Objects;
+
+/**
+ * Definition of a proxy path: path, target server(s), match type and options.
+ * 
+ * @author Florian Quirin
+ *
+ */
+public class PathMapping {
+	
+	private final String path;
+	private final String target;
+	private final boolean exact;
+	private final RouteOptions options;
+	
+	/**
+	 * Create path definition.
+	 * @param path - path of server to forward, e.g. "/sepia" (normalized like {@link Route} paths)
+	 * @param target - target server, e.g. "http://localhost:20721" or a comma separated list of weighted servers
+	 * @param exact - true: forward only this path, false: forward path and all sub-paths
+	 * @param options - access restrictions, health checks etc. (null for defaults)
+	 */
+	public PathMapping(String path, String target, boolean exact, RouteOptions options){
+		this.path = Route.normalize(path);
+		this.target = target;
+		this.exact = exact;
+		this.options = (options != null)? options : new RouteOptions();
+	}
+	
+	public String getPath(){
+		return path;
+	}
+	public String getTarget(){
+		return target;
+	}
+	public boolean isExact(){
+		return exact;
+	}
+	public RouteOptions getOptions(){
+		return options;
+	}
+	
+	/**
+	 * True if the other mapping uses the same backends, i.e. its proxy client (connections, health state) can be reused.
+	 */
+	public boolean hasSameBackends(PathMapping other){
+		return other != null 
+				&& Objects.equals(target, other.target) 
+				&& Objects.equals(options.getHealthPath(), other.options.getHealthPath())
+				&& options.isWebSocket() == other.options.isWebSocket()
+				&& options.getBalancing() == other.options.getBalancing()
+				&& options.isHttp2() == other.options.isHttp2();
+	}
+	
+	@Override
+	public String toString(){
+		return (exact? "exact:" : "prefix:") + path + " -> " + target;
+	}
+}
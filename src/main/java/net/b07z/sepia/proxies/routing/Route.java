@@ -0,0 +1,110 @@
+package net.b07z.sepia.proxies.routing;
+
+import io.undertow.server.HttpHandler;
+import net.b07z.sepia.proxies.metrics.RouteMetrics;
+import net.b07z.sepia.proxies.security.AccessPolicy;
+
+/**
+ * A single entry of the {@link RouteTable}: path, handler, access policy and (optional) metrics.
+ * 
+ * @author Florian Quirin
+ *
+ */
+public class Route {
+	
+	private final String path;
+	private final boolean exact;
+	private final HttpHandler handler;
+	private final AccessPolicy policy;
+	private final int matchLength;
+	private final RouteMetrics metrics;
+	
+	/**
+	 * Create a route.
+	 * @param path - path like "/sepia/assist", leading slash is added and trailing slash removed if required
+	 * @param exact - true: match only this path, false: match path and all sub-paths (prefix)
+	 * @param handler - handler that takes the request, usually a ProxyHandler
+	 * @param isPublic - available from every IP address or only from local ones (applies to sub-paths too)
+	 */
+	public Route(String path, boolean exact, HttpHandler handler, boolean isPublic){
+		this(path, exact, handler, isPublic? AccessPolicy.PUBLIC : AccessPolicy.LOCAL_ONLY);
+	}
+	/**
+	 * Create a route.
+	 * @param path - path like "/sepia/assist", leading slash is added and trailing slash removed if required
+	 * @param exact - true: match only this path, false: match path and all sub-paths (prefix)
+	 * @param handler - handler that takes the request, usually a ProxyHandler
+	 * @param policy - networks that can access this route (applies to sub-paths too)
+	 */
+	public Route(String path, boolean exact, HttpHandler handler, AccessPolicy policy){
+		this(path, exact, handler, policy, null);
+	}
+	/**
+	 * Create a route with metrics.
+	 * @param path - path like "/sepia/assist", leading slash is added and trailing slash removed if required
+	 * @param exact - true: match only this path, false: match path and all sub-paths (prefix)
+	 * @param handler - handler that takes the request, usually a ProxyHandler
+	 * @param policy - networks that can access this route (applies to sub-paths too)
+	 * @param metrics - metrics that count the requests of this route or null
+	 */
+	public Route(String path, boolean exact, HttpHandler handler, AccessPolicy policy, RouteMetrics metrics){
+		this.path = normalize(path);
+		this.exact = exact;
+		this.handler = handler;
+		this.policy = policy;
+		this.metrics = metrics;
+		//the root prefix matches everything and leaves the full path to the handler
+		this.matchLength = (!exact && this.path.equals("/"))? 0 : this.path.length();
+	}
+	
+	/**
+	 * Make sure path starts with exactly one slash and has no trailing slash (except for root).
+	 * @throws IllegalArgumentException if the path is empty
+	 */
+	public static String normalize(String path){
+		if (path == null || path.trim().isEmpty()){
+			throw new IllegalArgumentException("Route path must not be empty!");
+		}
+		String p = path.trim().replaceAll("/{2,}", "/");
+		if (!p.startsWith("/")){
+			p = "/" + p;
+		}
+		if (p.length() > 1 && p.endsWith("/")){
+			p = p.substring(0, p.length() - 1);
+		}
+		return p;
+	}
+	
+	public String getPath(){
+		return path;
+	}
+	public boolean isExact(){
+		return exact;
+	}
+	public HttpHandler getHandler(){
+		return handler;
+	}
+	public AccessPolicy getPolicy(){
+		return policy;
+	}
+	/**
+	 * Metrics of this route or null.
+	 */
+	public RouteMetrics getMetrics(){
+		return metrics;
+	}
+	public boolean isPublic(){
+		return policy.isPublic();
+	}
+	/**
+	 * Number of characters of a request path consumed by this route (the rest is passed on as relative path).
+	 */
+	public int getMatchLength(){
+		return matchLength;
+	}
+	
+	@Override
+	public String toString(){
+		return (exact? "exact:" : "prefix:") + path + " (" + policy + ")";
+	}
+}
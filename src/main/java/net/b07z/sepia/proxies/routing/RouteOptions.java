@@ -0,0 +1,388 @@
+package net.b07z.sepia.proxies.routing;
+
+import net.b07z.sepia.proxies.balancing.Balancing;
+import net.b07z.sepia.proxies.headers.HeaderRules;
+import net.b07z.sepia.proxies.limits.Priority;
+import net.b07z.sepia.proxies.security.AccessPolicy;
+
+/**
+ * Options of a proxy path like access restrictions and health checks.
+ * 
+ * @author Florian Quirin
+ *
+ */
+public class RouteOptions {
+	
+	private boolean isPublic = true;
+	private String allow;
+	private String deny;
+	private String healthPath;
+	private boolean cache = false;
+	private boolean compress = false;
+	private int concurrencyLimit = 0;
+	private Priority priority = Priority.NORMAL;
+	private boolean webSocket = false;
+	private int maxConnections = 0;
+	private int idleTimeout = 0;
+	private boolean http2 = false;
+	private long maxBodySize = 0;
+	private int uploadTimeout = 0;
+	private int uploadIdleTimeout = 0;
+	private double rateLimit = 0;
+	private int rateBurst = 0;
+	private int retries = 1;
+	private boolean hedging = false;
+	private Balancing balancing;
+	private HeaderRules requestHeaders = HeaderRules.NONE;
+	private HeaderRules responseHeaders = HeaderRules.NONE;
+	private String hostHeader;
+	private boolean forwarded = false;
+	private boolean rewriteLocation = true;
+	
+	/**
+	 * Available from every IP address (default) or only from local networks (plus allow-list)?
+	 */
+	public RouteOptions setPublic(boolean isPublic){
+		this.isPublic = isPublic;
+		return this;
+	}
+	public boolean isPublic(){
+		return isPublic;
+	}
+	
+	/**
+	 * Networks that are allowed to access the path, e.g. "192.168.178.0/24, fd00::/8". If set on a public path only these networks are allowed.
+	 */
+	public RouteOptions setAllow(String cidrList){
+		this.allow = cidrList;
+		return this;
+	}
+	public String getAllow(){
+		return allow;
+	}
+	
+	/**
+	 * Networks that are never allowed to access the path, e.g. "172.17.0.0/16".
+	 */
+	public RouteOptions setDeny(String cidrList){
+		this.deny = cidrList;
+		return this;
+	}
+	public String getDeny(){
+		return deny;
+	}
+	
+	/**
+	 * Path for HTTP health checks of the targets, e.g. "/ping" (relative to server root) or null to check TCP connection only.
+	 */
+	public RouteOptions setHealthPath(String healthPath){
+		this.healthPath = healthPath;
+		return this;
+	}
+	public String getHealthPath(){
+		return healthPath;
+	}
+	
+	/**
+	 * Cache GET responses of this path (if the backend allows it via 'Cache-Control'/'Expires')? Default is false.
+	 */
+	public RouteOptions setCache(boolean cache){
+		this.cache = cache;
+		return this;
+	}
+	public boolean isCache(){
+		return cache;
+	}
+	
+	/**
+	 * Compress responses (gzip, deflate) if the client accepts it and type and size fit. Default is false.
+	 */
+	public RouteOptions setCompress(boolean compress){
+		this.compress = compress;
+		return this;
+	}
+	public boolean isCompress(){
+		return compress;
+	}
+	
+	/**
+	 * Limit requests in progress of this path. The limit adapts to the latency of the backends, 
+	 * requests above it are rejected with 503. Default is 0 (no limit).
+	 * @param initialLimit - start value of the adaptive limit
+	 */
+	public RouteOptions setConcurrencyLimit(int initialLimit){
+		this.concurrencyLimit = initialLimit;
+		return this;
+	}
+	public int getConcurrencyLimit(){
+		return concurrencyLimit;
+	}
+	
+	/**
+	 * Priority of a path with concurrency limit when the total limit of the proxy is close (default: NORMAL).
+	 */
+	public RouteOptions setPriority(Priority priority){
+		this.priority = (priority != null)? priority : Priority.NORMAL;
+		return this;
+	}
+	public Priority getPriority(){
+		return priority;
+	}
+	
+	/**
+	 * Path serves long-lived WebSocket connections (e.g. "/sepia/chat"): handshakes are balanced by least open connections,
+	 * counted per route and backend and not limited by request limits, cache or compression. Default is false.
+	 */
+	public RouteOptions setWebSocket(boolean webSocket){
+		this.webSocket = webSocket;
+		return this;
+	}
+	public boolean isWebSocket(){
+		return webSocket;
+	}
+	
+	/**
+	 * Max. open WebSocket connections of this path, more handshakes are rejected with 503. Default is 0 (no limit).
+	 */
+	public RouteOptions setMaxConnections(int maxConnections){
+		this.maxConnections = maxConnections;
+		return this;
+	}
+	public int getMaxConnections(){
+		return maxConnections;
+	}
+	
+	/**
+	 * Close WebSocket connections of this path without any traffic (data, ping or pong) for this time in ms. 
+	 * Default is 0 (use the default of the proxy), -1 to never close idle connections.
+	 */
+	public RouteOptions setIdleTimeout(int idleTimeoutMs){
+		this.idleTimeout = idleTimeoutMs;
+		return this;
+	}
+	public int getIdleTimeout(){
+		return idleTimeout;
+	}
+	
+	/**
+	 * Talk HTTP/2 to the backends of this path: requests of an IO thread share one connection per backend as 
+	 * concurrent streams (h2c with prior knowledge for 'http' targets, ALPN for 'https' targets). WebSocket handshakes
+	 * still use HTTP/1.1. Default is false (pooled HTTP/1.1 connections).
+	 */
+	public RouteOptions setHttp2(boolean http2){
+		this.http2 = http2;
+		return this;
+	}
+	public boolean isHttp2(){
+		return http2;
+	}
+	
+	/**
+	 * Max. size of request bodies in bytes, larger uploads are rejected with 413. Default is 0 (no limit).
+	 */
+	public RouteOptions setMaxBodySize(long maxBytes){
+		this.maxBodySize = maxBytes;
+		return this;
+	}
+	public long getMaxBodySize(){
+		return maxBodySize;
+	}
+	
+	/**
+	 * Max. time in ms to receive a request body, slower uploads are aborted with 408. Default is 0 (only the max. request time applies).
+	 */
+	public RouteOptions setUploadTimeout(int timeoutMs){
+		this.uploadTimeout = timeoutMs;
+		return this;
+	}
+	public int getUploadTimeout(){
+		return uploadTimeout;
+	}
+	
+	/**
+	 * Abort uploads (408) when the client sends no data for this time in ms. Default is 0 (no idle timeout).
+	 */
+	public RouteOptions setUploadIdleTimeout(int idleTimeoutMs){
+		this.uploadIdleTimeout = idleTimeoutMs;
+		return this;
+	}
+	public int getUploadIdleTimeout(){
+		return uploadIdleTimeout;
+	}
+	
+	/**
+	 * True if request bodies are limited by size or time.
+	 */
+	public boolean hasBodyLimits(){
+		return maxBodySize > 0 || uploadTimeout > 0 || uploadIdleTimeout > 0;
+	}
+	
+	/**
+	 * Max. requests per second of a single client address on this path (IPv6: per /64 network), more are rejected 
+	 * with 429. Default is 0 (no limit).
+	 */
+	public RouteOptions setRateLimit(double requestsPerSecond){
+		this.rateLimit = requestsPerSecond;
+		return this;
+	}
+	public double getRateLimit(){
+		return rateLimit;
+	}
+	
+	/**
+	 * Requests a client can send at once (e.g. page load) before the rate limit applies. Default is 0 (same as rate, min. 1).
+	 */
+	public RouteOptions setRateBurst(int burst){
+		this.rateBurst = burst;
+		return this;
+	}
+	public int getRateBurst(){
+		return (rateBurst > 0)? rateBurst : Math.max(1, (int) Math.ceil(rateLimit));
+	}
+	
+	/**
+	 * Max. times a request is sent again, each time to another backend: after connection errors (all requests without 
+	 * body sent) and after 502/503 responses (idempotent methods without body). Retries of all paths share one budget. Default is 1.
+	 */
+	public RouteOptions setRetries(int retries){
+		this.retries = retries;
+		return this;
+	}
+	public int getRetries(){
+		return retries;
+	}
+	
+	/**
+	 * Send GET, HEAD and OPTIONS requests to a second backend if the first one didn't answer within the usual (p95) response 
+	 * time, the first response is used. Needs 2 or more backends. Default is false.
+	 */
+	public RouteOptions setHedging(boolean hedging){
+		this.hedging = hedging;
+		return this;
+	}
+	public boolean isHedging(){
+		return hedging;
+	}
+	
+	/**
+	 * How to select the backend of a request: weighted round-robin, least requests in progress or peak-EWMA response time 
+	 * (power of two choices). Least connections counts requests on paths without WebSockets. WebSocket paths always use
+	 * least connections. Default is null (round-robin).
+	 */
+	public RouteOptions setBalancing(Balancing balancing){
+		this.balancing = balancing;
+		return this;
+	}
+	public Balancing getBalancing(){
+		if (webSocket){
+			return Balancing.LEAST_CONNECTIONS;
+		}else if (balancing == Balancing.LEAST_CONNECTIONS){
+			return Balancing.LEAST_REQUESTS;
+		}
+		return (balancing != null)? balancing : Balancing.ROUND_ROBIN;
+	}
+	
+	/**
+	 * Rules for headers sent to the backend, e.g. HeaderRules.parse("X-Service: stt | -Cookie"). They are applied after 
+	 * 'Host' and 'Forwarded', before the proxy adds 'X-Forwarded-*'. Default is none.
+	 */
+	public RouteOptions setRequestHeaders(HeaderRules rules){
+		this.requestHeaders = (rules != null)? rules : HeaderRules.NONE;
+		return this;
+	}
+	public HeaderRules getRequestHeaders(){
+		return requestHeaders;
+	}
+	
+	/**
+	 * Rules for headers of the backend response, e.g. HeaderRules.parse("-Server | X-Frame-Options: DENY"). Default is none.
+	 */
+	public RouteOptions setResponseHeaders(HeaderRules rules){
+		this.responseHeaders = (rules != null)? rules : HeaderRules.NONE;
+		return this;
+	}
+	public HeaderRules getResponseHeaders(){
+		return responseHeaders;
+	}
+	
+	/**
+	 * 'Host' header sent to the backend: null or "preserve" for the one of the client (default), "backend" for host and port of 
+	 * the backend or a fixed value, e.g. "stt.local". If it is replaced the original goes to 'X-Forwarded-Host'.
+	 */
+	public RouteOptions setHostHeader(String host){
+		this.hostHeader = (host == null || host.trim().isEmpty() || host.trim().equalsIgnoreCase("preserve"))? null : host.trim();
+		return this;
+	}
+	public String getHostHeader(){
+		return hostHeader;
+	}
+	public boolean isBackendHost(){
+		return "backend".equalsIgnoreCase(hostHeader);
+	}
+	
+	/**
+	 * Send a 'Forwarded' header (RFC 7239) with client address, host and protocol in addition to 'X-Forwarded-*'. 
+	 * Default is false.
+	 */
+	public RouteOptions setForwarded(boolean forwarded){
+		this.forwarded = forwarded;
+		return this;
+	}
+	public boolean isForwarded(){
+		return forwarded;
+	}
+	
+	/**
+	 * Rewrite 'Location' headers of redirects (30x) that point to the backend, so they go through the proxy path again,
+	 * e.g. 'http://localhost:20741/stt/done' to '/sepia/stt/done'. Default is true.
+	 */
+	public RouteOptions setRewriteLocation(boolean rewriteLocation){
+		this.rewriteLocation = rewriteLocation;
+		return this;
+	}
+	public boolean isRewriteLocation(){
+		return rewriteLocation;
+	}
+	
+	/**
+	 * Copy of all options, e.g. to change some of them for a new version of a live route (options of a route in use
+	 * should not be modified).
+	 */
+	public RouteOptions copy(){
+		RouteOptions o = new RouteOptions();
+		o.isPublic = isPublic;
+		o.allow = allow;
+		o.deny = deny;
+		o.healthPath = healthPath;
+		o.cache = cache;
+		o.compress = compress;
+		o.concurrencyLimit = concurrencyLimit;
+		o.priority = priority;
+		o.webSocket = webSocket;
+		o.maxConnections = maxConnections;
+		o.idleTimeout = idleTimeout;
+		o.http2 = http2;
+		o.maxBodySize = maxBodySize;
+		o.uploadTimeout = uploadTimeout;
+		o.uploadIdleTimeout = uploadIdleTimeout;
+		o.rateLimit = rateLimit;
+		o.rateBurst = rateBurst;
+		o.retries = retries;
+		o.hedging = hedging;
+		o.balancing = balancing;
+		o.requestHeaders = requestHeaders;
+		o.responseHeaders = responseHeaders;
+		o.hostHeader = hostHeader;
+		o.forwarded = forwarded;
+		o.rewriteLocation = rewriteLocation;
+		return o;
+	}
+	
+	/**
+	 * Compile access restrictions.
+	 * @throws IllegalArgumentException if a network is invalid
+	 */
+	public AccessPolicy buildAccessPolicy(){
+		return AccessPolicy.create(isPublic, allow, deny);
+	}
+}
@@ -0,0 +1,167 @@
+package net.b07z.sepia.proxies.routing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable route table compiled into a tree over path segments.<br>
+ * A lookup walks the request path once (O(path-length), independent of the number of routes)
+ * and does not allocate. Exact routes win over prefix routes, longer prefixes win over shorter ones.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class RouteTable {
+
+	private final Node root;
+	private final List<Route> routes;
+
+	/**
+	 * Tree node for one path segment. Children are kept in an open-addressing hash table
+	 * so they can be looked up by a range of the request path without creating a substring.
+	 */
+	private static final class Node {
+		Route exactRoute;
+		Route prefixRoute;
+
+		//used while building
+		Map<String, Node> building = new LinkedHashMap<>();
+
+		//compiled
+		String[] keys = new String[0];
+		Node[] children = new Node[0];
+		int mask = -1;
+
+		Node child(String segment){
+			return building.computeIfAbsent(segment, k -> new Node());
+		}
+
+		void compile(){
+			int size = 2;
+			while (size < building.size() * 2){
+				size <<= 1;
+			}
+			keys = new String[size];
+			children = new Node[size];
+			mask = size - 1;
+			for (Map.Entry<String, Node> e : building.entrySet()){
+				int i = spread(e.getKey().hashCode()) & mask;
+				while (keys[i] != null){
+					i = (i + 1) & mask;
+				}
+				keys[i] = e.getKey();
+				children[i] = e.getValue();
+				e.getValue().compile();
+			}
+			building = null;
+		}
+
+		Node find(String path, int start, int end){
+			int h = 0;
+			for (int k = start; k < end; k++){
+				h = 31 * h + path.charAt(k);		//same as String.hashCode()
+			}
+			int len = end - start;
+			int i = spread(h) & mask;
+			String key;
+			while ((key = keys[i]) != null){
+				if (key.length() == len && path.regionMatches(start, key, 0, len)){
+					return children[i];
+				}
+				i = (i + 1) & mask;
+			}
+			return null;
+		}
+	}
+
+	private static int spread(int h){
+		return h ^ (h >>> 16);
+	}
+
+	private RouteTable(Node root, List<Route> routes){
+		this.root = root;
+		this.routes = routes;
+	}
+
+	/**
+	 * Compile a route table.
+	 * @param routes - all routes, a path can be registered once as exact and once as prefix route
+	 * @return immutable table
+	 */
+	public static RouteTable compile(Collection<Route> routes){
+		Node root = new Node();
+		for (Route r : routes){
+			Node node = root;
+			String path = r.getPath();
+			if (path.length() > 1){
+				for (String segment : path.substring(1).split("/")){
+					node = node.child(segment);
+				}
+			}
+			if (r.isExact()){
+				if (node.exactRoute != null){
+					throw new IllegalArgumentException("Duplicate exact route: " + path);
+				}
+				node.exactRoute = r;
+			}else{
+				if (node.prefixRoute != null){
+					throw new IllegalArgumentException("Duplicate prefix route: " + path);
+				}
+				node.prefixRoute = r;
+			}
+		}
+		root.compile();
+		return new RouteTable(root, Collections.unmodifiableList(new ArrayList<>(routes)));
+	}
+
+	/**
+	 * Find the route for a request path (without query).
+	 * @param path - request path, e.g. "/sepia/stt/socket"
+	 * @return best matching route or null
+	 */
+	public Route match(String path){
+		int len = path.length();
+		int i = (len > 0 && path.charAt(0) == '/')? 1 : 0;
+		Node node = root;
+		Route best = root.prefixRoute;
+		if (i >= len){
+			return (root.exactRoute != null)? root.exactRoute : best;
+		}
+		while (true){
+			int end = path.indexOf('/', i);
+			if (end < 0){
+				end = len;
+			}
+			node = node.find(path, i, end);
+			if (node == null){
+				return best;
+			}
+			if (end == len){
+				//full path consumed
+				if (node.exactRoute != null){
+					return node.exactRoute;
+				}
+				return (node.prefixRoute != null)? node.prefixRoute : best;
+			}
+			if (node.prefixRoute != null){
+				best = node.prefixRoute;
+			}
+			i = end + 1;
+			if (i >= len){
+				//trailing slash - only prefix routes apply
+				return best;
+			}
+		}
+	}
+
+	/**
+	 * All routes of this table in registration order.
+	 */
+	public List<Route> getRoutes(){
+		return routes;
+	}
+}
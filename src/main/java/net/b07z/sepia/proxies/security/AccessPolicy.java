@@ -0,0 +1,72 @@
+package net.b07z.sepia.proxies.security;
+
+/**
+ * Access policy of a route: optional allow-list and deny-list of networks, both precompiled {@link CidrSet}s.<br>
+ * The deny-list is checked first, then the allow-list (if there is none every address is allowed).
+ * 
+ * @author Florian Quirin
+ *
+ */
+public final class AccessPolicy {
+	
+	private static final CidrSet LOCAL = CidrSet.parse(CidrSet.LOCAL_NETWORKS);
+	
+	public static final AccessPolicy PUBLIC = new AccessPolicy(null, CidrSet.EMPTY);
+	public static final AccessPolicy LOCAL_ONLY = new AccessPolicy(LOCAL, CidrSet.EMPTY);
+	/**
+	 * Only the host of the proxy itself, for endpoints that change or stop the server.
+	 */
+	public static final AccessPolicy LOOPBACK_ONLY = new AccessPolicy(CidrSet.parse(CidrSet.LOOPBACK), CidrSet.EMPTY);
+	
+	private final CidrSet allow;	//null: allow all
+	private final CidrSet deny;
+	
+	private AccessPolicy(CidrSet allow, CidrSet deny){
+		this.allow = allow;
+		this.deny = deny;
+	}
+	
+	/**
+	 * Create policy.
+	 * @param isPublic - true: every address (or the allow-list if given), false: local networks plus allow-list
+	 * @param allow - comma separated list of networks in CIDR notation or null
+	 * @param deny - comma separated list of networks in CIDR notation or null
+	 * @return compiled policy
+	 */
+	public static AccessPolicy create(boolean isPublic, String allow, String deny){
+		boolean hasAllow = allow != null && !allow.trim().isEmpty();
+		boolean hasDeny = deny != null && !deny.trim().isEmpty();
+		if (!hasAllow && !hasDeny){
+			return isPublic? PUBLIC : LOCAL_ONLY;
+		}
+		CidrSet allowSet;
+		if (isPublic){
+			allowSet = hasAllow? CidrSet.parse(allow) : null;
+		}else{
+			allowSet = hasAllow? CidrSet.parse(CidrSet.LOCAL_NETWORKS + ", " + allow) : LOCAL;
+		}
+		return new AccessPolicy(allowSet, CidrSet.parse(deny));
+	}
+	
+	/**
+	 * Check if client address is allowed.
+	 */
+	public boolean isAllowed(IpAddress client){
+		if (deny.contains(client)){
+			return false;
+		}
+		return allow == null || allow.contains(client);
+	}
+	
+	/**
+	 * True if every address that is not on the deny-list is allowed.
+	 */
+	public boolean isPublic(){
+		return allow == null;
+	}
+	
+	@Override
+	public String toString(){
+		return "allow: " + ((allow == null)? "all" : allow.toString()) + " - deny: " + deny.toString();
+	}
+}
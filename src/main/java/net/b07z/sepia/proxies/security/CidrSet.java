@@ -0,0 +1,180 @@
+package net.b07z.sepia.proxies.security;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Set of IPv4 and IPv6 networks in CIDR notation (e.g. "192.168.0.0/16", "fd00::/8"), compiled into two bitwise tries.<br>
+ * A lookup follows one bit per level until it hits the end of a registered prefix, so it costs at most 32 (IPv4)
+ * or 128 (IPv6) array reads, independent of the number of networks, and never allocates.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class CidrSet {
+
+	/**
+	 * Private and local networks: loopback, RFC1918, link-local, unique-local (IPv6) and the 'any' address.
+	 */
+	public static final String LOCAL_NETWORKS = "127.0.0.0/8, 10.0.0.0/8, 172.16.0.0/12, 192.168.0.0/16, 169.254.0.0/16, 0.0.0.0/32, "
+			+ "::1/128, ::/128, fe80::/10, fc00::/7, fec0::/10";
+	public static final String LOOPBACK = "127.0.0.0/8, ::1/128";
+
+	public static final CidrSet EMPTY = new CidrSet(new Trie(), new Trie(), Collections.emptyList());
+
+	private final Trie v4;
+	private final Trie v6;
+	private final List<String> networks;
+
+	/**
+	 * Binary trie in flat arrays: node 0 is the root, child index 0 means "no child".
+	 */
+	private static final class Trie {
+		int[] zero = new int[8];
+		int[] one = new int[8];
+		boolean[] end = new boolean[8];
+		int size = 1;
+
+		void add(long hi, long lo, int bits, int prefix){
+			int node = 0;
+			for (int i = 0; i < prefix; i++){
+				if (end[node]) return;		//already covered by a shorter prefix
+				boolean bit = bitAt(hi, lo, bits, i);
+				int child = bit? one[node] : zero[node];
+				if (child == 0){
+					child = newNode();		//arrays might grow, so get them again afterwards
+					if (bit){
+						one[node] = child;
+					}else{
+						zero[node] = child;
+					}
+				}
+				node = child;
+			}
+			end[node] = true;
+		}
+
+		private int newNode(){
+			if (size == end.length){
+				zero = Arrays.copyOf(zero, size * 2);
+				one = Arrays.copyOf(one, size * 2);
+				end = Arrays.copyOf(end, size * 2);
+			}
+			return size++;
+		}
+
+		void trim(){
+			zero = Arrays.copyOf(zero, size);
+			one = Arrays.copyOf(one, size);
+			end = Arrays.copyOf(end, size);
+		}
+
+		boolean contains(long hi, long lo, int bits){
+			int node = 0;
+			for (int i = 0; i < bits; i++){
+				if (end[node]) return true;
+				node = bitAt(hi, lo, bits, i)? one[node] : zero[node];
+				if (node == 0) return false;
+			}
+			return end[node];
+		}
+
+		/**
+		 * Bit i (from the left) of a 32 bit (stored in lo) or 128 bit (hi + lo) address.
+		 */
+		private static boolean bitAt(long hi, long lo, int bits, int i){
+			if (bits == 32){
+				return ((lo >>> (31 - i)) & 1L) != 0;
+			}else if (i < 64){
+				return ((hi >>> (63 - i)) & 1L) != 0;
+			}else{
+				return ((lo >>> (127 - i)) & 1L) != 0;
+			}
+		}
+	}
+
+	private CidrSet(Trie v4, Trie v6, List<String> networks){
+		this.v4 = v4;
+		this.v6 = v6;
+		this.networks = networks;
+	}
+
+	/**
+	 * Compile a comma separated list of networks, e.g. "10.0.0.0/8, 192.168.1.10, 2001:db8::/32".
+	 * Entries without prefix length are single addresses.
+	 * @param networks - list of networks or null/empty for an empty set
+	 * @return compiled set
+	 * @throws IllegalArgumentException if an entry is invalid
+	 */
+	public static CidrSet parse(String networks){
+		if (networks == null || networks.trim().isEmpty()){
+			return EMPTY;
+		}
+		Trie v4 = new Trie();
+		Trie v6 = new Trie();
+		List<String> list = new ArrayList<>();
+		IpAddress ip = new IpAddress();
+		for (String entry : networks.split(",")){
+			entry = entry.trim();
+			if (entry.isEmpty()) continue;
+			int slash = entry.indexOf('/');
+			String address = (slash >= 0)? entry.substring(0, slash).trim() : entry;
+			if (!ip.parse(address)){
+				throw new IllegalArgumentException("Invalid network address: " + entry);
+			}
+			boolean isV4Literal = address.indexOf(':') < 0;
+			int maxBits = isV4Literal? 32 : 128;
+			int prefix = maxBits;
+			if (slash >= 0){
+				try{
+					prefix = Integer.parseInt(entry.substring(slash + 1).trim());
+				}catch (NumberFormatException e){
+					prefix = -1;
+				}
+				if (prefix < 0 || prefix > maxBits){
+					throw new IllegalArgumentException("Invalid network prefix length: " + entry);
+				}
+			}
+			if (ip.isV4()){
+				//IPv4-mapped IPv6 networks are stored as IPv4
+				int v4Prefix = isV4Literal? prefix : Math.max(0, prefix - 96);
+				v4.add(0, ip.v4Bits & 0xffffffffL, 32, v4Prefix);
+			}else{
+				v6.add(ip.hi, ip.lo, 128, prefix);
+			}
+			list.add(entry);
+		}
+		v4.trim();
+		v6.trim();
+		return new CidrSet(v4, v6, Collections.unmodifiableList(list));
+	}
+
+	/**
+	 * Check if address is part of one of the networks.
+	 */
+	public boolean contains(IpAddress address){
+		if (address.v4){
+			return v4.contains(0, address.v4Bits & 0xffffffffL, 32);
+		}else{
+			return v6.contains(address.hi, address.lo, 128);
+		}
+	}
+
+	public boolean isEmpty(){
+		return networks.isEmpty();
+	}
+
+	/**
+	 * Networks as given when parsed.
+	 */
+	public List<String> getNetworks(){
+		return networks;
+	}
+
+	@Override
+	public String toString(){
+		return networks.toString();
+	}
+}
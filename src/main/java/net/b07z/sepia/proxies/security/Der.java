@@ -0,0 +1,104 @@
+package net.b07z.sepia.proxies.security;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Minimal DER encoding to wrap traditional OpenSSL private keys (PKCS#1 RSA, SEC1 EC) into PKCS#8,
+ * the only format the JDK KeyFactory reads.
+ *
+ * @author Florian Quirin
+ *
+ */
+final class Der {
+
+	private static final byte SEQUENCE = 0x30;
+	private static final byte INTEGER = 0x02;
+	private static final byte OCTET_STRING = 0x04;
+	private static final byte OID = 0x06;
+
+	//AlgorithmIdentifier of rsaEncryption (1.2.840.113549.1.1.1) with NULL parameters
+	private static final byte[] RSA_ALGORITHM = {
+		0x30, 0x0d, 0x06, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x01, 0x01, 0x05, 0x00
+	};
+	//OID of id-ecPublicKey (1.2.840.10045.2.1)
+	private static final byte[] EC_PUBLIC_KEY = {
+		0x06, 0x07, 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x02, 0x01
+	};
+	private static final byte[] VERSION_0 = { INTEGER, 0x01, 0x00 };
+
+	private Der(){}
+
+	/**
+	 * PKCS#1 RSAPrivateKey to PKCS#8 PrivateKeyInfo.
+	 */
+	static byte[] rsaToPkcs8(byte[] pkcs1){
+		return encode(SEQUENCE, VERSION_0, RSA_ALGORITHM, encode(OCTET_STRING, pkcs1));
+	}
+
+	/**
+	 * SEC1 ECPrivateKey to PKCS#8 PrivateKeyInfo. The curve is taken from the optional parameters [0] of the key.
+	 */
+	static byte[] ecToPkcs8(byte[] sec1){
+		byte[] curve = null;
+		int[] outer = header(sec1, 0);
+		if (sec1[0] != SEQUENCE) throw new IllegalArgumentException("Invalid EC private key.");
+		int i = outer[0];
+		int end = outer[0] + outer[1];
+		while (i < end){
+			int[] h = header(sec1, i);
+			if ((sec1[i] & 0xff) == 0xa0){
+				curve = Arrays.copyOfRange(sec1, h[0], h[0] + h[1]);
+				break;
+			}
+			i = h[0] + h[1];
+		}
+		if (curve == null || curve[0] != OID){
+			throw new IllegalArgumentException("EC private key without named curve.");
+		}
+		return encode(SEQUENCE, VERSION_0, encode(SEQUENCE, EC_PUBLIC_KEY, curve), encode(OCTET_STRING, sec1));
+	}
+
+	/**
+	 * Read tag and length at 'pos'.
+	 * @return start of content and content length
+	 */
+	private static int[] header(byte[] der, int pos){
+		int len = der[pos + 1] & 0xff;
+		int start = pos + 2;
+		if (len > 0x7f){
+			int n = len & 0x7f;
+			if (n > 3) throw new IllegalArgumentException("Invalid DER length.");
+			len = 0;
+			for (int k = 0; k < n; k++){
+				len = (len << 8) | (der[start++] & 0xff);
+			}
+		}
+		if (start + len > der.length) throw new IllegalArgumentException("Truncated DER data.");
+		return new int[]{ start, len };
+	}
+
+	private static byte[] encode(byte tag, byte[]... parts){
+		int len = 0;
+		for (byte[] p : parts) len += p.length;
+		ByteArrayOutputStream out = new ByteArrayOutputStream(len + 6);
+		out.write(tag);
+		if (len < 0x80){
+			out.write(len);
+		}else if (len < 0x100){
+			out.write(0x81);
+			out.write(len);
+		}else if (len < 0x10000){
+			out.write(0x82);
+			out.write(len >>> 8);
+			out.write(len);
+		}else{
+			out.write(0x83);
+			out.write(len >>> 16);
+			out.write(len >>> 8);
+			out.write(len);
+		}
+		for (byte[] p : parts) out.write(p, 0, p.length);
+		return out.toByteArray();
+	}
+}
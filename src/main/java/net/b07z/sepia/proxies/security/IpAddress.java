@@ -0,0 +1,276 @@
+package net.b07z.sepia.proxies.security;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Mutable, reusable IPv4/IPv6 address with a parser that works directly on a range of a string.<br>
+ * Meant to be kept per thread (see {@link #get()}) so parsing and CIDR checks on the request path don't allocate.
+ * IPv4-mapped IPv6 addresses (::ffff:a.b.c.d) are stored as IPv4.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class IpAddress {
+
+	private static final ThreadLocal<IpAddress[]> PER_THREAD = ThreadLocal.withInitial(() -> new IpAddress[]{
+		new IpAddress(), new IpAddress()
+	});
+
+	boolean v4;
+	int v4Bits;
+	long hi;
+	long lo;
+
+	private final int[] groups = new int[8];
+
+	/**
+	 * Reusable instance of the current thread. Index 0 and 1 can be used at the same time.
+	 */
+	public static IpAddress get(int index){
+		return PER_THREAD.get()[index];
+	}
+	/**
+	 * Reusable instance 0 of the current thread.
+	 */
+	public static IpAddress get(){
+		return get(0);
+	}
+
+	public boolean isV4(){
+		return v4;
+	}
+	/**
+	 * Upper 64 bits of the IPv6 address (0 for IPv4).
+	 */
+	public long getHigh(){
+		return hi;
+	}
+	/**
+	 * Lower 64 bits of the IPv6 address, IPv4 addresses in IPv4-mapped form (::ffff:a.b.c.d).
+	 */
+	public long getLow(){
+		return v4? (0xffff00000000L | (v4Bits & 0xffffffffL)) : lo;
+	}
+
+	/**
+	 * Copy value of other address.
+	 */
+	public void set(IpAddress other){
+		v4 = other.v4;
+		v4Bits = other.v4Bits;
+		hi = other.hi;
+		lo = other.lo;
+	}
+
+	/**
+	 * Set from InetAddress. IPv4 does not allocate, IPv6 has to copy the 16 address bytes.
+	 */
+	public void set(InetAddress address){
+		if (address instanceof Inet4Address){
+			//the hash code of Inet4Address is the address itself, this avoids the array copy of getAddress()
+			setV4(address.hashCode());
+		}else{
+			setBytes(address.getAddress());
+		}
+	}
+
+	/**
+	 * Set from 4 or 16 address bytes.
+	 */
+	public void setBytes(byte[] bytes){
+		if (bytes.length == 4){
+			setV4(((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff));
+		}else{
+			long h = 0, l = 0;
+			for (int i = 0; i < 8; i++){
+				h = (h << 8) | (bytes[i] & 0xff);
+				l = (l << 8) | (bytes[i + 8] & 0xff);
+			}
+			setV6(h, l);
+		}
+	}
+
+	void setV4(int bits){
+		v4 = true;
+		v4Bits = bits;
+		hi = 0;
+		lo = 0;
+	}
+
+	void setV6(long h, long l){
+		if (h == 0 && (l >>> 32) == 0xffffL){
+			setV4((int) l);		//IPv4-mapped
+		}else{
+			v4 = false;
+			v4Bits = 0;
+			hi = h;
+			lo = l;
+		}
+	}
+
+	/**
+	 * Convert to InetAddress (allocates).
+	 */
+	public InetAddress toInetAddress() throws UnknownHostException {
+		byte[] bytes;
+		if (v4){
+			bytes = new byte[]{ (byte) (v4Bits >>> 24), (byte) (v4Bits >>> 16), (byte) (v4Bits >>> 8), (byte) v4Bits };
+		}else{
+			bytes = new byte[16];
+			for (int i = 0; i < 8; i++){
+				bytes[i] = (byte) (hi >>> (56 - 8 * i));
+				bytes[i + 8] = (byte) (lo >>> (56 - 8 * i));
+			}
+		}
+		return InetAddress.getByAddress(bytes);
+	}
+
+	/**
+	 * Parse full string, e.g. "192.168.0.10" or "2001:db8::1".
+	 */
+	public boolean parse(String s){
+		return parse(s, 0, s.length());
+	}
+
+	/**
+	 * Parse a literal IPv4 or IPv6 address in the given range of a string (no host names, no brackets, no port).
+	 * @return true if the range holds a valid address
+	 */
+	public boolean parse(String s, int start, int end){
+		if (start >= end) return false;
+		for (int i = start; i < end; i++){
+			if (s.charAt(i) == ':'){
+				return parseV6(s, start, end);
+			}
+		}
+		long bits = parseV4Bits(s, start, end);
+		if (bits < 0){
+			return false;
+		}
+		setV4((int) bits);
+		return true;
+	}
+
+	/**
+	 * Parse dotted quad, returns -1 if invalid.
+	 */
+	private static long parseV4Bits(String s, int start, int end){
+		long bits = 0;
+		int parts = 0;
+		int i = start;
+		while (i < end){
+			int value = 0;
+			int digits = 0;
+			while (i < end){
+				char c = s.charAt(i);
+				if (c < '0' || c > '9') break;
+				value = value * 10 + (c - '0');
+				if (++digits > 3 || value > 255) return -1;
+				i++;
+			}
+			if (digits == 0) return -1;
+			bits = (bits << 8) | value;
+			parts++;
+			if (i < end){
+				if (s.charAt(i) != '.' || parts == 4) return -1;
+				i++;
+				if (i == end) return -1;
+			}
+		}
+		return (parts == 4)? bits : -1;
+	}
+
+	private boolean parseV6(String s, int start, int end){
+		//strip zone index, e.g. fe80::1%eth0
+		for (int i = start; i < end; i++){
+			if (s.charAt(i) == '%'){
+				end = i;
+				break;
+			}
+		}
+		int n = 0;				//groups found
+		int compressAt = -1;	//group index of '::'
+		int i = start;
+		if (end - start >= 2 && s.charAt(start) == ':' && s.charAt(start + 1) == ':'){
+			compressAt = 0;
+			i += 2;
+		}else if (s.charAt(start) == ':'){
+			return false;
+		}
+		while (i < end){
+			if (n == 8) return false;
+			//embedded IPv4 at the end, e.g. ::ffff:10.0.0.1
+			int groupEnd = i;
+			boolean hasDot = false;
+			while (groupEnd < end && s.charAt(groupEnd) != ':'){
+				if (s.charAt(groupEnd) == '.') hasDot = true;
+				groupEnd++;
+			}
+			if (hasDot){
+				if (groupEnd != end || n > 6) return false;
+				long bits = parseV4Bits(s, i, end);
+				if (bits < 0) return false;
+				groups[n++] = (int) (bits >>> 16);
+				groups[n++] = (int) (bits & 0xffff);
+				i = end;
+				break;
+			}
+			int len = groupEnd - i;
+			if (len == 0 || len > 4) return false;
+			int value = 0;
+			for (int k = i; k < groupEnd; k++){
+				int d = Character.digit(s.charAt(k), 16);
+				if (d < 0) return false;
+				value = (value << 4) | d;
+			}
+			groups[n++] = value;
+			i = groupEnd;
+			if (i < end){
+				//skip ':' or '::'
+				i++;
+				if (i < end && s.charAt(i) == ':'){
+					if (compressAt >= 0) return false;
+					compressAt = n;
+					i++;
+				}else if (i == end){
+					return false;		//trailing single ':'
+				}
+			}
+		}
+		if (compressAt < 0 && n != 8) return false;
+		if (compressAt >= 0 && n == 8) return false;
+		long h = 0, l = 0;
+		int missing = 8 - n;
+		for (int g = 0, src = 0; g < 8; g++){
+			int value;
+			if (compressAt >= 0 && g >= compressAt && g < compressAt + missing){
+				value = 0;
+			}else{
+				value = groups[src++];
+			}
+			if (g < 4){
+				h = (h << 16) | value;
+			}else{
+				l = (l << 16) | value;
+			}
+		}
+		setV6(h, l);
+		return true;
+	}
+
+	@Override
+	public String toString(){
+		if (v4){
+			return (v4Bits >>> 24) + "." + ((v4Bits >>> 16) & 0xff) + "." + ((v4Bits >>> 8) & 0xff) + "." + (v4Bits & 0xff);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int g = 0; g < 8; g++){
+			long part = (g < 4)? (hi >>> (48 - 16 * g)) : (lo >>> (48 - 16 * (g - 4)));
+			if (g > 0) sb.append(':');
+			sb.append(Long.toHexString(part & 0xffff));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,91 @@
+package net.b07z.sepia.proxies.security;
+
+import java.io.File;
+import java.security.KeyStore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keystore files (JKS, PKCS12 or PEM certificate + key) of a {@link ReloadableKeyManager}. When the files change,
+ * e.g. after a Letsencrypt renewal, {@link #reloadIfChanged()} loads them again and swaps the key manager so the
+ * running listener uses the new certificate without restart.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class KeyStoreWatcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(KeyStoreWatcher.class);
+
+	private final String type;
+	private final File keyStoreFile;
+	private final File keyFile;
+	private final String password;
+	private final ReloadableKeyManager keyManager;
+
+	private long lastModified;
+	private long lastFailed = 0;
+
+	/**
+	 * Load the keystore and create the key manager.
+	 * @param type - JKS, PKCS12, PEM or 'auto' (from file extension)
+	 * @param keyStoreFile - keystore or PEM certificate chain
+	 * @param keyFile - PEM private key if not part of 'keyStoreFile', else null
+	 * @param password - keystore password
+	 * @throws Exception if the keystore can't be loaded
+	 */
+	public KeyStoreWatcher(String type, String keyStoreFile, String keyFile, String password) throws Exception {
+		this.type = type;
+		this.keyStoreFile = new File(keyStoreFile);
+		this.keyFile = (keyFile == null || keyFile.isEmpty())? null : new File(keyFile);
+		this.password = password;
+		this.lastModified = getLastModified();
+		this.keyManager = new ReloadableKeyManager(load(), password);
+	}
+
+	public ReloadableKeyManager getKeyManager(){
+		return keyManager;
+	}
+
+	private long getLastModified(){
+		long modified = keyStoreFile.lastModified();
+		if (keyFile != null){
+			modified = Math.max(modified, keyFile.lastModified());
+		}
+		return modified;
+	}
+
+	private KeyStore load() throws Exception {
+		if (keyFile != null){
+			return SSLContextBuilder.loadPemKeyStore(keyStoreFile.getPath(), keyFile.getPath(), password);
+		}else{
+			return SSLContextBuilder.loadKeyStore(type, keyStoreFile.getPath(), password);
+		}
+	}
+
+	/**
+	 * Reload keystore if one of the files changed. If loading fails (e.g. certificate and key are not both written yet)
+	 * the current certificate stays active and the next call tries again.
+	 * @return true if a new certificate is active
+	 */
+	public synchronized boolean reloadIfChanged(){
+		long modified = getLastModified();
+		if (modified == lastModified || modified == 0){
+			return false;
+		}
+		try{
+			keyManager.update(load(), password);
+			lastModified = modified;
+			logger.info("Reloaded keystore: " + keyStoreFile);
+			return true;
+		}catch (Exception e){
+			if (modified != lastFailed){
+				//log once per change
+				lastFailed = modified;
+				logger.error("Could not reload keystore '" + keyStoreFile + "', keeping previous certificate!", e);
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package net.b07z.sepia.proxies.security;
+
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedKeyManager;
+
+/**
+ * Key manager that can swap its keystore while the SSLContext (and the listener using it) keeps running.
+ * New handshakes use the new certificate, the session cache of the context stays intact.<br>
+ * Aliases are tagged with a generation number so a handshake that chose its alias right before a swap
+ * still gets certificate and key of the same keystore.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class ReloadableKeyManager extends X509ExtendedKeyManager {
+
+	private static final char SEPARATOR = '|';
+
+	private static final class Generation {
+		final int id;
+		final X509ExtendedKeyManager keyManager;
+
+		Generation(int id, X509ExtendedKeyManager keyManager){
+			this.id = id;
+			this.keyManager = keyManager;
+		}
+	}
+
+	private volatile Generation current;
+	private volatile Generation previous;
+
+	/**
+	 * Create key manager for a loaded keystore.
+	 * @param keyStore - keystore with private key and certificate chain
+	 * @param password - password of the key
+	 * @throws Exception if the keystore can't be used
+	 */
+	public ReloadableKeyManager(KeyStore keyStore, String password) throws Exception {
+		this.current = new Generation(0, create(keyStore, password));
+	}
+
+	/**
+	 * Replace the keystore. Throws (and keeps the old keystore) if the new one can't be used.
+	 * @param keyStore - keystore with private key and certificate chain
+	 * @param password - password of the key
+	 */
+	public synchronized void update(KeyStore keyStore, String password) throws Exception {
+		X509ExtendedKeyManager keyManager = create(keyStore, password);
+		Generation old = current;
+		previous = old;
+		current = new Generation(old.id + 1, keyManager);
+	}
+
+	private static X509ExtendedKeyManager create(KeyStore keyStore, String password) throws Exception {
+		KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagerFactory.init(keyStore, password.toCharArray());
+		for (KeyManager km : keyManagerFactory.getKeyManagers()){
+			if (km instanceof X509ExtendedKeyManager){
+				X509ExtendedKeyManager x509 = (X509ExtendedKeyManager) km;
+				//fail now and not with the first handshake
+				if (x509.getServerAliases("RSA", null) == null && x509.getServerAliases("EC", null) == null
+						&& x509.getServerAliases("EdDSA", null) == null){
+					throw new IllegalArgumentException("Keystore has no private key with certificate.");
+				}
+				return x509;
+			}
+		}
+		throw new IllegalArgumentException("No X509 key manager available for keystore.");
+	}
+
+	//alias handling
+
+	private static String tag(Generation g, String alias){
+		return (alias == null)? null : (g.id + "" + SEPARATOR + alias);
+	}
+	private static String[] tag(Generation g, String[] aliases){
+		if (aliases == null) return null;
+		String[] tagged = new String[aliases.length];
+		for (int i = 0; i < aliases.length; i++){
+			tagged[i] = tag(g, aliases[i]);
+		}
+		return tagged;
+	}
+	/**
+	 * Key manager of the generation of a tagged alias or null if it's gone.
+	 */
+	private X509ExtendedKeyManager managerOf(String alias){
+		int i = (alias == null)? -1 : alias.indexOf(SEPARATOR);
+		if (i < 0) return null;
+		int id;
+		try{
+			id = Integer.parseInt(alias.substring(0, i));
+		}catch (NumberFormatException e){
+			return null;
+		}
+		Generation g = current;
+		if (g.id == id) return g.keyManager;
+		g = previous;
+		return (g != null && g.id == id)? g.keyManager : null;
+	}
+	private static String untag(String alias){
+		return alias.substring(alias.indexOf(SEPARATOR) + 1);
+	}
+
+	@Override
+	public X509Certificate[] getCertificateChain(String alias){
+		X509ExtendedKeyManager km = managerOf(alias);
+		return (km == null)? null : km.getCertificateChain(untag(alias));
+	}
+
+	@Override
+	public PrivateKey getPrivateKey(String alias){
+		X509ExtendedKeyManager km = managerOf(alias);
+		return (km == null)? null : km.getPrivateKey(untag(alias));
+	}
+
+	@Override
+	public String[] getServerAliases(String keyType, Principal[] issuers){
+		Generation g = current;
+		return tag(g, g.keyManager.getServerAliases(keyType, issuers));
+	}
+
+	@Override
+	public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket){
+		Generation g = current;
+		return tag(g, g.keyManager.chooseServerAlias(keyType, issuers, socket));
+	}
+
+	@Override
+	public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine){
+		Generation g = current;
+		return tag(g, g.keyManager.chooseEngineServerAlias(keyType, issuers, engine));
+	}
+
+	@Override
+	public String[] getClientAliases(String keyType, Principal[] issuers){
+		Generation g = current;
+		return tag(g, g.keyManager.getClientAliases(keyType, issuers));
+	}
+
+	@Override
+	public String chooseClientAlias(String[] keyTypes, Principal[] issuers, Socket socket){
+		Generation g = current;
+		return tag(g, g.keyManager.chooseClientAlias(keyTypes, issuers, socket));
+	}
+
+	@Override
+	public String chooseEngineClientAlias(String[] keyTypes, Principal[] issuers, SSLEngine engine){
+		Generation g = current;
+		return tag(g, g.keyManager.chooseEngineClientAlias(keyTypes, issuers, engine));
+	}
+}
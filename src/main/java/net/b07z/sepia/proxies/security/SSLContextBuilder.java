@@ -1,20 +1,97 @@
 package net.b07z.sepia.proxies.security;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.security.KeyFactory;
 import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 
 /**
  * Class to build the SSLContext required to secure server with SSL certificates.<br>
- * Note: Certificates have to be converted to Java keystore (jks) before you can use them.
+ * Keystores can be JKS, PKCS12 or PEM files (e.g. Letsencrypt 'fullchain.pem' + 'privkey.pem').
  */
 public class SSLContextBuilder {
+	
+	/**
+	 * TLS 1.3 suites first, then TLS 1.2 with forward secrecy and AEAD only.
+	 */
+	public static final String[] DEFAULT_CIPHER_SUITES = {
+		"TLS_AES_128_GCM_SHA256", "TLS_AES_256_GCM_SHA384", "TLS_CHACHA20_POLY1305_SHA256",
+		"TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+		"TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384", "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+		"TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256", "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256"
+	};
+	public static final String[] DEFAULT_PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+	
+	private static final Pattern PEM_BLOCK = Pattern.compile("-----BEGIN ([A-Z0-9 ]+)-----([^-]*)-----END \\1-----");
+	
+	/**
+	 * Set JVM wide TLS options. They are read once by the JDK, so call this before the first SSLContext is created.
+	 * @param sessionTickets - allow stateless session resumption via tickets (TLS 1.2 and 1.3)
+	 * @param ocspStapling - send the OCSP response of the certificate with the handshake (certificate needs an OCSP responder URL)
+	 */
+	public static void setGlobalOptions(boolean sessionTickets, boolean ocspStapling){
+		System.setProperty("jdk.tls.server.enableSessionTicketExtension", String.valueOf(sessionTickets));
+		System.setProperty("jdk.tls.server.enableStatusRequestExtension", String.valueOf(ocspStapling));
+	}
+	
+	/**
+	 * Create a server SSLContext with a key manager that can be reloaded and a configured session cache.
+	 * @param keyManager - key manager, see {@link ReloadableKeyManager#update(KeyStore, String)}
+	 * @param sessionCacheSize - max. number of cached sessions for resumption (0: JDK default)
+	 * @param sessionTimeoutSec - lifetime of cached sessions and tickets (0: JDK default)
+	 * @return
+	 * @throws Exception
+	 */
+	public static SSLContext create(ReloadableKeyManager keyManager, int sessionCacheSize, int sessionTimeoutSec) throws Exception {
+		SSLContext sslContext = SSLContext.getInstance("TLS");
+		sslContext.init(new KeyManager[]{ keyManager }, null, null);
+		SSLSessionContext sessions = sslContext.getServerSessionContext();
+		if (sessionCacheSize > 0){
+			sessions.setSessionCacheSize(sessionCacheSize);
+		}
+		if (sessionTimeoutSec > 0){
+			sessions.setSessionTimeout(sessionTimeoutSec);
+		}
+		return sslContext;
+	}
+	
+	/**
+	 * Keep only the entries the SSLContext supports, in the given order.
+	 * @param wanted - protocols or cipher suites
+	 * @param supported - e.g. {@link SSLParameters#getCipherSuites()} of {@link SSLContext#getSupportedSSLParameters()}
+	 * @return supported entries
+	 * @throws IllegalArgumentException if none is supported
+	 */
+	public static String[] filterSupported(String[] wanted, String[] supported){
+		List<String> all = Arrays.asList(supported);
+		String[] result = Arrays.stream(wanted).map(String::trim).filter(all::contains).toArray(String[]::new);
+		if (result.length == 0){
+			throw new IllegalArgumentException("None of these is supported: " + Arrays.toString(wanted));
+		}
+		return result;
+	}
 
 	/**
 	 * Create a SSLContext using a keystore and a truststore (null for default) with password.
@@ -51,6 +128,12 @@ public class SSLContextBuilder {
 	 * @throws Exception
 	 */
     public static KeyStore loadKeyStore(String keyStoreType, String pathAndFilename, String password) throws Exception {
+        if ("auto".equalsIgnoreCase(keyStoreType)){
+        	keyStoreType = detectType(pathAndFilename);
+        }
+        if ("PEM".equalsIgnoreCase(keyStoreType)){
+        	return loadPemKeyStore(pathAndFilename, null, password);
+        }
         final InputStream stream = Files.newInputStream(Paths.get(pathAndFilename));
         if(stream == null) {
             throw new RuntimeException("Could not load keystore");
@@ -62,4 +145,82 @@ public class SSLContextBuilder {
             return loadedKeystore;
         }
     }
+    
+    /**
+     * Guess keystore type from file extension: .p12/.pfx - PKCS12, .pem/.crt - PEM, everything else JKS.
+     */
+    public static String detectType(String pathAndFilename){
+    	String name = pathAndFilename.toLowerCase(Locale.ROOT);
+    	if (name.endsWith(".p12") || name.endsWith(".pfx")){
+    		return "PKCS12";
+    	}else if (name.endsWith(".pem") || name.endsWith(".crt")){
+    		return "PEM";
+    	}else{
+    		return "JKS";
+    	}
+    }
+    
+    /**
+     * Build a keystore from PEM files with certificate chain and unencrypted private key 
+     * (PKCS#8 'PRIVATE KEY', PKCS#1 'RSA PRIVATE KEY' or 'EC PRIVATE KEY').
+     * @param certFile - certificate chain, server certificate first (can contain the key as well)
+     * @param keyFile - private key or null if it's in the certificate file
+     * @param password - password the key is stored with in the returned keystore
+     * @return PKCS12 keystore with one key entry
+     * @throws Exception
+     */
+    public static KeyStore loadPemKeyStore(String certFile, String keyFile, String password) throws Exception {
+    	String certPem = new String(Files.readAllBytes(Paths.get(certFile)), StandardCharsets.US_ASCII);
+    	String keyPem = (keyFile == null || keyFile.isEmpty())? certPem : new String(Files.readAllBytes(Paths.get(keyFile)), StandardCharsets.US_ASCII);
+    	
+    	CertificateFactory cf = CertificateFactory.getInstance("X.509");
+    	List<Certificate> chain = new ArrayList<>();
+    	Matcher m = PEM_BLOCK.matcher(certPem);
+    	while (m.find()){
+    		if (m.group(1).equals("CERTIFICATE")){
+    			chain.add(cf.generateCertificate(new ByteArrayInputStream(decodePem(m.group(2)))));
+    		}
+    	}
+    	if (chain.isEmpty()){
+    		throw new IllegalArgumentException("No certificate found in: " + certFile);
+    	}
+    	PrivateKey key = null;
+    	m = PEM_BLOCK.matcher(keyPem);
+    	while (m.find() && key == null){
+    		String type = m.group(1);
+    		if (type.equals("PRIVATE KEY")){
+    			key = parsePkcs8(decodePem(m.group(2)));
+    		}else if (type.equals("RSA PRIVATE KEY")){
+    			key = parsePkcs8(Der.rsaToPkcs8(decodePem(m.group(2))));
+    		}else if (type.equals("EC PRIVATE KEY")){
+    			key = parsePkcs8(Der.ecToPkcs8(decodePem(m.group(2))));
+    		}else if (type.equals("ENCRYPTED PRIVATE KEY")){
+    			throw new IllegalArgumentException("Encrypted PEM keys are not supported, use PKCS12 instead.");
+    		}
+    	}
+    	if (key == null){
+    		throw new IllegalArgumentException("No private key found in: " + ((keyFile == null || keyFile.isEmpty())? certFile : keyFile));
+    	}
+    	KeyStore ks = KeyStore.getInstance("PKCS12");
+    	ks.load(null, null);
+    	ks.setKeyEntry("server", key, password.toCharArray(), chain.toArray(new Certificate[0]));
+    	return ks;
+    }
+    
+    private static byte[] decodePem(String body){
+    	//headers like 'Proc-Type' are only used by encrypted keys
+    	return Base64.getMimeDecoder().decode(body.trim());
+    }
+    
+    private static PrivateKey parsePkcs8(byte[] der) throws Exception {
+    	PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(der);
+    	for (String alg : new String[]{ "RSA", "EC", "EdDSA", "RSASSA-PSS" }){
+    		try{
+    			return KeyFactory.getInstance(alg).generatePrivate(spec);
+    		}catch (Exception e){
+    			//try next
+    		}
+    	}
+    	throw new IllegalArgumentException("Unsupported private key algorithm.");
+    }
 }
@@ -0,0 +1,141 @@
+package net.b07z.sepia.proxies.security;
+
+import io.undertow.util.HeaderMap;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+
+/**
+ * Resolves the real client address of requests that come through trusted proxies (e.g. a load balancer in front)
+ * via 'X-Forwarded-For' or, if missing, the 'Forwarded' header.<br>
+ * The header chain is read from right to left and the first address that is not a trusted proxy is the client.
+ * Headers are ignored completely if the connection itself does not come from a trusted proxy.
+ * Parsing works on the header strings directly and does not allocate.
+ * 
+ * @author Florian Quirin
+ *
+ */
+public final class TrustedProxies {
+	
+	public static final TrustedProxies NONE = new TrustedProxies(CidrSet.EMPTY);
+	
+	private final CidrSet trusted;
+	
+	private TrustedProxies(CidrSet trusted){
+		this.trusted = trusted;
+	}
+	
+	/**
+	 * Create from comma separated list of networks, e.g. "127.0.0.1, 172.17.0.0/16".
+	 */
+	public static TrustedProxies parse(String networks){
+		CidrSet set = CidrSet.parse(networks);
+		return set.isEmpty()? NONE : new TrustedProxies(set);
+	}
+	
+	public boolean isEmpty(){
+		return trusted.isEmpty();
+	}
+	
+	/**
+	 * True if the address is a trusted proxy.
+	 */
+	public boolean isTrusted(IpAddress address){
+		return !trusted.isEmpty() && trusted.contains(address);
+	}
+	
+	/**
+	 * Resolve client address.<br>
+	 * NOTE: uses the thread's reusable {@link IpAddress#get(int)} with index 1 as scratch, don't pass it as argument.
+	 * @param headers - request headers
+	 * @param peer - address of the connection
+	 * @param client - result, set to peer or to the address found in the headers (can be the same instance as peer)
+	 * @return true if the client address was taken from headers
+	 */
+	public boolean resolve(HeaderMap headers, IpAddress peer, IpAddress client){
+		client.set(peer);
+		if (trusted.isEmpty() || !trusted.contains(peer)){
+			return false;
+		}
+		IpAddress hop = IpAddress.get(1);
+		HeaderValues values = headers.get(Headers.X_FORWARDED_FOR);
+		boolean forwarded = false;
+		if (values == null || values.isEmpty()){
+			values = headers.get(Headers.FORWARDED);
+			forwarded = true;
+			if (values == null || values.isEmpty()){
+				return false;
+			}
+		}
+		boolean found = false;
+		for (int v = values.size() - 1; v >= 0; v--){
+			String s = values.get(v);
+			int end = s.length();
+			while (end > 0){
+				int start = s.lastIndexOf(',', end - 1) + 1;
+				boolean ok = forwarded? parseForwardedElement(s, start, end, hop) : parseHop(s, start, end, hop);
+				if (!ok){
+					//unknown or obfuscated entry - stop at the last trusted hop
+					return found;
+				}
+				client.set(hop);
+				found = true;
+				if (!trusted.contains(hop)){
+					return true;
+				}
+				end = start - 1;
+			}
+		}
+		return found;
+	}
+	
+	/**
+	 * Find 'for=' parameter in one element of a 'Forwarded' header, e.g.: for="[2001:db8::1]:4711";proto=https
+	 */
+	private static boolean parseForwardedElement(String s, int start, int end, IpAddress out){
+		int p = start;
+		while (p < end){
+			int pEnd = s.indexOf(';', p);
+			if (pEnd < 0 || pEnd > end){
+				pEnd = end;
+			}
+			while (p < pEnd && s.charAt(p) == ' '){
+				p++;
+			}
+			if (pEnd - p > 4 && s.regionMatches(true, p, "for=", 0, 4)){
+				return parseHop(s, p + 4, pEnd, out);
+			}
+			p = pEnd + 1;
+		}
+		return false;
+	}
+	
+	/**
+	 * Parse one hop: trims spaces and quotes, removes brackets and port.
+	 */
+	private static boolean parseHop(String s, int start, int end, IpAddress out){
+		while (start < end && (s.charAt(start) == ' ' || s.charAt(start) == '"')){
+			start++;
+		}
+		while (end > start && (s.charAt(end - 1) == ' ' || s.charAt(end - 1) == '"')){
+			end--;
+		}
+		if (start >= end){
+			return false;
+		}
+		if (s.charAt(start) == '['){
+			//[v6] or [v6]:port
+			int close = s.indexOf(']', start);
+			if (close < 0 || close >= end){
+				return false;
+			}
+			return out.parse(s, start + 1, close);
+		}
+		int colon = s.indexOf(':', start);
+		int dot = s.indexOf('.', start);
+		if (colon >= 0 && colon < end && s.lastIndexOf(':', end - 1) == colon && dot >= 0 && dot < colon){
+			//v4:port
+			return out.parse(s, start, colon);
+		}
+		return out.parse(s, start, end);
+	}
+}
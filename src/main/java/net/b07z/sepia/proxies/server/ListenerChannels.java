@@ -0,0 +1,55 @@
+package net.b07z.sepia.proxies.server;
+
+import java.lang.reflect.Field;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xnio.channels.AcceptingChannel;
+
+import io.undertow.Undertow;
+
+/**
+ * Access to the accepting channel of a listener. 'Undertow.ListenerInfo' has no getter for it and its 'suspend()'
+ * closes all open connections, so the channel is read by reflection (field looked up once). Listeners of
+ * {@link ReusePortListener} are reached the same way since their info carries the channel too.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class ListenerChannels {
+
+	private static final Logger logger = LoggerFactory.getLogger(ListenerChannels.class);
+
+	private static final Field CHANNEL;
+	static {
+		Field f = null;
+		try{
+			f = Undertow.ListenerInfo.class.getDeclaredField("channel");
+			f.setAccessible(true);
+		}catch (ReflectiveOperationException | RuntimeException e){
+			logger.warn("Listener channels are not accessible with this Undertow version: " + e);
+			f = null;
+		}
+		CHANNEL = f;
+	}
+
+	private ListenerChannels(){}
+
+	/**
+	 * Stop accepting new connections, open connections stay.
+	 * @param info - listener
+	 * @return true if the listener stopped accepting, false if its channel is not accessible (warning is logged)
+	 */
+	public static boolean suspendAccepts(Undertow.ListenerInfo info){
+		if (CHANNEL == null){
+			return false;
+		}
+		try{
+			((AcceptingChannel<?>) CHANNEL.get(info)).suspendAccepts();
+			return true;
+		}catch (IllegalAccessException | RuntimeException e){
+			logger.warn("Could not stop accepting on " + info.getAddress() + ": " + e);
+			return false;
+		}
+	}
+}
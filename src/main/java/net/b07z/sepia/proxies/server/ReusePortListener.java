@@ -0,0 +1,203 @@
+package net.b07z.sepia.proxies.server;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xnio.ChannelListener;
+import org.xnio.ChannelListeners;
+import org.xnio.IoUtils;
+import org.xnio.OptionMap;
+import org.xnio.Options;
+import org.xnio.StreamConnection;
+import org.xnio.XnioWorker;
+import org.xnio.channels.AcceptingChannel;
+import org.xnio.ssl.SslConnection;
+
+import io.undertow.Undertow;
+import io.undertow.UndertowOptions;
+import io.undertow.connector.ByteBufferPool;
+import io.undertow.protocols.ssl.UndertowXnioSsl;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.OpenListener;
+import io.undertow.server.protocol.http.AlpnOpenListener;
+import io.undertow.server.protocol.http.HttpOpenListener;
+import io.undertow.server.protocol.http2.Http2OpenListener;
+import io.undertow.server.protocol.http2.Http2UpgradeHandler;
+
+/**
+ * HTTP(S) listener bound with SO_REUSEPORT, so several listeners (each with its own XNIO worker) can share one port 
+ * and the kernel spreads new connections between them. Every worker has a single accept thread, with one listener per 
+ * worker accepting scales with the number of listeners.<br>
+ * XNIO has no option for SO_REUSEPORT, so the socket is bound here and handed to XNIO's TCP server via reflection. 
+ * The XNIO classes are probed once when this class loads, if they (or SO_REUSEPORT) are missing {@link #isSupported()} 
+ * is false and the proxy uses the normal Undertow listener. The protocol setup is the same as in 'Undertow.start()' (HTTP/1.1 with h2c upgrade, or TLS with ALPN for HTTP/2).
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class ReusePortListener {
+	
+	private static final Logger logger = LoggerFactory.getLogger(ReusePortListener.class);
+	
+	private static final Constructor<?> TCP_SERVER;
+	private static final Constructor<?> QUEUED_TCP_SERVER;
+	static {
+		Constructor<?> tcp = null, queued = null;
+		try{
+			ClassLoader cl = XnioWorker.class.getClassLoader();
+			Class<?> workerClass = Class.forName("org.xnio.nio.NioXnioWorker", false, cl);
+			Class<?> tcpClass = Class.forName("org.xnio.nio.NioTcpServer", false, cl);
+			tcp = tcpClass.getDeclaredConstructor(workerClass, ServerSocketChannel.class, OptionMap.class, boolean.class);
+			tcp.setAccessible(true);
+			queued = Class.forName("org.xnio.nio.QueuedNioTcpServer2", false, cl).getDeclaredConstructor(tcpClass);
+			queued.setAccessible(true);
+			try (ServerSocketChannel test = ServerSocketChannel.open()){
+				if (!test.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)){
+					//e.g. Windows
+					logger.warn("SO_REUSEPORT is not supported on this platform, using a single listener.");
+					tcp = null;
+				}
+			}
+		}catch (ReflectiveOperationException | RuntimeException | IOException e){
+			//other XNIO version
+			logger.warn("SO_REUSEPORT listeners are not available with this XNIO version, using a single listener: " + e);
+			tcp = null;
+		}
+		TCP_SERVER = tcp;
+		QUEUED_TCP_SERVER = queued;
+	}
+	
+	private final Undertow.ListenerInfo info;
+	private final AcceptingChannel<StreamConnection> channel;
+	
+	private ReusePortListener(Undertow.ListenerInfo info, AcceptingChannel<StreamConnection> channel){
+		this.info = info;
+		this.channel = channel;
+	}
+	
+	/**
+	 * True if listeners can share a port on this platform and XNIO version.
+	 */
+	public static boolean isSupported(){
+		return TCP_SERVER != null;
+	}
+	
+	/**
+	 * Bind a listener and start accepting.
+	 * @param worker - NIO worker that accepts and serves the connections
+	 * @param host - address to bind
+	 * @param port - port shared by all listeners
+	 * @param rootHandler - handler of all requests
+	 * @param buffers - buffer pool of this listener
+	 * @param socketOptions - XNIO socket options, e.g. backlog and (for TLS) enabled protocols and cipher suites
+	 * @param serverOptions - Undertow server options, e.g. HTTP/2 and statistics
+	 * @param sslContext - TLS listener if not null
+	 * @return listener that accepts connections
+	 * @throws IOException if binding fails
+	 */
+	public static ReusePortListener bind(XnioWorker worker, String host, int port, HttpHandler rootHandler, ByteBufferPool buffers,
+			OptionMap socketOptions, OptionMap serverOptions, SSLContext sslContext) throws IOException {
+		if (!isSupported()){
+			throw new IOException("SO_REUSEPORT listeners are not supported on this platform.");
+		}
+		OptionMap undertowOptions = OptionMap.builder().set(UndertowOptions.BUFFER_PIPELINED_DATA, true).addAll(serverOptions).getMap();
+		boolean http2 = serverOptions.get(UndertowOptions.ENABLE_HTTP2, false);
+		HttpOpenListener httpListener = new HttpOpenListener(buffers, undertowOptions);
+		OpenListener openListener;
+		ChannelListener<StreamConnection> connectionListener;
+		UndertowXnioSsl xnioSsl = null;
+		if (sslContext == null){
+			httpListener.setRootHandler(http2? new Http2UpgradeHandler(rootHandler) : rootHandler);
+			openListener = httpListener;
+			connectionListener = httpListener;
+		}else{
+			httpListener.setRootHandler(rootHandler);
+			if (http2){
+				AlpnOpenListener alpn = new AlpnOpenListener(buffers, undertowOptions, httpListener);
+				Http2OpenListener http2Listener = new Http2OpenListener(buffers, undertowOptions);
+				http2Listener.setRootHandler(rootHandler);
+				alpn.addProtocol(Http2OpenListener.HTTP2, http2Listener, 10);
+				openListener = alpn;
+			}else{
+				openListener = httpListener;
+			}
+			xnioSsl = new UndertowXnioSsl(worker.getXnio(), OptionMap.create(Options.USE_DIRECT_BUFFERS, true), sslContext);
+			connectionListener = wrapSsl(xnioSsl, socketOptions, openListener);
+		}
+		AcceptingChannel<StreamConnection> server = createServer(worker, new InetSocketAddress(InetAddress.getByName(host), port), 
+				ChannelListeners.openListenerAdapter(connectionListener), socketOptions);
+		server.resumeAccepts();
+		return new ReusePortListener(new Undertow.ListenerInfo((sslContext == null)? "http" : "https", server.getLocalAddress(), 
+				openListener, xnioSsl, server), server);
+	}
+	
+	/**
+	 * Protocol, address and connection statistics.
+	 */
+	public Undertow.ListenerInfo getInfo(){
+		return info;
+	}
+	/**
+	 * Close the listener (not the open connections).
+	 */
+	public void close(){
+		IoUtils.safeClose(channel);
+	}
+	
+	/**
+	 * Start TLS on accepted connections (server side of 'UndertowAcceptingSslChannel').
+	 */
+	private static ChannelListener<StreamConnection> wrapSsl(UndertowXnioSsl xnioSsl, OptionMap socketOptions, OpenListener next){
+		boolean serverOrder = socketOptions.get(UndertowOptions.SSL_USER_CIPHER_SUITES_ORDER, false);
+		return (connection) -> {
+			SslConnection ssl = xnioSsl.wrapExistingConnection(connection, socketOptions, false);
+			if (serverOrder){
+				SSLEngine engine = UndertowXnioSsl.getSslEngine(ssl);
+				SSLParameters parameters = engine.getSSLParameters();
+				parameters.setUseCipherSuitesOrder(true);
+				engine.setSSLParameters(parameters);
+			}
+			next.handleEvent(ssl);
+		};
+	}
+	
+	/**
+	 * Same as 'XnioWorker.createStreamConnectionServer' with SO_REUSEPORT set before binding.
+	 */
+	@SuppressWarnings("unchecked")
+	private static AcceptingChannel<StreamConnection> createServer(XnioWorker worker, InetSocketAddress address, 
+			ChannelListener<? super AcceptingChannel<StreamConnection>> acceptListener, OptionMap socketOptions) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		boolean ok = false;
+		try{
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			if (socketOptions.contains(Options.RECEIVE_BUFFER)){
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, socketOptions.get(Options.RECEIVE_BUFFER, -1));
+			}
+			channel.configureBlocking(false);
+			channel.bind(address, socketOptions.get(Options.BACKLOG, 1000));
+			AcceptingChannel<StreamConnection> server = (AcceptingChannel<StreamConnection>) 
+					QUEUED_TCP_SERVER.newInstance(TCP_SERVER.newInstance(worker, channel, socketOptions, true));
+			((ChannelListener.Setter<AcceptingChannel<StreamConnection>>) server.getAcceptSetter()).set(acceptListener);
+			ok = true;
+			return server;
+		}catch (ReflectiveOperationException e){
+			throw new IOException("Could not create listener.", e);
+		}finally{
+			if (!ok){
+				IoUtils.safeClose(channel);
+			}
+		}
+	}
+}
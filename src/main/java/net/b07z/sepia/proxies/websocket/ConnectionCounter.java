@@ -0,0 +1,108 @@
+package net.b07z.sepia.proxies.websocket;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.xnio.IoUtils;
+import org.xnio.StreamConnection;
+
+import io.undertow.server.ServerConnection;
+
+/**
+ * Open WebSocket connections of a route. Kept by the proxy across route table updates so connections that were
+ * opened before a settings reload are still counted (and released) correctly. Upgraded connections are registered
+ * so they can be closed with a close frame on shutdown.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class ConnectionCounter {
+
+	private final AtomicInteger open = new AtomicInteger();
+	private final LongAdder upgrades = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final Set<Tunnel> tunnels = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Take a slot for a new connection (handshake).
+	 * @param max - max. open connections, 0 for no limit
+	 * @return true if the connection can open
+	 */
+	boolean tryOpen(int max){
+		if (max <= 0){
+			open.incrementAndGet();
+			return true;
+		}
+		while (true){
+			int n = open.get();
+			if (n >= max){
+				rejected.increment();
+				return false;
+			}
+			if (open.compareAndSet(n, n + 1)){
+				return true;
+			}
+		}
+	}
+	void upgraded(){
+		upgrades.increment();
+	}
+	void close(){
+		open.decrementAndGet();
+	}
+	
+	/**
+	 * Upgraded client connection with its close frame conduit.
+	 */
+	static final class Tunnel {
+		final StreamConnection channel;
+		final GoingAwayConduit conduit;
+		
+		Tunnel(StreamConnection channel, GoingAwayConduit conduit){
+			this.channel = channel;
+			this.conduit = conduit;
+		}
+	}
+	void register(ServerConnection connection, Tunnel tunnel){
+		tunnels.add(tunnel);
+		connection.addCloseListener((c) -> tunnels.remove(tunnel));
+	}
+	
+	/**
+	 * Send a close frame ('1001 Going Away') to all open WebSocket connections. Clients answer with their own close 
+	 * frame, the backend then closes the connection.
+	 */
+	public void goAway(){
+		for (Tunnel t : tunnels){
+			t.channel.getIoThread().execute(() -> {
+				try{
+					t.conduit.goAway();
+				}catch (IOException e){
+					IoUtils.safeClose(t.channel);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Open connections including handshakes in progress.
+	 */
+	public int getOpen(){
+		return open.get();
+	}
+	/**
+	 * Successful upgrades since start.
+	 */
+	public long getUpgrades(){
+		return upgrades.sum();
+	}
+	/**
+	 * Handshakes rejected because the route was at its connection limit.
+	 */
+	public long getRejected(){
+		return rejected.sum();
+	}
+}
@@ -0,0 +1,210 @@
+package net.b07z.sepia.proxies.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.xnio.channels.StreamSourceChannel;
+import org.xnio.conduits.AbstractStreamSinkConduit;
+import org.xnio.conduits.ConduitWritableByteChannel;
+import org.xnio.conduits.Conduits;
+import org.xnio.conduits.StreamSinkConduit;
+
+/**
+ * Client side of a tunneled WebSocket connection that can end it with a close frame ('1001 Going Away'), e.g. when
+ * the proxy shuts down. The proxy only copies bytes, so the conduit follows the frame headers of the backend to
+ * insert the close frame between two frames. Data of the backend after the close frame is dropped, the close
+ * frame the client sends back still reaches the backend, which then closes the connection.<br>
+ * All methods have to be called on the IO thread of the connection.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class GoingAwayConduit extends AbstractStreamSinkConduit<StreamSinkConduit> {
+
+	private static final byte[] CLOSE_GOING_AWAY = {(byte) 0x88, 0x02, 0x03, (byte) 0xE9};		//FIN + close, status 1001
+
+	//frame parser - at a frame boundary if header == 0 and payload == 0
+	private int header = 0;			//header bytes seen of the current frame
+	private int headerSize;
+	private int extendedLength;		//bytes of the extended payload length (0, 2 or 8)
+	private long length;
+	private long payload = 0;		//payload bytes left of the current frame
+
+	private boolean goingAway = false;
+	private ByteBuffer closeFrame;		//pending close frame, null before and after it was written
+	private boolean closeSent = false;
+
+	public GoingAwayConduit(StreamSinkConduit next){
+		super(next);
+	}
+
+	/**
+	 * Send a close frame as soon as the current frame of the backend is complete.
+	 */
+	public void goAway() throws IOException {
+		if (goingAway){
+			return;
+		}
+		goingAway = true;
+		if (isAtBoundary()){
+			closeFrame = ByteBuffer.wrap(CLOSE_GOING_AWAY);
+			writeCloseFrame();
+		}
+	}
+
+	/**
+	 * True after the close frame was written completely.
+	 */
+	public boolean isCloseSent(){
+		return closeSent;
+	}
+
+	private boolean isAtBoundary(){
+		return header == 0 && payload == 0;
+	}
+
+	private boolean writeCloseFrame() throws IOException {
+		if (closeFrame != null){
+			next.write(closeFrame);
+			if (closeFrame.hasRemaining()){
+				return false;
+			}
+			closeFrame = null;
+			closeSent = true;
+			next.flush();
+		}
+		return true;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		if (!goingAway){
+			int pos = src.position();
+			int n = next.write(src);
+			parse(src, pos, pos + n, false);
+			return n;
+		}
+		int written = 0;
+		if (!isAtBoundary()){
+			//write up to the end of the current frame
+			int pos = src.position();
+			int limit = src.limit();
+			src.limit(pos + bytesToBoundary(src, pos, limit));
+			try{
+				written = next.write(src);
+			}finally{
+				src.limit(limit);
+			}
+			parse(src, pos, pos + written, false);
+			if (!isAtBoundary()){
+				return written;
+			}
+			closeFrame = ByteBuffer.wrap(CLOSE_GOING_AWAY);
+		}
+		if (!writeCloseFrame()){
+			return written;
+		}
+		//drop the rest
+		int dropped = src.remaining();
+		src.position(src.limit());
+		return written + dropped;
+	}
+
+	/**
+	 * Bytes in [from, to) of a buffer that belong to the current frame, without moving the parser.
+	 */
+	private int bytesToBoundary(ByteBuffer buf, int from, int to){
+		int header = this.header, headerSize = this.headerSize, extendedLength = this.extendedLength;
+		long length = this.length, payload = this.payload;
+		int n = parse(buf, from, to, true);
+		this.header = header;
+		this.headerSize = headerSize;
+		this.extendedLength = extendedLength;
+		this.length = length;
+		this.payload = payload;
+		return n;
+	}
+
+	/**
+	 * Follow the frames in bytes [from, to) of a buffer.
+	 * @param stopAtBoundary - stop at the end of the current frame
+	 * @return bytes parsed
+	 */
+	private int parse(ByteBuffer buf, int from, int to, boolean stopAtBoundary){
+		int p = from;
+		while (p < to){
+			if (payload > 0){
+				int n = (int) Math.min(payload, to - p);
+				payload -= n;
+				p += n;
+				if (payload == 0 && stopAtBoundary){
+					break;
+				}
+				continue;
+			}
+			int b = buf.get(p++) & 0xff;
+			if (header == 0){
+				headerSize = 2;
+				length = 0;
+			}else if (header == 1){
+				int len = b & 0x7f;
+				extendedLength = (len == 126)? 2 : (len == 127)? 8 : 0;
+				headerSize = 2 + extendedLength + (((b & 0x80) != 0)? 4 : 0);		//masked frames shouldn't come from a server, but skip the key anyway
+				length = (len < 126)? len : 0;
+			}else if (header < 2 + extendedLength){
+				length = (length << 8) | b;
+			}
+			header++;
+			if (header == headerSize){
+				header = 0;
+				payload = length;
+				if (payload == 0 && stopAtBoundary){
+					break;
+				}
+			}
+		}
+		return p - from;
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offs, int len) throws IOException {
+		long total = 0;
+		for (int i = offs; i < offs + len; i++){
+			if (!srcs[i].hasRemaining()){
+				continue;
+			}
+			int n = write(srcs[i]);
+			total += n;
+			if (srcs[i].hasRemaining()){
+				break;
+			}
+		}
+		return total;
+	}
+
+	@Override
+	public int writeFinal(ByteBuffer src) throws IOException {
+		return Conduits.writeFinalBasic(this, src);
+	}
+
+	@Override
+	public long writeFinal(ByteBuffer[] srcs, int offs, int len) throws IOException {
+		return Conduits.writeFinalBasic(this, srcs, offs, len);
+	}
+
+	@Override
+	public long transferFrom(FileChannel src, long position, long count) throws IOException {
+		return src.transferTo(position, count, new ConduitWritableByteChannel(this));
+	}
+
+	@Override
+	public long transferFrom(StreamSourceChannel source, long count, ByteBuffer throughBuffer) throws IOException {
+		return Conduits.transfer(source, count, throughBuffer, this);
+	}
+
+	@Override
+	public boolean flush() throws IOException {
+		return writeCloseFrame() && next.flush();
+	}
+}
@@ -0,0 +1,107 @@
+package net.b07z.sepia.proxies.websocket;
+
+import java.lang.reflect.Method;
+import java.util.function.UnaryOperator;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.HttpUpgradeListener;
+import io.undertow.server.ServerConnection;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+import io.undertow.server.protocol.http.HttpServerConnection;
+import io.undertow.util.StatusCodes;
+
+/**
+ * Helpers to track upgraded connections. After the handshake the proxy only tunnels bytes, so the exchange is
+ * complete long before the connection is closed and the client connection is the only thing left to watch.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class Upgrades {
+
+	public static final HttpString HTTP2_SETTINGS = new HttpString("HTTP2-Settings");
+
+	private Upgrades(){}
+
+	/**
+	 * True if the request is a WebSocket handshake ('Upgrade: websocket').
+	 */
+	public static boolean isWebSocket(HttpServerExchange exchange){
+		HeaderValues upgrade = exchange.getRequestHeaders().get(Headers.UPGRADE);
+		if (upgrade == null){
+			return false;
+		}
+		for (String value : upgrade){
+			for (String protocol : value.split(",")){
+				if (protocol.trim().equalsIgnoreCase("websocket")){
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Remove an HTTP/2 cleartext upgrade ('Upgrade: h2c') from the request. It was meant for the proxy (the listener
+	 * upgrades the client connection itself) and must not reach the backend, which might switch protocols as well.
+	 * @return true if there was an h2c upgrade
+	 */
+	public static boolean removeH2cUpgrade(HttpServerExchange exchange){
+		HeaderMap headers = exchange.getRequestHeaders();
+		String upgrade = headers.getFirst(Headers.UPGRADE);
+		if (upgrade == null || !upgrade.trim().equalsIgnoreCase("h2c")){
+			return false;
+		}
+		headers.remove(Headers.UPGRADE);
+		headers.remove(HTTP2_SETTINGS);
+		headers.remove(Headers.CONNECTION);
+		return true;
+	}
+
+	/**
+	 * Run 'release' when the upgraded connection of a completed exchange is closed, or right away if the exchange
+	 * was not upgraded (handshake rejected or failed). Call from an exchange completion listener.
+	 * @return true if the connection was upgraded
+	 */
+	public static boolean releaseOnClose(HttpServerExchange exchange, Runnable release){
+		ServerConnection connection = exchange.getConnection();
+		if (exchange.getStatusCode() == StatusCodes.SWITCHING_PROTOCOLS && connection.isOpen()){
+			//completion listeners and close listeners both run on the IO thread of the connection
+			connection.addCloseListener((c) -> release.run());
+			return true;
+		}else{
+			release.run();
+			return false;
+		}
+	}
+
+	/**
+	 * Wrap the upgrade listener of a completed exchange (e.g. the tunnel of the proxy). The wrapper runs after
+	 * Undertow removed the HTTP conduits from the connection and before the first byte is tunneled, which is the only
+	 * point where conduits can be added that see all the data. Undertow has no public access to the listener, so 
+	 * this uses reflection. Call from an exchange completion listener.
+	 * @return true if the listener was wrapped, false for HTTP/2 (no upgrades) or another Undertow version
+	 */
+	public static boolean wrapUpgradeListener(ServerConnection connection, UnaryOperator<HttpUpgradeListener> wrapper){
+		if (!(connection instanceof HttpServerConnection)){
+			return false;
+		}
+		try{
+			Method get = HttpServerConnection.class.getDeclaredMethod("getUpgradeListener");
+			Method set = HttpServerConnection.class.getDeclaredMethod("setUpgradeListener", HttpUpgradeListener.class);
+			get.setAccessible(true);
+			set.setAccessible(true);
+			HttpUpgradeListener listener = (HttpUpgradeListener) get.invoke(connection);
+			if (listener == null){
+				return false;
+			}
+			set.invoke(connection, wrapper.apply(listener));
+			return true;
+		}catch (ReflectiveOperationException | RuntimeException e){
+			return false;
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package net.b07z.sepia.proxies.websocket;
+
+import org.xnio.ChannelListeners;
+import org.xnio.StreamConnection;
+import org.xnio.conduits.ConduitStreamSourceChannel;
+
+import io.undertow.conduits.IdleTimeoutConduit;
+import io.undertow.server.AbstractServerConnection;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.ServerConnection;
+import io.undertow.util.Headers;
+import io.undertow.util.StatusCodes;
+
+/**
+ * Handler of a WebSocket route. Handshakes are counted per route, rejected with '503 Service Unavailable' when the
+ * route is at its connection limit and forwarded directly to the proxy (no cache, compression or request limits).
+ * Upgraded connections are closed when no data (including ping/pong frames) passed in either direction for the idle
+ * timeout and get a close frame on shutdown ({@link ConnectionCounter#goAway()}). Other requests of the route 
+ * (e.g. long-polling fallbacks) go to the regular handler.
+ *
+ * @author Florian Quirin
+ *
+ */
+public class WebSocketHandler implements HttpHandler {
+
+	private final ConnectionCounter counter;
+	private final int maxConnections;
+	private final long idleTimeoutMs;
+	private final String retryAfter;
+	private final HttpHandler upgrades;
+	private final HttpHandler others;
+
+	/**
+	 * Create handler.
+	 * @param counter - open connections of the route
+	 * @param maxConnections - max. open connections of the route (0: no limit)
+	 * @param idleTimeoutMs - close upgraded connections without traffic after this time (0: never)
+	 * @param retryAfterSec - value of 'Retry-After' header of rejected handshakes
+	 * @param upgrades - handler of WebSocket handshakes (usually the proxy)
+	 * @param others - handler of all other requests
+	 */
+	public WebSocketHandler(ConnectionCounter counter, int maxConnections, long idleTimeoutMs, int retryAfterSec, 
+			HttpHandler upgrades, HttpHandler others){
+		this.counter = counter;
+		this.maxConnections = maxConnections;
+		this.idleTimeoutMs = idleTimeoutMs;
+		this.retryAfter = String.valueOf(retryAfterSec);
+		this.upgrades = upgrades;
+		this.others = others;
+	}
+
+	@Override
+	public void handleRequest(HttpServerExchange exchange) throws Exception {
+		if (!Upgrades.isWebSocket(exchange)){
+			others.handleRequest(exchange);
+			return;
+		}
+		if (!counter.tryOpen(maxConnections)){
+			exchange.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+			exchange.getResponseHeaders().put(Headers.RETRY_AFTER, retryAfter);
+			exchange.endExchange();
+			return;
+		}
+		exchange.addExchangeCompleteListener((ex, nextListener) -> {
+			try{
+				if (Upgrades.releaseOnClose(ex, counter::close)){
+					counter.upgraded();
+					trackFrames(ex.getConnection());
+					if (idleTimeoutMs > 0){
+						setIdleTimeout(ex.getConnection());
+					}
+				}
+			}finally{
+				nextListener.proceed();
+			}
+		});
+		upgrades.handleRequest(exchange);
+	}
+
+	/**
+	 * Put the close frame conduit in front of the client connection when the proxy starts the tunnel, so it sees the
+	 * backend frames from the first byte on.
+	 */
+	private void trackFrames(ServerConnection connection){
+		Upgrades.wrapUpgradeListener(connection, (tunnel) -> (channel, exchange) -> {
+			GoingAwayConduit goingAway = new GoingAwayConduit(channel.getSinkChannel().getConduit());
+			channel.getSinkChannel().setConduit(goingAway);
+			counter.register(connection, new ConnectionCounter.Tunnel(channel, goingAway));
+			tunnel.handleUpgrade(channel, exchange);
+		});
+	}
+
+	/**
+	 * Wrap the client connection into an idle timeout. Runs as a new task on the IO thread, i.e. after the upgrade
+	 * reset the HTTP conduits of the connection and the proxy started to transfer data.
+	 */
+	private void setIdleTimeout(ServerConnection connection){
+		if (!(connection instanceof AbstractServerConnection)){
+			return;		//HTTP/2 has no upgrades
+		}
+		StreamConnection channel = ((AbstractServerConnection) connection).getChannel();
+		connection.getIoThread().execute(() -> {
+			if (channel.isOpen()){
+				IdleTimeoutConduit idle = new ClosingIdleTimeoutConduit(channel);
+				channel.getSourceChannel().setConduit(idle);
+				channel.getSinkChannel().setConduit(idle);
+				idle.setIdleTimeout(idleTimeoutMs);
+			}
+		});
+	}
+	
+	/**
+	 * Idle timeout that also wakes up the reading side of the tunnel, so the proxy notices the closed client
+	 * connection right away and closes the backend connection too.
+	 */
+	private static final class ClosingIdleTimeoutConduit extends IdleTimeoutConduit {
+		private final StreamConnection channel;
+		
+		ClosingIdleTimeoutConduit(StreamConnection channel){
+			super(channel);
+			this.channel = channel;
+		}
+
+		@Override
+		protected void doClose(){
+			super.doClose();
+			ConduitStreamSourceChannel source = channel.getSourceChannel();
+			ChannelListeners.invokeChannelListener(source, source.getReadListener());
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package net.b07z.sepia.proxies.handlers;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads (Java 21+). Version of the multi-release jar for Java 21 and newer.
+ *
+ * @author Florian Quirin
+ *
+ */
+public final class VirtualThreads {
+	
+	private VirtualThreads(){}
+	
+	/**
+	 * True if this JVM can run tasks on virtual threads.
+	 */
+	public static boolean isSupported(){
+		return true;
+	}
+	
+	/**
+	 * Executor that starts a new virtual thread per task.
+	 * @param namePrefix - prefix of thread names, e.g. "proxy-vt-"
+	 * @return executor or null if virtual threads are not supported
+	 */
+	public static ExecutorService newExecutor(String namePrefix){
+		return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(namePrefix, 0).factory());
+	}
+}
@@ -0,0 +1,79 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.undertow.Undertow;
+import net.b07z.sepia.proxies.logging.RotatingFile;
+
+public class TestAccessLog {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testAccessLog() throws Exception {
+		Undertow s1 = Undertow.builder().addHttpListener(9291, "localhost")
+				.setHandler((exchange) -> exchange.getResponseSender().send("hello")).build();
+		s1.start();
+		
+		File log = new File(folder.getRoot(), "logs/access.log");
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9290);
+		reverseProxy.setAccessLog(log.getPath(), 0, 1, 16, 50);
+		reverseProxy.addPrefixPath("/a", "http://localhost:9291", true);
+		reverseProxy.start();
+		try{
+			assertEquals(200, call("http://localhost:9290/a/x%22y?secret=1"));
+			assertEquals(404, call("http://localhost:9290/b"));
+		}finally{
+			reverseProxy.stop();
+			s1.stop();
+		}
+		List<String> lines = Files.readAllLines(log.toPath(), StandardCharsets.UTF_8);
+		assertEquals(2, lines.size());
+		String forwarded = lines.get(0);
+		assertTrue(forwarded, forwarded.startsWith("{\"time\":\""));
+		assertTrue(forwarded, forwarded.contains("\"client\":\"127.0.0.1\",\"method\":\"GET\",\"path\":\"/a/x\\\"y\",\"route\":\"/a\""));
+		assertTrue(forwarded, forwarded.contains("\"backend\":\"http://localhost:9291\",\"status\":200,\"bytes_in\":0,\"bytes\":5,\"upstream_ms\":"));
+		assertTrue(forwarded, forwarded.contains("\"total_ms\":"));
+		assertFalse(forwarded, forwarded.contains("secret"));
+		String unmatched = lines.get(1);
+		assertTrue(unmatched, unmatched.contains("\"path\":\"/b\",\"status\":404"));
+		assertFalse(unmatched, unmatched.contains("upstream_ms"));
+	}
+	
+	@Test
+	public void testRotation() throws Exception {
+		File file = new File(folder.getRoot(), "rotate.log");
+		RotatingFile rf = new RotatingFile(file, 10, 2);
+		for (int i = 0; i < 4; i++){
+			rf.write(ByteBuffer.wrap(("line-" + i + "\n").getBytes(StandardCharsets.UTF_8)));
+		}
+		rf.close();
+		assertEquals("line-3\n", new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+		assertEquals("line-2\n", new String(Files.readAllBytes(new File(file.getPath() + ".1").toPath()), StandardCharsets.UTF_8));
+		assertEquals("line-1\n", new String(Files.readAllBytes(new File(file.getPath() + ".2").toPath()), StandardCharsets.UTF_8));
+		assertFalse(new File(file.getPath() + ".3").exists());
+	}
+	
+	private static int call(String url) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		con.setConnectTimeout(3000);
+		con.setReadTimeout(3000);
+		int code = con.getResponseCode();
+		con.disconnect();
+		return code;
+	}
+}
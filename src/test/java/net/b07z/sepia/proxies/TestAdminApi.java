@@ -0,0 +1,133 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import io.undertow.Undertow;
+import net.b07z.sepia.proxies.metrics.JsonWriter;
+import net.b07z.sepia.proxies.routing.RouteOptions;
+
+public class TestAdminApi {
+
+	@Test
+	public void testJsonWriter(){
+		String json = new JsonWriter().beginObject(null)
+				.value("name", "a\"b\n")
+				.value("n", 42)
+				.value("x", 1.23456)
+				.value("nan", Double.NaN)
+				.beginArray("list").value(null, true).value(null, (String) null).endArray()
+				.beginObject("empty").endObject()
+				.endObject().toString();
+		assertEquals("{\"name\":\"a\\\"b\\u000a\",\"n\":42,\"x\":1.235,\"nan\":null,\"list\":[true,null],\"empty\":{}}", json);
+	}
+
+	@Test
+	public void testTuneValidation() throws Exception {
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9407);
+		reverseProxy.addPrefixPath("/chat", "http://localhost:9408", new RouteOptions());
+		assertInvalid(reverseProxy, "unknown", "1");
+		assertInvalid(reverseProxy, "max_request_time", "-1");
+		assertInvalid(reverseProxy, "retry_after", "abc");
+		assertInvalid(reverseProxy, "concurrency", "10");		//no route
+		Map<String, String> settings = new LinkedHashMap<>();
+		settings.put("route", "/chat");
+		settings.put("exact", "true");
+		settings.put("concurrency", "10");
+		try{
+			reverseProxy.tune(settings);
+			fail("exact path should not exist");
+		}catch (IllegalArgumentException e){
+			assertTrue(e.getMessage(), e.getMessage().contains("/chat"));
+		}
+		//nothing applied by a failed call
+		settings.clear();
+		settings.put("max_request_time", "1234");
+		settings.put("idle", "-5");
+		try{
+			reverseProxy.tune(settings);
+			fail();
+		}catch (IllegalArgumentException e){
+			//expected
+		}
+		assertTrue(reverseProxy.writeStatus().contains("\"max_request_time\":" + reverseProxy.MAX_REQ_TIME + ","));
+		assertNotEquals(1234, reverseProxy.MAX_REQ_TIME);
+	}
+
+	@Test
+	public void testStatusAndTuning() throws Exception {
+		Undertow backend = Undertow.builder().addHttpListener(9408, "localhost")
+				.setHandler((exchange) -> exchange.getResponseSender().send("chat")).build();
+		backend.start();
+
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9407);
+		reverseProxy.setAdminPath("/admin");
+		RouteOptions chatOptions = new RouteOptions().setPublic(true);
+		reverseProxy.addPrefixPath("/chat", "http://localhost:9408", chatOptions);
+		reverseProxy.start();
+		try{
+			assertEquals("chat", read(request("GET", "http://localhost:9407/chat/x")));
+			HttpURLConnection con = request("GET", "http://localhost:9407/admin");
+			assertEquals(200, con.getResponseCode());
+			assertEquals(JsonWriter.CONTENT_TYPE, con.getContentType());
+			String status = read(con);
+			assertTrue(status, status.startsWith("{\"state\":\"running\",\"uptime_ms\":"));
+			assertTrue(status, status.contains("\"path\":\"/chat\",\"type\":\"prefix\",\"target\":\"http://localhost:9408\""));
+			assertTrue(status, status.contains("\"uri\":\"http://localhost:9408\""));
+			assertTrue(status, status.contains("\"connections_open\":1,\"connections_idle\":1,\"connections_waiting\":0"));
+			assertTrue(status, status.contains("\"heap_used\":"));
+			assertFalse(status, status.contains("\"concurrency\":{"));
+
+			//change global and route settings
+			con = request("POST", "http://localhost:9407/admin?max_request_time=12345&route=/chat&concurrency=7&uploadtimeout=5000");
+			assertEquals(200, con.getResponseCode());
+			status = read(con);
+			assertEquals(12345, reverseProxy.MAX_REQ_TIME);
+			assertTrue(status, status.contains("\"max_request_time\":12345"));
+			assertTrue(status, status.contains("\"concurrency\":7,\"uploadtimeout\":5000"));
+			assertTrue(status, status.contains("\"concurrency\":{\"limit\":7,\"inflight\":0,\"queued\":0,\"rejected\":0}"));
+			assertEquals("chat", read(request("GET", "http://localhost:9407/chat/x")));
+			//new mapping, options of the previous one (and the settings) unchanged
+			assertEquals(7, reverseProxy.prefixPaths.get("/chat").getOptions().getConcurrencyLimit());
+			assertEquals(0, chatOptions.getConcurrencyLimit());
+			assertEquals(0, chatOptions.getUploadTimeout());
+
+			con = request("POST", "http://localhost:9407/admin?max_request_timeout=1");
+			assertEquals(400, con.getResponseCode());
+			assertEquals(405, request("PUT", "http://localhost:9407/admin").getResponseCode());
+		}finally{
+			reverseProxy.stop();
+			backend.stop();
+		}
+		assertEquals("stopped", reverseProxy.getState());
+	}
+
+	private static void assertInvalid(TinyReverseProxy reverseProxy, String name, String value){
+		Map<String, String> settings = new LinkedHashMap<>();
+		settings.put(name, value);
+		try{
+			reverseProxy.tune(settings);
+			fail(name + "=" + value + " should be rejected");
+		}catch (IllegalArgumentException e){
+			//expected
+		}
+	}
+
+	private static HttpURLConnection request(String method, String url) throws Exception {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		con.setRequestMethod(method);
+		con.setConnectTimeout(3000);
+		con.setReadTimeout(3000);
+		return con;
+	}
+
+	private static String read(HttpURLConnection con) throws Exception {
+		return new String(con.getInputStream().readAllBytes(), "UTF-8");
+	}
+}
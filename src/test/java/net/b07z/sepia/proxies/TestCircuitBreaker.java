@@ -0,0 +1,177 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Test;
+
+import io.undertow.Undertow;
+import io.undertow.util.StatusCodes;
+import net.b07z.sepia.proxies.balancing.Backend;
+import net.b07z.sepia.proxies.balancing.CircuitBreaker;
+import net.b07z.sepia.proxies.balancing.CircuitBreaker.State;
+import net.b07z.sepia.proxies.routing.RouteOptions;
+
+public class TestCircuitBreaker {
+
+	@Test
+	public void testStates(){
+		CircuitBreaker cb = new CircuitBreaker(new CircuitBreaker.Settings(50, 100, 4, 1000, 500, 2));
+		long now = 10000;
+		//below min. requests
+		assertNull(cb.record(now, true, 10, false));
+		assertNull(cb.record(now, false, 10, false));
+		assertNull(cb.record(now, false, 10, false));
+		assertEquals(State.CLOSED, cb.getState());
+		//slow response counts as failure: 2 of 4
+		assertEquals(State.OPEN, cb.record(now, false, 200_000, false));
+		assertEquals(50, cb.getErrorRate(now));
+		assertEquals(CircuitBreaker.DENIED, cb.tryAcquire(now + 100));
+		assertFalse(cb.isCallPermitted(now + 100));
+		assertEquals(400, cb.getRemainingOpenTime(now + 100));
+
+		//half-open: 2 probes, a third request has to wait
+		now += 500;
+		assertTrue(cb.isCallPermitted(now));
+		assertEquals(CircuitBreaker.PROBE, cb.tryAcquire(now));
+		assertEquals(State.HALF_OPEN, cb.getState());
+		assertEquals(CircuitBreaker.PROBE, cb.tryAcquire(now));
+		assertEquals(CircuitBreaker.DENIED, cb.tryAcquire(now));
+		assertNull(cb.record(now, false, 10, true));
+		assertEquals(State.OPEN, cb.record(now, true, -1, true));
+		assertEquals(2, cb.getOpenedCount());
+		assertEquals(2, cb.getRejected());
+
+		//all probes succeed: closed with empty window
+		now += 500;
+		assertEquals(CircuitBreaker.PROBE, cb.tryAcquire(now));
+		cb.releaseProbe();		//e.g. cancelled
+		assertEquals(CircuitBreaker.PROBE, cb.tryAcquire(now));
+		assertEquals(CircuitBreaker.PROBE, cb.tryAcquire(now));
+		assertNull(cb.record(now, false, 10, true));
+		assertEquals(State.CLOSED, cb.record(now, false, 10, true));
+		assertEquals(0, cb.getErrorRate(now));
+		assertEquals(CircuitBreaker.PERMITTED, cb.tryAcquire(now));
+
+		//old failures leave the window
+		for (int i = 0; i < 3; i++){
+			assertNull(cb.record(now, true, -1, false));
+		}
+		now += 1000;
+		assertNull(cb.record(now, true, -1, false));
+		assertEquals(State.CLOSED, cb.getState());
+	}
+
+	@Test
+	public void testFastFail() throws Exception {
+		AtomicBoolean broken = new AtomicBoolean(true);
+		AtomicInteger calls = new AtomicInteger();
+		Undertow backend = Undertow.builder().addHttpListener(9405, "localhost")
+				.setHandler((exchange) -> {
+					if (exchange.getRequestPath().startsWith("/app")){
+						//application error, not a backend failure
+						exchange.setStatusCode(StatusCodes.INTERNAL_SERVER_ERROR);
+						exchange.getResponseSender().send("app");
+						return;
+					}
+					calls.incrementAndGet();
+					if (broken.get()){
+						exchange.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+					}
+					exchange.getResponseSender().send("chat");
+				}).build();
+		Undertow other = Undertow.builder().addHttpListener(9406, "localhost")
+				.setHandler((exchange) -> exchange.getResponseSender().send("other")).build();
+		backend.start();
+		other.start();
+
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9404);
+		reverseProxy.setCircuitBreakers(50, 0, 4, 10000, 400, 1);
+		reverseProxy.addPrefixPath("/chat", "http://localhost:9405", new RouteOptions().setPublic(true));
+		reverseProxy.addPrefixPath("/app", "http://localhost:9405/app", new RouteOptions().setPublic(true));
+		reverseProxy.addPrefixPath("/both", "http://localhost:9405, http://localhost:9406", new RouteOptions().setPublic(true).setRetries(0));
+		reverseProxy.start();
+		try{
+			//results are recorded when the exchange completes, that can be after the client got the response
+			CircuitBreaker chat = breaker(reverseProxy, "/chat", 9405);
+			CircuitBreaker both = breaker(reverseProxy, "/both", 9405);
+			for (int i = 0; i < 6; i++){
+				assertEquals(500, get("http://localhost:9404/app/x").getResponseCode());
+			}
+			for (int i = 0; i < 4; i++){
+				assertEquals(503, get("http://localhost:9404/chat/x").getResponseCode());
+			}
+			waitFor(() -> chat.getState() == State.OPEN);
+			//open: no request reaches the backend
+			HttpURLConnection con = get("http://localhost:9404/chat/x");
+			assertEquals(503, con.getResponseCode());
+			assertEquals("1", con.getHeaderField("Retry-After"));
+			assertEquals(4, calls.get());
+			//with another backend: failing one is skipped once its breaker is open
+			for (int i = 0; i < 8; i++){
+				get("http://localhost:9404/both/x").getResponseCode();
+			}
+			waitFor(() -> both.getState() == State.OPEN);
+			int callsBefore = calls.get();
+			for (int i = 0; i < 3; i++){
+				assertEquals(200, get("http://localhost:9404/both/x").getResponseCode());
+			}
+			assertEquals(callsBefore, calls.get());
+			String status = read(get("http://localhost:9404/"));
+			assertTrue(status, status.contains("/chat -> http://localhost:9405: circuit breaker OPEN"));
+			assertTrue(read(get("http://localhost:9404/metrics")).contains("proxy_backend_circuit_state{route=\"/chat\",type=\"prefix\",backend=\"http://localhost:9405\"} 2"));
+
+			//half-open probe closes it
+			broken.set(false);
+			waitFor(() -> chat.isCallPermitted(System.currentTimeMillis()));
+			callsBefore = calls.get();
+			assertEquals(200, get("http://localhost:9404/chat/x").getResponseCode());
+			assertEquals(callsBefore + 1, calls.get());
+			waitFor(() -> chat.getState() == State.CLOSED);
+			assertEquals(200, get("http://localhost:9404/chat/x").getResponseCode());
+			waitFor(() -> both.isCallPermitted(System.currentTimeMillis()));
+			long end = System.currentTimeMillis() + 3000;
+			while (both.getState() != State.CLOSED){
+				assertTrue("timeout", System.currentTimeMillis() < end);
+				assertEquals(200, get("http://localhost:9404/both/x").getResponseCode());
+			}
+			assertEquals("SEPIA reverse-proxy powered by Undertow", read(get("http://localhost:9404/")));
+			assertEquals(State.CLOSED, breaker(reverseProxy, "/app", 9405).getState());
+		}finally{
+			reverseProxy.stop();
+			backend.stop();
+			other.stop();
+		}
+	}
+
+	private static CircuitBreaker breaker(TinyReverseProxy reverseProxy, String route, int port){
+		for (Backend b : reverseProxy.prefixMappings.get(route).getBackends()){
+			if (b.getUri().getPort() == port) return b.getCircuitBreaker();
+		}
+		return null;
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long end = System.currentTimeMillis() + 3000;
+		while (!condition.getAsBoolean()){
+			assertTrue("timeout", System.currentTimeMillis() < end);
+			Thread.sleep(20);
+		}
+	}
+
+	private static HttpURLConnection get(String url) throws Exception {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		con.setConnectTimeout(3000);
+		con.setReadTimeout(3000);
+		return con;
+	}
+
+	private static String read(HttpURLConnection con) throws Exception {
+		return new String(con.getInputStream().readAllBytes(), "UTF-8");
+	}
+}
@@ -0,0 +1,139 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.Test;
+
+import io.undertow.Undertow;
+import io.undertow.util.Headers;
+import net.b07z.sepia.proxies.routing.RouteOptions;
+
+public class TestCompression {
+	
+	private static final String JSON = "{\"answer\":\"" + "hello world ".repeat(400) + "\"}";
+	
+	private final AtomicInteger backendCalls = new AtomicInteger();
+
+	@Test
+	public void testCompression() throws Exception {
+		Undertow s1 = startTestServer(9311);
+		
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9310);
+		reverseProxy.addPrefixPath("/z", "http://localhost:9311", new RouteOptions().setCompress(true));
+		reverseProxy.addPrefixPath("/zc", "http://localhost:9311", new RouteOptions().setCompress(true).setCache(true));
+		reverseProxy.addPrefixPath("/n", "http://localhost:9311", true);
+		reverseProxy.start();
+		try{
+			//negotiation
+			Response r = get("http://localhost:9310/z/json", "gzip, deflate, br");
+			assertEquals("gzip", r.encoding);
+			assertEquals("Accept-Encoding", r.vary);
+			assertTrue(r.raw.length < JSON.length() / 10);
+			assertEquals(JSON, r.body);
+			r = get("http://localhost:9310/z/json", "deflate");
+			assertEquals("deflate", r.encoding);
+			assertEquals(JSON, r.body);
+			r = get("http://localhost:9310/z/json", null);
+			assertNull(r.encoding);
+			assertEquals("Accept-Encoding", r.vary);
+			assertEquals(JSON, r.body);
+			r = get("http://localhost:9310/z/json", "gzip;q=0, identity");
+			assertNull(r.encoding);
+			
+			//not compressed: small, wrong type, already encoded, route without compression
+			assertNull(get("http://localhost:9310/z/small", "gzip").encoding);
+			assertNull(get("http://localhost:9310/z/png", "gzip").encoding);
+			assertEquals("br", get("http://localhost:9310/z/br", "gzip, br").encoding);
+			assertNull(get("http://localhost:9310/n/json", "gzip").encoding);
+			
+			//cached variants
+			backendCalls.set(0);
+			for (int i = 0; i < 2; i++){
+				r = get("http://localhost:9310/zc/json", "gzip, deflate");
+				assertEquals("gzip", r.encoding);
+				assertEquals(JSON, r.body);
+				r = get("http://localhost:9310/zc/json", "gzip");
+				assertEquals("gzip", r.encoding);
+				r = get("http://localhost:9310/zc/json", null);
+				assertNull(r.encoding);
+				assertEquals(JSON, r.body);
+			}
+			assertEquals(2, backendCalls.get());
+		}finally{
+			reverseProxy.stop();
+			s1.stop();
+		}
+	}
+	
+	private Undertow startTestServer(int port){
+		Undertow server = Undertow.builder()
+				.addHttpListener(port, "localhost")
+				.setHandler((exchange) -> {
+					backendCalls.incrementAndGet();
+					String path = exchange.getRequestPath();
+					if (path.equals("/json")){
+						exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json; charset=utf-8");
+						exchange.getResponseHeaders().put(Headers.CACHE_CONTROL, "max-age=60");
+						exchange.getResponseSender().send(JSON);
+					}else if (path.equals("/small")){
+						exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain");
+						exchange.getResponseSender().send("tiny");
+					}else if (path.equals("/png")){
+						exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "image/png");
+						exchange.getResponseSender().send(JSON);
+					}else{
+						exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain");
+						exchange.getResponseHeaders().put(Headers.CONTENT_ENCODING, "br");
+						exchange.getResponseSender().send(JSON);
+					}
+				}).build();
+		server.start();
+		return server;
+	}
+	
+	private static class Response {
+		String encoding;
+		String vary;
+		byte[] raw;
+		String body;
+	}
+	
+	private static Response get(String url, String acceptEncoding) throws Exception {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		con.setConnectTimeout(3000);
+		con.setReadTimeout(3000);
+		if (acceptEncoding != null){
+			con.setRequestProperty("Accept-Encoding", acceptEncoding);
+		}
+		assertEquals(200, con.getResponseCode());
+		Response r = new Response();
+		r.encoding = con.getHeaderField("Content-Encoding");
+		r.vary = con.getHeaderField("Vary");
+		try (InputStream in = con.getInputStream()){
+			r.raw = in.readAllBytes();
+		}
+		InputStream decoded;
+		if ("gzip".equals(r.encoding)){
+			decoded = new GZIPInputStream(new ByteArrayInputStream(r.raw));
+		}else if ("deflate".equals(r.encoding)){
+			decoded = new InflaterInputStream(new ByteArrayInputStream(r.raw), new Inflater(true));
+		}else{
+			decoded = new ByteArrayInputStream(r.raw);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		decoded.transferTo(out);
+		r.body = new String(out.toByteArray(), StandardCharsets.UTF_8);
+		return r;
+	}
+}
@@ -0,0 +1,115 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.undertow.Undertow;
+import io.undertow.util.Headers;
+import io.undertow.util.SameThreadExecutor;
+import net.b07z.sepia.proxies.limits.AdaptiveLimiter;
+import net.b07z.sepia.proxies.limits.LimiterGroup;
+import net.b07z.sepia.proxies.limits.Priority;
+import net.b07z.sepia.proxies.routing.RouteOptions;
+
+public class TestConcurrencyLimit {
+
+	@Test
+	public void testPriorityShares() throws Exception {
+		LimiterGroup group = new LimiterGroup(10);
+		AdaptiveLimiter low = group.limiter("low", 100, Priority.LOW);
+		AdaptiveLimiter high = group.limiter("high", 100, Priority.HIGH);
+		//low priority stops at 50% of the total limit, high at 100%
+		int lowCount = 0;
+		while (low.tryAcquire()) lowCount++;
+		assertEquals(5, lowCount);
+		int highCount = 0;
+		while (high.tryAcquire()) highCount++;
+		assertEquals(5, highCount);
+		assertEquals(10, group.getInflight());
+		high.release(1000000, false);
+		assertFalse(low.tryAcquire());
+		assertTrue(high.tryAcquire());
+		//same settings keep the limiter, new settings replace it
+		assertSame(low, group.limiter("low", 100, Priority.LOW));
+		assertNotSame(low, group.limiter("low", 50, Priority.LOW));
+	}
+
+	@Test
+	public void testRejectWithRetryAfter() throws Exception {
+		Undertow s1 = startSlowServer(9261, 500);
+		
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9260);
+		reverseProxy.setConcurrencyLimits(0, 50, 3);
+		reverseProxy.addPrefixPath("/slow", "http://localhost:9261", new RouteOptions().setConcurrencyLimit(2).setPriority(Priority.LOW));
+		reverseProxy.addPrefixPath("/free", "http://localhost:9261", true);
+		reverseProxy.start();
+		ExecutorService pool = Executors.newFixedThreadPool(6);
+		try{
+			List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < 6; i++){
+				results.add(pool.submit(() -> call("http://localhost:9260/slow/x")));
+			}
+			int ok = 0, rejected = 0;
+			for (Future<String> f : results){
+				String res = f.get();
+				if (res.equals("200")){
+					ok++;
+				}else{
+					assertEquals("503 - 3", res);
+					rejected++;
+				}
+			}
+			assertEquals(6, ok + rejected);
+			assertTrue("ok: " + ok, ok >= 2);
+			assertTrue("rejected: " + rejected, rejected >= 1);
+			
+			//paths without limit are not affected
+			assertEquals("200", call("http://localhost:9260/free/x"));
+			//slots are free again
+			assertEquals("200", call("http://localhost:9260/slow/x"));
+		}finally{
+			pool.shutdownNow();
+			reverseProxy.stop();
+			s1.stop();
+		}
+	}
+	
+	/**
+	 * Start a test server that answers after a delay.
+	 */
+	private Undertow startSlowServer(int port, long delayMs){
+		Undertow server = Undertow.builder()
+				.addHttpListener(port, "localhost")
+				.setHandler((exchange) -> {
+					exchange.dispatch(SameThreadExecutor.INSTANCE, () -> exchange.getIoThread().executeAfter(() -> {
+						exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain");
+						exchange.getResponseSender().send("slow");
+					}, delayMs, TimeUnit.MILLISECONDS));
+				}).build();
+		server.start();
+		return server;
+	}
+	
+	/**
+	 * Make a HTTP GET call and return status code (and 'Retry-After' if set).
+	 */
+	private static String call(String url) throws Exception {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		con.setConnectTimeout(3000);
+		con.setReadTimeout(3000);
+		int code = con.getResponseCode();
+		String retryAfter = con.getHeaderField("Retry-After");
+		con.disconnect();
+		return (retryAfter != null)? (code + " - " + retryAfter) : String.valueOf(code);
+	}
+}
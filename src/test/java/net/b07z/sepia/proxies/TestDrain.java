@@ -0,0 +1,153 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.undertow.Handlers;
+import io.undertow.Undertow;
+import io.undertow.server.handlers.BlockingHandler;
+import io.undertow.websockets.core.AbstractReceiveListener;
+import io.undertow.websockets.core.BufferedTextMessage;
+import io.undertow.websockets.core.WebSocketChannel;
+import io.undertow.websockets.core.WebSockets;
+import net.b07z.sepia.proxies.routing.RouteOptions;
+
+public class TestDrain {
+
+	@Test
+	public void testGracefulShutdown() throws Exception {
+		Undertow backend = Undertow.builder().addHttpListener(9371, "localhost")
+				.setHandler(new BlockingHandler((exchange) -> {
+					Thread.sleep(exchange.getRequestPath().endsWith("/slow")? 800 : 0);
+					exchange.getResponseSender().send("done");
+				})).build();
+		Undertow wsBackend = Undertow.builder().addHttpListener(9372, "localhost")
+				.setHandler(Handlers.websocket((exchange, channel) -> {
+					//greeting right after the handshake, the close frame must not end up inside a frame
+					WebSockets.sendText("hello", channel, null);
+					channel.getReceiveSetter().set(new AbstractReceiveListener(){
+						@Override
+						protected void onFullTextMessage(WebSocketChannel ch, BufferedTextMessage message){
+							WebSockets.sendText("echo:" + message.getData(), ch, null);
+						}
+					});
+					channel.resumeReceives();
+				})).build();
+		backend.start();
+		wsBackend.start();
+
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9370);
+		reverseProxy.addPrefixPath("/api", "http://localhost:9371", true);
+		reverseProxy.addPrefixPath("/chat", "http://localhost:9372", new RouteOptions().setPublic(true).setWebSocket(true));
+		reverseProxy.setDrain(300, 5000, "/drain");
+		reverseProxy.start();
+		try{
+			assertEquals(200, get("http://localhost:9370/").getResponseCode());
+			Client ws = new Client();
+			ws.ws = HttpClient.newHttpClient().newWebSocketBuilder().buildAsync(URI.create("ws://localhost:9370/chat/ws"), ws).get(3, TimeUnit.SECONDS);
+			assertEquals("hello", ws.next());
+			assertEquals("echo:x", ws.echo("x"));
+
+			CompletableFuture<Integer> slow = CompletableFuture.supplyAsync(() -> {
+				try{
+					return get("http://localhost:9370/api/slow").getResponseCode();
+				}catch (Exception e){
+					return -1;
+				}
+			});
+			Thread.sleep(100);
+
+			//admin endpoint is local only and needs POST
+			assertEquals(405, get("http://localhost:9370/drain").getResponseCode());
+			HttpURLConnection drain = (HttpURLConnection) new URL("http://localhost:9370/drain").openConnection();
+			drain.setRequestMethod("POST");
+			assertEquals(202, drain.getResponseCode());
+
+			//readiness fails at once, requests are still served but the connection is not reused
+			assertEquals(503, get("http://localhost:9370/").getResponseCode());
+			HttpURLConnection during = get("http://localhost:9370/api/x");
+			assertEquals(200, during.getResponseCode());
+			assertEquals("close", during.getHeaderField("Connection"));
+
+			//WebSockets get 'Going Away' after the delay, the request in progress finishes
+			assertEquals(Integer.valueOf(1001), ws.closed.get(3, TimeUnit.SECONDS));
+			assertEquals(Integer.valueOf(200), slow.get(3, TimeUnit.SECONDS));
+
+			long end = System.currentTimeMillis() + 3000;
+			while (reverseProxy.state != 2){
+				assertTrue("timeout", System.currentTimeMillis() < end);
+				Thread.sleep(20);
+			}
+			try{
+				get("http://localhost:9370/");
+				fail("server should be stopped");
+			}catch (ConnectException e){
+				//expected
+			}
+		}finally{
+			if (reverseProxy.state == 1){
+				reverseProxy.stop();
+			}
+			backend.stop();
+			wsBackend.stop();
+		}
+	}
+
+	private static HttpURLConnection get(String url) throws Exception {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		con.getResponseCode();
+		return con;
+	}
+
+	/**
+	 * Client that records messages and the close status.
+	 */
+	private static class Client implements WebSocket.Listener {
+		WebSocket ws;
+		final CompletableFuture<Integer> closed = new CompletableFuture<>();
+		volatile CompletableFuture<String> pending = new CompletableFuture<>();
+		final StringBuilder received = new StringBuilder();
+
+		String next() throws Exception {
+			String message = pending.get(3, TimeUnit.SECONDS);
+			pending = new CompletableFuture<>();
+			return message;
+		}
+
+		String echo(String message) throws Exception {
+			ws.sendText(message, true);
+			return next();
+		}
+
+		@Override
+		public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last){
+			received.append(data);
+			if (last){
+				pending.complete(received.toString());
+				received.setLength(0);
+			}
+			webSocket.request(1);
+			return null;
+		}
+		@Override
+		public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason){
+			closed.complete(statusCode);
+			return null;
+		}
+		@Override
+		public void onError(WebSocket webSocket, Throwable error){
+			closed.completeExceptionally(error);
+		}
+	}
+}
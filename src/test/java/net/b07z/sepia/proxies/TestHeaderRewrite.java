@@ -0,0 +1,189 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import io.undertow.Undertow;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+import io.undertow.util.StatusCodes;
+import net.b07z.sepia.proxies.headers.HeaderRules;
+import net.b07z.sepia.proxies.headers.LocationRewriter;
+import net.b07z.sepia.proxies.routing.RouteOptions;
+
+public class TestHeaderRewrite {
+
+	@Test
+	public void testRules(){
+		HeaderRules rules = HeaderRules.parse("X-Service: stt | -Cookie | +Via: 1.1 sepia | ~Set-Cookie: Path=/stt => Path=/sepia/stt");
+		HeaderMap headers = new HeaderMap();
+		headers.put(new HttpString("X-Service"), "old");
+		headers.put(Headers.COOKIE, "a=1");
+		headers.put(Headers.VIA, "1.0 front");
+		headers.add(Headers.SET_COOKIE, "a=1; Path=/stt/x");
+		headers.add(Headers.SET_COOKIE, "b=2; Path=/other");
+		rules.apply(headers);
+		assertEquals("stt", headers.getFirst("X-Service"));
+		assertFalse(headers.contains(Headers.COOKIE));
+		assertEquals(Arrays.asList("1.0 front", "1.1 sepia"), Arrays.asList(headers.get(Headers.VIA).toArray()));
+		HeaderValues cookies = headers.get(Headers.SET_COOKIE);
+		assertEquals("a=1; Path=/sepia/stt/x", cookies.get(0));
+		assertEquals("b=2; Path=/other", cookies.get(1));
+
+		assertTrue(HeaderRules.parse(null).isEmpty());
+		assertTrue(HeaderRules.parse(" ").isEmpty());
+		assertEquals(HeaderRules.parse("-Server"), HeaderRules.parse(" -Server "));
+		for (String invalid : new String[]{ "X-A", "Bad Name: 1", "~X-A: no arrow", ": value" }){
+			try{
+				HeaderRules.parse(invalid);
+				fail("no error for: " + invalid);
+			}catch (IllegalArgumentException e){
+				//expected
+			}
+		}
+	}
+
+	@Test
+	public void testLocations(){
+		LocationRewriter stt = new LocationRewriter("/sepia/stt", Arrays.asList(URI.create("http://localhost:20741/stt"),
+				URI.create("http://127.0.0.1:80/stt")));
+		assertEquals("/sepia/stt/done?x=1", stt.rewrite("http://localhost:20741/stt/done?x=1", "proxy.example.com"));
+		assertEquals("/sepia/stt", stt.rewrite("http://LOCALHOST:20741/stt", null));
+		assertEquals("/sepia/stt/a", stt.rewrite("http://127.0.0.1/stt/a", null));
+		assertEquals("/sepia/stt/a", stt.rewrite("/stt/a", null));
+		assertEquals("https://proxy.example.com/sepia/stt/a", stt.rewrite("https://proxy.example.com/stt/a", "proxy.example.com"));
+		//outside of the target path, other hosts, relative or already mapped
+		assertEquals("/sttx", stt.rewrite("/sttx", null));
+		assertEquals("/login", stt.rewrite("/login", null));
+		assertEquals("https://example.org/stt/a", stt.rewrite("https://example.org/stt/a", "proxy.example.com"));
+		assertEquals("next", stt.rewrite("next", null));
+		assertEquals("/sepia/stt/a", stt.rewrite("/sepia/stt/a", null));
+
+		LocationRewriter root = new LocationRewriter("/sepia/assist", Arrays.asList(URI.create("http://localhost:20721")));
+		assertEquals("/sepia/assist/login", root.rewrite("/login", null));
+		assertEquals("/sepia/assist/", root.rewrite("http://localhost:20721/", null));
+		assertEquals("/sepia/assist/login", root.rewrite("/sepia/assist/login", null));
+	}
+
+	@Test
+	public void testProxyHeaders() throws Exception {
+		Undertow backend = Undertow.builder().addHttpListener(9401, "localhost")
+				.setHandler((exchange) -> {
+					if (exchange.getRelativePath().equals("/stt/redirect")){
+						exchange.setStatusCode(StatusCodes.FOUND);
+						exchange.getResponseHeaders().put(Headers.LOCATION, "http://localhost:9401/stt/done");
+						exchange.getResponseHeaders().put(Headers.SERVER, "backend");
+						exchange.endExchange();
+						return;
+					}
+					//echo headers the backend received
+					HeaderMap h = exchange.getRequestHeaders();
+					exchange.getResponseHeaders().put(Headers.SERVER, "backend");
+					exchange.getResponseSender().send("host=" + h.getFirst(Headers.HOST) + "\n"
+							+ "xfh=" + h.getFirst(Headers.X_FORWARDED_HOST) + "\n"
+							+ "xff=" + h.getFirst(Headers.X_FORWARDED_FOR) + "\n"
+							+ "forwarded=" + h.get(Headers.FORWARDED) + "\n"
+							+ "real=" + h.getFirst("X-Real-IP") + "\n"
+							+ "service=" + h.getFirst("X-Service") + "\n"
+							+ "cookie=" + h.getFirst(Headers.COOKIE));
+				}).build();
+		backend.start();
+
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9400);
+		reverseProxy.addPrefixPath("/sepia/stt", "http://localhost:9401/stt", new RouteOptions().setPublic(true)
+				.setRequestHeaders(HeaderRules.parse("X-Service: stt | -Cookie"))
+				.setResponseHeaders(HeaderRules.parse("-Server | X-Frame-Options: DENY"))
+				.setHostHeader("stt.local")
+				.setForwarded(true));
+		reverseProxy.addPrefixPath("/plain", "http://localhost:9401/stt", new RouteOptions().setPublic(true).setRewriteLocation(false));
+		reverseProxy.addPrefixPath("/backend-host", "http://localhost:9401/stt", new RouteOptions().setPublic(true).setHostHeader("backend"));
+		reverseProxy.start();
+		try{
+			HttpURLConnection con = get("http://localhost:9400/sepia/stt/echo");
+			con.setRequestProperty("Cookie", "session=1");
+			con.setRequestProperty("X-Forwarded-Host", "evil.example.com");
+			con.setRequestProperty("Forwarded", "for=6.6.6.6");
+			con.setRequestProperty("X-Real-IP", "6.6.6.6");
+			String body = read(con);
+			assertEquals(200, con.getResponseCode());
+			assertNull(con.getHeaderField("Server"));
+			assertEquals("DENY", con.getHeaderField("X-Frame-Options"));
+			assertTrue(body, body.contains("host=stt.local\n"));
+			assertTrue(body, body.contains("xfh=localhost:9400\n"));		//client headers are not trusted
+			assertTrue(body, body.contains("xff=127.0.0.1\n"));
+			assertTrue(body, body.contains("forwarded=[for=127.0.0.1;host=\"localhost:9400\";proto=http]\n"));
+			assertTrue(body, body.contains("real=null\n"));
+			assertTrue(body, body.contains("service=stt\n"));
+			assertTrue(body, body.contains("cookie=null"));
+
+			con = get("http://localhost:9400/sepia/stt/redirect");
+			assertEquals(302, con.getResponseCode());
+			assertEquals("/sepia/stt/done", con.getHeaderField("Location"));
+			assertNull(con.getHeaderField("Server"));
+
+			con = get("http://localhost:9400/plain/redirect");
+			assertEquals(302, con.getResponseCode());
+			assertEquals("http://localhost:9401/stt/done", con.getHeaderField("Location"));
+			assertEquals("backend", con.getHeaderField("Server"));
+
+			con = get("http://localhost:9400/backend-host/echo");
+			body = read(con);
+			assertTrue(body, body.contains("host=localhost:9401\n"));
+			assertTrue(body, body.contains("xfh=localhost:9400\n"));
+		}finally{
+			reverseProxy.stop();
+			backend.stop();
+		}
+	}
+
+	@Test
+	public void testTrustedProxyHeaders() throws Exception {
+		Undertow backend = Undertow.builder().addHttpListener(9403, "localhost")
+				.setHandler((exchange) -> {
+					HeaderMap h = exchange.getRequestHeaders();
+					exchange.getResponseSender().send("xff=" + h.getFirst(Headers.X_FORWARDED_FOR) + "\n"
+							+ "proto=" + h.getFirst(Headers.X_FORWARDED_PROTO) + "\n"
+							+ "xfh=" + h.getFirst(Headers.X_FORWARDED_HOST) + "\n"
+							+ "forwarded=" + h.get(Headers.FORWARDED));
+				}).build();
+		backend.start();
+
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9402);
+		reverseProxy.setTrustedProxies("127.0.0.1");
+		reverseProxy.addPrefixPath("/api", "http://localhost:9403", new RouteOptions().setPublic(true).setForwarded(true));
+		reverseProxy.start();
+		try{
+			HttpURLConnection con = get("http://localhost:9402/api/x");
+			con.setRequestProperty("X-Forwarded-For", "203.0.113.7");
+			con.setRequestProperty("X-Forwarded-Proto", "https");
+			con.setRequestProperty("X-Forwarded-Host", "www.example.com");
+			con.setRequestProperty("Forwarded", "for=203.0.113.7;proto=https");
+			String body = read(con);
+			assertTrue(body, body.contains("xff=203.0.113.7\n"));
+			assertTrue(body, body.contains("proto=https\n"));
+			assertTrue(body, body.contains("xfh=www.example.com\n"));
+			assertTrue(body, body.contains("forwarded=[for=203.0.113.7;proto=https, for=127.0.0.1;host=\"localhost:9402\";proto=http]"));
+		}finally{
+			reverseProxy.stop();
+			backend.stop();
+		}
+	}
+
+	private static HttpURLConnection get(String url) throws Exception {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		con.setInstanceFollowRedirects(false);
+		return con;
+	}
+
+	private static String read(HttpURLConnection con) throws Exception {
+		return new String(con.getInputStream().readAllBytes(), "UTF-8");
+	}
+}
@@ -0,0 +1,126 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import io.undertow.Undertow;
+import io.undertow.util.Headers;
+import net.b07z.sepia.proxies.balancing.BackendProxyClient;
+import net.b07z.sepia.proxies.routing.PathMapping;
+import net.b07z.sepia.proxies.routing.RouteOptions;
+
+public class TestHotReload {
+
+	@Test
+	public void testReplacePathsWhileRunning() throws Exception {
+		Undertow s1 = startTestServer(9231, "A");
+		Undertow s2 = startTestServer(9232, "B");
+		
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9230);
+		reverseProxy.addPrefixPath("/a", "http://localhost:9231", true);
+		reverseProxy.start();
+		try{
+			assertEquals("A - path: /x", httpGET("http://localhost:9230/a/x"));
+			assertEquals("404", httpGET("http://localhost:9230/b/x"));
+			BackendProxyClient clientA = reverseProxy.prefixMappings.get("/a");
+			
+			//add new path, keep the unchanged one
+			reverseProxy.replacePaths(Arrays.asList(
+				new PathMapping("/a", "http://localhost:9231", false, null),
+				new PathMapping("/b", "http://localhost:9232", false, null)
+			));
+			assertSame(clientA, reverseProxy.prefixMappings.get("/a"));
+			assertEquals("A - path: /x", httpGET("http://localhost:9230/a/x"));
+			assertEquals("B - path: /x", httpGET("http://localhost:9230/b/x"));
+			
+			//same paths written differently are unchanged
+			BackendProxyClient clientB = reverseProxy.prefixMappings.get("/b");
+			reverseProxy.replacePaths(Arrays.asList(
+				new PathMapping("a/", "http://localhost:9231", false, null),
+				new PathMapping("/b/", "http://localhost:9232", false, null)
+			));
+			assertSame(clientA, reverseProxy.prefixMappings.get("/a"));
+			assertSame(clientB, reverseProxy.prefixMappings.get("/b"));
+			assertEquals("B - path: /x", httpGET("http://localhost:9230/b/x"));
+			
+			//invalid settings leave everything as it was
+			try{
+				reverseProxy.replacePaths(Arrays.asList(
+					new PathMapping("/c", "http://localhost:9232", false, new RouteOptions().setAllow("no-network"))
+				));
+				fail("Invalid network should be rejected");
+			}catch (IllegalArgumentException e){}
+			try{
+				reverseProxy.replacePaths(Arrays.asList(
+					new PathMapping("/d", "http://localhost:9231", false, null),		//built before the error
+					new PathMapping("/e", "http://localhost:9232;weight=x", false, null)
+				));
+				fail("Invalid weight should be rejected");
+			}catch (IllegalArgumentException e){}
+			assertNull(reverseProxy.prefixMappings.get("/d"));
+			assertEquals("B - path: /x", httpGET("http://localhost:9230/b/x"));
+			
+			//remove and change paths
+			reverseProxy.replacePaths(Arrays.asList(
+				new PathMapping("/b", "http://localhost:9231/exact", true, null)
+			));
+			assertEquals("404", httpGET("http://localhost:9230/a/x"));
+			assertEquals("A - path: /exact", httpGET("http://localhost:9230/b"));
+			
+			//single paths
+			reverseProxy.addPrefixPath("/a", "http://localhost:9232", true);
+			assertEquals("B - path: /x", httpGET("http://localhost:9230/a/x"));
+			reverseProxy.removeExactPath("/b");
+			assertEquals("404", httpGET("http://localhost:9230/b"));
+		}finally{
+			reverseProxy.stop();
+			s1.stop();
+			s2.stop();
+		}
+	}
+	
+	/**
+	 * Start a test server at port with custom message response in plain text.
+	 */
+	private Undertow startTestServer(int port, String msg){
+		Undertow server = Undertow.builder()
+                .addHttpListener(port, "localhost")
+                .setHandler((exchange) -> {
+                	exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain");
+                    exchange.getResponseSender().send(msg + " - path: " + exchange.getRequestPath());
+                }).build();
+        server.start();
+        return server;
+	}
+	
+	/**
+	 * Make a HTTP GET call.
+	 */
+	private static String httpGET(String url) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		con.setRequestMethod("GET");
+		con.setConnectTimeout(3000);
+		con.setReadTimeout(3000);
+		int responseCode = con.getResponseCode();
+		if (responseCode >= 200 && responseCode < 300){
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()))){
+				StringBuilder response = new StringBuilder();
+				String inputLine;
+				while ((inputLine = in.readLine()) != null){
+					response.append(inputLine);
+				}
+				return response.toString();
+			}
+		}else{
+			return String.valueOf(responseCode);
+		}
+	}
+}
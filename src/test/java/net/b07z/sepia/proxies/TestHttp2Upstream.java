@@ -0,0 +1,160 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.undertow.Undertow;
+import io.undertow.UndertowOptions;
+import io.undertow.server.handlers.BlockingHandler;
+import io.undertow.util.Headers;
+import net.b07z.sepia.proxies.routing.RouteOptions;
+import net.b07z.sepia.proxies.security.SSLContextBuilder;
+
+public class TestHttp2Upstream {
+
+	private static final String PWD = "test-pwd";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testMultiplexedH2c() throws Exception {
+		Undertow backend = startBackend(Undertow.builder().setServerOption(UndertowOptions.ENABLE_HTTP2, true)
+				.addHttpListener(9331, "localhost"));
+
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9330);
+		reverseProxy.addPrefixPath("/h2", "http://localhost:9331", new RouteOptions().setPublic(true).setHttp2(true));
+		reverseProxy.addPrefixPath("/h1", "http://localhost:9331", true);
+		reverseProxy.start();
+		try{
+			HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+			//slow requests in parallel share the connections of the proxy IO threads
+			int n = 16;
+			long start = System.currentTimeMillis();
+			List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+			for (int i = 0; i < n; i++){
+				responses.add(client.sendAsync(HttpRequest.newBuilder(URI.create("http://localhost:9330/h2/slow")).build(),
+						HttpResponse.BodyHandlers.ofString()));
+			}
+			Set<String> ports = new HashSet<>();
+			for (CompletableFuture<HttpResponse<String>> f : responses){
+				String[] res = f.get().body().split(" ");
+				assertEquals("HTTP/2.0", res[0]);
+				ports.add(res[1]);
+			}
+			assertTrue(System.currentTimeMillis() - start < (n * 200) / 2);
+			assertTrue(ports.size() + " connections", ports.size() <= reverseProxy.getIoThreads());
+
+			//request body
+			HttpResponse<String> post = client.send(HttpRequest.newBuilder(URI.create("http://localhost:9330/h2/post"))
+					.POST(HttpRequest.BodyPublishers.ofString("x".repeat(100000))).build(), HttpResponse.BodyHandlers.ofString());
+			assertEquals(200, post.statusCode());
+			assertTrue(post.body().endsWith(" 100000"));
+
+			//default route stays HTTP/1.1, an h2c upgrade of the client is not forwarded
+			HttpClient h2Client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+			for (int i = 0; i < 2; i++){
+				HttpResponse<String> res = h2Client.send(HttpRequest.newBuilder(URI.create("http://localhost:9330/h1/upgrade")).build(),
+						HttpResponse.BodyHandlers.ofString());
+				assertEquals(200, res.statusCode());
+				assertEquals(HttpClient.Version.HTTP_2, res.version());
+				assertTrue(res.body(), res.body().startsWith("HTTP/1.1 "));
+				assertTrue(res.body(), res.body().endsWith(" null"));
+			}
+		}finally{
+			reverseProxy.stop();
+			backend.stop();
+		}
+	}
+
+	@Test
+	public void testHttpsAlpnAndFallback() throws Exception {
+		KeyStore ks = SSLContextBuilder.loadKeyStore("PKCS12", createKeyStore().getPath(), PWD);
+		SSLContext serverSsl = SSLContextBuilder.create(ks, null, PWD);
+		Undertow h2Backend = startBackend(Undertow.builder().setServerOption(UndertowOptions.ENABLE_HTTP2, true)
+				.addHttpsListener(9332, "localhost", serverSsl));
+		Undertow h1Backend = startBackend(Undertow.builder().addHttpsListener(9333, "localhost", serverSsl));
+
+		//backends are verified with the default trust store
+		SSLContext defaultSsl = SSLContext.getDefault();
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(ks);
+		SSLContext trusting = SSLContext.getInstance("TLS");
+		trusting.init(null, tmf.getTrustManagers(), null);
+		SSLContext.setDefault(trusting);
+
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9334);
+		try{
+			reverseProxy.addPrefixPath("/alpn", "https://localhost:9332", new RouteOptions().setPublic(true).setHttp2(true));
+			reverseProxy.addPrefixPath("/fallback", "https://localhost:9333", new RouteOptions().setPublic(true).setHttp2(true));
+			reverseProxy.start();
+			HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+			for (int i = 0; i < 3; i++){
+				assertTrue(get(client, "http://localhost:9334/alpn/x").startsWith("HTTP/2.0 "));
+				assertTrue(get(client, "http://localhost:9334/fallback/x").startsWith("HTTP/1.1 "));
+			}
+		}finally{
+			SSLContext.setDefault(defaultSsl);
+			reverseProxy.stop();
+			h2Backend.stop();
+			h1Backend.stop();
+		}
+	}
+
+	private static String get(HttpClient client, String url) throws Exception {
+		HttpResponse<String> res = client.send(HttpRequest.newBuilder(URI.create(url)).build(), HttpResponse.BodyHandlers.ofString());
+		assertEquals(200, res.statusCode());
+		return res.body();
+	}
+
+	/**
+	 * Backend that answers with protocol, client port and (for '/upgrade') the Upgrade header or (for '/post') the body size.
+	 * '/slow' takes 200ms.
+	 */
+	private static Undertow startBackend(Undertow.Builder builder){
+		Undertow server = builder.setHandler(new BlockingHandler((exchange) -> {
+			String extra = "";
+			if (exchange.getRequestPath().endsWith("/slow")){
+				Thread.sleep(200);
+			}else if (exchange.getRequestPath().endsWith("/post")){
+				extra = " " + exchange.getInputStream().readAllBytes().length;
+			}else if (exchange.getRequestPath().endsWith("/upgrade")){
+				extra = " " + exchange.getRequestHeaders().getFirst(Headers.UPGRADE);
+			}
+			exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain");
+			exchange.getResponseSender().send(exchange.getProtocol() + " " + exchange.getSourceAddress().getPort() + extra);
+		})).build();
+		server.start();
+		return server;
+	}
+
+	private File createKeyStore() throws Exception {
+		File file = new File(folder.getRoot(), "backend.p12");
+		String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+		Process p = new ProcessBuilder(keytool, "-genkeypair", "-alias", "test", "-keyalg", "EC",
+				"-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "2",
+				"-storetype", "PKCS12", "-keystore", file.getPath(), "-storepass", PWD, "-keypass", PWD)
+			.redirectErrorStream(true).start();
+		p.getInputStream().readAllBytes();
+		assertEquals(0, p.waitFor());
+		return file;
+	}
+}
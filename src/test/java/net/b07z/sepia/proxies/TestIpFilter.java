@@ -0,0 +1,118 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import io.undertow.util.HeaderMap;
+import io.undertow.util.Headers;
+import net.b07z.sepia.proxies.security.AccessPolicy;
+import net.b07z.sepia.proxies.security.CidrSet;
+import net.b07z.sepia.proxies.security.IpAddress;
+import net.b07z.sepia.proxies.security.TrustedProxies;
+
+public class TestIpFilter {
+	
+	private static IpAddress ip(String s){
+		IpAddress ip = new IpAddress();
+		assertTrue("parse: " + s, ip.parse(s));
+		return ip;
+	}
+
+	@Test
+	public void testParse() throws Exception {
+		assertEquals("192.168.0.10", ip("192.168.0.10").toString());
+		assertEquals("255.255.255.255", ip("255.255.255.255").toString());
+		assertEquals("2001:db8:0:0:0:0:0:1", ip("2001:db8::1").toString());
+		assertEquals("0:0:0:0:0:0:0:1", ip("::1").toString());
+		assertEquals("fe80:0:0:0:0:0:0:1", ip("fe80::1%eth0").toString());
+		assertEquals("10.0.0.1", ip("::ffff:10.0.0.1").toString());
+		assertEquals("1:2:3:4:5:6:7:0", ip("1:2:3:4:5:6:7::").toString());
+		
+		IpAddress ip = new IpAddress();
+		assertFalse(ip.parse("256.1.1.1"));
+		assertFalse(ip.parse("1.2.3"));
+		assertFalse(ip.parse("1.2.3.4."));
+		assertFalse(ip.parse("1::2::3"));
+		assertFalse(ip.parse("1:2:3:4:5:6:7:8:9"));
+		assertFalse(ip.parse("unknown"));
+		assertFalse(ip.parse(""));
+	}
+	
+	@Test
+	public void testCidr() throws Exception {
+		CidrSet set = CidrSet.parse("10.0.0.0/8, 192.168.178.0/24, 203.0.113.7, 2001:db8::/32, ::ffff:172.17.0.0/112");
+		assertTrue(set.contains(ip("10.1.2.3")));
+		assertTrue(set.contains(ip("192.168.178.254")));
+		assertFalse(set.contains(ip("192.168.179.1")));
+		assertTrue(set.contains(ip("203.0.113.7")));
+		assertFalse(set.contains(ip("203.0.113.8")));
+		assertTrue(set.contains(ip("2001:db8:1::5")));
+		assertFalse(set.contains(ip("2001:db9::5")));
+		assertTrue(set.contains(ip("172.17.5.5")));
+		assertFalse(CidrSet.EMPTY.contains(ip("10.1.2.3")));
+		assertTrue(CidrSet.parse("0.0.0.0/0").contains(ip("8.8.8.8")));
+		assertFalse(CidrSet.parse("0.0.0.0/0").contains(ip("2001:db8::1")));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidCidr() throws Exception {
+		CidrSet.parse("10.0.0.0/33");
+	}
+	
+	@Test
+	public void testPolicy() throws Exception {
+		AccessPolicy local = AccessPolicy.create(false, null, null);
+		assertTrue(local.isAllowed(ip("127.0.0.1")));
+		assertTrue(local.isAllowed(ip("192.168.1.5")));
+		assertTrue(local.isAllowed(ip("fd12::1")));
+		assertFalse(local.isAllowed(ip("8.8.8.8")));
+		
+		AccessPolicy office = AccessPolicy.create(false, "203.0.113.0/24", "192.168.1.0/24");
+		assertTrue(office.isAllowed(ip("203.0.113.9")));
+		assertTrue(office.isAllowed(ip("10.0.0.1")));
+		assertFalse(office.isAllowed(ip("192.168.1.5")));
+		
+		AccessPolicy publicDeny = AccessPolicy.create(true, null, "172.17.0.0/16");
+		assertTrue(publicDeny.isAllowed(ip("8.8.8.8")));
+		assertFalse(publicDeny.isAllowed(ip("172.17.0.2")));
+		
+		assertTrue(AccessPolicy.LOOPBACK_ONLY.isAllowed(ip("127.0.0.1")));
+		assertTrue(AccessPolicy.LOOPBACK_ONLY.isAllowed(ip("::1")));
+		assertFalse(AccessPolicy.LOOPBACK_ONLY.isAllowed(ip("192.168.1.5")));
+		assertFalse(AccessPolicy.LOOPBACK_ONLY.isAllowed(ip("fd12::1")));
+	}
+	
+	@Test
+	public void testTrustedProxies() throws Exception {
+		TrustedProxies trusted = TrustedProxies.parse("127.0.0.1, 10.0.0.0/8");
+		IpAddress client = new IpAddress();
+		
+		HeaderMap headers = new HeaderMap();
+		headers.add(Headers.X_FORWARDED_FOR, "198.51.100.1, 203.0.113.5, 10.0.0.2");
+		assertTrue(trusted.resolve(headers, ip("127.0.0.1"), client));
+		assertEquals("203.0.113.5", client.toString());
+		
+		//untrusted peer - headers ignored
+		assertFalse(trusted.resolve(headers, ip("8.8.8.8"), client));
+		assertEquals("8.8.8.8", client.toString());
+		
+		//Forwarded header with IPv6 and port
+		headers = new HeaderMap();
+		headers.add(Headers.FORWARDED, "for=192.0.2.60;proto=http, For=\"[2001:db8:cafe::17]:4711\"");
+		assertTrue(trusted.resolve(headers, ip("10.1.1.1"), client));
+		assertEquals("2001:db8:cafe:0:0:0:0:17", client.toString());
+		
+		//obfuscated entry - stop at last trusted hop
+		headers = new HeaderMap();
+		headers.add(Headers.FORWARDED, "for=_hidden");
+		assertFalse(trusted.resolve(headers, ip("10.1.1.1"), client));
+		assertEquals("10.1.1.1", client.toString());
+		
+		//all trusted - left-most
+		headers = new HeaderMap();
+		headers.add(Headers.X_FORWARDED_FOR, "10.0.0.5:1234, 10.0.0.6");
+		assertTrue(trusted.resolve(headers, ip("127.0.0.1"), client));
+		assertEquals("10.0.0.5", client.toString());
+	}
+}
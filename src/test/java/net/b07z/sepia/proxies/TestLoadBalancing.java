@@ -0,0 +1,212 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Test;
+
+import io.undertow.Undertow;
+import io.undertow.server.HttpHandler;
+import io.undertow.util.Headers;
+import io.undertow.util.SameThreadExecutor;
+import net.b07z.sepia.proxies.balancing.Backend;
+import net.b07z.sepia.proxies.balancing.BackendProxyClient;
+import net.b07z.sepia.proxies.balancing.Balancing;
+import net.b07z.sepia.proxies.routing.RouteOptions;
+
+public class TestLoadBalancing {
+
+	@Test
+	public void testParseTargets() throws Exception {
+		List<Backend> backends = Backend.parseList("http://localhost:20741/stt, http://localhost:20742/stt;weight=2");
+		assertEquals(2, backends.size());
+		assertEquals("http://localhost:20741/stt", backends.get(0).getUri().toString());
+		assertEquals(1, backends.get(0).getWeight());
+		assertEquals("http://localhost:20742/stt", backends.get(1).getUri().toString());
+		assertEquals(2, backends.get(1).getWeight());
+	}
+
+	@Test
+	public void testWeightsAndEjection() throws Exception {
+		Undertow s1 = startTestServer(9223, "A");
+		Undertow s2 = startTestServer(9224, "B");
+
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9222);
+		reverseProxy.setPassiveEjection(1, 60000);
+		//9225 is not running and should be ejected after the first failed connection
+		reverseProxy.addPrefixPath("/lb", "http://localhost:9223;weight=3, http://localhost:9224, http://localhost:9225", true);
+		reverseProxy.start();
+		try{
+			//warm-up - every request has to succeed thanks to retry on the next host
+			for (int i = 0; i < 6; i++){
+				assertTrue(httpGET("http://localhost:9222/lb/x").endsWith("/x"));
+			}
+			BackendProxyClient client = reverseProxy.prefixMappings.get("/lb");
+			for (Backend b : client.getBackends()){
+				assertEquals(b.getUri().getPort() != 9225, b.isAvailable());
+			}
+			//3:1 distribution
+			Map<String, Integer> counts = new HashMap<>();
+			for (int i = 0; i < 8; i++){
+				String res = httpGET("http://localhost:9222/lb/x");
+				counts.merge(res.substring(0, 1), 1, Integer::sum);
+			}
+			assertEquals(6, (int) counts.get("A"));
+			assertEquals(2, (int) counts.get("B"));
+		}finally{
+			reverseProxy.stop();
+			s1.stop();
+			s2.stop();
+		}
+	}
+
+	@Test
+	public void testBalancingOptions() throws Exception {
+		assertNull(Balancing.parse(" "));
+		assertEquals(Balancing.PEAK_EWMA, Balancing.parse("peak_ewma"));
+		assertEquals(Balancing.LEAST_REQUESTS, Balancing.parse(" Least_Requests"));
+		try{
+			Balancing.parse("random");
+			fail("unknown strategy");
+		}catch (IllegalArgumentException e){
+			//expected
+		}
+		assertEquals(Balancing.ROUND_ROBIN, new RouteOptions().getBalancing());
+		assertEquals(Balancing.LEAST_REQUESTS, new RouteOptions().setBalancing(Balancing.LEAST_CONNECTIONS).getBalancing());
+		assertEquals(Balancing.LEAST_CONNECTIONS, new RouteOptions().setBalancing(Balancing.PEAK_EWMA).setWebSocket(true).getBalancing());
+	}
+
+	@Test
+	public void testSlowBackendGetsFewerRequests() throws Exception {
+		Undertow fast = startTestServer(9391, "A");
+		Undertow slow = startDelayedServer(9392, "B", 40);
+
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9390);
+		String targets = "http://localhost:9391, http://localhost:9392";
+		reverseProxy.addPrefixPath("/rr", targets, new RouteOptions());
+		reverseProxy.addPrefixPath("/lr", targets, new RouteOptions().setBalancing(Balancing.LEAST_REQUESTS));
+		reverseProxy.addPrefixPath("/ewma", targets, new RouteOptions().setBalancing(Balancing.PEAK_EWMA));
+		reverseProxy.start();
+		ExecutorService clients = Executors.newFixedThreadPool(4);
+		try{
+			Map<String, Integer> rr = countResponses(clients, "http://localhost:9390/rr/x", 40);
+			assertEquals(20, (int) rr.get("A"));
+			assertEquals(20, (int) rr.get("B"));
+			
+			Map<String, Integer> lr = countResponses(clients, "http://localhost:9390/lr/x", 40);
+			assertTrue(lr.toString(), lr.getOrDefault("B", 0) < 10);
+			
+			Map<String, Integer> ewma = countResponses(clients, "http://localhost:9390/ewma/x", 40);
+			assertTrue(ewma.toString(), ewma.getOrDefault("B", 0) < 10);
+			
+			BackendProxyClient client = reverseProxy.prefixMappings.get("/ewma");
+			assertEquals(Balancing.PEAK_EWMA, client.getBalancing());
+			for (Backend b : client.getBackends()){
+				//finished requests are counted by the completion listener, possibly after the client got the response
+				waitFor(() -> b.getRequests() == 0);
+				if (b.getUri().getPort() == 9392){
+					assertTrue(String.valueOf(b.getLatencyEwma()), b.getLatencyEwma() > 30000);
+				}
+			}
+		}finally{
+			clients.shutdownNow();
+			reverseProxy.stop();
+			fast.stop();
+			slow.stop();
+		}
+	}
+
+	/**
+	 * Send requests from all client threads and count responses by first letter.
+	 */
+	private static Map<String, Integer> countResponses(ExecutorService clients, String url, int requests) throws Exception {
+		Map<String, Integer> counts = new ConcurrentHashMap<>();
+		List<Future<?>> results = new ArrayList<>();
+		for (int i = 0; i < requests; i++){
+			results.add(clients.submit(() -> {
+				String res = httpGET(url);
+				counts.merge(res.substring(0, 1), 1, Integer::sum);
+				return null;
+			}));
+		}
+		for (Future<?> f : results){
+			f.get(10, TimeUnit.SECONDS);
+		}
+		return counts;
+	}
+
+	/**
+	 * Start a test server that answers after a delay without blocking its IO thread.
+	 */
+	private Undertow startDelayedServer(int port, String msg, long delayMs){
+		HttpHandler handler = (exchange) -> {
+			exchange.dispatch(SameThreadExecutor.INSTANCE, () -> exchange.getIoThread().executeAfter(() -> {
+				exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain");
+				exchange.getResponseSender().send(msg + " - path: " + exchange.getRequestPath());
+			}, delayMs, TimeUnit.MILLISECONDS));
+		};
+		Undertow server = Undertow.builder().addHttpListener(port, "localhost").setHandler(handler).build();
+		server.start();
+		return server;
+	}
+
+	/**
+	 * Start a test server at port with custom message response in plain text.
+	 */
+	private Undertow startTestServer(int port, String msg){
+		Undertow server = Undertow.builder()
+                .addHttpListener(port, "localhost")
+                .setHandler((exchange) -> {
+                	exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain");
+                    exchange.getResponseSender().send(msg + " - path: " + exchange.getRequestPath());
+                }).build();
+        server.start();
+        return server;
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long end = System.currentTimeMillis() + 3000;
+		while (!condition.getAsBoolean()){
+			assertTrue("timeout", System.currentTimeMillis() < end);
+			Thread.sleep(20);
+		}
+	}
+
+	/**
+	 * Make a HTTP GET call.
+	 */
+	private static String httpGET(String url) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		con.setRequestMethod("GET");
+		con.setConnectTimeout(3000);
+		con.setReadTimeout(3000);
+		int responseCode = con.getResponseCode();
+		if (responseCode >= 200 && responseCode < 300){
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()))){
+				StringBuilder response = new StringBuilder();
+				String inputLine;
+				while ((inputLine = in.readLine()) != null){
+					response.append(inputLine);
+				}
+				return response.toString();
+			}
+		}else{
+			return String.valueOf(responseCode);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.junit.Test;
+
+import io.undertow.Undertow;
+import io.undertow.util.Headers;
+import net.b07z.sepia.proxies.metrics.LatencyHistogram;
+
+public class TestMetrics {
+
+	@Test
+	public void testHistogramBuckets(){
+		LatencyHistogram h = new LatencyHistogram();
+		for (long v = 0; v < 1000000; v += 7){
+			h.record(v);
+		}
+		h.record(LatencyHistogram.MAX_VALUE * 2);		//capped
+		long[] counts = h.getCounts();
+		long total = 0;
+		for (long c : counts){
+			total += c;
+		}
+		assertEquals(1000000 / 7 + 1 + 1, total);
+		//every value is inside its bucket and bucket error is max. 12.5%
+		for (long v : new long[]{ 0, 15, 16, 17, 31, 32, 1000, 123456, 99999999 }){
+			int b = bucketOf(v);
+			assertTrue(LatencyHistogram.upperBound(b) >= v);
+			assertTrue(b == 0 || LatencyHistogram.upperBound(b - 1) < v);
+			assertTrue(LatencyHistogram.upperBound(b) - v <= v / 8 + 1);
+		}
+		long median = LatencyHistogram.valueAtPercentile(counts, 50);
+		assertTrue(Math.abs(median - 500000) < 500000 / 8);
+	}
+	
+	private static int bucketOf(long v){
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(v);
+		long[] counts = h.getCounts();
+		for (int b = 0; b < counts.length; b++){
+			if (counts[b] > 0) return b;
+		}
+		return -1;
+	}
+
+	@Test
+	public void testMetricsEndpoint() throws Exception {
+		Undertow s1 = startTestServer(9241, "A");
+		
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9240);
+		reverseProxy.addPrefixPath("/a", "http://localhost:9241", true);
+		reverseProxy.start();
+		try{
+			for (int i = 0; i < 3; i++){
+				assertEquals("A - path: /x", httpGET("http://localhost:9240/a/x"));
+			}
+			assertEquals("404", httpGET("http://localhost:9240/nothing"));
+			Thread.sleep(200);		//completion listeners can run after the client got the response
+			String metrics = httpGET("http://localhost:9240/metrics");
+			assertTrue(metrics.contains("proxy_requests_total{route=\"/a\",type=\"prefix\"} 3"));
+			assertTrue(metrics.contains("proxy_responses_total{route=\"/a\",type=\"prefix\",code=\"2xx\"} 3"));
+			assertTrue(metrics.contains("proxy_request_duration_seconds_count{route=\"/a\",type=\"prefix\"} 3"));
+			assertTrue(metrics.contains("proxy_backend_response_seconds_count{route=\"/a\",type=\"prefix\",backend=\"http://localhost:9241\"} 3"));
+			assertTrue(metrics.contains("proxy_backend_up{route=\"/a\",type=\"prefix\",backend=\"http://localhost:9241\"} 1"));
+			assertTrue(metrics.contains("proxy_unmatched_requests_total 1"));
+		}finally{
+			reverseProxy.stop();
+			s1.stop();
+		}
+	}
+	
+	/**
+	 * Start a test server at port with custom message response in plain text.
+	 */
+	private Undertow startTestServer(int port, String msg){
+		Undertow server = Undertow.builder()
+                .addHttpListener(port, "localhost")
+                .setHandler((exchange) -> {
+                	exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain");
+                    exchange.getResponseSender().send(msg + " - path: " + exchange.getRequestPath());
+                }).build();
+        server.start();
+        return server;
+	}
+	
+	/**
+	 * Make a HTTP GET call.
+	 */
+	private static String httpGET(String url) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		con.setRequestMethod("GET");
+		con.setConnectTimeout(3000);
+		con.setReadTimeout(3000);
+		int responseCode = con.getResponseCode();
+		if (responseCode >= 200 && responseCode < 300){
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()))){
+				StringBuilder response = new StringBuilder();
+				String inputLine;
+				while ((inputLine = in.readLine()) != null){
+					response.append(inputLine).append("\n");
+				}
+				return response.toString().trim();
+			}
+		}else{
+			return String.valueOf(responseCode);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import io.undertow.Undertow;
+import net.b07z.sepia.proxies.handlers.OffloadHandler;
+import net.b07z.sepia.proxies.handlers.VirtualThreads;
+
+public class TestOffloadHandler {
+
+	@Test
+	public void testOffload() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "test-offload"));
+		Undertow server = Undertow.builder()
+				.addHttpListener(9280, "localhost")
+				.setHandler(new OffloadHandler(executor, (exchange) -> {
+					//blocking is fine here
+					Thread.sleep(10);
+					exchange.getResponseSender().send(Thread.currentThread().getName() + " - io: " + exchange.isInIoThread());
+				})).build();
+		server.start();
+		try{
+			assertEquals("test-offload - io: false", httpGET("http://localhost:9280/"));
+		}finally{
+			server.stop();
+			executor.shutdown();
+		}
+	}
+	
+	@Test
+	public void testProxyWithOffloadedHandlers() throws Exception {
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9281);
+		reverseProxy.setOffloadHandlers(true);
+		reverseProxy.start();
+		try{
+			assertEquals(VirtualThreads.isSupported(), reverseProxy.isUsingVirtualThreads());
+			assertEquals("SEPIA reverse-proxy powered by Undertow", httpGET("http://localhost:9281/"));
+			assertTrue(httpGET("http://localhost:9281/metrics").contains("proxy_unmatched_requests_total"));
+		}finally{
+			reverseProxy.stop();
+		}
+	}
+	
+	private static String httpGET(String url) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		con.setConnectTimeout(3000);
+		con.setReadTimeout(3000);
+		assertEquals(200, con.getResponseCode());
+		try (InputStream in = con.getInputStream()){
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import io.undertow.Undertow;
+import io.undertow.util.Headers;
+import net.b07z.sepia.proxies.limits.RateLimiter;
+import net.b07z.sepia.proxies.routing.RouteOptions;
+import net.b07z.sepia.proxies.security.IpAddress;
+
+public class TestRateLimit {
+
+	@Test
+	public void testRateLimitPerClient() throws Exception {
+		AtomicInteger backendRequests = new AtomicInteger();
+		Undertow backend = Undertow.builder().addHttpListener(9351, "localhost")
+				.setHandler((exchange) -> {
+					backendRequests.incrementAndGet();
+					exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain");
+					exchange.getResponseSender().send("ok");
+				}).build();
+		backend.start();
+
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9350);
+		reverseProxy.setTrustedProxies("127.0.0.1, ::1");
+		reverseProxy.addPrefixPath("/limited", "http://localhost:9351", new RouteOptions().setPublic(true).setRateLimit(0.5).setRateBurst(3));
+		reverseProxy.addPrefixPath("/open", "http://localhost:9351", true);
+		reverseProxy.start();
+		try{
+			//burst, then 429 without touching the backend
+			for (int i = 0; i < 3; i++){
+				assertEquals(200, get("http://localhost:9350/limited/x", "203.0.113.1").getResponseCode());
+			}
+			HttpURLConnection rejected = get("http://localhost:9350/limited/x", "203.0.113.1");
+			assertEquals(429, rejected.getResponseCode());
+			assertEquals("2", rejected.getHeaderField("Retry-After"));
+			assertEquals(3, backendRequests.get());
+
+			//other clients and other routes are not affected, IPv6 clients share the bucket of their /64
+			assertEquals(200, get("http://localhost:9350/limited/x", "203.0.113.2").getResponseCode());
+			assertEquals(200, get("http://localhost:9350/open/x", "203.0.113.1").getResponseCode());
+			for (int i = 0; i < 3; i++){
+				assertEquals(200, get("http://localhost:9350/limited/x", "2001:db8:0:1::" + (i + 1)).getResponseCode());
+			}
+			assertEquals(429, get("http://localhost:9350/limited/x", "2001:db8:0:1::99").getResponseCode());
+			assertEquals(200, get("http://localhost:9350/limited/x", "2001:db8:0:2::1").getResponseCode());
+
+			String metrics = httpGET("http://localhost:9350/metrics");
+			assertTrue(metrics, metrics.contains("proxy_rate_limited_total{route=\"/limited\",type=\"prefix\"} 2"));
+		}finally{
+			reverseProxy.stop();
+			backend.stop();
+		}
+	}
+
+	@Test
+	public void testBoundedTable() throws Exception {
+		RateLimiter limiter = new RateLimiter(1000, 1, 1000);
+		assertEquals(1024, limiter.getCapacity());
+		IpAddress client = new IpAddress();
+		for (int i = 0; i < 100_000; i++){
+			client.parse("10." + ((i >> 16) & 0xff) + "." + ((i >> 8) & 0xff) + "." + (i & 0xff));
+			assertEquals(0, limiter.acquire(client));
+		}
+		assertTrue(limiter.getReplaced() > 0);
+		assertTrue(limiter.acquire(client) > 0);
+
+		//buckets of idle clients are full again after 1ms
+		Thread.sleep(5);
+		limiter.evictIdle();
+		assertEquals(0, limiter.getClients());
+		assertEquals(0, limiter.acquire(client));
+		limiter.evictIdle();
+		assertEquals(1, limiter.getClients());
+	}
+
+	private static HttpURLConnection get(String url, String forwardedFor) throws Exception {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		con.setRequestProperty("X-Forwarded-For", forwardedFor);
+		con.getResponseCode();
+		return con;
+	}
+
+	private static String httpGET(String url) throws Exception {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		return new String(con.getInputStream().readAllBytes(), "UTF-8");
+	}
+}
@@ -0,0 +1,111 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import io.undertow.Undertow;
+import io.undertow.server.handlers.BlockingHandler;
+import io.undertow.util.Headers;
+import net.b07z.sepia.proxies.limits.BodyStats;
+import net.b07z.sepia.proxies.routing.RouteOptions;
+
+public class TestRequestBody {
+
+	@Test
+	public void testBodyLimits() throws Exception {
+		Undertow backend = Undertow.builder().addHttpListener(9341, "localhost")
+				.setHandler(new BlockingHandler((exchange) -> {
+					if (exchange.getRequestPath().endsWith("/slow")){
+						Thread.sleep(800);
+					}
+					int length = exchange.getInputStream().readAllBytes().length;
+					exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain");
+					exchange.getResponseSender().send("received " + length);
+				})).build();
+		backend.start();
+
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9340);
+		reverseProxy.addPrefixPath("/stt", "http://localhost:9341", new RouteOptions().setPublic(true)
+				.setMaxBodySize(10_000_000).setUploadTimeout(5000).setUploadIdleTimeout(300));
+		reverseProxy.addPrefixPath("/small", "http://localhost:9341", new RouteOptions().setPublic(true).setMaxBodySize(1000));
+		reverseProxy.start();
+		try{
+			//within limits
+			assertEquals("received 5000", post("http://localhost:9340/stt/upload", 5000));
+			assertEquals("received 0", post("http://localhost:9340/small/x", 0));
+
+			//too large by Content-Length and while streaming a chunked body
+			assertTrue(raw("POST /small/x HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5000\r\n\r\n", 0).startsWith("HTTP/1.1 413"));
+			String chunk = Integer.toHexString(3000) + "\r\n" + "x".repeat(3000) + "\r\n";
+			String res = raw("POST /small/x HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n" + chunk, 0);
+			assertTrue(res, res.startsWith("HTTP/1.1 413"));
+
+			//client stops sending
+			long start = System.currentTimeMillis();
+			assertTrue(raw("POST /stt/upload HTTP/1.1\r\nHost: localhost\r\nContent-Length: 1000\r\n\r\n" + "x".repeat(100), 3000).startsWith("HTTP/1.1 408"));
+			assertTrue(System.currentTimeMillis() - start < 2000);
+
+			//a backend that doesn't read yet is not an idle client
+			assertEquals("received 8000000", post("http://localhost:9340/stt/slow", 8_000_000));
+
+			BodyStats stats = reverseProxy.bodyStats.get("prefix:/stt -> http://localhost:9341");
+			BodyStats small = reverseProxy.bodyStats.get("prefix:/small -> http://localhost:9341");
+			assertEquals(0, stats.getActive());
+			assertEquals(0, stats.getBytesInFlight());
+			assertEquals(5000 + 100 + 8_000_000, stats.getBytes());
+			assertEquals(1, stats.getTimedOut());
+			assertEquals(2, small.getTooLarge());
+			String metrics = httpGET("http://localhost:9340/metrics");
+			assertTrue(metrics.contains("proxy_upload_rejected_total{route=\"/small\",type=\"prefix\",reason=\"size\"} 2"));
+			assertTrue(metrics.contains("proxy_upload_bytes_in_flight{route=\"/stt\",type=\"prefix\"} 0"));
+		}finally{
+			reverseProxy.stop();
+			backend.stop();
+		}
+	}
+
+	private static String post(String url, int size) throws Exception {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		con.setDoOutput(true);
+		con.setRequestMethod("POST");
+		con.setFixedLengthStreamingMode(size);
+		con.setReadTimeout(5000);
+		try (OutputStream out = con.getOutputStream()){
+			byte[] block = new byte[64 * 1024];
+			for (int sent = 0; sent < size; sent += block.length){
+				out.write(block, 0, Math.min(block.length, size - sent));
+			}
+		}
+		assertEquals(200, con.getResponseCode());
+		try (InputStream in = con.getInputStream()){
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	private static String httpGET(String url) throws Exception {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		try (InputStream in = con.getInputStream()){
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Send raw request (optionally wait before reading) and return the response until the connection is closed.
+	 */
+	private static String raw(String request, int readTimeoutMs) throws Exception {
+		try (Socket socket = new Socket("localhost", 9340)){
+			socket.setSoTimeout(Math.max(readTimeoutMs, 3000));
+			socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+			socket.getOutputStream().flush();
+			return new String(socket.getInputStream().readAllBytes(), StandardCharsets.US_ASCII);
+		}
+	}
+}
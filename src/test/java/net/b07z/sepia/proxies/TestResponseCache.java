@@ -0,0 +1,157 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import io.undertow.Undertow;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import net.b07z.sepia.proxies.routing.RouteOptions;
+
+public class TestResponseCache {
+	
+	private final AtomicInteger backendCalls = new AtomicInteger();
+
+	@Test
+	public void testCache() throws Exception {
+		Undertow s1 = startTestServer(9251);
+		
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9250);
+		reverseProxy.setResponseCache(64 * 1024, 16 * 1024, 0);
+		reverseProxy.addPrefixPath("/c", "http://localhost:9251", new RouteOptions().setCache(true));
+		reverseProxy.addPrefixPath("/n", "http://localhost:9251", true);
+		reverseProxy.start();
+		try{
+			//cacheable, multiple pages
+			String first = httpGET("http://localhost:9250/c/cache?size=10000", null);
+			assertEquals(10000, first.length());
+			assertEquals(first, httpGET("http://localhost:9250/c/cache?size=10000", null));
+			assertEquals(1, backendCalls.get());
+			
+			//not cached: no-store, other route, query
+			httpGET("http://localhost:9250/c/nostore", null);
+			httpGET("http://localhost:9250/c/nostore", null);
+			httpGET("http://localhost:9250/n/cache?size=10", null);
+			httpGET("http://localhost:9250/n/cache?size=10", null);
+			assertEquals(5, backendCalls.get());
+			
+			//ETag
+			assertEquals("304", httpGET("http://localhost:9250/c/cache?size=10000", "\"v1\""));
+			assertEquals(5, backendCalls.get());
+			
+			//POST invalidates
+			HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:9250/c/cache?size=10000").openConnection();
+			con.setRequestMethod("POST");
+			con.getResponseCode();
+			con.disconnect();
+			assertEquals(6, backendCalls.get());
+			assertEquals(first, httpGET("http://localhost:9250/c/cache?size=10000", null));
+			assertEquals(7, backendCalls.get());
+			
+			//too large for an entry
+			httpGET("http://localhost:9250/c/cache?size=20000", null);
+			httpGET("http://localhost:9250/c/cache?size=20000", null);
+			assertEquals(9, backendCalls.get());
+			
+			//eviction: 10 x 12KB in 64KB
+			for (int i = 0; i < 10; i++){
+				assertEquals(12000, httpGET("http://localhost:9250/c/cache?size=12000&i=" + i, null).length());
+			}
+			assertEquals(12000, httpGET("http://localhost:9250/c/cache?size=12000&i=9", null).length());
+			assertEquals(19, backendCalls.get());
+			assertTrue(reverseProxy.responseCache.getEvictions() > 0);
+			assertTrue(reverseProxy.responseCache.getUsedBytes() <= 64 * 1024);
+			
+			//concurrent misses are collapsed
+			backendCalls.set(0);
+			ExecutorService pool = Executors.newFixedThreadPool(5);
+			List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < 5; i++){
+				results.add(pool.submit(() -> httpGET("http://localhost:9250/c/slow", null)));
+			}
+			for (Future<String> f : results){
+				assertEquals("slow", f.get());
+			}
+			pool.shutdown();
+			assertEquals(1, backendCalls.get());
+		}finally{
+			reverseProxy.stop();
+			s1.stop();
+		}
+	}
+	
+	/**
+	 * Backend with cacheable and non-cacheable resources.
+	 */
+	private Undertow startTestServer(int port){
+		Undertow server = Undertow.builder()
+                .addHttpListener(port, "localhost")
+                .setHandler((exchange) -> exchange.dispatch((HttpHandler) (ex) -> {
+                	//worker thread, so the slow resource can block
+                	backendCalls.incrementAndGet();
+                	respond(ex);
+                })).build();
+        server.start();
+        return server;
+	}
+	
+	private static void respond(HttpServerExchange exchange) throws Exception {
+		String path = exchange.getRequestPath();
+		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain");
+		if (path.endsWith("/cache")){
+			int size = Integer.parseInt(exchange.getQueryParameters().get("size").getFirst());
+			exchange.getResponseHeaders().put(Headers.CACHE_CONTROL, "public, max-age=60");
+			exchange.getResponseHeaders().put(Headers.ETAG, "\"v1\"");
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < size; i++){
+				sb.append((char) ('a' + (i % 26)));
+			}
+			exchange.getResponseSender().send(sb.toString());
+		}else if (path.endsWith("/slow")){
+			Thread.sleep(300);
+			exchange.getResponseHeaders().put(Headers.CACHE_CONTROL, "max-age=60");
+			exchange.getResponseSender().send("slow");
+		}else{
+			exchange.getResponseHeaders().put(Headers.CACHE_CONTROL, "no-store");
+			exchange.getResponseSender().send("no");
+		}
+	}
+	
+	/**
+	 * Make a HTTP GET call.
+	 */
+	private static String httpGET(String url, String ifNoneMatch) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		con.setRequestMethod("GET");
+		con.setConnectTimeout(3000);
+		con.setReadTimeout(3000);
+		if (ifNoneMatch != null){
+			con.setRequestProperty("If-None-Match", ifNoneMatch);
+		}
+		int responseCode = con.getResponseCode();
+		if (responseCode >= 200 && responseCode < 300){
+			try (InputStream in = con.getInputStream()){
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				in.transferTo(out);
+				return new String(out.toByteArray(), StandardCharsets.UTF_8);
+			}
+		}else{
+			return String.valueOf(responseCode);
+		}
+	}
+}
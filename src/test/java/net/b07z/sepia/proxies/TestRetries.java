@@ -0,0 +1,149 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import io.undertow.Undertow;
+import io.undertow.server.handlers.BlockingHandler;
+import io.undertow.util.Headers;
+import net.b07z.sepia.proxies.balancing.RetryBudget;
+import net.b07z.sepia.proxies.routing.RouteOptions;
+
+public class TestRetries {
+
+	@Test
+	public void testRetryOnAnotherBackend() throws Exception {
+		AtomicInteger unavailable = new AtomicInteger();
+		Undertow failing = Undertow.builder().addHttpListener(9361, "localhost")
+				.setHandler((exchange) -> {
+					unavailable.incrementAndGet();
+					exchange.setStatusCode(503);
+					exchange.getResponseSender().send("down");
+				}).build();
+		Undertow good = Undertow.builder().addHttpListener(9362, "localhost")
+				.setHandler((exchange) -> {
+					exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain");
+					exchange.getResponseSender().send("ok " + exchange.getRequestPath());
+				}).build();
+		failing.start();
+		good.start();
+
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9360);
+		reverseProxy.addPrefixPath("/status", "http://localhost:9361/a, http://localhost:9362/b", true);
+		reverseProxy.addPrefixPath("/connect", "http://localhost:9369, http://localhost:9362", true);
+		reverseProxy.addPrefixPath("/none", "http://localhost:9361, http://localhost:9362", new RouteOptions().setPublic(true).setRetries(0));
+		reverseProxy.start();
+		try{
+			//502/503 and connection errors of idempotent requests are answered by the other backend (with its own path)
+			for (int i = 0; i < 6; i++){
+				HttpURLConnection con = request("GET", "http://localhost:9360/status/x?q=1");
+				assertEquals(200, con.getResponseCode());
+				assertEquals("ok /b/x", new String(con.getInputStream().readAllBytes(), "UTF-8"));
+				assertEquals(200, request("GET", "http://localhost:9360/connect/x").getResponseCode());
+			}
+			assertTrue(unavailable.get() >= 2);
+
+			//requests with body are not repeated, routes without retries pass the 503 on
+			int errors = 0;
+			for (int i = 0; i < 4; i++){
+				if (request("POST", "http://localhost:9360/status/x").getResponseCode() == 503) errors++;
+			}
+			assertTrue(errors > 0);
+			errors = 0;
+			for (int i = 0; i < 4; i++){
+				if (request("GET", "http://localhost:9360/none/x").getResponseCode() == 503) errors++;
+			}
+			assertTrue(errors > 0);
+
+			String metrics = httpGET("http://localhost:9360/metrics");
+			assertTrue(metrics, metrics.contains("proxy_retries_total "));
+			assertFalse(metrics, metrics.contains("proxy_retries_total 0"));
+		}finally{
+			reverseProxy.stop();
+			failing.stop();
+			good.stop();
+		}
+	}
+
+	@Test
+	public void testHedgedRequests() throws Exception {
+		AtomicBoolean slow = new AtomicBoolean(false);
+		Undertow slowBackend = Undertow.builder().addHttpListener(9363, "localhost")
+				.setHandler(new BlockingHandler((exchange) -> {
+					if (slow.get()){
+						Thread.sleep(1000);
+					}
+					exchange.getResponseSender().send("slow");
+				})).build();
+		Undertow fastBackend = Undertow.builder().addHttpListener(9364, "localhost")
+				.setHandler((exchange) -> exchange.getResponseSender().send("fast")).build();
+		slowBackend.start();
+		fastBackend.start();
+
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9365);
+		reverseProxy.addPrefixPath("/hedged", "http://localhost:9363, http://localhost:9364", new RouteOptions().setPublic(true).setHedging(true));
+		reverseProxy.start();
+		try{
+			//collect response times for the p95 estimate
+			for (int i = 0; i < 30; i++){
+				assertEquals(200, request("GET", "http://localhost:9365/hedged/x").getResponseCode());
+			}
+			Thread.sleep(1100);
+			slow.set(true);
+			for (int i = 0; i < 4; i++){
+				long start = System.currentTimeMillis();
+				HttpURLConnection con = request("GET", "http://localhost:9365/hedged/x");
+				assertEquals(200, con.getResponseCode());
+				assertEquals("fast", new String(con.getInputStream().readAllBytes(), "UTF-8"));
+				assertTrue(System.currentTimeMillis() - start < 800);
+			}
+			String metrics = httpGET("http://localhost:9365/metrics");
+			assertTrue(metrics, metrics.contains("proxy_hedged_requests_total "));
+			assertFalse(metrics, metrics.contains("proxy_hedged_requests_total 0"));
+		}finally{
+			reverseProxy.stop();
+			slowBackend.stop();
+			fastBackend.stop();
+		}
+	}
+
+	@Test
+	public void testBudget() throws Exception {
+		RetryBudget budget = new RetryBudget(0.5, 0);
+		//starts with one token, each request adds half a token
+		assertTrue(budget.tryWithdraw(false));
+		assertFalse(budget.tryWithdraw(false));
+		budget.deposit();
+		assertFalse(budget.tryWithdraw(true));
+		budget.deposit();
+		assertTrue(budget.tryWithdraw(true));
+		assertEquals(1, budget.getRetries());
+		assertEquals(1, budget.getHedges());
+		assertEquals(2, budget.getExhausted());
+	}
+
+	private static HttpURLConnection request(String method, String url) throws Exception {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		con.setRequestMethod(method);
+		if (method.equals("POST")){
+			con.setDoOutput(true);
+			try (OutputStream out = con.getOutputStream()){
+				out.write("data".getBytes("UTF-8"));
+			}
+		}
+		con.getResponseCode();
+		return con;
+	}
+
+	private static String httpGET(String url) throws Exception {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		return new String(con.getInputStream().readAllBytes(), "UTF-8");
+	}
+}
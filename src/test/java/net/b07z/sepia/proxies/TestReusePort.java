@@ -0,0 +1,109 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import io.undertow.Undertow;
+import net.b07z.sepia.proxies.server.ReusePortListener;
+
+public class TestReusePort {
+
+	@Test
+	public void testConnectionsSpreadOverListeners() throws Exception {
+		Assume.assumeTrue("SO_REUSEPORT not supported", ReusePortListener.isSupported());
+		Undertow backend = Undertow.builder().addHttpListener(9396, "localhost")
+				.setHandler((exchange) -> exchange.getResponseSender().send("ok")).build();
+		backend.start();
+
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9395);
+		reverseProxy.setThreads(4, 4);
+		reverseProxy.setListeners(4);
+		reverseProxy.addPrefixPath("/api", "http://localhost:9396", true);
+		reverseProxy.start();
+		List<Socket> clients = new ArrayList<>();
+		try{
+			assertEquals(4, reverseProxy.getListeners());
+			//keep-alive connections stay on the listener that accepted them
+			for (int i = 0; i < 32; i++){
+				Socket s = new Socket("localhost", 9395);
+				clients.add(s);
+				OutputStream out = s.getOutputStream();
+				out.write("GET /api/x HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("UTF-8"));
+				out.flush();
+				assertTrue(readResponse(s.getInputStream()).startsWith("HTTP/1.1 200"));
+			}
+			HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:9395/metrics").openConnection();
+			String metrics = new String(con.getInputStream().readAllBytes(), "UTF-8");
+			Matcher m = Pattern.compile("proxy_connections_active\\{listener=\"http/[^\"]*:9395#(\\d)\"\\} (\\d+)").matcher(metrics);
+			int listeners = 0, used = 0, active = 0;
+			while (m.find()){
+				listeners++;
+				int n = Integer.parseInt(m.group(2));
+				active += n;
+				if (n > 0) used++;
+			}
+			assertEquals(metrics, 4, listeners);
+			assertTrue(metrics, active >= 32);
+			assertTrue(metrics, used > 1);
+
+			//all listeners stop accepting on stop
+			reverseProxy.stop();
+			try{
+				new Socket("localhost", 9395).close();
+				fail("still accepting");
+			}catch (java.net.ConnectException e){
+				//expected
+			}
+		}finally{
+			for (Socket s : clients){
+				s.close();
+			}
+			reverseProxy.stop();
+			backend.stop();
+		}
+	}
+
+	@Test
+	public void testSingleListenerFallback(){
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9397);
+		assertEquals(1, reverseProxy.getListeners());
+		reverseProxy.setListeners(0);
+		assertEquals(1, reverseProxy.getListeners());
+		reverseProxy.setListeners(3);
+		assertEquals(ReusePortListener.isSupported()? 3 : 1, reverseProxy.getListeners());
+	}
+
+	/**
+	 * Read one response with 'Content-Length' (headers and body).
+	 */
+	private static String readResponse(InputStream in) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		int contentLength = -1;
+		while (true){
+			int c = in.read();
+			if (c < 0) break;
+			sb.append((char) c);
+			if (sb.length() >= 4 && sb.substring(sb.length() - 4).equals("\r\n\r\n")){
+				Matcher m = Pattern.compile("(?i)content-length: (\\d+)").matcher(sb);
+				contentLength = m.find()? Integer.parseInt(m.group(1)) : 0;
+				break;
+			}
+		}
+		for (int i = 0; i < contentLength; i++){
+			sb.append((char) in.read());
+		}
+		return sb.toString();
+	}
+}
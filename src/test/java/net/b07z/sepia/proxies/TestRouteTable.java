@@ -0,0 +1,64 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import io.undertow.server.HttpHandler;
+import net.b07z.sepia.proxies.routing.Route;
+import net.b07z.sepia.proxies.routing.RouteTable;
+
+public class TestRouteTable {
+	
+	private static final HttpHandler NOOP = (exchange) -> {};
+
+	@Test
+	public void testMatching() throws Exception {
+		Route root = new Route("/", true, NOOP, true);
+		Route assist = new Route("/sepia/assist", false, NOOP, true);
+		Route stt = new Route("/sepia/stt/", false, NOOP, false);
+		Route sttPing = new Route("/sepia/stt/ping", true, NOOP, true);
+		Route sepia = new Route("sepia", false, NOOP, true);
+		RouteTable table = RouteTable.compile(Arrays.asList(root, assist, stt, sttPing, sepia));
+		
+		assertSame(root, table.match("/"));
+		assertSame(root, table.match(""));
+		assertSame(assist, table.match("/sepia/assist"));
+		assertSame(assist, table.match("/sepia/assist/answer"));
+		assertSame(assist, table.match("/sepia/assist/"));
+		assertSame(sepia, table.match("/sepia/assistant"));
+		assertSame(sepia, table.match("/sepia"));
+		assertNull(table.match("/sepiax"));
+		assertNull(table.match("/other/sepia/assist"));
+		
+		//exact route wins only on the exact path, policy applies to sub-paths
+		assertSame(sttPing, table.match("/sepia/stt/ping"));
+		assertSame(stt, table.match("/sepia/stt/ping/x"));
+		assertSame(stt, table.match("/sepia/stt/xyz"));
+		assertFalse(table.match("/sepia/stt/xyz").isPublic());
+		
+		//matched part that is removed from the path
+		assertEquals("/sepia/stt".length(), stt.getMatchLength());
+		assertEquals(1, root.getMatchLength());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testDuplicates() throws Exception {
+		RouteTable.compile(Arrays.asList(new Route("/a", false, NOOP, true), new Route("/a/", false, NOOP, true)));
+	}
+	
+	@Test
+	public void testManyRoutes() throws Exception {
+		Route[] routes = new Route[400];
+		for (int i = 0; i < routes.length; i++){
+			routes[i] = new Route("/service" + i + "/api", false, NOOP, (i % 2 == 0));
+		}
+		RouteTable table = RouteTable.compile(Arrays.asList(routes));
+		for (int i = 0; i < routes.length; i++){
+			assertSame(routes[i], table.match("/service" + i + "/api/call"));
+		}
+		assertNull(table.match("/service400/api"));
+	}
+}
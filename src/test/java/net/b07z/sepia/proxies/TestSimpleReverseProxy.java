@@ -32,6 +32,7 @@ public class TestSimpleReverseProxy {
 		reverseProxy.addPrefixPath("/two", "http://localhost:9214", isPublic);
 		reverseProxy.addPrefixPath("/sepia/three", "http://localhost:9213", isPublic);
 		reverseProxy.addPrefixPath("/sepia/four", "http://localhost:9214", isPublic);
+		reverseProxy.addExactPath("/five", "http://localhost:9213/5", isPublic, null);
 		
 		//Start proxy
 		reverseProxy.start();
@@ -44,6 +45,9 @@ public class TestSimpleReverseProxy {
 		res = httpGET("http://localhost:9212/two/2");			assertTrue(res.equals("Test2 - path: /2"));
 		res = httpGET("http://localhost:9212/sepia/three/3");	assertTrue(res.equals("Test1 - path: /3"));
 		res = httpGET("http://localhost:9212/sepia/four/4");	assertTrue(res.equals("Test2 - path: /4"));
+		res = httpGET("http://localhost:9212/five");			assertTrue(res.equals("Test1 - path: /5"));
+		res = httpGET("http://localhost:9212/five/5");			assertTrue(res.equals("404"));
+		res = httpGET("http://localhost:9212/unknown");			assertTrue(res.equals("404"));
 		
 		reverseProxy.stop();
 		s1.stop();
@@ -0,0 +1,78 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+import io.undertow.Undertow;
+import net.b07z.sepia.proxies.metrics.StartupReport;
+
+public class TestStartupReport {
+
+	@Test
+	public void testPhasesAndFirstRequest() throws Exception {
+		Undertow backend = Undertow.builder().addHttpListener(9381, "localhost")
+				.setHandler((exchange) -> exchange.getResponseSender().send("ok")).build();
+		backend.start();
+
+		List<String> log = new CopyOnWriteArrayList<>();
+		StartupReport report = new StartupReport(log::add);
+		Thread.sleep(20);
+		report.phase("settings");
+		report.parallelPhase("keystore", 42);
+
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9380);
+		reverseProxy.setStartupReport(report);
+		reverseProxy.addPrefixPath("/api", "http://localhost:9381", true);
+		reverseProxy.start();
+		report.phase("listener");
+		report.ready();
+		try{
+			assertEquals(1, log.size());
+			assertTrue(log.get(0), log.get(0).startsWith("Startup times: jvm "));
+			assertTrue(log.get(0), log.get(0).contains("keystore 42ms (parallel)"));
+			Map<String, Long> phases = report.getPhases();
+			assertTrue(phases.get("settings") >= 20);
+			assertTrue(phases.get(StartupReport.READY) >= phases.get("settings"));
+			assertFalse(report.hasFirstRequest());
+
+			//banner is not a proxied request
+			assertEquals(200, get("http://localhost:9380/").getResponseCode());
+			assertFalse(report.hasFirstRequest());
+			for (int i = 0; i < 3; i++){
+				assertEquals(200, get("http://localhost:9380/api/x").getResponseCode());
+			}
+			assertTrue(report.hasFirstRequest());
+			assertEquals(2, log.size());
+			assertTrue(log.get(1), log.get(1).startsWith("First proxied request completed"));
+			assertTrue(report.getPhases().get(StartupReport.FIRST_REQUEST) >= report.getPhases().get(StartupReport.READY));
+
+			String metrics = new String(get("http://localhost:9380/metrics").getInputStream().readAllBytes(), "UTF-8");
+			assertTrue(metrics, metrics.contains("proxy_startup_seconds{phase=\"keystore\"} 0.042"));
+			assertTrue(metrics, metrics.contains("proxy_startup_seconds{phase=\"first_request\"}"));
+
+			//SSL can only change before start
+			try{
+				reverseProxy.setSsl(true, null);
+				fail("setSsl after start");
+			}catch (RuntimeException e){
+				//expected
+			}
+		}finally{
+			reverseProxy.stop();
+			backend.stop();
+		}
+	}
+
+	private static HttpURLConnection get(String url) throws Exception {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		con.getResponseCode();
+		return con;
+	}
+}
@@ -0,0 +1,182 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.undertow.Undertow;
+import net.b07z.sepia.proxies.security.KeyStoreWatcher;
+import net.b07z.sepia.proxies.security.SSLContextBuilder;
+
+public class TestTls {
+
+	private static final String PWD = "test-pwd";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testKeyStoreFormats() throws Exception {
+		File p12 = createKeyStore("one", "RSA");
+		assertEquals("PKCS12", SSLContextBuilder.detectType(p12.getPath()));
+		assertEquals("PEM", SSLContextBuilder.detectType("/etc/letsencrypt/live/x/fullchain.pem"));
+		assertEquals("JKS", SSLContextBuilder.detectType("keystore.jks"));
+		KeyStore ks = SSLContextBuilder.loadKeyStore("auto", p12.getPath(), PWD);
+		PrivateKey key = (PrivateKey) ks.getKey("test", PWD.toCharArray());
+		Certificate cert = ks.getCertificate("test");
+
+		//PEM with PKCS#8 key in separate file
+		File certPem = writePem("cert.pem", "CERTIFICATE", cert.getEncoded());
+		File keyPem = writePem("key.pem", "PRIVATE KEY", key.getEncoded());
+		KeyStore pem = SSLContextBuilder.loadPemKeyStore(certPem.getPath(), keyPem.getPath(), PWD);
+		assertEquals(cert, pem.getCertificate("server"));
+		assertArrayEquals(key.getEncoded(), pem.getKey("server", PWD.toCharArray()).getEncoded());
+
+		//PEM with PKCS#1 RSA key in the same file
+		File combined = writePem("combined.pem", "CERTIFICATE", cert.getEncoded());
+		byte[] pkcs1 = Arrays.copyOfRange(key.getEncoded(), pkcs8KeyOffset(key.getEncoded()), key.getEncoded().length);
+		Files.write(combined.toPath(), pem("RSA PRIVATE KEY", pkcs1).getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+		pem = SSLContextBuilder.loadKeyStore("PEM", combined.getPath(), PWD);
+		assertArrayEquals(key.getEncoded(), pem.getKey("server", PWD.toCharArray()).getEncoded());
+
+		//EC key
+		KeyStore ec = SSLContextBuilder.loadKeyStore("PKCS12", createKeyStore("ec", "EC").getPath(), PWD);
+		File ecKey = writePem("ec-key.pem", "PRIVATE KEY", ec.getKey("test", PWD.toCharArray()).getEncoded());
+		File ecCert = writePem("ec-cert.pem", "CERTIFICATE", ec.getCertificate("test").getEncoded());
+		assertEquals("EC", SSLContextBuilder.loadPemKeyStore(ecCert.getPath(), ecKey.getPath(), PWD).getKey("server", PWD.toCharArray()).getAlgorithm());
+
+		//only a certificate
+		try{
+			SSLContextBuilder.loadPemKeyStore(certPem.getPath(), null, PWD);
+			fail("missing key should fail");
+		}catch (IllegalArgumentException e){
+			//expected
+		}
+	}
+
+	@Test
+	public void testKeyStoreReload() throws Exception {
+		File p12 = createKeyStore("one", "EC");
+		Undertow s1 = Undertow.builder().addHttpListener(9271, "localhost")
+				.setHandler((exchange) -> exchange.getResponseSender().send("ok")).build();
+		s1.start();
+
+		KeyStoreWatcher keyStore = new KeyStoreWatcher("auto", p12.getPath(), null, PWD);
+		SSLContext sslContext = SSLContextBuilder.create(keyStore.getKeyManager(), 1000, 3600);
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9270, true, sslContext);
+		reverseProxy.setTlsParameters(new String[]{ "TLSv1.3", "TLSv1.2", "SSLv9" }, null);
+		reverseProxy.addPrefixPath("/tls", "http://localhost:9271", true);
+		reverseProxy.start();
+		try{
+			assertEquals("CN=one", serverCertificate("https://localhost:9270/tls/x"));
+			assertFalse(keyStore.reloadIfChanged());
+
+			//renewal: write new keystore to the same file
+			File renewed = createKeyStore("two", "EC");
+			Files.copy(renewed.toPath(), p12.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			p12.setLastModified(System.currentTimeMillis() + 2000);
+			assertTrue(keyStore.reloadIfChanged());
+			assertEquals("CN=two", serverCertificate("https://localhost:9270/tls/x"));
+
+			//broken file keeps the old certificate
+			Files.write(p12.toPath(), new byte[]{ 1, 2, 3 });
+			p12.setLastModified(System.currentTimeMillis() + 4000);
+			assertFalse(keyStore.reloadIfChanged());
+			assertEquals("CN=two", serverCertificate("https://localhost:9270/tls/x"));
+		}finally{
+			reverseProxy.stop();
+			s1.stop();
+		}
+	}
+
+	/**
+	 * Create a PKCS12 keystore with self-signed certificate using the JDK keytool.
+	 */
+	private File createKeyStore(String cn, String keyAlg) throws Exception {
+		File file = new File(folder.getRoot(), cn + "-" + System.nanoTime() + ".p12");
+		String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+		Process p = new ProcessBuilder(keytool, "-genkeypair", "-alias", "test", "-keyalg", keyAlg,
+				"-dname", "CN=" + cn, "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "2",
+				"-storetype", "PKCS12", "-keystore", file.getPath(), "-storepass", PWD, "-keypass", PWD)
+			.redirectErrorStream(true).start();
+		p.getInputStream().readAllBytes();
+		assertEquals(0, p.waitFor());
+		return file;
+	}
+
+	private File writePem(String name, String type, byte[] der) throws Exception {
+		File file = folder.newFile(name);
+		Files.write(file.toPath(), pem(type, der).getBytes(StandardCharsets.US_ASCII));
+		return file;
+	}
+	private static String pem(String type, byte[] der){
+		return "-----BEGIN " + type + "-----\n" + Base64.getMimeEncoder(64, new byte[]{'\n'}).encodeToString(der)
+				+ "\n-----END " + type + "-----\n";
+	}
+
+	/**
+	 * Start of the inner key (OCTET STRING content) of a PKCS#8 structure.
+	 */
+	private static int pkcs8KeyOffset(byte[] der){
+		int i = skipHeader(der, 0);			//outer sequence
+		i = skipElement(der, i);			//version
+		i = skipElement(der, i);			//algorithm
+		return skipHeader(der, i);			//octet string
+	}
+	private static int skipHeader(byte[] der, int pos){
+		int len = der[pos + 1] & 0xff;
+		return (len > 0x7f)? pos + 2 + (len & 0x7f) : pos + 2;
+	}
+	private static int skipElement(byte[] der, int pos){
+		int start = skipHeader(der, pos);
+		int len = der[pos + 1] & 0xff;
+		if (len > 0x7f){
+			len = 0;
+			for (int k = pos + 2; k < start; k++){
+				len = (len << 8) | (der[k] & 0xff);
+			}
+		}
+		return start + len;
+	}
+
+	/**
+	 * Subject of the server certificate, every call uses a new client context (no session resumption).
+	 */
+	private static String serverCertificate(String url) throws Exception {
+		SSLContext client = SSLContext.getInstance("TLS");
+		client.init(null, new TrustManager[]{ new X509TrustManager(){
+			public void checkClientTrusted(X509Certificate[] chain, String authType){}
+			public void checkServerTrusted(X509Certificate[] chain, String authType){}
+			public X509Certificate[] getAcceptedIssuers(){ return new X509Certificate[0]; }
+		}}, null);
+		HttpsURLConnection con = (HttpsURLConnection) new URL(url).openConnection();
+		con.setSSLSocketFactory(client.getSocketFactory());
+		con.setHostnameVerifier((host, session) -> true);
+		con.setConnectTimeout(3000);
+		con.setReadTimeout(3000);
+		assertEquals(200, con.getResponseCode());
+		String subject = ((X509Certificate) con.getServerCertificates()[0]).getSubjectX500Principal().getName();
+		con.disconnect();
+		return subject;
+	}
+}
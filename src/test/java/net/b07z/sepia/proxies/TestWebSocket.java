@@ -0,0 +1,196 @@
+package net.b07z.sepia.proxies;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.net.http.WebSocketHandshakeException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Test;
+
+import io.undertow.Handlers;
+import io.undertow.Undertow;
+import io.undertow.websockets.core.AbstractReceiveListener;
+import io.undertow.websockets.core.BufferedTextMessage;
+import io.undertow.websockets.core.WebSocketChannel;
+import io.undertow.websockets.core.WebSockets;
+import net.b07z.sepia.proxies.balancing.Backend;
+import net.b07z.sepia.proxies.balancing.BackendProxyClient;
+import net.b07z.sepia.proxies.routing.RouteOptions;
+
+public class TestWebSocket {
+	
+	private final HttpClient client = HttpClient.newHttpClient();
+
+	@Test
+	public void testWebSocketRoute() throws Exception {
+		AtomicInteger openA = new AtomicInteger();
+		AtomicInteger openB = new AtomicInteger();
+		Undertow s1 = startEchoServer(9321, "A", openA);
+		Undertow s2 = startEchoServer(9322, "B", openB);
+		
+		TinyReverseProxy reverseProxy = new TinyReverseProxy("localhost", 9320);
+		reverseProxy.addPrefixPath("/chat", "http://localhost:9321, http://localhost:9322", 
+				new RouteOptions().setWebSocket(true).setMaxConnections(4).setIdleTimeout(-1));
+		reverseProxy.addPrefixPath("/idle", "http://localhost:9321", 
+				new RouteOptions().setWebSocket(true).setIdleTimeout(300));
+		reverseProxy.start();
+		try{
+			BackendProxyClient chat = reverseProxy.prefixMappings.get("/chat");
+			
+			//echo through the proxy, one connection per backend
+			Client a1 = connect("ws://localhost:9320/chat/ws");
+			Client b1 = connect("ws://localhost:9320/chat/ws");
+			String first = a1.echo("hello");
+			String second = b1.echo("hello");
+			assertNotEquals(first.substring(0, 1), second.substring(0, 1));
+			assertEquals("hello", first.substring(2));
+			if (first.startsWith("B")){
+				Client tmp = a1;
+				a1 = b1;
+				b1 = tmp;
+			}
+			
+			//least connections: close both on A, the next two go to A
+			Client a2 = connect("ws://localhost:9320/chat/ws");
+			Client b2 = connect("ws://localhost:9320/chat/ws");
+			assertEquals(4, reverseProxy.webSocketCounters.get(reverseProxy.prefixPaths.get("/chat").toString()).getOpen());
+			Client onA = a2.echo("x").startsWith("A")? a2 : b2;
+			a1.close();
+			onA.close();
+			waitFor(() -> connections(chat, 9321) == 0 && openA.get() == 0);
+			assertEquals(2, connections(chat, 9322));
+			Client c1 = connect("ws://localhost:9320/chat/ws");
+			Client c2 = connect("ws://localhost:9320/chat/ws");
+			assertTrue(c1.echo("y").startsWith("A"));
+			assertTrue(c2.echo("y").startsWith("A"));
+			assertEquals(2, connections(chat, 9321));
+			
+			//connection limit
+			try{
+				connect("ws://localhost:9320/chat/ws");
+				fail("connection limit should reject handshake");
+			}catch (ExecutionException e){
+				assertTrue(e.getCause() instanceof WebSocketHandshakeException);
+				assertEquals(503, ((WebSocketHandshakeException) e.getCause()).getResponse().statusCode());
+			}
+			assertEquals(1, reverseProxy.webSocketCounters.get(reverseProxy.prefixPaths.get("/chat").toString()).getRejected());
+			String metrics = reverseProxy.writeMetrics();
+			assertTrue(metrics.contains("proxy_websocket_connections{route=\"/chat\",type=\"prefix\"} 4"));
+			assertTrue(metrics.contains("proxy_backend_websocket_connections{route=\"/chat\",type=\"prefix\",backend=\"http://localhost:9321\"} 2"));
+			
+			//idle connections are closed, active ones stay
+			Client idle = connect("ws://localhost:9320/idle/ws");
+			Client active = connect("ws://localhost:9320/idle/ws");
+			long end = System.currentTimeMillis() + 900;
+			while (System.currentTimeMillis() < end){
+				assertEquals("A:ping", active.echo("ping"));
+				Thread.sleep(100);
+			}
+			assertTrue(idle.closed.isDone());
+			assertFalse(active.closed.isDone());
+			active.close();
+			
+			for (Client c : new Client[]{ b1, c1, c2, a2.closed.isDone()? b2 : a2 }){
+				c.close();
+			}
+			waitFor(() -> openA.get() == 0 && openB.get() == 0 && connections(chat, 9321) == 0 && connections(chat, 9322) == 0);
+			for (String route : new String[]{ "/chat", "/idle" }){
+				assertEquals(0, reverseProxy.webSocketCounters.get(reverseProxy.prefixPaths.get(route).toString()).getOpen());
+			}
+		}finally{
+			reverseProxy.stop();
+			s1.stop();
+			s2.stop();
+		}
+	}
+	
+	private static int connections(BackendProxyClient client, int port){
+		for (Backend b : client.getBackends()){
+			if (b.getUri().getPort() == port) return b.getConnections();
+		}
+		return -1;
+	}
+	
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long end = System.currentTimeMillis() + 3000;
+		while (!condition.getAsBoolean()){
+			assertTrue("timeout", System.currentTimeMillis() < end);
+			Thread.sleep(20);
+		}
+	}
+	
+	private Client connect(String uri) throws Exception {
+		Client c = new Client();
+		c.ws = client.newWebSocketBuilder().buildAsync(URI.create(uri), c).get(3, TimeUnit.SECONDS);
+		return c;
+	}
+	
+	/**
+	 * Echo server that answers with its name and counts open connections.
+	 */
+	private static Undertow startEchoServer(int port, String name, AtomicInteger open){
+		Undertow server = Undertow.builder()
+				.addHttpListener(port, "localhost")
+				.setHandler(Handlers.websocket((exchange, channel) -> {
+					open.incrementAndGet();
+					channel.addCloseTask((ch) -> open.decrementAndGet());
+					channel.getReceiveSetter().set(new AbstractReceiveListener(){
+						@Override
+						protected void onFullTextMessage(WebSocketChannel ch, BufferedTextMessage message){
+							WebSockets.sendText(name + ":" + message.getData(), ch, null);
+						}
+					});
+					channel.resumeReceives();
+				})).build();
+		server.start();
+		return server;
+	}
+	
+	/**
+	 * Client that sends one message at a time and waits for the answer.
+	 */
+	private static class Client implements WebSocket.Listener {
+		WebSocket ws;
+		final CompletableFuture<Void> closed = new CompletableFuture<>();
+		volatile CompletableFuture<String> pending;
+		final StringBuilder received = new StringBuilder();
+		
+		String echo(String message) throws Exception {
+			pending = new CompletableFuture<>();
+			ws.sendText(message, true);
+			return pending.get(3, TimeUnit.SECONDS);
+		}
+		
+		void close(){
+			ws.sendClose(WebSocket.NORMAL_CLOSURE, "done");
+		}
+		
+		@Override
+		public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last){
+			received.append(data);
+			if (last){
+				pending.complete(received.toString());
+				received.setLength(0);
+			}
+			webSocket.request(1);
+			return null;
+		}
+		@Override
+		public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason){
+			closed.complete(null);
+			return null;
+		}
+		@Override
+		public void onError(WebSocket webSocket, Throwable error){
+			closed.complete(null);
+		}
+	}
+}